@@ -0,0 +1,151 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.logging.Logger;
+
+/**
+ * Decides whether tiles are compressed before they go to a worker. It keeps
+ * running averages of the link bandwidth, the codec throughput and the
+ * compression ratio. Compression pays when codec time plus the time to send
+ * the smaller payload is below the time to send the raw payload:
+ *
+ * size / codec + ratio * size / link < size / link, that is
+ * ratio < 1 - link / codec
+ *
+ * Every PROBE_INTERVAL-th task goes the other way, so that the averages
+ * follow a link or data that changes.
+ */
+public class AdaptiveCompression {
+  // Logger for this class
+  private static final Logger LOGGER = Logger.getLogger(AdaptiveCompression.class.getName());
+
+  /**
+   * Whether tiles are compressed.
+   */
+  public enum Mode {
+    OFF, ON, AUTO
+  }
+
+  // Every this many tasks the other choice is tried
+  private static final int PROBE_INTERVAL = 16;
+
+  // Weight of a new sample in the running averages
+  private static final double ALPHA = 0.2;
+
+  private final Mode mode;
+  private double linkBytesPerSecond; // 0 until measured
+  private double codecBytesPerSecond; // 0 until measured
+  private double ratio; // compressed / raw, 0 until measured
+  private long decisions;
+  private boolean compressing;
+
+  /**
+   * Create a policy with the given mode
+   *
+   * @param mode OFF, ON, or AUTO to decide from measurements
+   */
+  public AdaptiveCompression(Mode mode) {
+    this.mode = mode;
+  }
+
+  /**
+   * Decide for the next task
+   *
+   * @return Whether its tiles should be compressed.
+   */
+  public synchronized boolean shouldCompress() {
+    if (mode != Mode.AUTO) {
+      return mode == Mode.ON;
+    }
+
+    // Measure both ways before deciding
+    if (linkBytesPerSecond == 0) {
+      return false;
+    }
+    if (codecBytesPerSecond == 0) {
+      return true;
+    }
+
+    boolean worthIt = ratio < 1 - linkBytesPerSecond / codecBytesPerSecond;
+    if (worthIt != compressing) {
+      compressing = worthIt;
+      LOGGER.info(String.format("Tile compression %s: link %.1f MB/s, codec %.1f MB/s, ratio %.2f",
+          worthIt ? "on" : "off", linkBytesPerSecond / 1e6, codecBytesPerSecond / 1e6, ratio));
+    }
+
+    return ++decisions % PROBE_INTERVAL == 0 ? !worthIt : worthIt;
+  }
+
+  /**
+   * Record a transfer over the link
+   *
+   * @param bytes the number of bytes sent
+   * @param nanos the time it took
+   */
+  public synchronized void recordTransfer(long bytes, long nanos) {
+    if (nanos > 0 && bytes > 0) {
+      linkBytesPerSecond = average(linkBytesPerSecond, bytes * 1e9 / nanos);
+    }
+  }
+
+  /**
+   * Returns the measured link bandwidth
+   *
+   * @return The bandwidth in bytes per second, 0 until measured.
+   */
+  public synchronized double getLinkBytesPerSecond() {
+    return linkBytesPerSecond;
+  }
+
+  /**
+   * Record a compression. The time is doubled, the tile is decompressed at
+   * the other end as well.
+   *
+   * @param rawBytes        the size of the tile as raw doubles
+   * @param compressedBytes the size of the compressed tile
+   * @param nanos           the time the compression took
+   */
+  public synchronized void recordCodec(long rawBytes, long compressedBytes, long nanos) {
+    if (nanos > 0 && rawBytes > 0) {
+      codecBytesPerSecond = average(codecBytesPerSecond, rawBytes * 1e9 / (2.0 * nanos));
+      ratio = average(ratio, (double) compressedBytes / rawBytes);
+    }
+  }
+
+  private static double average(double current, double sample) {
+    return current == 0 ? sample : (1 - ALPHA) * current + ALPHA * sample;
+  }
+
+  /**
+   * An OutputStream that counts the bytes written through it, to measure
+   * transfers.
+   */
+  public static class CountingOutputStream extends FilterOutputStream {
+    private long count;
+
+    public CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+
+    /**
+     * Returns the number of bytes written so far
+     *
+     * @return The byte count.
+     */
+    public long getCount() {
+      return count;
+    }
+  }
+}
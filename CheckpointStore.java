@@ -0,0 +1,334 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Durable checkpoints of long multiplications. Every job gets a directory
+ * named by its job ID holding:
+ *
+ * job.properties: the state (running or done) and the tiling of the job
+ * A.mtx, B.mtx: the operands, see MatrixFile
+ * tiles.log: the finished result tiles, appended as they come in. A record is
+ * the tile index, its rows and columns (ints), its elements (doubles) and a
+ * CRC32 of all of them (long), little-endian.
+ * tiles.idx: the index of the log, an int tile index and a long log offset
+ * per record. An entry is only written once its record is on disk, so every
+ * indexed tile is complete. A crash between the two loses that tile only.
+ * C.mtx: the result, once the job is done.
+ *
+ * A manager that restarts opens the running jobs and computes only the tiles
+ * that are not in the log.
+ */
+public class CheckpointStore {
+  // Logger for this class
+  private static final Logger LOGGER = Logger.getLogger(CheckpointStore.class.getName());
+
+  // Bytes of an index entry
+  private static final int INDEX_ENTRY = 12;
+
+  private final Path root;
+
+  /**
+   * Create a store
+   *
+   * @param root the directory of the checkpoints, created if missing
+   */
+  public CheckpointStore(Path root) throws IOException {
+    this.root = Files.createDirectories(root);
+  }
+
+  /**
+   * Start the checkpoint of a job
+   *
+   * @param jobId         the ID the client reattaches with
+   * @param A             the left-hand matrix
+   * @param B             the right-hand matrix
+   * @param partitionSize the number of tiles
+   * @return The checkpoint, open for tiles.
+   */
+  public Job create(String jobId, Matrix A, Matrix B, int partitionSize) throws IOException {
+    Path directory = Files.createDirectories(directory(jobId));
+    MatrixFile.write(directory.resolve("A.mtx"), A);
+    MatrixFile.write(directory.resolve("B.mtx"), B);
+    Files.deleteIfExists(directory.resolve("tiles.log"));
+    Files.deleteIfExists(directory.resolve("tiles.idx"));
+
+    Properties properties = new Properties();
+    properties.setProperty("state", "running");
+    properties.setProperty("partitionSize", Integer.toString(partitionSize));
+    writeProperties(directory, properties);
+
+    return new Job(jobId, directory, partitionSize);
+  }
+
+  /**
+   * Open the checkpoint of a running job
+   *
+   * @param jobId the ID of the job
+   * @return The checkpoint with the tiles finished so far, or null if the job
+   *         is unknown or done.
+   */
+  public Job open(String jobId) throws IOException {
+    Path directory = directory(jobId);
+    Properties properties = readProperties(directory);
+    if (properties == null || !"running".equals(properties.getProperty("state"))) {
+      return null;
+    }
+
+    Job job = new Job(jobId, directory, Integer.parseInt(properties.getProperty("partitionSize")));
+    job.recover();
+    return job;
+  }
+
+  /**
+   * Returns the result of a job that is done
+   *
+   * @param jobId the ID of the job
+   * @return The result, or null if the job is unknown or not done.
+   */
+  public Matrix result(String jobId) throws IOException {
+    Path directory = directory(jobId);
+    Properties properties = readProperties(directory);
+    if (properties == null || !"done".equals(properties.getProperty("state"))) {
+      return null;
+    }
+    return MatrixFile.read(directory.resolve("C.mtx"));
+  }
+
+  /**
+   * Returns the IDs of the jobs that were running when the manager stopped
+   *
+   * @return The job IDs.
+   */
+  public List<String> runningJobs() throws IOException {
+    List<String> jobs = new ArrayList<>();
+    try (DirectoryStream<Path> directories = Files.newDirectoryStream(root, Files::isDirectory)) {
+      for (Path directory : directories) {
+        Properties properties = readProperties(directory);
+        if (properties != null && "running".equals(properties.getProperty("state"))) {
+          jobs.add(directory.getFileName().toString());
+        }
+      }
+    }
+    return jobs;
+  }
+
+  // The directory of a job. Job IDs name directories, so they may not walk
+  // out of the root.
+  private Path directory(String jobId) {
+    if (jobId == null || !jobId.matches("[A-Za-z0-9._-]+") || jobId.startsWith(".")) {
+      throw new IllegalArgumentException("Invalid job ID " + jobId);
+    }
+    return root.resolve(jobId);
+  }
+
+  private static Properties readProperties(Path directory) throws IOException {
+    Path file = directory.resolve("job.properties");
+    if (!Files.exists(file)) {
+      return null;
+    }
+    Properties properties = new Properties();
+    try (InputStream in = Files.newInputStream(file)) {
+      properties.load(in);
+    }
+    return properties;
+  }
+
+  // Replace the properties file in one step, so a crash leaves the old or the
+  // new one.
+  private static void writeProperties(Path directory, Properties properties) throws IOException {
+    Path temporary = directory.resolve("job.properties.tmp");
+    try (OutputStream out = Files.newOutputStream(temporary)) {
+      properties.store(out, null);
+    }
+    Files.move(temporary, directory.resolve("job.properties"), StandardCopyOption.ATOMIC_MOVE,
+        StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * The checkpoint of one job.
+   */
+  public static class Job {
+    private final String jobId;
+    private final Path directory;
+    private final int partitionSize;
+    private final Map<Integer, Matrix> tiles = new HashMap<>();
+
+    Job(String jobId, Path directory, int partitionSize) {
+      this.jobId = jobId;
+      this.directory = directory;
+      this.partitionSize = partitionSize;
+    }
+
+    public String getJobId() {
+      return jobId;
+    }
+
+    public int getPartitionSize() {
+      return partitionSize;
+    }
+
+    public Matrix readA() throws IOException {
+      return MatrixFile.read(directory.resolve("A.mtx"));
+    }
+
+    public Matrix readB() throws IOException {
+      return MatrixFile.read(directory.resolve("B.mtx"));
+    }
+
+    /**
+     * Returns the tiles finished so far, by tile index
+     *
+     * @return The tiles.
+     */
+    public synchronized Map<Integer, Matrix> getTiles() {
+      return new HashMap<>(tiles);
+    }
+
+    /**
+     * Append a finished tile to the log and then to the index, each forced to
+     * disk
+     *
+     * @param index the index of the tile
+     * @param tile  the tile
+     */
+    public synchronized void append(int index, Matrix tile) throws IOException {
+      int M = tile.getM();
+      int N = tile.getN();
+      ByteBuffer record = ByteBuffer.allocate(12 + 8 * M * N + 8).order(ByteOrder.LITTLE_ENDIAN);
+      record.putInt(index).putInt(M).putInt(N);
+      for (int i = 0; i < M; i++) {
+        record.asDoubleBuffer().put(tile.getRow(i));
+        record.position(record.position() + 8 * N);
+      }
+      CRC32 crc = new CRC32();
+      crc.update(record.array(), 0, record.position());
+      record.putLong(crc.getValue()).flip();
+
+      long offset;
+      try (FileChannel log = FileChannel.open(directory.resolve("tiles.log"), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE)) {
+        offset = log.size();
+        log.position(offset);
+        while (record.hasRemaining()) {
+          log.write(record);
+        }
+        log.force(false);
+      }
+
+      ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY).order(ByteOrder.LITTLE_ENDIAN);
+      entry.putInt(index).putLong(offset).flip();
+      try (FileChannel idx = FileChannel.open(directory.resolve("tiles.idx"), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+        while (entry.hasRemaining()) {
+          idx.write(entry);
+        }
+        idx.force(false);
+      }
+
+      tiles.put(index, tile);
+    }
+
+    /**
+     * Store the result and mark the job done. The operands and the tile log
+     * are deleted.
+     *
+     * @param result the product
+     */
+    public synchronized void complete(Matrix result) throws IOException {
+      MatrixFile.write(directory.resolve("C.mtx"), result);
+
+      Properties properties = new Properties();
+      properties.setProperty("state", "done");
+      properties.setProperty("partitionSize", Integer.toString(partitionSize));
+      writeProperties(directory, properties);
+
+      for (String name : new String[] { "A.mtx", "B.mtx", "tiles.log", "tiles.idx" }) {
+        Files.deleteIfExists(directory.resolve(name));
+      }
+      tiles.clear();
+    }
+
+    // Load the indexed tiles whose records are whole and pass their check.
+    private synchronized void recover() throws IOException {
+      Path idxPath = directory.resolve("tiles.idx");
+      Path logPath = directory.resolve("tiles.log");
+      if (!Files.exists(idxPath) || !Files.exists(logPath)) {
+        return;
+      }
+
+      ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(idxPath)).order(ByteOrder.LITTLE_ENDIAN);
+      try (FileChannel log = FileChannel.open(logPath, StandardOpenOption.READ)) {
+        while (entries.remaining() >= INDEX_ENTRY) {
+          int index = entries.getInt();
+          long offset = entries.getLong();
+          Matrix tile = readRecord(log, offset, index);
+          if (tile != null) {
+            tiles.put(index, tile);
+          }
+        }
+      }
+
+      // Cut off a torn entry, or the next append would start behind it and
+      // every entry from there on would be read out of line
+      if (entries.hasRemaining()) {
+        try (FileChannel idx = FileChannel.open(idxPath, StandardOpenOption.WRITE)) {
+          idx.truncate(entries.position());
+          idx.force(false);
+        }
+      }
+      LOGGER.info("Recovered " + tiles.size() + " tiles of job " + jobId);
+    }
+
+    // Read the record at offset, null if it is torn or damaged.
+    private static Matrix readRecord(FileChannel log, long offset, int index) throws IOException {
+      ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+      if (offset + 12 > log.size() || log.read(header, offset) < 12) {
+        return null;
+      }
+      header.flip();
+      int recorded = header.getInt();
+      int M = header.getInt();
+      int N = header.getInt();
+      long length = 12 + 8L * M * N + 8;
+      if (recorded != index || M <= 0 || N <= 0 || offset + length > log.size()) {
+        return null;
+      }
+
+      ByteBuffer record = ByteBuffer.allocate((int) length).order(ByteOrder.LITTLE_ENDIAN);
+      while (record.hasRemaining()) {
+        if (log.read(record, offset + record.position()) < 0) {
+          return null;
+        }
+      }
+      CRC32 crc = new CRC32();
+      crc.update(record.array(), 0, (int) length - 8);
+      if (record.getLong((int) length - 8) != crc.getValue()) {
+        return null;
+      }
+
+      Matrix tile = new Matrix(M, N);
+      record.position(12);
+      for (int i = 0; i < M; i++) {
+        record.asDoubleBuffer().get(tile.getRow(i));
+        record.position(record.position() + 8 * N);
+      }
+      return tile;
+    }
+  }
+}
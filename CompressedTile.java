@@ -0,0 +1,308 @@
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A dense tile compressed for the wire. The codec runs in three steps:
+ *
+ * 1. Zero-run elision: runs of 0.0 are replaced by their lengths, so padding
+ * and empty regions cost a few bytes.
+ * 2. Byte shuffle: the remaining doubles are split into 8 byte planes, sign
+ * and exponent bytes first. Neighbouring values mostly share their high bytes,
+ * so the planes hold long repeats.
+ * 3. An LZ77 codec in the style of LZ4 (4 byte hashing, 64 KB window, literal
+ * and match lengths in one token) squeezes the repeats out of the planes.
+ *
+ * The codec is lossless, a decompressed tile equals the original bit by bit.
+ */
+final public class CompressedTile implements Serializable {
+  private final int M; // number of rows
+  private final int N; // number of columns
+  private final byte[] runs; // lengths of the zero and non-zero runs, as varints
+  private final int nonZeros; // number of values outside the zero runs
+  private final byte[] planes; // LZ compressed byte planes of the non-zero values
+
+  // Shortest match the LZ codec emits
+  private static final int MIN_MATCH = 4;
+
+  // Size of the LZ hash table, in entries
+  private static final int HASH_LOG = 14;
+
+  // Creating a new CompressedTile from its parts.
+  private CompressedTile(int M, int N, byte[] runs, int nonZeros, byte[] planes) {
+    this.M = M;
+    this.N = N;
+    this.runs = runs;
+    this.nonZeros = nonZeros;
+    this.planes = planes;
+  }
+
+  /**
+   * Compress a tile
+   *
+   * @param A the tile
+   * @return The compressed tile.
+   */
+  public static CompressedTile compress(Matrix A) {
+    int M = A.getM();
+    int N = A.getN();
+
+    // 1. Split the elements into alternating zero and non-zero runs, row by
+    // row as if the tile were one long array
+    ByteWriter runs = new ByteWriter(64);
+    long[] values = new long[M * N];
+    int count = 0;
+    int run = 0;
+    boolean zeros = true;
+    for (int i = 0; i < M; i++) {
+      double[] row = A.getRow(i);
+      for (int j = 0; j < N; j++) {
+        long bits = Double.doubleToRawLongBits(row[j]);
+        if ((bits == 0) != zeros) {
+          runs.writeVarint(run);
+          run = 0;
+          zeros = !zeros;
+        }
+        if (bits != 0) {
+          values[count++] = bits;
+        }
+        run++;
+      }
+    }
+    runs.writeVarint(run);
+
+    // 2. Shuffle the non-zero values into byte planes
+    byte[] shuffled = new byte[count * 8];
+    for (int plane = 0; plane < 8; plane++) {
+      int shift = 56 - 8 * plane;
+      int offset = plane * count;
+      for (int k = 0; k < count; k++)
+        shuffled[offset + k] = (byte) (values[k] >>> shift);
+    }
+
+    // 3. LZ compress the planes
+    return new CompressedTile(M, N, runs.toByteArray(), count, lzCompress(shuffled));
+  }
+
+  /**
+   * Decompress the tile
+   *
+   * @return A new Matrix object equal to the compressed one.
+   */
+  public Matrix decompress() {
+    byte[] shuffled = lzDecompress(planes, nonZeros * 8);
+
+    Matrix A = new Matrix(M, N);
+    int total = M * N;
+    int position = 0;
+    int k = 0;
+    boolean zeros = true;
+    int[] cursor = { 0 };
+    while (position < total) {
+      int run = readVarint(runs, cursor);
+      if (!zeros) {
+        for (int r = 0; r < run; r++, k++, position++) {
+          long bits = 0;
+          for (int plane = 0; plane < 8; plane++)
+            bits = (bits << 8) | (shuffled[plane * nonZeros + k] & 0xffL);
+          A.getRow(position / N)[position % N] = Double.longBitsToDouble(bits);
+        }
+      } else {
+        position += run;
+      }
+      zeros = !zeros;
+    }
+    return A;
+  }
+
+  /**
+   * Returns the number of bytes of the compressed payload
+   *
+   * @return The compressed size.
+   */
+  public int compressedSize() {
+    return runs.length + planes.length;
+  }
+
+  /**
+   * Returns the number of bytes the tile takes as raw doubles
+   *
+   * @return The raw size.
+   */
+  public long rawSize() {
+    return (long) M * N * 8;
+  }
+
+  /**
+   * Decompress the block if it is a CompressedTile, return it unchanged
+   * otherwise
+   *
+   * @param block a Matrix, SparseMatrix or CompressedTile
+   * @return The block, never a CompressedTile.
+   */
+  public static Object decompress(Object block) {
+    return block instanceof CompressedTile ? ((CompressedTile) block).decompress() : block;
+  }
+
+  // LZ77 compression of input. A sequence is a token (literal length in the
+  // high nibble, match length - 4 in the low nibble, 15 means more length
+  // bytes follow), the literals, a 2 byte offset and the extra match length.
+  // The last sequence has only literals.
+  private static byte[] lzCompress(byte[] input) {
+    int length = input.length;
+    ByteWriter out = new ByteWriter(length / 2 + 16);
+    int[] table = new int[1 << HASH_LOG];
+    Arrays.fill(table, -1);
+
+    int anchor = 0;
+    int i = 0;
+    while (i + MIN_MATCH <= length) {
+      int sequence = readInt(input, i);
+      int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+      int reference = table[hash];
+      table[hash] = i;
+
+      if (reference < 0 || i - reference > 0xffff || readInt(input, reference) != sequence) {
+        // Skip faster through data that does not compress
+        i += 1 + ((i - anchor) >>> 6);
+        continue;
+      }
+
+      int match = MIN_MATCH;
+      while (i + match < length && input[reference + match] == input[i + match])
+        match++;
+
+      writeSequence(out, input, anchor, i - anchor, i - reference, match);
+      i += match;
+      anchor = i;
+    }
+
+    writeSequence(out, input, anchor, length - anchor, 0, 0);
+    return out.toByteArray();
+  }
+
+  // Write one sequence, a match length of 0 marks the last one.
+  private static void writeSequence(ByteWriter out, byte[] input, int start, int literals, int offset, int match) {
+    int matchCode = match == 0 ? 0 : match - MIN_MATCH;
+    out.write((Math.min(literals, 15) << 4) | Math.min(matchCode, 15));
+    if (literals >= 15)
+      writeLength(out, literals - 15);
+    out.write(input, start, literals);
+
+    if (match == 0)
+      return;
+    out.write(offset & 0xff);
+    out.write(offset >>> 8);
+    if (matchCode >= 15)
+      writeLength(out, matchCode - 15);
+  }
+
+  // Length bytes of 255 until the last, smaller one.
+  private static void writeLength(ByteWriter out, int length) {
+    while (length >= 255) {
+      out.write(255);
+      length -= 255;
+    }
+    out.write(length);
+  }
+
+  // Undo lzCompress.
+  private static byte[] lzDecompress(byte[] input, int size) {
+    byte[] output = new byte[size];
+    int ip = 0;
+    int op = 0;
+
+    while (ip < input.length) {
+      int token = input[ip++] & 0xff;
+
+      int literals = token >>> 4;
+      if (literals == 15) {
+        int b;
+        do {
+          b = input[ip++] & 0xff;
+          literals += b;
+        } while (b == 255);
+      }
+      System.arraycopy(input, ip, output, op, literals);
+      ip += literals;
+      op += literals;
+
+      if (ip >= input.length)
+        break;
+
+      int offset = (input[ip] & 0xff) | ((input[ip + 1] & 0xff) << 8);
+      ip += 2;
+      int match = (token & 0x0f);
+      if (match == 15) {
+        int b;
+        do {
+          b = input[ip++] & 0xff;
+          match += b;
+        } while (b == 255);
+      }
+      match += MIN_MATCH;
+
+      // Byte by byte, the match may overlap what it is copying
+      int from = op - offset;
+      for (int k = 0; k < match; k++)
+        output[op++] = output[from + k];
+    }
+
+    return output;
+  }
+
+  private static int readInt(byte[] bytes, int i) {
+    return (bytes[i] & 0xff) | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff) << 16 | (bytes[i + 3] & 0xff) << 24;
+  }
+
+  private static int readVarint(byte[] bytes, int[] cursor) {
+    int value = 0;
+    int shift = 0;
+    int b;
+    do {
+      b = bytes[cursor[0]++] & 0xff;
+      value |= (b & 0x7f) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  /**
+   * A growable byte array.
+   */
+  private static class ByteWriter {
+    private byte[] bytes;
+    private int size;
+
+    ByteWriter(int capacity) {
+      bytes = new byte[Math.max(capacity, 16)];
+    }
+
+    void write(int b) {
+      ensure(1);
+      bytes[size++] = (byte) b;
+    }
+
+    void write(byte[] source, int offset, int length) {
+      ensure(length);
+      System.arraycopy(source, offset, bytes, size, length);
+      size += length;
+    }
+
+    void writeVarint(int value) {
+      while ((value & ~0x7f) != 0) {
+        write((value & 0x7f) | 0x80);
+        value >>>= 7;
+      }
+      write(value);
+    }
+
+    private void ensure(int extra) {
+      if (size + extra > bytes.length)
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(bytes, size);
+    }
+  }
+}
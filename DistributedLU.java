@@ -0,0 +1,209 @@
+import java.util.logging.Logger;
+
+/**
+ * Blocked LU factorization with partial pivoting, PA = LU. The matrix is
+ * factored one panel of blockSize columns at a time. The panel and the block
+ * row of U are small and done locally, the update of the trailing matrix
+ * (A22 -= L21 * U12) holds almost all of the multiply-adds and is sent out as
+ * tile products through a TileExecutor, normally the workers of the manager.
+ */
+public class DistributedLU {
+  // Logger for this class
+  private static final Logger LOGGER = Logger.getLogger(DistributedLU.class.getName());
+
+  /**
+   * Runs a batch of tile products. Every task is {A blocks, B blocks} like the
+   * tasks of the workers, the result of a task is the sum of the products of
+   * its block pairs.
+   */
+  public interface TileExecutor {
+    Object[] run(Object[][][] tasks);
+  }
+
+  /**
+   * A TileExecutor that computes every task on the calling thread.
+   */
+  public static final TileExecutor LOCAL = tasks -> {
+    Object[] results = new Object[tasks.length];
+    for (int i = 0; i < tasks.length; i++) {
+      results[i] = Matrix.dot((Matrix[]) tasks[i][0], (Matrix[]) tasks[i][1]);
+    }
+    return results;
+  };
+
+  private final int N; // order of the matrix
+  private final double[][] lu; // L below the diagonal (unit diagonal implied), U on and above it
+  private final int[] permutation; // row i of LU is row permutation[i] of A
+
+  // Creating the factorization of an N-by-N matrix from its rows.
+  private DistributedLU(double[][] lu, int[] permutation) {
+    this.N = lu.length;
+    this.lu = lu;
+    this.permutation = permutation;
+  }
+
+  /**
+   * Factor the square matrix A
+   *
+   * @param A         the matrix to factor, it is not modified
+   * @param blockSize the number of columns per panel and the edge of the tiles
+   *                  of the trailing update
+   * @param executor  runs the trailing updates
+   * @return The factorization.
+   */
+  public static DistributedLU factor(Matrix A, int blockSize, TileExecutor executor) {
+    if (A.getM() != A.getN())
+      throw new RuntimeException("Illegal matrix dimensions.");
+
+    int N = A.getN();
+    double[][] a = new double[N][];
+    int[] permutation = new int[N];
+    for (int i = 0; i < N; i++) {
+      a[i] = A.getRow(i).clone();
+      permutation[i] = i;
+    }
+
+    for (int k0 = 0; k0 < N; k0 += blockSize) {
+      int k1 = Math.min(k0 + blockSize, N);
+
+      factorPanel(a, permutation, k0, k1);
+      if (k1 == N) {
+        break;
+      }
+
+      solveBlockRow(a, k0, k1);
+      updateTrailing(a, k0, k1, blockSize, executor);
+    }
+
+    return new DistributedLU(a, permutation);
+  }
+
+  // Unblocked LU with partial pivoting of the columns k0 to k1, rows k0 to N.
+  // Pivoting swaps whole rows, so the rows of L left of the panel and of the
+  // trailing matrix move along.
+  private static void factorPanel(double[][] a, int[] permutation, int k0, int k1) {
+    int N = a.length;
+
+    for (int j = k0; j < k1; j++) {
+      // find pivot row and swap
+      int max = j;
+      for (int i = j + 1; i < N; i++)
+        if (Math.abs(a[i][j]) > Math.abs(a[max][j]))
+          max = i;
+
+      double[] row = a[j];
+      a[j] = a[max];
+      a[max] = row;
+      int index = permutation[j];
+      permutation[j] = permutation[max];
+      permutation[max] = index;
+
+      // singular
+      if (a[j][j] == 0.0)
+        throw new RuntimeException("Matrix is singular.");
+
+      // eliminate below the pivot, within the panel only
+      double[] pivotRow = a[j];
+      for (int i = j + 1; i < N; i++) {
+        double[] target = a[i];
+        double m = target[j] / pivotRow[j];
+        target[j] = m;
+        for (int c = j + 1; c < k1; c++)
+          target[c] -= m * pivotRow[c];
+      }
+    }
+  }
+
+  // U12 = L11^-1 * A12, by forward substitution with the unit lower triangle
+  // of the panel, row by row.
+  private static void solveBlockRow(double[][] a, int k0, int k1) {
+    int N = a.length;
+
+    for (int i = k0 + 1; i < k1; i++) {
+      double[] target = a[i];
+      for (int r = k0; r < i; r++) {
+        double m = target[r];
+        double[] source = a[r];
+        for (int c = k1; c < N; c++)
+          target[c] -= m * source[c];
+      }
+    }
+  }
+
+  // A22 -= L21 * U12, one task per tile of A22.
+  private static void updateTrailing(double[][] a, int k0, int k1, int tileSize, TileExecutor executor) {
+    int N = a.length;
+    int tiles = (N - k1 + tileSize - 1) / tileSize;
+
+    Matrix[] l21 = new Matrix[tiles];
+    Matrix[] u12 = new Matrix[tiles];
+    for (int t = 0; t < tiles; t++) {
+      int from = k1 + t * tileSize;
+      int to = Math.min(from + tileSize, N);
+      l21[t] = copy(a, from, to, k0, k1);
+      u12[t] = copy(a, k0, k1, from, to);
+    }
+
+    Object[][][] tasks = new Object[tiles * tiles][][];
+    for (int i = 0; i < tiles; i++)
+      for (int j = 0; j < tiles; j++)
+        tasks[i * tiles + j] = new Matrix[][] { { l21[i] }, { u12[j] } };
+
+    LOGGER.info("Updating trailing matrix of order " + (N - k1) + " with " + tasks.length + " tiles");
+    Object[] results = executor.run(tasks);
+
+    for (int i = 0; i < tiles; i++) {
+      for (int j = 0; j < tiles; j++) {
+        Matrix product = SparseMatrix.toDense(results[i * tiles + j]);
+        int rowOffset = k1 + i * tileSize;
+        int colOffset = k1 + j * tileSize;
+        for (int r = 0; r < product.getM(); r++) {
+          double[] target = a[rowOffset + r];
+          double[] source = product.getRow(r);
+          for (int c = 0; c < source.length; c++)
+            target[colOffset + c] -= source[c];
+        }
+      }
+    }
+  }
+
+  // Copy rows r0 to r1 and columns c0 to c1 of a into a new matrix.
+  private static Matrix copy(double[][] a, int r0, int r1, int c0, int c1) {
+    Matrix block = new Matrix(r1 - r0, c1 - c0);
+    for (int r = r0; r < r1; r++)
+      System.arraycopy(a[r], c0, block.getRow(r - r0), 0, c1 - c0);
+    return block;
+  }
+
+  /**
+   * Solve A X = B with this factorization, for any number of right hand sides
+   *
+   * @param B the right hand sides, one per column
+   * @return The solution matrix X.
+   */
+  public Matrix solve(Matrix B) {
+    if (B.getM() != N)
+      throw new RuntimeException("Illegal matrix dimensions.");
+
+    int columns = B.getN();
+    Matrix X = new Matrix(N, columns);
+
+    // Apply the row permutation, then L y = P b by forward substitution
+    for (int i = 0; i < N; i++) {
+      double[] x = X.getRow(i);
+      System.arraycopy(B.getRow(permutation[i]), 0, x, 0, columns);
+      for (int j = 0; j < i; j++)
+        Kernels.axpy(-lu[i][j], X.getRow(j), x, columns);
+    }
+
+    // U x = y by back substitution
+    for (int i = N - 1; i >= 0; i--) {
+      double[] x = X.getRow(i);
+      for (int j = i + 1; j < N; j++)
+        Kernels.axpy(-lu[i][j], X.getRow(j), x, columns);
+      Kernels.scale(1.0 / lu[i][i], x, columns);
+    }
+
+    return X;
+  }
+}
@@ -0,0 +1,68 @@
+/**
+ * A Manager and its workers in one JVM, connected by a LocalTransport. The
+ * jobs go through the same planning, tiling and scheduling as on a real
+ * cluster, but no socket is opened and no tile is serialized. It serves as a
+ * multi-core engine on one machine and as a harness for integration tests.
+ *
+ * Example:
+ * EmbeddedCluster cluster = new EmbeddedCluster(4);
+ * Matrix C = cluster.multiply(A, B);
+ */
+public class EmbeddedCluster {
+  private final Manager manager;
+
+  /**
+   * Create a cluster
+   *
+   * @param workers the number of workers, each runs one task at a time
+   */
+  public EmbeddedCluster(int workers) {
+    LocalTransport transport = new LocalTransport();
+    manager = new Manager();
+    manager.setTransport(transport);
+    for (int i = 0; i < workers; i++) {
+      manager.addWorker(transport.addWorker());
+    }
+  }
+
+  /**
+   * Returns the manager, to configure it or to inspect its plans
+   *
+   * @return The manager.
+   */
+  public Manager getManager() {
+    return manager;
+  }
+
+  /**
+   * Run a job as the manager would for a client
+   *
+   * @param request a JobRequest or a legacy Object[] {A, B}
+   * @return The result of the job.
+   */
+  public Object execute(Object request) {
+    return manager.execute(request);
+  }
+
+  /**
+   * Multiply A by B
+   *
+   * @param A the matrix A, a Matrix or a SparseMatrix
+   * @param B the matrix B, a Matrix or a SparseMatrix
+   * @return The product A x B.
+   */
+  public Matrix multiply(Object A, Object B) {
+    return manager.multiply(A, B);
+  }
+
+  /**
+   * Solve A X = B
+   *
+   * @param A the square matrix A
+   * @param B the right hand sides
+   * @return The solution X.
+   */
+  public Matrix solve(Matrix A, Matrix B) {
+    return manager.solve(A, B);
+  }
+}
@@ -0,0 +1,451 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A lazy matrix expression. The methods build a graph instead of computing,
+ * for example
+ *
+ * Expr.of(A).times(Expr.of(B).t()).scale(alpha).plus(Expr.of(C).scale(beta))
+ *
+ * for alpha * A * B^T + beta * C. Nothing is computed until the expression is
+ * evaluated, here with evaluate or on the cluster as one job.
+ *
+ * Before it is evaluated an expression is fused into a sum of terms, see
+ * Fused: products coef * op(L) * op(R) and plain terms coef * op(Z), where op
+ * is the matrix or its transpose. Scales become coefficients and transposes
+ * are pushed down to the matrices, where they only change the order the
+ * kernels read in. A tile of the result is then computed in one pass, the
+ * plain terms added to the tile of the products, with no intermediate matrix.
+ * Only a factor that is itself a sum or a product has to be evaluated first,
+ * as a stage of its own. Sub-expressions used more than once are evaluated
+ * once.
+ */
+public abstract class Expr implements Serializable {
+  private final int M; // number of rows
+  private final int N; // number of columns
+
+  // Creating a new node of the given shape.
+  private Expr(int M, int N) {
+    this.M = M;
+    this.N = N;
+  }
+
+  /**
+   * A matrix as an expression
+   *
+   * @param A the matrix, which must not change until the expression is
+   *          evaluated
+   * @return The expression.
+   */
+  public static Expr of(Matrix A) {
+    return new Leaf(A);
+  }
+
+  /**
+   * Returns the transpose of this expression
+   *
+   * @return The expression.
+   */
+  public Expr t() {
+    return new Transpose(this);
+  }
+
+  /**
+   * Returns this expression times B
+   *
+   * @param B the right-hand expression
+   * @return The expression.
+   */
+  public Expr times(Expr B) {
+    if (N != B.M)
+      throw new RuntimeException("Illegal matrix dimensions.");
+    return new Product(this, B);
+  }
+
+  /**
+   * Returns this expression plus B
+   *
+   * @param B the expression to add
+   * @return The expression.
+   */
+  public Expr plus(Expr B) {
+    return new Sum(this, B, 1.0);
+  }
+
+  /**
+   * Returns this expression minus B
+   *
+   * @param B the expression to subtract
+   * @return The expression.
+   */
+  public Expr minus(Expr B) {
+    return new Sum(this, B, -1.0);
+  }
+
+  /**
+   * Returns this expression scaled by alpha
+   *
+   * @param alpha the scale
+   * @return The expression.
+   */
+  public Expr scale(double alpha) {
+    return new Scale(this, alpha);
+  }
+
+  public int getM() {
+    return M;
+  }
+
+  public int getN() {
+    return N;
+  }
+
+  /**
+   * Evaluate the expression here, fused like on the cluster
+   *
+   * @return The value of the expression.
+   */
+  public Matrix evaluate() {
+    return fuse(Expr::evaluate).evaluate();
+  }
+
+  /**
+   * Fuse the expression into a sum of terms
+   *
+   * @param stage evaluates a factor that is a sum or a product, called once
+   *              for every such factor
+   * @return The fused expression.
+   */
+  public Fused fuse(Function<Expr, Matrix> stage) {
+    Fused fused = new Fused(M, N);
+    Map<Expr, Matrix> stages = new IdentityHashMap<>();
+    collect(1.0, false, fused.terms, factor -> stages.computeIfAbsent(factor, stage));
+    return fused;
+  }
+
+  /**
+   * Returns the bytes of the matrices in the expression, each counted once
+   *
+   * @return The number of bytes.
+   */
+  public long matrixBytes() {
+    Map<Matrix, Boolean> seen = new IdentityHashMap<>();
+    leaves(seen);
+    long bytes = 0;
+    for (Matrix matrix : seen.keySet()) {
+      bytes += 8L * matrix.getM() * matrix.getN();
+    }
+    return bytes;
+  }
+
+  // Add the terms of coefficient * op(this) to terms.
+  abstract void collect(double coefficient, boolean transposed, List<Term> terms, Function<Expr, Matrix> stage);
+
+  // Add the matrices of the expression to seen.
+  abstract void leaves(Map<Matrix, Boolean> seen);
+
+  // This expression as coefficient * op(matrix), evaluating it as a stage if
+  // it is not a scaled and transposed matrix.
+  Factor factor(Function<Expr, Matrix> stage) {
+    return new Factor(stage.apply(this), false, 1.0);
+  }
+
+  /**
+   * A matrix with a transpose flag and a coefficient.
+   */
+  static class Factor {
+    final Matrix matrix;
+    final boolean transposed;
+    final double coefficient;
+
+    Factor(Matrix matrix, boolean transposed, double coefficient) {
+      this.matrix = matrix;
+      this.transposed = transposed;
+      this.coefficient = coefficient;
+    }
+  }
+
+  /**
+   * One term of a fused expression: coefficient * op(left) * op(right), or
+   * coefficient * op(left) if right is null.
+   */
+  public static class Term implements Serializable {
+    final double coefficient;
+    final Matrix left;
+    final boolean leftTransposed;
+    final Matrix right;
+    final boolean rightTransposed;
+
+    Term(double coefficient, Matrix left, boolean leftTransposed, Matrix right, boolean rightTransposed) {
+      this.coefficient = coefficient;
+      this.left = left;
+      this.leftTransposed = leftTransposed;
+      this.right = right;
+      this.rightTransposed = rightTransposed;
+    }
+
+    public double getCoefficient() {
+      return coefficient;
+    }
+
+    public Matrix getLeft() {
+      return left;
+    }
+
+    public boolean isLeftTransposed() {
+      return leftTransposed;
+    }
+
+    /**
+     * Returns the right-hand matrix of a product
+     *
+     * @return The matrix, null for a plain term.
+     */
+    public Matrix getRight() {
+      return right;
+    }
+
+    public boolean isRightTransposed() {
+      return rightTransposed;
+    }
+
+    /**
+     * Returns whether the term is a product
+     *
+     * @return False for a plain term.
+     */
+    public boolean isProduct() {
+      return right != null;
+    }
+
+    /**
+     * Returns the inner dimension of a product
+     *
+     * @return The number of columns of op(left).
+     */
+    public int innerDimension() {
+      return leftTransposed ? left.getM() : left.getN();
+    }
+
+    // Add the term to C.
+    void addTo(Matrix C) {
+      if (isProduct()) {
+        Matrix.gemm(coefficient, left, leftTransposed, right, rightTransposed, C);
+      } else {
+        Matrix.axpy(coefficient, left, leftTransposed, C);
+      }
+    }
+  }
+
+  /**
+   * An expression fused into a sum of terms.
+   */
+  public static class Fused {
+    private final int M;
+    private final int N;
+    private final List<Term> terms = new ArrayList<>();
+
+    Fused(int M, int N) {
+      this.M = M;
+      this.N = N;
+    }
+
+    /**
+     * Returns the terms, products and plain ones
+     *
+     * @return The terms.
+     */
+    public List<Term> getTerms() {
+      return Collections.unmodifiableList(terms);
+    }
+
+    /**
+     * Returns the largest inner dimension of the products
+     *
+     * @return The inner dimension, 0 without products.
+     */
+    public int innerDimension() {
+      int k = 0;
+      for (Term term : terms) {
+        if (term.isProduct()) {
+          k = Math.max(k, term.innerDimension());
+        }
+      }
+      return k;
+    }
+
+    public int getM() {
+      return M;
+    }
+
+    public int getN() {
+      return N;
+    }
+
+    /**
+     * Evaluate all terms into one new matrix
+     *
+     * @return The value.
+     */
+    public Matrix evaluate() {
+      Matrix C = new Matrix(M, N);
+      for (Term term : terms) {
+        term.addTo(C);
+      }
+      return C;
+    }
+  }
+
+  /**
+   * A matrix.
+   */
+  private static class Leaf extends Expr {
+    private final Matrix matrix;
+
+    Leaf(Matrix matrix) {
+      super(matrix.getM(), matrix.getN());
+      this.matrix = matrix;
+    }
+
+    @Override
+    void collect(double coefficient, boolean transposed, List<Term> terms, Function<Expr, Matrix> stage) {
+      terms.add(new Term(coefficient, matrix, transposed, null, false));
+    }
+
+    @Override
+    void leaves(Map<Matrix, Boolean> seen) {
+      seen.put(matrix, true);
+    }
+
+    @Override
+    Factor factor(Function<Expr, Matrix> stage) {
+      return new Factor(matrix, false, 1.0);
+    }
+  }
+
+  /**
+   * The transpose of an expression.
+   */
+  private static class Transpose extends Expr {
+    private final Expr operand;
+
+    Transpose(Expr operand) {
+      super(operand.getN(), operand.getM());
+      this.operand = operand;
+    }
+
+    @Override
+    void collect(double coefficient, boolean transposed, List<Term> terms, Function<Expr, Matrix> stage) {
+      operand.collect(coefficient, !transposed, terms, stage);
+    }
+
+    @Override
+    void leaves(Map<Matrix, Boolean> seen) {
+      operand.leaves(seen);
+    }
+
+    @Override
+    Factor factor(Function<Expr, Matrix> stage) {
+      Factor factor = operand.factor(stage);
+      return new Factor(factor.matrix, !factor.transposed, factor.coefficient);
+    }
+  }
+
+  /**
+   * An expression times a scalar.
+   */
+  private static class Scale extends Expr {
+    private final Expr operand;
+    private final double alpha;
+
+    Scale(Expr operand, double alpha) {
+      super(operand.getM(), operand.getN());
+      this.operand = operand;
+      this.alpha = alpha;
+    }
+
+    @Override
+    void collect(double coefficient, boolean transposed, List<Term> terms, Function<Expr, Matrix> stage) {
+      operand.collect(coefficient * alpha, transposed, terms, stage);
+    }
+
+    @Override
+    void leaves(Map<Matrix, Boolean> seen) {
+      operand.leaves(seen);
+    }
+
+    @Override
+    Factor factor(Function<Expr, Matrix> stage) {
+      Factor factor = operand.factor(stage);
+      return new Factor(factor.matrix, factor.transposed, factor.coefficient * alpha);
+    }
+  }
+
+  /**
+   * The sum, or the difference, of two expressions.
+   */
+  private static class Sum extends Expr {
+    private final Expr left;
+    private final Expr right;
+    private final double sign;
+
+    Sum(Expr left, Expr right, double sign) {
+      super(left.getM(), left.getN());
+      if (left.getM() != right.getM() || left.getN() != right.getN())
+        throw new RuntimeException("Illegal matrix dimensions.");
+      this.left = left;
+      this.right = right;
+      this.sign = sign;
+    }
+
+    @Override
+    void collect(double coefficient, boolean transposed, List<Term> terms, Function<Expr, Matrix> stage) {
+      left.collect(coefficient, transposed, terms, stage);
+      right.collect(coefficient * sign, transposed, terms, stage);
+    }
+
+    @Override
+    void leaves(Map<Matrix, Boolean> seen) {
+      left.leaves(seen);
+      right.leaves(seen);
+    }
+  }
+
+  /**
+   * The product of two expressions.
+   */
+  private static class Product extends Expr {
+    private final Expr left;
+    private final Expr right;
+
+    Product(Expr left, Expr right) {
+      super(left.getM(), right.getN());
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    void collect(double coefficient, boolean transposed, List<Term> terms, Function<Expr, Matrix> stage) {
+      Factor l = left.factor(stage);
+      Factor r = right.factor(stage);
+      double product = coefficient * l.coefficient * r.coefficient;
+      if (transposed) {
+        // (L R)^T = R^T L^T
+        terms.add(new Term(product, r.matrix, !r.transposed, l.matrix, !l.transposed));
+      } else {
+        terms.add(new Term(product, l.matrix, l.transposed, r.matrix, r.transposed));
+      }
+    }
+
+    @Override
+    void leaves(Map<Matrix, Boolean> seen) {
+      left.leaves(seen);
+      right.leaves(seen);
+    }
+  }
+}
@@ -0,0 +1,116 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The task of one output tile of a fused expression, see Expr.Fused. It holds
+ * the blocks every term needs for the tile, untransposed, with the transpose
+ * flag of the term. The worker computes the products of the tile and adds the
+ * plain terms to it in the same pass.
+ */
+final public class ExprTask implements Serializable {
+  private final int M; // rows of the tile
+  private final int N; // columns of the tile
+  private final List<Part> parts = new ArrayList<>();
+
+  /**
+   * Create the task of an M x N tile
+   *
+   * @param M the number of rows of the tile
+   * @param N the number of columns of the tile
+   */
+  public ExprTask(int M, int N) {
+    this.M = M;
+    this.N = N;
+  }
+
+  /**
+   * Add a product term: the sum over k of coefficient * op(left[k]) *
+   * op(right[k])
+   *
+   * @param coefficient     the scale of the term
+   * @param left            the blocks of the left-hand matrix
+   * @param leftTransposed  whether they are used transposed
+   * @param right           the blocks of the right-hand matrix
+   * @param rightTransposed whether they are used transposed
+   */
+  public void addProduct(double coefficient, Matrix[] left, boolean leftTransposed, Matrix[] right,
+      boolean rightTransposed) {
+    parts.add(new Part(coefficient, left, leftTransposed, right, rightTransposed));
+  }
+
+  /**
+   * Add a plain term: coefficient * op(block)
+   *
+   * @param coefficient the scale of the term
+   * @param block       the block of the matrix
+   * @param transposed  whether it is added transposed
+   */
+  public void addPlain(double coefficient, Matrix block, boolean transposed) {
+    parts.add(new Part(coefficient, new Matrix[] { block }, transposed, null, false));
+  }
+
+  /**
+   * Returns the bytes of the blocks and of the result
+   *
+   * @return The number of bytes.
+   */
+  public long bytes() {
+    long bytes = 8L * M * N;
+    for (Part part : parts) {
+      for (Matrix block : part.left) {
+        bytes += 8L * block.getM() * block.getN();
+      }
+      if (part.right != null) {
+        for (Matrix block : part.right) {
+          bytes += 8L * block.getM() * block.getN();
+        }
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Compute the tile, in bands of rows on the compute pool
+   *
+   * @return The tile, to be given to Worker.release once it is sent.
+   */
+  public Matrix compute() {
+    Matrix result = MatrixPool.acquire(M, N);
+    ThreadPools.inBands(M, (from, to) -> computeRows(result, from, to));
+    return result;
+  }
+
+  // All terms for the rows from to to of the tile.
+  private void computeRows(Matrix result, int from, int to) {
+    for (Part part : parts) {
+      if (part.right == null) {
+        Matrix.axpy(part.coefficient, part.left[0], part.leftTransposed, result, from, to);
+        continue;
+      }
+      for (int k = 0; k < part.left.length; k++) {
+        Matrix.gemm(part.coefficient, part.left[k], part.leftTransposed, part.right[k], part.rightTransposed,
+            result, from, to);
+      }
+    }
+  }
+
+  /**
+   * The blocks of one term.
+   */
+  private static class Part implements Serializable {
+    private final double coefficient;
+    private final Matrix[] left;
+    private final boolean leftTransposed;
+    private final Matrix[] right; // null for a plain term
+    private final boolean rightTransposed;
+
+    Part(double coefficient, Matrix[] left, boolean leftTransposed, Matrix[] right, boolean rightTransposed) {
+      this.coefficient = coefficient;
+      this.left = left;
+      this.leftTransposed = leftTransposed;
+      this.right = right;
+      this.rightTransposed = rightTransposed;
+    }
+  }
+}
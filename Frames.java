@@ -0,0 +1,117 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Length-prefixed frames, the wire format of the non-blocking servers. A frame
+ * is a 4 byte big-endian length followed by that many bytes of one serialized
+ * object. Knowing the length up front lets a selector thread collect a whole
+ * request without blocking, which a bare ObjectInputStream cannot do. Frames
+ * are limited to 2 GB.
+ */
+public class Frames {
+  /**
+   * Serialize an object into a frame, length included
+   *
+   * @param object the object to send
+   * @return A buffer holding the frame, ready to be written.
+   */
+  public static ByteBuffer encode(Object object) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(bytes);
+    data.writeInt(0); // placeholder for the length
+
+    ObjectOutputStream objects = new ObjectOutputStream(data);
+    objects.writeObject(object);
+    objects.flush();
+
+    ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+    frame.putInt(0, frame.capacity() - 4);
+    return frame;
+  }
+
+  /**
+   * A response sent as several frames, one per object, so the receiver can
+   * handle it piece by piece. NioServer encodes the next frame only once the
+   * one before is written, so the sender holds one frame at a time as well.
+   */
+  public interface Sequence {
+    Iterator<?> objects();
+  }
+
+  /**
+   * Deserialize the body of a frame, without its length
+   *
+   * @param body the body, between its position and its limit
+   * @return The object in the frame.
+   */
+  public static Object decode(ByteBuffer body) throws IOException, ClassNotFoundException {
+    try (ObjectInputStream objects = new ObjectInputStream(new ByteBufferInputStream(body))) {
+      return objects.readObject();
+    }
+  }
+
+  /**
+   * Write an object as one frame to a blocking stream
+   *
+   * @param outputStream the stream to write to
+   * @param object       the object to send
+   */
+  public static void write(OutputStream outputStream, Object object) throws IOException {
+    ByteBuffer frame = encode(object);
+    outputStream.write(frame.array(), 0, frame.capacity());
+    outputStream.flush();
+  }
+
+  /**
+   * Read one frame from a blocking stream
+   *
+   * @param inputStream the stream to read from
+   * @return The object in the frame.
+   */
+  public static Object read(InputStream inputStream) throws IOException, ClassNotFoundException {
+    DataInputStream data = new DataInputStream(inputStream);
+    byte[] body = new byte[data.readInt()];
+    data.readFully(body);
+    return decode(ByteBuffer.wrap(body));
+  }
+
+  /**
+   * An InputStream over a ByteBuffer, so a direct buffer can be deserialized
+   * without first copying it to the heap.
+   */
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, count);
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
@@ -14,6 +14,21 @@ public class Helper {
     return inetSocketAddress.getHostString() + ":" + inetSocketAddress.getPort();
   }
 
+  /**
+   * Parse an address written as host:port, the format of
+   * inetSocketAddressToString
+   *
+   * @param address the address
+   * @return The socket address.
+   */
+  public static InetSocketAddress stringToInetSocketAddress(String address) {
+    int colon = address.lastIndexOf(':');
+    if (colon < 0) {
+      throw new IllegalArgumentException("Expected host:port, got " + address);
+    }
+    return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+  }
+
   // Method to convert single dimensional array index to Point x, y
   public static Point convertToXY(int i, int n) {
     int x = i % n;
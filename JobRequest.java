@@ -0,0 +1,264 @@
+import java.io.Serializable;
+
+/**
+ * A job sent by the client to the manager. A plain Matrix[] {A, B} is still
+ * accepted by the manager as a multiplication job, every other kind of job is
+ * described by a JobRequest.
+ */
+public class JobRequest implements Serializable {
+  /**
+   * The kinds of jobs the manager can run.
+   */
+  public enum Type {
+    // A x B, the operands are A and B
+    MULTIPLY,
+    // Solve A X = B, the operands are A and B, B may have many columns
+    SOLVE,
+    // Wait for the result of a checkpointed job, there are no operands
+    ATTACH,
+    // A1 x A2 x ... x An, the operands are the matrices
+    CHAIN,
+    // A^k, the operands are A, k and the convergence tolerance
+    POWER,
+    // A x A^T or A^T x A, the operands are A and whether A is transposed first
+    SYRK,
+    // A x B for a triangular A, the operands are A, B and whether A is lower
+    // triangular
+    TRMM,
+    // The value of a lazy expression, the operand is the Expr
+    EXPRESSION,
+    // Solve A X = B by conjugate gradient, the operands are A, B, the
+    // tolerance and the most iterations
+    CONJUGATE_GRADIENT,
+    // The dominant eigenvalue of A and its eigenvector, the operands are A,
+    // the tolerance and the most iterations
+    POWER_ITERATION
+  }
+
+  private final Type type;
+  private final Object[] operands;
+  private String jobId; // set for checkpointed jobs
+  private boolean streamResult;
+
+  // Creating a new JobRequest of the given type on the given operands.
+  private JobRequest(Type type, Object... operands) {
+    this.type = type;
+    this.operands = operands;
+  }
+
+  /**
+   * Create a job that multiplies A by B
+   *
+   * @param A the left-hand matrix, a Matrix or a SparseMatrix
+   * @param B the right-hand matrix, a Matrix or a SparseMatrix
+   * @return The job.
+   */
+  public static JobRequest multiply(Object A, Object B) {
+    return new JobRequest(Type.MULTIPLY, A, B);
+  }
+
+  /**
+   * Create a job that multiplies A by B under a job ID. If the manager keeps
+   * checkpoints, the finished tiles are saved as they come in: a manager that
+   * restarts resumes the job, and a client that lost its connection gets the
+   * result with attach(jobId). The checkpoint keeps the operands dense, so a
+   * SparseMatrix is expanded and multiplied as a dense one.
+   *
+   * @param A     the left-hand matrix, a Matrix or a SparseMatrix
+   * @param B     the right-hand matrix, a Matrix or a SparseMatrix
+   * @param jobId the ID of the job, letters, digits, '.', '_' and '-'
+   * @return The job.
+   */
+  public static JobRequest multiply(Object A, Object B, String jobId) {
+    JobRequest job = new JobRequest(Type.MULTIPLY, A, B);
+    job.jobId = jobId;
+    return job;
+  }
+
+  /**
+   * Create a request for the result of a checkpointed job. It waits for the
+   * job if it is still running.
+   *
+   * @param jobId the ID the job was submitted with
+   * @return The job.
+   */
+  public static JobRequest attach(String jobId) {
+    JobRequest job = new JobRequest(Type.ATTACH);
+    job.jobId = jobId;
+    return job;
+  }
+
+  /**
+   * Create a job that multiplies a chain of matrices. The manager picks the
+   * cheapest order and keeps the intermediate products.
+   *
+   * @param matrices the matrices, each with as many rows as the one before has
+   *                 columns
+   * @return The job.
+   */
+  public static JobRequest chain(Matrix... matrices) {
+    return new JobRequest(Type.CHAIN, (Object[]) matrices);
+  }
+
+  /**
+   * Create a job that raises a square matrix to a power
+   *
+   * @param A the square matrix
+   * @param k the exponent, 0 or more
+   * @return The job.
+   */
+  public static JobRequest power(Matrix A, int k) {
+    return power(A, k, 0);
+  }
+
+  /**
+   * Create a job that raises a square matrix to a power, stopping early once
+   * the powers no longer change. Meant for stochastic matrices, whose powers
+   * converge.
+   *
+   * @param A         the square matrix
+   * @param k         the exponent, 0 or more
+   * @param tolerance the largest change of an element that counts as no
+   *                  change
+   * @return The job.
+   */
+  public static JobRequest power(Matrix A, int k, double tolerance) {
+    return new JobRequest(Type.POWER, A, k, tolerance);
+  }
+
+  /**
+   * Create a job that computes the Gram matrix A x A^T. A is sent once and
+   * only half of the symmetric result is computed.
+   *
+   * @param A the matrix
+   * @return The job.
+   */
+  public static JobRequest gram(Matrix A) {
+    return syrk(A, false);
+  }
+
+  /**
+   * Create a job that computes the symmetric product A x A^T, or A^T x A
+   *
+   * @param A         the matrix
+   * @param transpose false for A x A^T, true for A^T x A
+   * @return The job.
+   */
+  public static JobRequest syrk(Matrix A, boolean transpose) {
+    return new JobRequest(Type.SYRK, A, transpose);
+  }
+
+  /**
+   * Create a job that multiplies a triangular matrix A by B. The zero blocks
+   * of A are skipped, the elements above (or below) the diagonal of A are
+   * taken to be 0.
+   *
+   * @param A     the square triangular matrix
+   * @param B     the matrix B
+   * @param lower whether A is lower triangular, upper otherwise
+   * @return The job.
+   */
+  public static JobRequest trmm(Matrix A, Matrix B, boolean lower) {
+    return new JobRequest(Type.TRMM, A, B, lower);
+  }
+
+  /**
+   * Create a job that evaluates a matrix expression, for example alpha * A *
+   * B^T + beta * C, as one job. See Expr.
+   *
+   * @param expression the expression
+   * @return The job.
+   */
+  public static JobRequest evaluate(Expr expression) {
+    return new JobRequest(Type.EXPRESSION, expression);
+  }
+
+  /**
+   * Create a job that solves A X = B by conjugate gradient. A stays on the
+   * workers for all iterations, only vectors cross the network. A must be
+   * symmetric and positive definite.
+   *
+   * @param A             the square matrix of coefficients
+   * @param B             the right hand sides, one per column
+   * @param tolerance     the residual to reach, relative to the right hand side
+   * @param maxIterations the most iterations per column
+   * @return The job.
+   */
+  public static JobRequest conjugateGradient(Matrix A, Matrix B, double tolerance, int maxIterations) {
+    return new JobRequest(Type.CONJUGATE_GRADIENT, A, B, tolerance, maxIterations);
+  }
+
+  /**
+   * Create a job that finds the eigenvalue of largest magnitude and its
+   * eigenvector by power iteration. A stays on the workers for all
+   * iterations. The result is a ResidentMatrix.Eigenpair.
+   *
+   * @param A             the square matrix
+   * @param tolerance     the largest change of the vector that counts as no
+   *                      change
+   * @param maxIterations the most iterations
+   * @return The job.
+   */
+  public static JobRequest powerIteration(Matrix A, double tolerance, int maxIterations) {
+    return new JobRequest(Type.POWER_ITERATION, A, tolerance, maxIterations);
+  }
+
+  /**
+   * Create a job that solves A X = B for X
+   *
+   * @param A the square matrix of coefficients
+   * @param B the right hand sides, one per column
+   * @return The job.
+   */
+  public static JobRequest solve(Matrix A, Matrix B) {
+    return new JobRequest(Type.SOLVE, A, B);
+  }
+
+  /**
+   * Returns the kind of job
+   *
+   * @return The type of the job.
+   */
+  public Type getType() {
+    return type;
+  }
+
+  /**
+   * Returns the ID of a checkpointed job
+   *
+   * @return The job ID, null for other jobs.
+   */
+  public String getJobId() {
+    return jobId;
+  }
+
+  /**
+   * Returns the operands of the job, in the order given by the type
+   *
+   * @return The operands.
+   */
+  public Object[] getOperands() {
+    return operands;
+  }
+
+  /**
+   * Ask for the result in bands of rows instead of as one Matrix, see
+   * ResultStream. The client can then write it to disk without holding it.
+   *
+   * @param streamResult whether the result is streamed
+   * @return This job.
+   */
+  public JobRequest setStreamResult(boolean streamResult) {
+    this.streamResult = streamResult;
+    return this;
+  }
+
+  /**
+   * Returns whether the result is sent in bands of rows
+   *
+   * @return True for a streamed result.
+   */
+  public boolean isStreamResult() {
+    return streamResult;
+  }
+}
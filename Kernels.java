@@ -0,0 +1,257 @@
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+/**
+ * The inner loops of the matrix arithmetic. All of them walk along contiguous
+ * rows, so they can run on SIMD lanes.
+ *
+ * The loops are done by a backend. When the class VectorKernels is compiled
+ * and the JVM runs with --add-modules jdk.incubator.vector, the backend uses
+ * the JDK Vector API with the preferred species of the CPU. Otherwise it falls
+ * back to plain scalar loops.
+ */
+public class Kernels {
+  // Logger for this class
+  private static final Logger LOGGER = Logger.getLogger(Kernels.class.getName());
+
+  // Edge of the square tiles used by transpose, 32 x 32 doubles is 8 KB
+  private static final int TRANSPOSE_TILE = 32;
+
+  /**
+   * The loops that a backend has to provide.
+   */
+  interface Backend {
+    // y[0..n) += a * x[0..n)
+    void axpy(double a, double[] x, double[] y, int n);
+
+    // y[0..n) += a * x[offset..offset + n), x holds doubles in native order
+    void axpy(double a, ByteBuffer x, int offset, double[] y, int n);
+
+    // c[0..n) = a[0..n) + b[0..n)
+    void add(double[] a, double[] b, double[] c, int n);
+
+    // c[0..n) = a[0..n) - b[0..n)
+    void subtract(double[] a, double[] b, double[] c, int n);
+
+    // x[0..n) *= a
+    void scale(double a, double[] x, int n);
+
+    // sum of x[i] * y[i] over [0..n)
+    double dot(double[] x, double[] y, int n);
+
+    // Name of the backend for the logs
+    String name();
+  }
+
+  /**
+   * The fallback backend with plain loops.
+   */
+  static class ScalarBackend implements Backend {
+    @Override
+    public void axpy(double a, double[] x, double[] y, int n) {
+      for (int i = 0; i < n; i++)
+        y[i] += a * x[i];
+    }
+
+    @Override
+    public void axpy(double a, ByteBuffer x, int offset, double[] y, int n) {
+      for (int i = 0; i < n; i++)
+        y[i] += a * x.getDouble((offset + i) * 8);
+    }
+
+    @Override
+    public void add(double[] a, double[] b, double[] c, int n) {
+      for (int i = 0; i < n; i++)
+        c[i] = a[i] + b[i];
+    }
+
+    @Override
+    public void subtract(double[] a, double[] b, double[] c, int n) {
+      for (int i = 0; i < n; i++)
+        c[i] = a[i] - b[i];
+    }
+
+    @Override
+    public void scale(double a, double[] x, int n) {
+      for (int i = 0; i < n; i++)
+        x[i] *= a;
+    }
+
+    @Override
+    public double dot(double[] x, double[] y, int n) {
+      double sum = 0;
+      for (int i = 0; i < n; i++)
+        sum += x[i] * y[i];
+      return sum;
+    }
+
+    @Override
+    public String name() {
+      return "scalar";
+    }
+  }
+
+  private static final Backend BACKEND = loadBackend();
+
+  // Use VectorKernels if it is compiled and the incubator module is present.
+  private static Backend loadBackend() {
+    try {
+      Backend backend = (Backend) Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+      // Run it once, so a missing module fails here and not in a worker thread
+      backend.axpy(1.0, new double[1], new double[1], 1);
+      LOGGER.info("Using " + backend.name() + " kernels");
+      return backend;
+    } catch (Throwable e) {
+      return new ScalarBackend();
+    }
+  }
+
+  /**
+   * Returns the name of the backend in use
+   *
+   * @return The backend name.
+   */
+  public static String backendName() {
+    return BACKEND.name();
+  }
+
+  /**
+   * Add a times x to y
+   *
+   * @param a the scale of x
+   * @param x the row to add
+   * @param y the row to add to
+   * @param n the number of elements
+   */
+  public static void axpy(double a, double[] x, double[] y, int n) {
+    BACKEND.axpy(a, x, y, n);
+  }
+
+  /**
+   * Add a times x to y, with x in a buffer off the heap
+   *
+   * @param a      the scale of x
+   * @param x      the doubles, in native order
+   * @param offset the index of the first double of x
+   * @param y      the row to add to
+   * @param n      the number of elements
+   */
+  public static void axpy(double a, ByteBuffer x, int offset, double[] y, int n) {
+    BACKEND.axpy(a, x, offset, y, n);
+  }
+
+  /**
+   * Store a + b into c
+   *
+   * @param a the first row
+   * @param b the second row
+   * @param c the result row, may be a or b
+   * @param n the number of elements
+   */
+  public static void add(double[] a, double[] b, double[] c, int n) {
+    BACKEND.add(a, b, c, n);
+  }
+
+  /**
+   * Store a - b into c
+   *
+   * @param a the first row
+   * @param b the row to subtract
+   * @param c the result row, may be a or b
+   * @param n the number of elements
+   */
+  public static void subtract(double[] a, double[] b, double[] c, int n) {
+    BACKEND.subtract(a, b, c, n);
+  }
+
+  /**
+   * Multiply every element of x by a
+   *
+   * @param a the scale
+   * @param x the row to scale
+   * @param n the number of elements
+   */
+  public static void scale(double a, double[] x, int n) {
+    BACKEND.scale(a, x, n);
+  }
+
+  /**
+   * Returns the dot product of x and y
+   *
+   * @param x the first row
+   * @param y the second row
+   * @param n the number of elements
+   * @return The sum of x[i] * y[i].
+   */
+  public static double dot(double[] x, double[] y, int n) {
+    return BACKEND.dot(x, y, n);
+  }
+
+  /**
+   * Add the product of row aRow with the matrix B to the row cRow. Each
+   * element of aRow scales a whole row of B, so B is read row by row instead of
+   * column by column.
+   *
+   * @param aRow the row of the left-hand matrix
+   * @param B    the right-hand matrix
+   * @param cRow the row to accumulate into
+   */
+  public static void rowTimes(double[] aRow, Matrix B, double[] cRow) {
+    rowTimes(1.0, aRow, B, cRow);
+  }
+
+  /**
+   * Add alpha times the product of row aRow with the matrix B to the row cRow
+   *
+   * @param alpha the scale of the product
+   * @param aRow  the row of the left-hand matrix
+   * @param B     the right-hand matrix
+   * @param cRow  the row to accumulate into
+   */
+  public static void rowTimes(double alpha, double[] aRow, Matrix B, double[] cRow) {
+    int n = B.getN();
+    for (int k = 0; k < B.getM(); k++)
+      BACKEND.axpy(alpha * aRow[k], B.getRow(k), cRow, n);
+  }
+
+  /**
+   * Add the product of A and B to C, row by row
+   *
+   * @param A the left-hand matrix
+   * @param B the right-hand matrix
+   * @param C the matrix to accumulate into
+   */
+  public static void gemm(Matrix A, Matrix B, Matrix C) {
+    for (int i = 0; i < A.getM(); i++)
+      rowTimes(A.getRow(i), B, C.getRow(i));
+  }
+
+  /**
+   * Store the transpose of source into target, one tile at a time so that both
+   * the rows read and the rows written stay in cache. Each band of target rows
+   * is written by one task, and large matrices spread the bands over the cores.
+   * This stays scalar on every backend, the lanes of a vector cannot be
+   * scattered over the separate row arrays of the target.
+   *
+   * @param source the M-by-N matrix to read
+   * @param target the N-by-M matrix to write
+   */
+  public static void transpose(Matrix source, Matrix target) {
+    int M = source.getM();
+    int N = source.getN();
+    int bands = (N + TRANSPOSE_TILE - 1) / TRANSPOSE_TILE;
+
+    Matrix.range(bands, (long) M * N).forEach(band -> {
+      int j0 = band * TRANSPOSE_TILE;
+      int j1 = Math.min(j0 + TRANSPOSE_TILE, N);
+      for (int i0 = 0; i0 < M; i0 += TRANSPOSE_TILE) {
+        int i1 = Math.min(i0 + TRANSPOSE_TILE, M);
+        for (int i = i0; i < i1; i++) {
+          double[] row = source.getRow(i);
+          for (int j = j0; j < j1; j++)
+            target.getRow(j)[i] = row[j];
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,139 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in the style of HdrHistogram. Values are recorded
+ * in microseconds into log-linear buckets: exact below 2048, and above that
+ * 1024 buckets per power of two, so every value is kept to 3 significant
+ * digits. Memory is fixed, recording takes no lock and costs the same at any
+ * rate, and percentiles come out without keeping the samples.
+ */
+public class LatencyHistogram {
+  // Values below this are counted exactly
+  private static final int LINEAR = 2048;
+
+  // Buckets per power of two above LINEAR
+  private static final int SUB_BUCKETS = 1024;
+
+  // Powers of two above LINEAR, values up to 2^41 microseconds (25 days)
+  private static final int OCTAVES = 30;
+
+  private final AtomicLongArray counts = new AtomicLongArray(LINEAR + OCTAVES * SUB_BUCKETS);
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong(); // microseconds
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Record a latency
+   *
+   * @param nanos the latency in nanoseconds
+   */
+  public void recordNanos(long nanos) {
+    record(Math.max(0, nanos / 1000));
+  }
+
+  /**
+   * Record a latency
+   *
+   * @param micros the latency in microseconds
+   */
+  public void record(long micros) {
+    counts.incrementAndGet(index(micros));
+    total.incrementAndGet();
+    sum.addAndGet(micros);
+    max.accumulateAndGet(micros, Math::max);
+  }
+
+  /**
+   * Add the counts of another histogram to this one
+   *
+   * @param other the histogram to add
+   */
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < counts.length(); i++) {
+      long count = other.counts.get(i);
+      if (count != 0) {
+        counts.addAndGet(i, count);
+      }
+    }
+    total.addAndGet(other.total.get());
+    sum.addAndGet(other.sum.get());
+    max.accumulateAndGet(other.max.get(), Math::max);
+  }
+
+  // The bucket of a value.
+  private static int index(long micros) {
+    if (micros < LINEAR) {
+      return (int) micros;
+    }
+    // Shift the value down to 11 bits, 1024 to 2047
+    int shift = 63 - Long.numberOfLeadingZeros(micros) - 10;
+    if (shift > OCTAVES) {
+      // Off the scale, counted in the last bucket
+      return LINEAR + OCTAVES * SUB_BUCKETS - 1;
+    }
+    return LINEAR + (shift - 1) * SUB_BUCKETS + (int) ((micros >>> shift) - SUB_BUCKETS);
+  }
+
+  // The largest value that falls into a bucket.
+  private static long highestValue(int index) {
+    if (index < LINEAR) {
+      return index;
+    }
+    int octave = (index - LINEAR) / SUB_BUCKETS + 1;
+    long top = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+    return ((top + 1) << octave) - 1;
+  }
+
+  /**
+   * Returns the value below or at which the given percentage of the recorded
+   * values fall
+   *
+   * @param percentile the percentage, for example 99.9
+   * @return The latency in microseconds, 0 if nothing was recorded.
+   */
+  public long percentile(double percentile) {
+    long count = total.get();
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        // The last bucket holds values off the scale, the maximum is exact
+        return i == counts.length() - 1 ? max.get() : Math.min(highestValue(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /**
+   * Returns the number of recorded values
+   *
+   * @return The count.
+   */
+  public long getCount() {
+    return total.get();
+  }
+
+  /**
+   * Returns the mean of the recorded values
+   *
+   * @return The mean in microseconds, 0 if nothing was recorded.
+   */
+  public double getMean() {
+    long count = total.get();
+    return count == 0 ? 0 : (double) sum.get() / count;
+  }
+
+  /**
+   * Returns the largest recorded value
+   *
+   * @return The maximum in microseconds.
+   */
+  public long getMax() {
+    return max.get();
+  }
+}
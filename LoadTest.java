@@ -0,0 +1,372 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A load generator for the Manager. It sends multiplication jobs of a mix of
+ * sizes through MainClient and reports the throughput and the latency
+ * percentiles.
+ *
+ * Closed loop (--rate 0): --concurrency clients each send a job as soon as
+ * their last one is back. Open loop (--rate r): jobs arrive at r per second on
+ * average, Poisson distributed, whether or not the earlier ones are done, and
+ * at most --concurrency are sent at once. The latency of a job is counted from
+ * its arrival, so time spent waiting behind slow jobs is part of it and a
+ * stalled Manager cannot hide behind a stalled load generator.
+ *
+ * java LoadTest [--host h] [--port p] [--framed] [--concurrency c]
+ * [--rate jobs/s] [--duration s] [--warmup s] [--sizes n:weight,...]
+ * [--json file] [--csv file] [--baseline file.json] [--tolerance percent]
+ *
+ * With --baseline the results are compared to an earlier --json file, and the
+ * exit code is 1 if the throughput dropped or a percentile grew by more than
+ * the tolerance.
+ */
+public class LoadTest {
+  // Logger for this class
+  private static final Logger LOGGER = Logger.getLogger(LoadTest.class.getName());
+
+  // The percentiles that are reported
+  private static final double[] PERCENTILES = { 50, 95, 99, 99.9 };
+  private static final String[] PERCENTILE_NAMES = { "p50", "p95", "p99", "p999" };
+
+  private String host = "localhost";
+  private int port = 6666;
+  private boolean framed;
+  private int concurrency = 4;
+  private double rate; // jobs per second, 0 for a closed loop
+  private int duration = 30; // seconds
+  private int warmup = 5; // seconds, not recorded
+  private int[] sizes = { 64, 256 };
+  private int[] weights = { 3, 1 };
+  private String mix = "64:3,256:1";
+
+  // The operands of every size, made once so the clients only measure jobs
+  private final Map<Integer, Object[]> operands = new LinkedHashMap<>();
+
+  // Latencies by size, and of all jobs
+  private final Map<Integer, LatencyHistogram> bySize = new LinkedHashMap<>();
+  private final LatencyHistogram overall = new LatencyHistogram();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong lastCompletion = new AtomicLong();
+  private double measured; // seconds from the end of the warmup to the last job
+
+  /**
+   * Parse a size mix such as "64:3,256:1", three jobs of 64 x 64 for every one
+   * of 256 x 256. A size without a weight has weight 1.
+   *
+   * @param mix the mix
+   */
+  public void setMix(String mix) {
+    String[] entries = mix.split(",");
+    sizes = new int[entries.length];
+    weights = new int[entries.length];
+    for (int i = 0; i < entries.length; i++) {
+      String[] parts = entries[i].trim().split(":");
+      sizes[i] = Integer.parseInt(parts[0]);
+      weights[i] = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+      if (sizes[i] <= 0 || weights[i] <= 0) {
+        throw new IllegalArgumentException("Illegal size mix " + mix);
+      }
+    }
+    this.mix = mix;
+  }
+
+  // Pick a size from the mix.
+  private int pickSize(Random random) {
+    int total = 0;
+    for (int weight : weights) {
+      total += weight;
+    }
+    int pick = random.nextInt(total);
+    for (int i = 0; i < sizes.length; i++) {
+      pick -= weights[i];
+      if (pick < 0) {
+        return sizes[i];
+      }
+    }
+    return sizes[sizes.length - 1];
+  }
+
+  /**
+   * Run the load test
+   */
+  public void run() throws InterruptedException {
+    for (int size : sizes) {
+      operands.put(size, new Object[] { Matrix.random(size, size), Matrix.random(size, size) });
+      bySize.put(size, new LatencyHistogram());
+    }
+
+    long start = System.nanoTime();
+    long recordFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+    long stop = start + TimeUnit.SECONDS.toNanos(warmup + duration);
+    LOGGER.info(String.format("Load test: %s, concurrency %d, %s, %d s after %d s of warmup", mix, concurrency,
+        rate > 0 ? rate + " jobs/s" : "closed loop", duration, warmup));
+
+    ExecutorService clients = Executors.newFixedThreadPool(concurrency, ThreadPools.daemonThreads("load"));
+    Random random = new Random(42);
+    if (rate > 0) {
+      // Open loop: arrivals on a schedule, the pool queues what it cannot run
+      long arrival = start;
+      while (arrival < stop) {
+        long wait = arrival - System.nanoTime();
+        if (wait > 0) {
+          TimeUnit.NANOSECONDS.sleep(wait);
+        }
+        long intended = arrival;
+        int size = pickSize(random);
+        clients.execute(() -> job(size, intended, recordFrom));
+        arrival += (long) (-Math.log(1 - random.nextDouble()) / rate * 1e9);
+      }
+    } else {
+      // Closed loop: every client sends its next job when the last is back
+      for (int c = 0; c < concurrency; c++) {
+        Random own = new Random(random.nextLong());
+        clients.execute(() -> {
+          while (System.nanoTime() < stop) {
+            job(pickSize(own), System.nanoTime(), recordFrom);
+          }
+        });
+      }
+    }
+
+    clients.shutdown();
+    if (!clients.awaitTermination(Math.max(60, duration), TimeUnit.SECONDS)) {
+      LOGGER.severe("Jobs still running after the test, they are not counted");
+      clients.shutdownNow();
+    }
+    measured = Math.max(1, lastCompletion.get() - recordFrom) / 1e9;
+  }
+
+  // Send one job and record its latency from the time it arrived.
+  private void job(int size, long arrival, long recordFrom) {
+    Matrix result = null;
+    try {
+      MainClient client = new MainClient();
+      client.startConnection(host, port, framed);
+      client.sendData(operands.get(size));
+      result = client.receiveData();
+      client.stopConnection();
+    } catch (IOException e) {
+      LOGGER.severe("Connection failed: " + e.getMessage());
+    }
+
+    long end = System.nanoTime();
+    if (arrival < recordFrom) {
+      return;
+    }
+    if (result == null) {
+      errors.incrementAndGet();
+      return;
+    }
+    bySize.get(size).recordNanos(end - arrival);
+    overall.recordNanos(end - arrival);
+    lastCompletion.accumulateAndGet(end, Math::max);
+  }
+
+  /**
+   * Returns the completed jobs per second after the warmup
+   *
+   * @return The throughput.
+   */
+  public double getThroughput() {
+    return overall.getCount() / measured;
+  }
+
+  /**
+   * Returns the results as JSON, latencies in milliseconds
+   *
+   * @return The JSON document.
+   */
+  public String toJson() {
+    StringBuilder json = new StringBuilder("{\n");
+    json.append(String.format(Locale.ROOT, "  \"sizes\": \"%s\",\n", mix));
+    json.append(String.format(Locale.ROOT, "  \"concurrency\": %d,\n", concurrency));
+    json.append(String.format(Locale.ROOT, "  \"rate\": %s,\n", rate));
+    json.append(String.format(Locale.ROOT, "  \"duration\": %d,\n", duration));
+    json.append(String.format(Locale.ROOT, "  \"completed\": %d,\n", overall.getCount()));
+    json.append(String.format(Locale.ROOT, "  \"errors\": %d,\n", errors.get()));
+    json.append(String.format(Locale.ROOT, "  \"throughput\": %.4f,\n", getThroughput()));
+    json.append("  \"overall\": ").append(summary(overall)).append(",\n");
+    json.append("  \"bySize\": {");
+    String separator = "\n";
+    for (Map.Entry<Integer, LatencyHistogram> entry : bySize.entrySet()) {
+      json.append(separator).append("    \"").append(entry.getKey()).append("\": ").append(summary(entry.getValue()));
+      separator = ",\n";
+    }
+    json.append("\n  }\n}\n");
+    return json.toString();
+  }
+
+  // One histogram as a JSON object.
+  private static String summary(LatencyHistogram histogram) {
+    StringBuilder json = new StringBuilder();
+    json.append(String.format(Locale.ROOT, "{\"count\": %d, \"mean\": %.3f", histogram.getCount(),
+        histogram.getMean() / 1000));
+    for (int i = 0; i < PERCENTILES.length; i++) {
+      json.append(String.format(Locale.ROOT, ", \"%s\": %.3f", PERCENTILE_NAMES[i],
+          histogram.percentile(PERCENTILES[i]) / 1000.0));
+    }
+    json.append(String.format(Locale.ROOT, ", \"max\": %.3f}", histogram.getMax() / 1000.0));
+    return json.toString();
+  }
+
+  /**
+   * Returns the results as CSV, one line per size and one for all jobs,
+   * latencies in milliseconds
+   *
+   * @return The CSV document.
+   */
+  public String toCsv() {
+    StringBuilder csv = new StringBuilder("size,count,throughput,mean");
+    for (String name : PERCENTILE_NAMES) {
+      csv.append(',').append(name);
+    }
+    csv.append(",max\n");
+    for (Map.Entry<Integer, LatencyHistogram> entry : bySize.entrySet()) {
+      csvLine(csv, entry.getKey().toString(), entry.getValue());
+    }
+    csvLine(csv, "all", overall);
+    return csv.toString();
+  }
+
+  private void csvLine(StringBuilder csv, String size, LatencyHistogram histogram) {
+    csv.append(String.format(Locale.ROOT, "%s,%d,%.4f,%.3f", size, histogram.getCount(),
+        histogram.getCount() / measured, histogram.getMean() / 1000));
+    for (double percentile : PERCENTILES) {
+      csv.append(String.format(Locale.ROOT, ",%.3f", histogram.percentile(percentile) / 1000.0));
+    }
+    csv.append(String.format(Locale.ROOT, ",%.3f%n", histogram.getMax() / 1000.0));
+  }
+
+  /**
+   * Print the results in a table
+   */
+  public void print() {
+    System.out.printf(Locale.ROOT, "%d jobs, %d errors, %.2f jobs/s%n", overall.getCount(), errors.get(),
+        getThroughput());
+    System.out.printf("%8s %8s %10s %10s %10s %10s %10s %10s%n", "size", "count", "mean ms", "p50", "p95", "p99",
+        "p999", "max");
+    for (Map.Entry<Integer, LatencyHistogram> entry : bySize.entrySet()) {
+      printLine(entry.getKey().toString(), entry.getValue());
+    }
+    printLine("all", overall);
+  }
+
+  private static void printLine(String size, LatencyHistogram histogram) {
+    System.out.printf(Locale.ROOT, "%8s %8d %10.2f", size, histogram.getCount(), histogram.getMean() / 1000);
+    for (double percentile : PERCENTILES) {
+      System.out.printf(Locale.ROOT, " %10.2f", histogram.percentile(percentile) / 1000.0);
+    }
+    System.out.printf(Locale.ROOT, " %10.2f%n", histogram.getMax() / 1000.0);
+  }
+
+  /**
+   * Compare with the results of an earlier run, written with --json
+   *
+   * @param baseline  the JSON file of the earlier run
+   * @param tolerance the change in percent that still counts as no change
+   * @return Whether the run is no worse than the baseline.
+   */
+  public boolean compare(Path baseline, double tolerance) throws IOException {
+    Map<String, Double> before = readSummary(new String(Files.readAllBytes(baseline), StandardCharsets.UTF_8));
+    Map<String, Double> now = readSummary(toJson());
+
+    boolean ok = true;
+    System.out.printf("%10s %12s %12s %9s%n", "metric", "baseline", "now", "change");
+    for (Map.Entry<String, Double> entry : now.entrySet()) {
+      Double old = before.get(entry.getKey());
+      if (old == null || old == 0) {
+        continue;
+      }
+      double change = (entry.getValue() - old) / old * 100;
+      // Throughput should not go down, everything else should not go up
+      boolean worse = entry.getKey().equals("throughput") ? change < -tolerance : change > tolerance;
+      ok &= !worse;
+      System.out.printf(Locale.ROOT, "%10s %12.3f %12.3f %+8.1f%%%s%n", entry.getKey(), old, entry.getValue(),
+          change, worse ? "  REGRESSION" : "");
+    }
+    return ok;
+  }
+
+  // The throughput and the overall latencies of a JSON result.
+  private static Map<String, Double> readSummary(String json) {
+    Map<String, Double> summary = new LinkedHashMap<>();
+    Matcher throughput = Pattern.compile("\"throughput\": ([-0-9.eE+]+)").matcher(json);
+    if (throughput.find()) {
+      summary.put("throughput", Double.parseDouble(throughput.group(1)));
+    }
+    Matcher overall = Pattern.compile("\"overall\": \\{([^}]*)\\}").matcher(json);
+    if (overall.find()) {
+      Matcher field = Pattern.compile("\"(\\w+)\": ([-0-9.eE+]+)").matcher(overall.group(1));
+      while (field.find()) {
+        if (!field.group(1).equals("count")) {
+          summary.put(field.group(1), Double.parseDouble(field.group(2)));
+        }
+      }
+    }
+    return summary;
+  }
+
+  public static void main(String[] args) throws Exception {
+    LoadTest test = new LoadTest();
+    Path json = null;
+    Path csv = null;
+    Path baseline = null;
+    double tolerance = 10;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--host")) {
+        test.host = args[++i];
+      } else if (args[i].equals("--port")) {
+        test.port = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--framed")) {
+        test.framed = true;
+      } else if (args[i].equals("--concurrency")) {
+        test.concurrency = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--rate")) {
+        test.rate = Double.parseDouble(args[++i]);
+      } else if (args[i].equals("--duration")) {
+        test.duration = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--warmup")) {
+        test.warmup = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--sizes")) {
+        test.setMix(args[++i]);
+      } else if (args[i].equals("--json")) {
+        json = Paths.get(args[++i]);
+      } else if (args[i].equals("--csv")) {
+        csv = Paths.get(args[++i]);
+      } else if (args[i].equals("--baseline")) {
+        baseline = Paths.get(args[++i]);
+      } else if (args[i].equals("--tolerance")) {
+        tolerance = Double.parseDouble(args[++i]);
+      } else {
+        throw new IllegalArgumentException("Unknown option " + args[i]);
+      }
+    }
+
+    test.run();
+    test.print();
+    if (json != null) {
+      Files.write(json, test.toJson().getBytes(StandardCharsets.UTF_8));
+    }
+    if (csv != null) {
+      Files.write(csv, test.toCsv().getBytes(StandardCharsets.UTF_8));
+    }
+    if (baseline != null && !test.compare(baseline, tolerance)) {
+      System.exit(1);
+    }
+  }
+}
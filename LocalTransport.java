@@ -0,0 +1,38 @@
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Transport inside one JVM. A request is handled by Worker.handle on the
+ * calling thread, and the tiles are passed by reference: nothing is
+ * serialized or copied. The kernels run on the compute pool as they do in a
+ * worker process. Every address has a Worker of its own, like a process.
+ */
+public class LocalTransport implements Transport {
+  private final Map<InetSocketAddress, Worker> workers = new ConcurrentHashMap<>();
+
+  /**
+   * Add a worker
+   *
+   * @return The address to give to Manager.addWorker.
+   */
+  public synchronized InetSocketAddress addWorker() {
+    InetSocketAddress address = InetSocketAddress.createUnresolved("local", workers.size() + 1);
+    workers.put(address, new Worker());
+    return address;
+  }
+
+  @Override
+  public Object call(InetSocketAddress worker, Object request) {
+    Worker local = workers.get(worker);
+    if (local == null) {
+      throw new IllegalArgumentException("No local worker " + Helper.inetSocketAddressToString(worker));
+    }
+    return local.handle(request, this);
+  }
+
+  @Override
+  public double bytesPerSecond() {
+    return Double.POSITIVE_INFINITY;
+  }
+}
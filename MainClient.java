@@ -2,6 +2,9 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 /**
@@ -13,6 +16,9 @@ public class MainClient {
   private ObjectOutputStream outputStream;
   private ObjectInputStream inputStream;
 
+  // Whether the manager runs the non-blocking server and speaks in frames
+  private boolean framed;
+
   // Logger for this class
   private static final Logger LOGGER = Logger.getLogger(Manager.class.getName());
 
@@ -23,7 +29,24 @@ public class MainClient {
    * @param port The port to connect to.
    */
   public void startConnection(String ip, int port) throws IOException {
+    startConnection(ip, port, false);
+  }
+
+  /**
+   * Create a socket connection to the server
+   *
+   * @param ip     The IP address of the server.
+   * @param port   The port to connect to.
+   * @param framed Whether the server is the non-blocking one, which reads and
+   *               writes length-prefixed frames instead of object streams.
+   */
+  public void startConnection(String ip, int port, boolean framed) throws IOException {
+    this.framed = framed;
     clientSocket = new Socket(ip, port);
+    if (framed) {
+      return;
+    }
+
     // LOGGER.info("Connected to " + clientSocket.getInetAddress() + ":" +
     // clientSocket.getPort());
 
@@ -34,11 +57,22 @@ public class MainClient {
   /**
    * It reads the data from the input stream and returns it as a matrix
    *
-   * @return Nothing is being returned.
+   * @return The matrix, or null if receiving failed or the job failed on the
+   *         manager.
    */
   public Matrix receiveData() {
+    return (Matrix) receive();
+  }
+
+  // Read the result of a job, null if receiving failed or the job failed.
+  private Object receive() {
     try {
-      return (Matrix) inputStream.readObject();
+      Object response = read();
+      if (response instanceof Exception) {
+        LOGGER.severe("Job failed on the manager: " + ((Exception) response).getMessage());
+        return null;
+      }
+      return response;
     } catch (IOException e) {
       System.out.println("Receiving data failed");
       e.printStackTrace();
@@ -53,14 +87,49 @@ public class MainClient {
   }
 
   /**
-   * Send the data to the server
+   * Receive a result sent in bands, see JobRequest.setStreamResult, and write
+   * it to a MatrixFile. Only one band of the result is in memory at a time.
    *
-   * @param data The data to send.
+   * @param path the file to write
+   * @return The rows and columns of the result, or null if receiving failed
+   *         or the job failed on the manager.
    */
-  public void sendData(Matrix[] data) {
+  public int[] receiveToFile(Path path) {
     try {
-      outputStream.writeObject(data);
+      return ResultStream.receive(this::read, path);
+    } catch (IOException e) {
+      System.out.println("Receiving data failed");
+      e.printStackTrace();
+    } catch (Exception e) {
+      LOGGER.severe("Job failed on the manager: " + e.getMessage());
+    }
+    return null;
+  }
+
+  // Read one object from the server, in the format the server writes.
+  private Object read() throws IOException, ClassNotFoundException {
+    return framed ? Frames.read(clientSocket.getInputStream()) : inputStream.readObject();
+  }
+
+  // Write one object to the server, in the format the server reads.
+  private void write(Object object) throws IOException {
+    if (framed) {
+      Frames.write(clientSocket.getOutputStream(), object);
+    } else {
+      outputStream.writeObject(object);
       outputStream.flush();
+    }
+  }
+
+  /**
+   * Send the data to the server
+   *
+   * @param data The data to send, the matrices A and B. Each one is either a
+   *             Matrix or a SparseMatrix.
+   */
+  public void sendData(Object[] data) {
+    try {
+      write(data);
     } catch (IOException e) {
       System.out.println("Sending data failed");
       e.printStackTrace();
@@ -70,13 +139,196 @@ public class MainClient {
     }
   }
 
+  /**
+   * Send a job to the server
+   *
+   * @param request The job to send.
+   */
+  public void sendRequest(JobRequest request) {
+    try {
+      write(request);
+    } catch (IOException e) {
+      System.out.println("Sending data failed");
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Solve A X = B on the cluster. The manager closes the connection after
+   * every job, so this is the only call on a connection.
+   *
+   * @param A the square matrix of coefficients
+   * @param B the right hand sides, one per column, a single column for Ax = b
+   * @return The solution X, or null if the job failed.
+   */
+  public Matrix solve(Matrix A, Matrix B) {
+    sendRequest(JobRequest.solve(A, B));
+    return receiveData();
+  }
+
+  /**
+   * Solve A X = B on the cluster by conjugate gradient. The manager keeps A on
+   * the workers, so an iteration only sends vectors. A must be symmetric and
+   * positive definite. Like solve, this is the only call on a connection.
+   *
+   * @param A             the square matrix of coefficients
+   * @param B             the right hand sides, one per column
+   * @param tolerance     the residual to reach, relative to the right hand side
+   * @param maxIterations the most iterations per column
+   * @return The solution X, or null if the job failed.
+   */
+  public Matrix conjugateGradient(Matrix A, Matrix B, double tolerance, int maxIterations) {
+    sendRequest(JobRequest.conjugateGradient(A, B, tolerance, maxIterations));
+    return receiveData();
+  }
+
+  /**
+   * Find the eigenvalue of largest magnitude and its eigenvector on the
+   * cluster by power iteration. Like solve, this is the only call on a
+   * connection.
+   *
+   * @param A             the square matrix
+   * @param tolerance     the largest change of the vector that counts as
+   *                      converged
+   * @param maxIterations the most iterations
+   * @return The eigenvalue and the eigenvector of length 1, or null if the
+   *         job failed.
+   */
+  public ResidentMatrix.Eigenpair powerIteration(Matrix A, double tolerance, int maxIterations) {
+    sendRequest(JobRequest.powerIteration(A, tolerance, maxIterations));
+    return (ResidentMatrix.Eigenpair) receive();
+  }
+
+  /**
+   * Multiply a chain of matrices on the cluster, A1 x A2 x ... x An. Like
+   * solve, this is the only call on a connection.
+   *
+   * @param matrices the matrices
+   * @return The product, or null if the job failed.
+   */
+  public Matrix chain(Matrix... matrices) {
+    sendRequest(JobRequest.chain(matrices));
+    return receiveData();
+  }
+
+  /**
+   * Raise a square matrix to a power on the cluster. With a tolerance above
+   * 0 the manager stops squaring once the powers no longer change. Like
+   * solve, this is the only call on a connection.
+   *
+   * @param A         the square matrix
+   * @param k         the exponent
+   * @param tolerance the convergence tolerance, 0 to compute A^k exactly
+   * @return A^k, or null if the job failed.
+   */
+  public Matrix power(Matrix A, int k, double tolerance) {
+    sendRequest(JobRequest.power(A, k, tolerance));
+    return receiveData();
+  }
+
+  /**
+   * Evaluate a matrix expression on the cluster as one job, without sending
+   * back any intermediate matrix. Like solve, this is the only call on a
+   * connection.
+   *
+   * @param expression the expression, see Expr
+   * @return The value, or null if the job failed.
+   */
+  public Matrix evaluate(Expr expression) {
+    sendRequest(JobRequest.evaluate(expression));
+    return receiveData();
+  }
+
+  /**
+   * Compute the Gram matrix A x A^T on the cluster, sending A only once. Like
+   * solve, this is the only call on a connection.
+   *
+   * @param A the matrix
+   * @return A x A^T, or null if the job failed.
+   */
+  public Matrix gram(Matrix A) {
+    sendRequest(JobRequest.gram(A));
+    return receiveData();
+  }
+
+  /**
+   * Compute A x A^T, or A^T x A, on the cluster. Like solve, this is the only
+   * call on a connection.
+   *
+   * @param A         the matrix
+   * @param transpose false for A x A^T, true for A^T x A
+   * @return The product, or null if the job failed.
+   */
+  public Matrix syrk(Matrix A, boolean transpose) {
+    sendRequest(JobRequest.syrk(A, transpose));
+    return receiveData();
+  }
+
+  /**
+   * Multiply a triangular matrix A by B on the cluster. Like solve, this is
+   * the only call on a connection.
+   *
+   * @param A     the square triangular matrix
+   * @param B     the matrix B
+   * @param lower whether A is lower triangular, upper otherwise
+   * @return A x B, or null if the job failed.
+   */
+  public Matrix trmm(Matrix A, Matrix B, boolean lower) {
+    sendRequest(JobRequest.trmm(A, B, lower));
+    return receiveData();
+  }
+
+  /**
+   * Multiply A by B on the cluster and write the product to a MatrixFile as
+   * it arrives, without holding all of it. Like solve, this is the only call
+   * on a connection.
+   *
+   * @param A    the left-hand matrix, a Matrix or a SparseMatrix
+   * @param B    the right-hand matrix, a Matrix or a SparseMatrix
+   * @param path the file to write the product to
+   * @return The rows and columns of the product, or null if the job failed.
+   */
+  public int[] multiply(Object A, Object B, Path path) {
+    sendRequest(JobRequest.multiply(A, B).setStreamResult(true));
+    return receiveToFile(path);
+  }
+
+  /**
+   * Multiply A by B on the cluster as a checkpointed job. If the connection or
+   * the manager is lost, the result can still be fetched with attach. Sparse
+   * operands are checkpointed and multiplied dense.
+   *
+   * @param A     the left-hand matrix, a Matrix or a SparseMatrix
+   * @param B     the right-hand matrix, a Matrix or a SparseMatrix
+   * @param jobId the ID of the job
+   * @return The product, or null if the job failed.
+   */
+  public Matrix multiply(Object A, Object B, String jobId) {
+    sendRequest(JobRequest.multiply(A, B, jobId));
+    return receiveData();
+  }
+
+  /**
+   * Get the result of a checkpointed job, waiting for it if it is still
+   * running. Like solve, this is the only call on a connection.
+   *
+   * @param jobId the ID the job was submitted with
+   * @return The product, or null if the job failed or is unknown.
+   */
+  public Matrix attach(String jobId) {
+    sendRequest(JobRequest.attach(jobId));
+    return receiveData();
+  }
+
   /**
    * It closes the connection.
    */
   public void stopConnection() {
     try {
-      inputStream.close();
-      outputStream.close();
+      if (!framed) {
+        inputStream.close();
+        outputStream.close();
+      }
       clientSocket.close();
     } catch (IOException e) {
       System.out.println("Closing connection failed");
@@ -87,7 +339,22 @@ public class MainClient {
     }
   }
 
-  public static void main(String[] args) {
+  public static void main(String[] args) throws Exception {
+    // java MainClient [--output directory]
+    // --output writes every product to directory/product-<n>.mtx instead of
+    // printing it
+    // java MainClient --load [options] runs a load test instead, see LoadTest
+    if (args.length > 0 && args[0].equals("--load")) {
+      LoadTest.main(Arrays.copyOfRange(args, 1, args.length));
+      return;
+    }
+
+    Path output = null;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--output")) {
+        output = Paths.get(args[++i]);
+      }
+    }
 
     // Testing time for these matrices
     // int[] matrixDimensions = { 16, 32, 64, 128, 256, 512, 1024, 2048, 4096, 8192, 16384, 32768 };
@@ -107,6 +374,17 @@ public class MainClient {
       try {
         MainClient mainClient = new MainClient();
         mainClient.startConnection("localhost", 6666);
+        if (output != null) {
+          // Stream the product to disk
+          LOGGER.info("Sending " + dim + "x" + dim + " matrices to manager...");
+          Path file = output.resolve("product-" + dim + ".mtx");
+          if (mainClient.multiply(matrixA, matrixB, file) != null) {
+            LOGGER.info("Wrote final output to " + file);
+          }
+          mainClient.stopConnection();
+          continue;
+        }
+
         LOGGER.info("Sending following " + dim + "x" + dim + " matrices to manager...");
         matrixA.show("A");
         matrixB.show("B");
@@ -4,12 +4,28 @@ import java.io.ObjectOutputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
 
 /**
  * The Manager class is responsible for managing the workers and the client. It receives the matrices
@@ -28,12 +44,66 @@ public class Manager {
   // Example: "localhost", 1234
   private InetSocketAddress[] workerAddresses = {};
 
-  // Key value pair of busy INetSocketAddress and busy boolean
-  // Example: {new InetSocketAddress("localhost", 1234), false}
-  private static Map<String, Boolean> workerStatus = new HashMap<>();
+  // The workers that are not busy. A chunk takes a worker from the queue and
+  // puts it back when the worker has answered, so waiting for a free worker
+  // just parks the chunk's thread.
+  private final BlockingQueue<InetSocketAddress> freeWorkers = new LinkedBlockingQueue<>();
 
+  // Chunks take their workers in the order they were submitted, so the order
+  // of dispatchTasks holds across all workers: every chunk draws a ticket
+  // when it is submitted and takes a worker when the turn comes to its ticket
+  private final AtomicLong tickets = new AtomicLong();
+  private final ReentrantLock turnLock = new ReentrantLock();
+  private final Condition turnChanged = turnLock.newCondition();
+  private long turn;
+
+  // Number of tiles of a distributed job, 0 lets the planner pick it
   private int partitionSize;
 
+  // Whether the workers run the non-blocking server and speak in frames
+  private boolean framedWorkers;
+
+  // How requests reach the workers, null for sockets
+  private Transport transport;
+
+  // Decides whether dense tiles are compressed on their way to the workers
+  private AdaptiveCompression compression = new AdaptiveCompression(AdaptiveCompression.Mode.OFF);
+
+  // Whether dense tiles are sent as OffHeapTiles, for workers to keep them
+  // off the heap
+  private boolean offHeapTiles;
+
+  // Whether the workers are sub-Managers, see addSubManager
+  private boolean subManagers;
+
+  // Number of workers sharing the inner dimension of an output tile, 0 picks
+  // it from the number of workers
+  private int replication;
+
+  // Picks the strategy and the partition size of every job. The measured link
+  // comes first: behind shared memory it is the sockets to the other hosts.
+  private final Planner planner = new Planner(() -> compression.getLinkBytesPerSecond() > 0
+      ? compression.getLinkBytesPerSecond() : transport != null ? transport.bytesPerSecond() : 0);
+
+  // Where checkpointed jobs are saved, null if they are not
+  private CheckpointStore checkpoints;
+
+  // The checkpointed jobs running now, by job ID
+  private final Map<String, CompletableFuture<Matrix>> checkpointedJobs = new ConcurrentHashMap<>();
+
+  // How long a job waits for memory before it is rejected
+  private static final long MEMORY_WAIT_MILLIS = 60_000;
+
+  // The operands of a job are held this many times: as sent, padded and
+  // divided into blocks
+  private static final int OPERAND_COPIES = 3;
+
+  // The result is held this many times: padded while it is merged, then cut
+  private static final int RESULT_COPIES = 2;
+
+  // Limits the memory all jobs hold at once, null for no limit
+  private MemoryBudget budget = MemoryBudget.ofHeap(MEMORY_WAIT_MILLIS);
+
   /**
    * Add a worker to the list of workers
    *
@@ -42,21 +112,74 @@ public class Manager {
   public void addWorker(InetSocketAddress workerAddress) {
     workerAddresses = Arrays.copyOf(workerAddresses, workerAddresses.length + 1);
     workerAddresses[workerAddresses.length - 1] = workerAddress;
+    freeWorkers.add(workerAddress);
+  }
+
+  /**
+   * Add a sub-Manager: a Manager with workers of its own, used by this root
+   * Manager like a worker. A multiplication is cut into a few coarse
+   * super-tiles, about one per sub-Manager, and every sub-Manager divides its
+   * super-tile over its own workers and sends back the assembled tile, see
+   * multiplySuperTile. Other jobs go to one sub-Manager as they are. The
+   * padding, division, serialization and merging of the tiles is spread over
+   * the sub-Managers, so the root stays cool with hundreds of workers. Do not
+   * mix sub-Managers and workers.
+   *
+   * @param managerAddress The address the sub-Manager serves clients on.
+   */
+  public void addSubManager(InetSocketAddress managerAddress) {
+    subManagers = true;
+    // The partial sums of 2.5D go from worker to worker, not between Managers
+    replication = 1;
+    addWorker(managerAddress);
   }
 
   // The constructor takes a partition size and throws an exception if it's not a
-  // power of 4.
+  // power of 4. Every job is then distributed over that many tiles.
   public Manager(int partitionSize) {
-    // partitionSize must be a power of 4
-    if (partitionSize < 4 || (partitionSize & (partitionSize - 1)) != 0) {
+    setPartitionSize(partitionSize);
+  }
+
+  // Without a partition size the planner picks the strategy and the partition
+  // size of each job.
+  public Manager() {
+    this.partitionSize = 0;
+  }
+
+  /**
+   * Fix the number of tiles of every job, 0 lets the planner pick it
+   *
+   * @param partitionSize a power of 4, or 0
+   */
+  public void setPartitionSize(int partitionSize) {
+    // partitionSize must be a power of 4: a single bit, at an even position
+    boolean powerOfFour = partitionSize >= 4 && (partitionSize & (partitionSize - 1)) == 0
+        && Integer.numberOfTrailingZeros(partitionSize) % 2 == 0;
+    if (partitionSize != 0 && !powerOfFour) {
       throw new IllegalArgumentException("partitionSize must be a power of 4");
     }
 
     this.partitionSize = partitionSize;
   }
 
-  public Manager() {
-    this.partitionSize = 4;
+  /**
+   * Limit the memory the jobs hold at once. Jobs that do not fit wait in
+   * line, and are rejected if they wait too long or can never fit. By default
+   * the budget is three quarters of the heap.
+   *
+   * @param budget the budget, null for no limit
+   */
+  public void setMemoryBudget(MemoryBudget budget) {
+    this.budget = budget;
+  }
+
+  /**
+   * Returns the planner, whose history shows how the recent jobs were run
+   *
+   * @return The planner.
+   */
+  public Planner getPlanner() {
+    return planner;
   }
 
   /**
@@ -94,10 +217,6 @@ public class Manager {
         return;
       }
 
-      for (InetSocketAddress workerAddress : workerAddresses) {
-        workerStatus.put(Helper.inetSocketAddressToString(workerAddress), false);
-      }
-
       // Create a server socket
       serverSocket = new ServerSocket(port);
       // Print the IP address and port number
@@ -108,16 +227,139 @@ public class Manager {
 
       // Wait for a client to connect
       while (true) {
-        // Accept client connection and create a new thread for it
-        new ManagerClientHandler(serverSocket.accept()).start();
+        // Accept client connection and handle it on its own I/O thread
+        ThreadPools.IO.execute(new ManagerClientHandler(serverSocket.accept()));
+      }
+
+    } catch (IOException e) {
+      LOGGER.severe("Connection failed");
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Serve clients with the non-blocking server core instead of a thread per
+   * connection, and talk to the workers in frames. Clients and workers must
+   * use frames too, see Frames. Every complete request runs on an I/O thread,
+   * since a job spends its time waiting for the workers.
+   *
+   * @param port      the port number to listen on
+   * @param ioThreads the number of selector threads
+   */
+  public void startNonBlocking(int port, int ioThreads) {
+    if (workerAddresses.length == 0) {
+      LOGGER.info("No worker available");
+      return;
+    }
+
+    framedWorkers = true;
+    NioServer server = new NioServer(new NioServer.Handler() {
+      @Override
+      public Object handle(Object request) {
+        return streamIfAsked(request, show(request, execute(request)));
       }
 
+      // A result sent in bands is dropped once its last band is out
+      @Override
+      public void release(Object response) {
+        if (response instanceof ResultStream) {
+          ((ResultStream) response).release();
+        }
+      }
+    }, ThreadPools.IO, ioThreads);
+    if (budget != null) {
+      server.setBudget(budget);
+    }
+    try {
+      server.start(port);
     } catch (IOException e) {
       LOGGER.severe("Connection failed");
       e.printStackTrace();
     }
   }
 
+  /**
+   * Save the tiles of jobs submitted with a job ID to the store, so they
+   * survive a restart of the Manager. See resumeCheckpoints.
+   *
+   * @param checkpoints the store
+   */
+  public void setCheckpointStore(CheckpointStore checkpoints) {
+    this.checkpoints = checkpoints;
+  }
+
+  /**
+   * Resume the checkpointed jobs that were running when the Manager stopped.
+   * Only their missing tiles are computed, clients get the results with
+   * JobRequest.attach.
+   */
+  public void resumeCheckpoints() {
+    try {
+      for (String jobId : checkpoints.runningJobs()) {
+        LOGGER.info("Resuming job " + jobId);
+        startCheckpointed(jobId, null, null);
+      }
+    } catch (IOException e) {
+      LOGGER.severe("Reading checkpoints failed");
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Reach the workers through the given transport instead of sockets, see
+   * EmbeddedCluster
+   *
+   * @param transport the transport
+   */
+  public void setTransport(Transport transport) {
+    this.transport = transport;
+  }
+
+  // The transport to the workers, sockets unless another one is set.
+  private Transport transport() {
+    return transport != null ? transport : new SocketTransport(framedWorkers, compression);
+  }
+
+  /**
+   * Set whether dense tiles are compressed before they are sent to the
+   * workers, see CompressedTile. AUTO compresses only while the measured link
+   * is slow enough for compression to pay off.
+   *
+   * @param mode OFF, ON or AUTO
+   */
+  public void setCompression(AdaptiveCompression.Mode mode) {
+    compression = new AdaptiveCompression(mode);
+  }
+
+  /**
+   * Set whether the dense tiles of a task are sent as OffHeapTiles. The
+   * workers then read them straight into direct buffers and multiply them
+   * there, so large tiles no longer churn the garbage collector of the
+   * workers. Compressed tiles are sent compressed either way.
+   *
+   * @param offHeapTiles whether to send OffHeapTiles
+   */
+  public void setOffHeapTiles(boolean offHeapTiles) {
+    this.offHeapTiles = offHeapTiles;
+  }
+
+  /**
+   * Set the replication factor c of the 2.5D decomposition of dense jobs. Each
+   * output tile is then computed by c workers, each over 1/c of the inner
+   * dimension, and the partial tiles are summed up in a tree among those
+   * workers. It lets more workers than output tiles take part, at the cost of
+   * c partial tiles of memory. 1 turns it off, 0 (the default) uses c =
+   * workers / tiles. A root Manager over sub-Managers always uses 1.
+   *
+   * @param replication the replication factor
+   */
+  public void setReplication(int replication) {
+    if (subManagers && replication != 1) {
+      throw new IllegalArgumentException("Sub-Managers do not take part in 2.5D reductions, replication must be 1");
+    }
+    this.replication = replication;
+  }
+
   /**
    * It closes the server socket.
    */
@@ -139,38 +381,88 @@ public class Manager {
    * 3. Receive a output from the worker
    *
    * @param Socket     clientSocket - The socket to the worker
-   * @param Matrix[][] chunk - The data to send to the worker
+   * @param Object     chunk - The data to send to the worker, the A blocks and
+   *                   the B blocks, each either Matrix or SparseMatrix, or a
+   *                   TileTask
+   *
+   * @return Object - The data received from the worker, a Matrix or a
+   *         SparseMatrix
+   */
+  public static Object job(Socket clientSocket, Object chunk) throws IOException, ClassNotFoundException {
+    return job(clientSocket, chunk, null);
+  }
+
+  /**
+   * The same as job, and the time the chunk takes to write is recorded
    *
-   * @return Matrix - The data received from the worker
+   * @param clientSocket the socket to the worker
+   * @param chunk        the data to send to the worker
+   * @param link         records the transfer, may be null
+   * @return The data received from the worker.
    */
-  public static Matrix job(Socket clientSocket, Matrix[][] chunk) throws IOException, ClassNotFoundException {
+  public static Object job(Socket clientSocket, Object chunk, AdaptiveCompression link)
+      throws IOException, ClassNotFoundException {
     // Write the chunk to the socket
-    ObjectOutputStream oos2 = new ObjectOutputStream(clientSocket.getOutputStream());
+    AdaptiveCompression.CountingOutputStream out = new AdaptiveCompression.CountingOutputStream(
+        clientSocket.getOutputStream());
+    long start = System.nanoTime();
+    ObjectOutputStream oos2 = new ObjectOutputStream(out);
     oos2.writeObject(chunk);
     oos2.flush();
+    if (link != null) {
+      link.recordTransfer(out.getCount(), System.nanoTime() - start);
+    }
 
     // Read the result from the socket
     ObjectInputStream ois2 = new ObjectInputStream(clientSocket.getInputStream());
-    Matrix result = (Matrix) ois2.readObject();
+    Object result = ois2.readObject();
 
     // Close the socket
     ois2.close();
     oos2.close();
     // clientSocket.close();
 
+    // A worker or a sub-Manager answers a failed job with the exception
+    if (result instanceof RuntimeException) {
+      throw (RuntimeException) result;
+    }
     return result;
   }
 
-  // Get all free servers
-  private InetSocketAddress[] getFreeWorkers() {
-    // Return empty array if no servers are free
-    if (workerStatus.isEmpty()) {
-      return new InetSocketAddress[0];
-    }
+  /**
+   * The same as job, for workers that run the non-blocking server: the chunk
+   * and the result travel as frames.
+   *
+   * @param clientSocket the socket to the worker
+   * @param chunk        the data to send to the worker
+   * @return The data received from the worker.
+   */
+  public static Object framedJob(Socket clientSocket, Object chunk) throws IOException, ClassNotFoundException {
+    return framedJob(clientSocket, chunk, null);
+  }
 
-    return Arrays.stream(workerAddresses)
-        .filter((InetSocketAddress workerAddress) -> !workerStatus.get(Helper.inetSocketAddressToString(workerAddress)))
-        .toArray(InetSocketAddress[]::new);
+  /**
+   * The same as framedJob, and the time the chunk takes to write is recorded
+   *
+   * @param clientSocket the socket to the worker
+   * @param chunk        the data to send to the worker
+   * @param link         records the transfer, may be null
+   * @return The data received from the worker.
+   */
+  public static Object framedJob(Socket clientSocket, Object chunk, AdaptiveCompression link)
+      throws IOException, ClassNotFoundException {
+    ByteBuffer frame = Frames.encode(chunk);
+    long start = System.nanoTime();
+    clientSocket.getOutputStream().write(frame.array(), 0, frame.capacity());
+    clientSocket.getOutputStream().flush();
+    if (link != null) {
+      link.recordTransfer(frame.capacity(), System.nanoTime() - start);
+    }
+    Object result = Frames.read(clientSocket.getInputStream());
+    if (result instanceof RuntimeException) {
+      throw (RuntimeException) result;
+    }
+    return result;
   }
 
   /**
@@ -230,158 +522,1346 @@ public class Manager {
     return resultMatrices;
   }
 
-/**
- * We divide the matrices into chunks, send the chunks to the servers, and merge the results from the
- * servers
- */
-  private class ManagerClientHandler extends Thread {
-    private Socket clientSocket;
-    private ObjectOutputStream outputStream;
-    private ObjectInputStream inputStream;
+  /**
+   * Given the blocks of A and B of a sparse job, this function will return the
+   * task of every output tile, keeping only the block pairs where both blocks
+   * have non-zeros. A tile without any such pair is zero and gets no task.
+   *
+   * @param aBlocks the blocks of A by block row and block column, each either
+   *                Matrix or SparseMatrix
+   * @param bBlocks the blocks of B by block row and block column, each either
+   *                Matrix or SparseMatrix
+   * @param costs   filled with the estimated work of every task, the number of
+   *                multiply-adds assuming evenly spread non-zeros
+   * @return The tasks indexed by output tile in row-major order, null for tiles
+   *         that are zero.
+   */
+  public static Object[][][] arrangeSparseTasks(Object[][] aBlocks, Object[][] bBlocks, long[] costs) {
+    int rowBands = aBlocks.length;
+    int innerBands = bBlocks.length;
+    int colBands = bBlocks[0].length;
+
+    int[][] aNonZeros = new int[rowBands][innerBands];
+    int[][] bNonZeros = new int[innerBands][colBands];
+    for (int k = 0; k < innerBands; k++) {
+      for (int i = 0; i < rowBands; i++) {
+        aNonZeros[i][k] = SparseMatrix.nnz(aBlocks[i][k]);
+      }
+      for (int j = 0; j < colBands; j++) {
+        bNonZeros[k][j] = SparseMatrix.nnz(bBlocks[k][j]);
+      }
+    }
 
-    // Creating a new ManagerClientHandler object and passing the clientSocket to it.
-    public ManagerClientHandler(Socket clientSocket) {
-      this.clientSocket = clientSocket;
+    Object[][][] tasks = new Object[rowBands * colBands][][];
+    for (int i = 0; i < rowBands; i++) {
+      for (int j = 0; j < colBands; j++) {
+        List<Object> aChunksToWorker = new ArrayList<>();
+        List<Object> bChunksToWorker = new ArrayList<>();
+        long cost = 0;
+
+        for (int k = 0; k < innerBands; k++) {
+          int a = aNonZeros[i][k];
+          int b = bNonZeros[k][j];
+          if (a == 0 || b == 0) {
+            continue;
+          }
+          aChunksToWorker.add(aBlocks[i][k]);
+          bChunksToWorker.add(bBlocks[k][j]);
+          cost += (long) a * b / SparseMatrix.rowsOf(bBlocks[k][j]) + 1;
+        }
+
+        if (!aChunksToWorker.isEmpty()) {
+          tasks[i * colBands + j] = new Object[][] { aChunksToWorker.toArray(), bChunksToWorker.toArray() };
+        }
+        costs[i * colBands + j] = cost;
+      }
     }
 
-    // We divide the matrices into chunks, send the chunks to the servers, and merge
-    // the results from the servers.
-    public void run() {
+    return tasks;
+  }
+
+  /**
+   * Send one task to the next free worker, on an I/O thread. The thread waits
+   * until a worker is free, so any number of tasks can be in flight.
+   *
+   * @param task the task, the A blocks and the B blocks
+   * @return A future of the result of the worker.
+   */
+  public CompletableFuture<Object> submitTask(Object[][] task) {
+    long ticket = tickets.getAndIncrement();
+    return CompletableFuture.supplyAsync(() -> runOnWorker(task, ticket), ThreadPools.IO);
+  }
+
+  // Take a free worker, waiting for one if they are all busy.
+  private InetSocketAddress takeWorker() {
+    return takeWorkers(tickets.getAndIncrement(), 1)[0];
+  }
+
+  // Take count free workers once it is the turn of the ticket. A gang is
+  // taken in one turn, so two gangs never hold part of the workers each and
+  // wait for the rest.
+  private InetSocketAddress[] takeWorkers(long ticket, int count) {
+    awaitTurn(ticket);
+    InetSocketAddress[] taken = new InetSocketAddress[count];
+    int i = 0;
+    try {
+      for (; i < count; i++) {
+        taken[i] = freeWorkers.take();
+      }
+      return taken;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      for (int j = 0; j < i; j++) {
+        freeWorkers.add(taken[j]);
+      }
+      throw new IllegalStateException("Interrupted while waiting for a free worker", e);
+    } finally {
+      nextTurn();
+    }
+  }
+
+  // Take the given worker once it is the turn of the ticket and the worker is
+  // free, for requests that need the tiles it keeps. Other workers freed
+  // meanwhile go back to the queue: nobody else takes workers during this
+  // turn.
+  private InetSocketAddress takeWorker(long ticket, InetSocketAddress worker) {
+    awaitTurn(ticket);
+    List<InetSocketAddress> others = new ArrayList<>();
+    try {
+      InetSocketAddress taken = freeWorkers.take();
+      while (!taken.equals(worker)) {
+        others.add(taken);
+        taken = freeWorkers.take();
+      }
+      return taken;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for worker "
+          + Helper.inetSocketAddressToString(worker), e);
+    } finally {
+      freeWorkers.addAll(others);
+      nextTurn();
+    }
+  }
+
+  // Wait until it is the turn of the ticket.
+  private void awaitTurn(long ticket) {
+    turnLock.lock();
+    try {
+      while (turn != ticket) {
+        turnChanged.awaitUninterruptibly();
+      }
+    } finally {
+      turnLock.unlock();
+    }
+  }
+
+  // Pass the turn on. The next ticket has to come even if this one failed.
+  private void nextTurn() {
+    turnLock.lock();
+    try {
+      turn++;
+      turnChanged.signalAll();
+    } finally {
+      turnLock.unlock();
+    }
+  }
+
+  // Take a free worker, run the task on it and free the worker again.
+  private Object runOnWorker(Object[][] task, long ticket) {
+    InetSocketAddress workerAddress = takeWorkers(ticket, 1)[0];
+
+    // Charge the tile while it is out: its serialized copy and the reply
+    long tileBytes = 0;
+    if (budget != null) {
+      for (Object[] blocks : task) {
+        for (Object block : blocks) {
+          tileBytes += bytesOf(block);
+        }
+      }
+      tileBytes += 8L * SparseMatrix.rowsOf(task[0][0]) * SparseMatrix.columnsOf(task[1][0]);
+      budget.charge(tileBytes);
+    }
+
+    try {
+      // Send the chunk to the server, compressed when that pays off
+      long start = System.nanoTime();
+      boolean compress = compression.shouldCompress();
+      Object[][] payload = compress ? compressTask(task) : offHeapTiles ? OffHeapTile.wrap(task) : task;
+      Object result = CompressedTile.decompress(send(workerAddress, payload));
+      planner.recordTask(compress ? payload : task, System.nanoTime() - start);
+      return result;
+    } finally {
+      // Free the server
+      freeWorkers.add(workerAddress);
+      if (budget != null) {
+        budget.release(tileBytes);
+      }
+    }
+  }
+
+  /**
+   * Run a request other than a plain task, such as an ExprTask, on the next
+   * free worker
+   *
+   * @param request the request
+   * @param bytes   the bytes it holds while it is out, charged to the budget
+   * @return A future of the answer of the worker.
+   */
+  private CompletableFuture<Object> submitRequest(Object request, long bytes) {
+    return submitTo(null, request, bytes);
+  }
+
+  /**
+   * Run a request on the given worker, in turn with the tasks submitted
+   * before it. It waits until that worker is free, like a task waits for any
+   * worker.
+   *
+   * @param worker  the worker, null for the next free one
+   * @param request the request
+   * @param bytes   the bytes it holds while it is out, charged to the budget
+   * @return A future of the answer of the worker.
+   */
+  private CompletableFuture<Object> submitTo(InetSocketAddress worker, Object request, long bytes) {
+    long ticket = tickets.getAndIncrement();
+    return CompletableFuture.supplyAsync(() -> {
+      InetSocketAddress workerAddress = worker == null ? takeWorkers(ticket, 1)[0] : takeWorker(ticket, worker);
+      if (budget != null) {
+        budget.charge(bytes);
+      }
       try {
-        outputStream = new ObjectOutputStream(clientSocket.getOutputStream());
-        inputStream = new ObjectInputStream(clientSocket.getInputStream());
+        return send(workerAddress, request);
+      } finally {
+        freeWorkers.add(workerAddress);
+        if (budget != null) {
+          budget.release(bytes);
+        }
+      }
+    }, ThreadPools.IO);
+  }
+
+  // Send a request to the worker and wait for its answer.
+  private Object send(InetSocketAddress workerAddress, Object request) {
+    String worker = Helper.inetSocketAddressToString(workerAddress);
+    try {
+      Object result = transport().call(workerAddress, request);
+      LOGGER.info("Received result from worker " + worker);
+      return result;
+    } catch (IOException | ClassNotFoundException e) {
+      throw new IllegalStateException("Task failed on worker " + worker + ": " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Compute the tasks with the 2.5D decomposition: every task is split along
+   * the inner dimension into replication slices, which a gang of that many
+   * workers computes and sums up among themselves, see TileTask.
+   *
+   * @param tasks       the tasks, as built by arrangeTasks
+   * @param order       the indices of the tasks to send
+   * @param replication the number of slices per task
+   * @param done        called with the index and the result of every task
+   * @return The results indexed like tasks, null where no task was sent.
+   */
+  private Object[] dispatchReduced(Object[][][] tasks, int[] order, int replication,
+      BiConsumer<Integer, Object> done) {
+    Object[] resultChunks = new Object[tasks.length];
+
+    List<CompletableFuture<Object>> futures = new ArrayList<>();
+    for (int chunkIndex : order) {
+      LOGGER.info("Sending chunk " + chunkIndex + " in " + replication + " slices");
+      long ticket = tickets.getAndIncrement();
+      futures.add(CompletableFuture.supplyAsync(() -> runOnGang(tasks[chunkIndex], replication, ticket),
+          ThreadPools.IO).thenApply(result -> {
+            done.accept(chunkIndex, result);
+            return resultChunks[chunkIndex] = result;
+          }));
+    }
+
+    ThreadPools.waitFor(futures);
+
+    return resultChunks;
+  }
+
+  // Run the slices of one task on a gang of workers. Slice i is node i of a
+  // binary tree, its parent is slice (i - 1) / 2 and slice 0 answers with the
+  // whole tile.
+  private Object runOnGang(Object[][] task, int replication, long ticket) {
+    InetSocketAddress[] gang = takeWorkers(ticket, replication);
+    try {
+      long reductionId = ThreadLocalRandom.current().nextLong();
+      int blocks = task[0].length;
+      List<CompletableFuture<Object>> slices = new ArrayList<>();
+      for (int i = 0; i < replication; i++) {
+        int from = i * blocks / replication;
+        int to = (i + 1) * blocks / replication;
+        int children = Math.max(0, Math.min(replication, 2 * i + 3) - (2 * i + 1));
+        InetSocketAddress parent = i == 0 ? null : gang[(i - 1) / 2];
+        TileTask slice = new TileTask(Arrays.copyOfRange(task[0], from, to), Arrays.copyOfRange(task[1], from, to),
+            reductionId, children, parent);
+
+        InetSocketAddress workerAddress = gang[i];
+        slices.add(CompletableFuture.supplyAsync(() -> send(workerAddress, slice), ThreadPools.IO));
+      }
+
+      ThreadPools.waitFor(slices);
+      return slices.get(0).join();
+    } finally {
+      for (InetSocketAddress worker : gang) {
+        freeWorkers.add(worker);
+      }
+    }
+  }
+
+  // The replication factor for tasks of kBlocks block pairs, never more than
+  // there are workers or block pairs.
+  private int replicationFor(int tasks, int kBlocks) {
+    int c = replication > 0 ? replication : workerAddresses.length / tasks;
+    return Math.max(1, Math.min(c, Math.min(kBlocks, workerAddresses.length)));
+  }
+
+  // Compress the dense blocks of a task. Sparse blocks are already small and
+  // go as they are.
+  private Object[][] compressTask(Object[][] task) {
+    Object[][] payload = new Object[task.length][];
+    for (int i = 0; i < task.length; i++) {
+      payload[i] = new Object[task[i].length];
+      for (int j = 0; j < task[i].length; j++) {
+        if (task[i][j] instanceof Matrix) {
+          long start = System.nanoTime();
+          CompressedTile tile = CompressedTile.compress((Matrix) task[i][j]);
+          compression.recordCodec(tile.rawSize(), tile.compressedSize(), System.nanoTime() - start);
+          payload[i][j] = tile;
+        } else {
+          payload[i][j] = task[i][j];
+        }
+      }
+    }
+    return payload;
+  }
+
+  /**
+   * Send the tasks to the free workers and collect the results. Tasks are
+   * handed out in the given order, so the most expensive tasks can go first.
+   *
+   * @param tasks the tasks to send, one per output tile
+   * @param order the indices of the tasks to send, in dispatch order
+   * @return The results indexed like tasks, null where no task was sent.
+   */
+  private Object[] dispatchTasks(Object[][][] tasks, int[] order) {
+    return dispatchTasks(tasks, order, (chunkIndex, result) -> {
+    });
+  }
 
-        Matrix[] data = (Matrix[]) inputStream.readObject();
+  /**
+   * The same as dispatchTasks, and done is called with the index and the
+   * result of every task as soon as it is in
+   *
+   * @param tasks the tasks to send, one per output tile
+   * @param order the indices of the tasks to send, in dispatch order
+   * @param done  called with the index and the result of every task
+   * @return The results indexed like tasks, null where no task was sent.
+   */
+  private Object[] dispatchTasks(Object[][][] tasks, int[] order, BiConsumer<Integer, Object> done) {
+    Object[] resultChunks = new Object[tasks.length];
+
+    // We will keep track of our tasks so later we can wait for all of them
+    List<CompletableFuture<Object>> futures = new ArrayList<>();
+    for (int chunkIndex : order) {
+      LOGGER.info("Sending chunk " + chunkIndex);
+      futures.add(submitTask(tasks[chunkIndex]).thenApply(result -> {
+        done.accept(chunkIndex, result);
+        return resultChunks[chunkIndex] = result;
+      }));
+    }
 
-        Matrix tempMatrixA = data[0];
-        Matrix matrixA = Matrix.padding(tempMatrixA);
+    ThreadPools.waitFor(futures);
 
-        Matrix tempMatrixB = data[1];
-        Matrix matrixB = Matrix.padding(tempMatrixB);
+    return resultChunks;
+  }
 
-        LOGGER.info("Received matrices from client: ");
-        matrixA.show("A");
-        matrixB.show("B");
+  /**
+   * Multiply two dense matrices on the workers.
+   *
+   * @param tempMatrixA the matrix A as sent by the client
+   * @param tempMatrixB the matrix B as sent by the client
+   * @return The product A x B.
+   */
+  private Matrix multiplyDense(Matrix tempMatrixA, Matrix tempMatrixB) {
+    Planner.Plan plan = planner.plan(tempMatrixA.getM(), tempMatrixA.getN(), tempMatrixB.getN(),
+        workerAddresses.length, subManagers && partitionSize == 0 ? superTiles() : partitionSize);
+    if (plan.getStrategy() == Planner.Strategy.LOCAL) {
+      return multiplyLocal(tempMatrixA, tempMatrixB);
+    }
+
+    Matrix matrixA = Matrix.padding(tempMatrixA);
+    Matrix matrixB = Matrix.padding(tempMatrixB);
 
-        // Divide the integers array into chunks of size n
-        int chunkSize = (int) Math.sqrt(Math.pow(matrixA.getM(), 2) / partitionSize);
+    if (plan.getStrategy() == Planner.Strategy.STRASSEN && matrixA.getM() == matrixB.getM()) {
+      return Matrix.cut(multiplyStrassen(matrixA, matrixB), tempMatrixA.getM(), tempMatrixB.getN());
+    }
 
-        Matrix[] matrixAChunks = matrixA.divide(chunkSize);
-        Matrix[] matrixBChunks = matrixB.divide(chunkSize);
+    return Matrix.cut(multiplyTiled(matrixA, matrixB, plan.getPartitionSize(), null), tempMatrixA.getM(),
+        tempMatrixB.getN());
+  }
 
-        Matrix[][][] chunks = arrangeTasks(matrixAChunks, matrixBChunks, matrixA.getM());
+  /**
+   * Multiply two padded matrices on the workers, one task per output tile.
+   * With a checkpoint, the tiles already in it are not computed again and
+   * every new tile is added to it as soon as it is in.
+   *
+   * @param matrixA       the padded matrix A
+   * @param matrixB       the padded matrix B
+   * @param partitionSize the number of tiles
+   * @param checkpoint    the checkpoint of the job, or null
+   * @return The padded product.
+   */
+  private Matrix multiplyTiled(Matrix matrixA, Matrix matrixB, int partitionSize, CheckpointStore.Job checkpoint) {
+    // Divide the integers array into chunks of size n
+    int chunkSize = (int) Math.sqrt(Math.pow(matrixA.getM(), 2) / partitionSize);
 
-        // Create a copy of the chunks
-        Matrix[] resultChunks = new Matrix[chunks.length];
+    Matrix[] matrixAChunks = matrixA.divide(chunkSize);
+    Matrix[] matrixBChunks = matrixB.divide(chunkSize);
 
-        // We will keep track of our threads so later we can pause execution
-        // to wait for all threads to finish
-        List<Thread> threads = new ArrayList<>();
+    Matrix[][][] chunks = arrangeTasks(matrixAChunks, matrixBChunks, matrixA.getM());
 
-        // send the chunks to servers clients in threads
+    // Only the tiles that are not checkpointed yet
+    Map<Integer, Matrix> checkpointed = checkpoint == null ? new HashMap<>() : checkpoint.getTiles();
+    int[] order = IntStream.range(0, chunks.length).filter(i -> !checkpointed.containsKey(i)).toArray();
+    BiConsumer<Integer, Object> done = (chunkIndex, result) -> {
+      if (checkpoint != null) {
         try {
-          int chunkIndex = 0;
+          checkpoint.append(chunkIndex, SparseMatrix.toDense(result));
+        } catch (IOException e) {
+          throw new IllegalStateException("Checkpointing tile " + chunkIndex + " failed: " + e.getMessage(), e);
+        }
+      }
+    };
+
+    int replication = replicationFor(chunks.length, chunks[0][0].length);
+    Object[] results = replication > 1 ? dispatchReduced(chunks, order, replication, done)
+        : dispatchTasks(chunks, order, done);
+    Matrix[] resultChunks = new Matrix[results.length];
+    for (int i = 0; i < results.length; i++) {
+      resultChunks[i] = results[i] == null ? checkpointed.get(i) : SparseMatrix.toDense(results[i]);
+    }
+
+    // Merge the results from the workers
+    LOGGER.info("Merging results...");
+    Matrix tempMerged = new Matrix(matrixA.getM(), matrixA.getN());
+    tempMerged.joinAll(resultChunks);
+    return tempMerged;
+  }
+
+  // The partition size of a root Manager: the fewest tiles, a power of 4,
+  // that give every sub-Manager one.
+  private int superTiles() {
+    int side = 2;
+    while (side * side < workerAddresses.length) {
+      side *= 2;
+    }
+    return side * side;
+  }
+
+  /**
+   * Compute a super-tile for a root Manager: the sum of a[k] x b[k] over k.
+   * The blocks of a are put side by side and the blocks of b one under the
+   * other, and the two are multiplied as one job on this Manager's workers.
+   *
+   * @param aBlocks the A blocks of the super-tile
+   * @param bBlocks the B blocks of the super-tile
+   * @return The super-tile.
+   */
+  public Matrix multiplySuperTile(Object[] aBlocks, Object[] bBlocks) {
+    if (aBlocks.length != bBlocks.length)
+      throw new RuntimeException("Illegal matrix dimensions.");
+    Matrix[] a = new Matrix[aBlocks.length];
+    Matrix[] b = new Matrix[bBlocks.length];
+    int inner = 0;
+    for (int k = 0; k < a.length; k++) {
+      a[k] = SparseMatrix.toDense(CompressedTile.decompress(aBlocks[k]));
+      b[k] = SparseMatrix.toDense(CompressedTile.decompress(bBlocks[k]));
+      if (a[k].getN() != b[k].getM())
+        throw new RuntimeException("Illegal matrix dimensions.");
+      inner += a[k].getN();
+    }
+    LOGGER.info("Computing a super-tile of " + a.length + " block products");
+
+    Matrix A = new Matrix(a[0].getM(), inner);
+    Matrix B = new Matrix(inner, b[0].getN());
+    int offset = 0;
+    for (int k = 0; k < a.length; k++) {
+      for (int r = 0; r < A.getM(); r++) {
+        System.arraycopy(a[k].getRow(r), 0, A.getRow(r), offset, a[k].getN());
+      }
+      for (int r = 0; r < b[k].getM(); r++) {
+        System.arraycopy(b[k].getRow(r), 0, B.getRow(offset + r), 0, B.getN());
+      }
+      offset += a[k].getN();
+    }
+    return multiply(A, B);
+  }
 
-          while (true) { // 4 chunks
-            InetSocketAddress[] workerAddresses = getFreeWorkers();
+  // Send a whole job to the next free sub-Manager and wait for its result.
+  private Object forward(JobRequest job) {
+    InetSocketAddress managerAddress = takeWorker();
+    // The sub-Manager answers in one piece, streaming is up to this Manager
+    boolean stream = job.isStreamResult();
+    job.setStreamResult(false);
+    try {
+      LOGGER.info("Forwarding a " + job.getType() + " job to " + Helper.inetSocketAddressToString(managerAddress));
+      return send(managerAddress, job);
+    } finally {
+      job.setStreamResult(stream);
+      freeWorkers.add(managerAddress);
+    }
+  }
 
-            // log all free servers
-            LOGGER.info("Free servers: " + Arrays.toString(workerAddresses));
+  // Multiply on the Manager's own cores, with the kernels of the workers.
+  private Matrix multiplyLocal(Matrix matrixA, Matrix matrixB) {
+    LOGGER.info("Multiplying locally");
+    long start = System.nanoTime();
+    Matrix result = (Matrix) Worker.compute(new Matrix[][] { { matrixA }, { matrixB } });
+    planner.recordLocal(2.0 * matrixA.getM() * matrixA.getN() * matrixB.getN(), System.nanoTime() - start);
+    return result;
+  }
 
-            if (workerAddresses.length == 0) {
-              LOGGER.info("No free servers at the moment. Waiting for free servers...");
-              Thread.sleep(1000);
-              continue;
-            }
+  // One level of Strassen: the 7 products of the half-size sums and
+  // differences of the quadrants run on the workers, the quadrants of the
+  // result are put together here.
+  private Matrix multiplyStrassen(Matrix matrixA, Matrix matrixB) {
+    LOGGER.info("Multiplying with Strassen");
+    Matrix[] a = matrixA.divide(matrixA.getM() / 2);
+    Matrix[] b = matrixB.divide(matrixB.getM() / 2);
+
+    Matrix[][] factors = {
+        { a[0].plus(a[3]), b[0].plus(b[3]) },
+        { a[2].plus(a[3]), b[0] },
+        { a[0], b[1].minus(b[3]) },
+        { a[3], b[2].minus(b[0]) },
+        { a[0].plus(a[1]), b[3] },
+        { a[2].minus(a[0]), b[0].plus(b[1]) },
+        { a[1].minus(a[3]), b[2].plus(b[3]) } };
+    Matrix[][][] tasks = new Matrix[factors.length][][];
+    for (int i = 0; i < factors.length; i++) {
+      tasks[i] = new Matrix[][] { { factors[i][0] }, { factors[i][1] } };
+    }
 
-            // calculate the remaining chunks
-            int remainingChunks = chunks.length - chunkIndex;
+    Object[] results = dispatchTasks(tasks, inOrder(tasks.length));
+    Matrix[] p = new Matrix[results.length];
+    for (int i = 0; i < results.length; i++) {
+      p[i] = SparseMatrix.toDense(results[i]);
+    }
 
-            // If remaining chunks is less than the number of free servers,
-            // assign the remaining chunks to the free servers
-            if (workerAddresses.length > remainingChunks) {
-              workerAddresses = Arrays.copyOfRange(workerAddresses, 0, remainingChunks);
-            }
+    Matrix c11 = p[0].plus(p[3]);
+    c11.minusInPlace(p[4]);
+    c11.plusInPlace(p[6]);
+    Matrix c22 = p[0].minus(p[1]);
+    c22.plusInPlace(p[2]);
+    c22.plusInPlace(p[5]);
 
-            // Iterate over the free servers
-            for (InetSocketAddress workerAddress : workerAddresses) { // 1st server
-              // Fix: Local variable chunkIndex defined in an enclosing scope must be final or
-              // effectively final
-              final int chunkIndexFinal = chunkIndex;
+    Matrix merged = new Matrix(matrixA.getM(), matrixB.getN());
+    merged.joinAll(new Matrix[] { c11, p[2].plus(p[4]), p[1].plus(p[3]), c22 });
+    return merged;
+  }
 
-              // Set the server status to busy
-              workerStatus.put(Helper.inetSocketAddressToString(workerAddress), true);
+  /**
+   * Multiply two matrices of which at least one is sparse on the workers. The
+   * rows of A and the columns of B are cut where their non-zeros split evenly,
+   * so a dense stripe is spread over several tiles instead of making one tile
+   * that all the others wait for. Only block pairs where both blocks have
+   * non-zeros are sent, tiles without such a pair are not dispatched at all,
+   * and the tasks go out with the most non-zero work first so that the load
+   * evens out over the workers.
+   *
+   * @param operandA the matrix A, a Matrix or a SparseMatrix
+   * @param operandB the matrix B, a Matrix or a SparseMatrix
+   * @return The product A x B.
+   */
+  private Matrix multiplySparse(Object operandA, Object operandB) {
+    int rows = SparseMatrix.rowsOf(operandA);
+    int inner = SparseMatrix.columnsOf(operandA);
+    int cols = SparseMatrix.columnsOf(operandB);
+    if (inner != SparseMatrix.rowsOf(operandB)) {
+      throw new RuntimeException("Illegal matrix dimensions.");
+    }
 
-              Thread thread = new Thread(() -> {
-                try {
-                  // Log chunk index
-                  LOGGER.info("Sending chunk " + chunkIndexFinal + " to worker "
-                      + Helper.inetSocketAddressToString(workerAddress));
+    int partitions = planner.plan(rows, inner, cols, workerAddresses.length, partitionSize).getPartitionSize();
+    int bands = (int) Math.sqrt(partitions);
+    int[] rowCuts = SparseMatrix.balancedCuts(SparseMatrix.rowNonZeros(operandA), bands);
+    int[] colCuts = SparseMatrix.balancedCuts(SparseMatrix.columnNonZeros(operandB), bands);
+    int[] innerCuts = SparseMatrix.balancedCuts(new int[inner], bands);
+
+    Object[][] aBlocks = new Object[rowCuts.length - 1][innerCuts.length - 1];
+    Object[][] bBlocks = new Object[innerCuts.length - 1][colCuts.length - 1];
+    for (int k = 0; k < innerCuts.length - 1; k++) {
+      for (int i = 0; i < rowCuts.length - 1; i++) {
+        aBlocks[i][k] = SparseMatrix.block(operandA, rowCuts[i], rowCuts[i + 1], innerCuts[k], innerCuts[k + 1]);
+      }
+      for (int j = 0; j < colCuts.length - 1; j++) {
+        bBlocks[k][j] = SparseMatrix.block(operandB, innerCuts[k], innerCuts[k + 1], colCuts[j], colCuts[j + 1]);
+      }
+    }
 
-                  // Create a new socket
-                  Socket workerClientSocket = new Socket(workerAddress.getHostName(), workerAddress.getPort());
-                  LOGGER.info("Connected to " + Helper.inetSocketAddressToString(workerAddress));
+    long[] costs = new long[aBlocks.length * bBlocks[0].length];
+    Object[][][] tasks = arrangeSparseTasks(aBlocks, bBlocks, costs);
 
-                  // Send the chunk to the server
-                  Matrix result = job(workerClientSocket, chunks[chunkIndexFinal]);
-                  LOGGER.info("Received result from worker " + Helper.inetSocketAddressToString(workerAddress));
+    // Largest tasks first, so the small ones fill in the gaps at the end
+    Integer[] sorted = new Integer[tasks.length];
+    int count = 0;
+    for (int i = 0; i < tasks.length; i++) {
+      if (tasks[i] != null) {
+        sorted[count++] = i;
+      }
+    }
+    Arrays.sort(sorted, 0, count, (x, y) -> Long.compare(costs[y], costs[x]));
+    int[] order = new int[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = sorted[i];
+    }
+    LOGGER.info("Dispatching " + count + " of " + tasks.length + " tiles, the others are zero");
 
-                  // Merge the result chunks
-                  resultChunks[chunkIndexFinal] = result;
+    Object[] results = dispatchTasks(tasks, order);
 
-                  // Close the socket
-                  workerClientSocket.close();
+    LOGGER.info("Merging results...");
+    Matrix result = new Matrix(rows, cols);
+    int colBands = colCuts.length - 1;
+    for (int t : order) {
+      placeTile(result, SparseMatrix.toDense(results[t]), rowCuts[t / colBands], colCuts[t % colBands], false);
+    }
+    return result;
+  }
 
-                  LOGGER.info("Closed connection to " + Helper.inetSocketAddressToString(workerAddress));
+  /**
+   * Compress a dense operand when few enough of its elements are non-zero.
+   *
+   * @param operand the operand as sent by the client
+   * @return The operand as a SparseMatrix if it is sparse, otherwise unchanged.
+   */
+  private static Object compressIfSparse(Object operand) {
+    if (operand instanceof Matrix) {
+      Matrix matrix = (Matrix) operand;
+      double density = (double) SparseMatrix.nnz(matrix) / ((double) matrix.getM() * matrix.getN());
+      if (density < SparseMatrix.DENSITY_THRESHOLD) {
+        return SparseMatrix.fromDense(matrix);
+      }
+    }
+    return operand;
+  }
 
-                  // Free the server
-                  LOGGER.info("Freeing worker: " + Helper.inetSocketAddressToString(workerAddress));
-                  workerStatus.put(Helper.inetSocketAddressToString(workerAddress), false);
+  /**
+   * Estimate the bytes a job holds on the Manager at its peak: every operand
+   * OPERAND_COPIES times and the result RESULT_COPIES times. Tiles in flight
+   * are charged separately while they are out.
+   *
+   * @param request the job
+   * @return The estimated bytes.
+   */
+  public static long estimateBytes(Object request) {
+    Object[] operands = request instanceof JobRequest ? ((JobRequest) request).getOperands() : (Object[]) request;
+    JobRequest.Type type = request instanceof JobRequest ? ((JobRequest) request).getType()
+        : JobRequest.Type.MULTIPLY;
+
+    if (operands.length == 2 && operands[0] instanceof Object[]) {
+      // A super-tile: the blocks, put together once, and the tile, which is
+      // as large as the square blocks
+      long blockBytes = 0;
+      long tileBytes = 0;
+      for (Object[] blocks : new Object[][] { (Object[]) operands[0], (Object[]) operands[1] }) {
+        for (Object block : blocks) {
+          long raw = block instanceof CompressedTile ? ((CompressedTile) block).rawSize() : bytesOf(block);
+          blockBytes += raw;
+          tileBytes = Math.max(tileBytes, raw);
+        }
+      }
+      return OPERAND_COPIES * blockBytes + RESULT_COPIES * tileBytes;
+    }
 
-                } catch (IOException e) {
-                  e.printStackTrace();
-                } catch (ClassNotFoundException e) {
-                  e.printStackTrace();
-                }
-              });
-              threads.add(thread);
-              thread.start();
+    long operandBytes = 0;
+    int largest = 0;
+    for (Object operand : operands) {
+      operandBytes += bytesOf(operand);
+      if (operand instanceof Matrix || operand instanceof SparseMatrix) {
+        largest = Math.max(largest, Math.max(SparseMatrix.rowsOf(operand), SparseMatrix.columnsOf(operand)));
+      }
+    }
 
-              chunkIndex++;
+    long resultBytes;
+    switch (type) {
+      case MULTIPLY:
+      case TRMM:
+        resultBytes = 8L * SparseMatrix.rowsOf(operands[0]) * SparseMatrix.columnsOf(operands[1]);
+        break;
+      case SYRK:
+        int side = (Boolean) operands[1] ? SparseMatrix.columnsOf(operands[0]) : SparseMatrix.rowsOf(operands[0]);
+        resultBytes = 8L * side * side;
+        break;
+      case SOLVE:
+        resultBytes = 8L * SparseMatrix.columnsOf(operands[0]) * SparseMatrix.columnsOf(operands[1]);
+        break;
+      case EXPRESSION:
+        resultBytes = 8L * ((Expr) operands[0]).getM() * ((Expr) operands[0]).getN();
+        break;
+      case CONJUGATE_GRADIENT:
+        resultBytes = 8L * SparseMatrix.columnsOf(operands[0]) * SparseMatrix.columnsOf(operands[1]);
+        break;
+      case POWER_ITERATION:
+        resultBytes = 8L * SparseMatrix.columnsOf(operands[0]);
+        break;
+      case ATTACH:
+        // The job it waits for has its own reservation
+        resultBytes = 0;
+        break;
+      default:
+        // Chains keep intermediate products, bounded by the largest dimension
+        resultBytes = 8L * largest * largest;
+    }
+    return OPERAND_COPIES * operandBytes + RESULT_COPIES * resultBytes;
+  }
+
+  // The bytes of a block or an operand, 0 for anything else.
+  private static long bytesOf(Object block) {
+    if (block instanceof Matrix) {
+      return 8L * ((Matrix) block).getM() * ((Matrix) block).getN();
+    }
+    if (block instanceof SparseMatrix) {
+      return 12L * ((SparseMatrix) block).nnz() + 4L * (((SparseMatrix) block).getM() + 1);
+    }
+    if (block instanceof CompressedTile) {
+      return ((CompressedTile) block).compressedSize();
+    }
+    if (block instanceof Expr) {
+      return ((Expr) block).matrixBytes();
+    }
+    return 0;
+  }
 
-            }
+  /**
+   * Run a job of a client. The job is a JobRequest, or a plain array {A, B} of
+   * two matrices to multiply.
+   *
+   * @param request the job
+   * @return The result of the job.
+   */
+  public Object execute(Object request) {
+    if (budget == null) {
+      return run(request);
+    }
+    MemoryBudget.Reservation reservation = budget.reserve(estimateBytes(request));
+    try {
+      return run(request);
+    } finally {
+      reservation.close();
+    }
+  }
 
-            if (chunkIndex == chunks.length) {
-              break;
-            }
+  // Run a job, its memory is accounted for.
+  private Object run(Object request) {
+    if (!(request instanceof JobRequest)) {
+      Object[] data = (Object[]) request;
+      if (data[0] instanceof Object[]) {
+        // The blocks of a super-tile of a root Manager
+        return multiplySuperTile((Object[]) data[0], (Object[]) data[1]);
+      }
+      return multiply(data[0], data[1]);
+    }
 
+    JobRequest job = (JobRequest) request;
+    Object[] operands = job.getOperands();
+    if (subManagers && job.getType() != JobRequest.Type.MULTIPLY && job.getType() != JobRequest.Type.ATTACH) {
+      // Only the sub-Managers have workers to run it on
+      return forward(job);
+    }
+    switch (job.getType()) {
+      case MULTIPLY:
+        if (job.getJobId() != null && checkpoints != null) {
+          // The checkpoint stores dense operands and tiles
+          return multiply(SparseMatrix.toDense(operands[0]), SparseMatrix.toDense(operands[1]), job.getJobId());
+        }
+        return multiply(operands[0], operands[1]);
+      case SOLVE:
+        return solve((Matrix) operands[0], (Matrix) operands[1]);
+      case ATTACH:
+        return attach(job.getJobId());
+      case CHAIN:
+        return chain(Arrays.copyOf(operands, operands.length, Matrix[].class));
+      case POWER:
+        return power((Matrix) operands[0], (Integer) operands[1], (Double) operands[2]);
+      case SYRK:
+        return syrk((Matrix) operands[0], (Boolean) operands[1]);
+      case TRMM:
+        return trmm((Matrix) operands[0], (Matrix) operands[1], (Boolean) operands[2]);
+      case EXPRESSION:
+        return evaluate((Expr) operands[0]);
+      case CONJUGATE_GRADIENT:
+        return conjugateGradient((Matrix) operands[0], (Matrix) operands[1], (Double) operands[2],
+            (Integer) operands[3]);
+      case POWER_ITERATION:
+        return powerIteration((Matrix) operands[0], (Double) operands[1], (Integer) operands[2]);
+      default:
+        throw new IllegalArgumentException("Unknown job type " + job.getType());
+    }
+  }
+
+  // Print the matrices of a multiplication a client asked for, as the
+  // Manager always has. The products inside other jobs are not printed, nor
+  // are results the client streams to a file.
+  private static Object show(Object request, Object response) {
+    Object[] operands = null;
+    if (request instanceof JobRequest) {
+      JobRequest job = (JobRequest) request;
+      if (job.getType() == JobRequest.Type.MULTIPLY && !job.isStreamResult()) {
+        operands = job.getOperands();
+      }
+    } else if (!(((Object[]) request)[0] instanceof Object[])) {
+      operands = (Object[]) request;
+    }
+
+    if (operands != null && operands[0] instanceof Matrix && operands[1] instanceof Matrix
+        && response instanceof Matrix) {
+      LOGGER.info("Received matrices from client: ");
+      ((Matrix) operands[0]).show("A");
+      ((Matrix) operands[1]).show("B");
+      ((Matrix) response).show();
+    }
+    return response;
+  }
+
+  // The result as a ResultStream if the job asked for it in bands.
+  private Object streamIfAsked(Object request, Object response) {
+    if (response instanceof Matrix && request instanceof JobRequest && ((JobRequest) request).isStreamResult()) {
+      return new ResultStream((Matrix) response, budget);
+    }
+    return response;
+  }
+
+  /**
+   * Multiply two matrices on the workers, with the sparse kernels if either
+   * of them is sparse.
+   *
+   * @param operandA the matrix A, a Matrix or a SparseMatrix
+   * @param operandB the matrix B, a Matrix or a SparseMatrix
+   * @return The product A x B.
+   */
+  public Matrix multiply(Object operandA, Object operandB) {
+    operandA = compressIfSparse(operandA);
+    operandB = compressIfSparse(operandB);
+
+    Matrix merged;
+    if (operandA instanceof SparseMatrix || operandB instanceof SparseMatrix) {
+      LOGGER.info("Received sparse matrices from client");
+      merged = multiplySparse(operandA, operandB);
+    } else {
+      merged = multiplyDense((Matrix) operandA, (Matrix) operandB);
+    }
+    return merged;
+  }
+
+  /**
+   * Multiply a chain of matrices on the workers, in the cheapest order. The
+   * intermediate products stay here as tiles and feed the next product tile
+   * by tile, see MatrixChain.
+   *
+   * @param matrices the matrices
+   * @return The product.
+   */
+  public Matrix chain(Matrix[] matrices) {
+    int largest = 1;
+    for (Matrix matrix : matrices) {
+      largest = Math.max(largest, Math.max(matrix.getM(), matrix.getN()));
+    }
+    int tileSize = planner.plan(largest, largest, largest, workerAddresses.length, partitionSize).getTileSize();
+    LOGGER.info("Multiplying a chain of " + matrices.length + " matrices in tiles of " + tileSize);
+
+    return MatrixChain.multiply(matrices, tileSize, this::submitTask);
+  }
+
+  /**
+   * Raise a square matrix to a power on the workers by repeated squaring. The
+   * tiles stay on the workers between the squarings, see MatrixPower.
+   *
+   * @param A         the square matrix
+   * @param k         the exponent, 0 or more
+   * @param tolerance stop once a squaring changes no element by more than
+   *                  this, 0 to compute A^k exactly
+   * @return A^k.
+   */
+  public Matrix power(Matrix A, int k, double tolerance) {
+    if (workerAddresses.length == 0) {
+      throw new IllegalStateException("No workers to keep the tiles on");
+    }
+    int n = A.getN();
+    int tileSize = planner.plan(n, n, n, workerAddresses.length, partitionSize).getTileSize();
+    LOGGER.info("Raising a " + n + "x" + n + " matrix to the power " + k + " in tiles of " + tileSize);
+
+    return MatrixPower.power(A, k, tolerance, tileSize, workerAddresses, this::submitTo);
+  }
+
+  /**
+   * Solve A X = B by conjugate gradient with A resident on the workers, see
+   * ResidentMatrix. A must be symmetric and positive definite. All columns of
+   * B use the same resident A.
+   *
+   * @param A             the square matrix of coefficients
+   * @param B             the right hand sides, one per column
+   * @param tolerance     the residual to reach, relative to the right hand side
+   * @param maxIterations the most iterations per column
+   * @return The solution X.
+   */
+  public Matrix conjugateGradient(Matrix A, Matrix B, double tolerance, int maxIterations) {
+    if (A.getM() != A.getN() || B.getM() != A.getN())
+      throw new RuntimeException("Illegal matrix dimensions.");
+    LOGGER.info("Solving a system of order " + A.getN() + " by conjugate gradient");
+
+    Matrix X = new Matrix(A.getN(), B.getN());
+    try (ResidentMatrix resident = new ResidentMatrix(A, workerAddresses, this::submitTo)) {
+      double[] b = new double[B.getM()];
+      for (int j = 0; j < B.getN(); j++) {
+        for (int i = 0; i < b.length; i++) {
+          b[i] = B.get(i, j);
+        }
+        double[] x = resident.conjugateGradient(b, tolerance, maxIterations);
+        for (int i = 0; i < x.length; i++) {
+          X.set(i, j, x[i]);
+        }
+      }
+    }
+    return X;
+  }
+
+  /**
+   * Find the eigenvalue of largest magnitude and its eigenvector by power
+   * iteration with A resident on the workers, see ResidentMatrix
+   *
+   * @param A             the square matrix
+   * @param tolerance     stop once an iteration moves the vector by no more
+   *                      than this
+   * @param maxIterations the most iterations
+   * @return The eigenvalue and the eigenvector of length 1.
+   */
+  public ResidentMatrix.Eigenpair powerIteration(Matrix A, double tolerance, int maxIterations) {
+    LOGGER.info("Power iteration on a " + A.getM() + "x" + A.getN() + " matrix");
+    try (ResidentMatrix resident = new ResidentMatrix(A, workerAddresses, this::submitTo)) {
+      return resident.powerIteration(tolerance, maxIterations);
+    }
+  }
+
+  /**
+   * Evaluate a matrix expression on the workers. The expression is fused into
+   * products and plain terms, see Expr, and every output tile is one
+   * ExprTask: the worker computes the products of the tile and adds the plain
+   * terms in the same pass. Transposed matrices are sent as they are, with a
+   * flag. Factors that are sums or products are evaluated first, the same
+   * way.
+   *
+   * @param expression the expression
+   * @return The value of the expression.
+   */
+  public Matrix evaluate(Expr expression) {
+    Expr.Fused fused = expression.fuse(this::evaluate);
+    int m = fused.getM();
+    int n = fused.getN();
+    int k = fused.innerDimension();
+    if (k == 0) {
+      // Only plain terms, a single pass over the matrices here
+      return fused.evaluate();
+    }
+
+    Planner.Plan plan = planner.plan(m, k, n, workerAddresses.length, partitionSize);
+    if (plan.getStrategy() == Planner.Strategy.LOCAL) {
+      LOGGER.info("Evaluating locally");
+      Matrix[] value = new Matrix[1];
+      ThreadPools.runOnCompute(() -> value[0] = fused.evaluate());
+      return value[0];
+    }
+
+    // Every matrix is padded to the same square and divided once
+    int largest = Math.max(m, n);
+    for (Expr.Term term : fused.getTerms()) {
+      largest = Math.max(largest, Math.max(term.getLeft().getM(), term.getLeft().getN()));
+      if (term.isProduct()) {
+        largest = Math.max(largest, Math.max(term.getRight().getM(), term.getRight().getN()));
+      }
+    }
+    int length = (int) Math.pow(2, Math.ceil(Math.log(largest) / Math.log(2)));
+    int chunkSize = length / (int) Math.sqrt(plan.getPartitionSize());
+    int len = length / chunkSize;
+    Map<Matrix, Matrix[]> blocks = new IdentityHashMap<>();
+    Function<Matrix, Matrix[]> blocksOf = matrix -> blocks.computeIfAbsent(matrix,
+        x -> padTo(x, length).divide(chunkSize));
+
+    // One task per tile of the result, with the blocks of every term. Block
+    // (i, k) of a transposed matrix is block (k, i) of the matrix.
+    int rows = (m + chunkSize - 1) / chunkSize;
+    int cols = (n + chunkSize - 1) / chunkSize;
+    List<CompletableFuture<Object>> futures = new ArrayList<>();
+    for (int i = 0; i < rows; i++) {
+      for (int j = 0; j < cols; j++) {
+        ExprTask task = new ExprTask(chunkSize, chunkSize);
+        for (Expr.Term term : fused.getTerms()) {
+          Matrix[] left = blocksOf.apply(term.getLeft());
+          boolean lt = term.isLeftTransposed();
+          if (!term.isProduct()) {
+            task.addPlain(term.getCoefficient(), left[lt ? j * len + i : i * len + j], lt);
+            continue;
           }
+          Matrix[] right = blocksOf.apply(term.getRight());
+          boolean rt = term.isRightTransposed();
+          int inner = (term.innerDimension() + chunkSize - 1) / chunkSize;
+          Matrix[] a = new Matrix[inner];
+          Matrix[] b = new Matrix[inner];
+          for (int p = 0; p < inner; p++) {
+            a[p] = left[lt ? p * len + i : i * len + p];
+            b[p] = right[rt ? j * len + p : p * len + j];
+          }
+          task.addProduct(term.getCoefficient(), a, lt, b, rt);
+        }
+        futures.add(submitRequest(task, task.bytes()));
+      }
+    }
+    LOGGER.info("Evaluating an expression of " + fused.getTerms().size() + " terms in " + futures.size() + " tiles");
+    ThreadPools.waitFor(futures);
+
+    Matrix result = new Matrix(m, n);
+    for (int t = 0; t < futures.size(); t++) {
+      placeTile(result, (Matrix) futures.get(t).join(), (t / cols) * chunkSize, (t % cols) * chunkSize, false);
+    }
+    return result;
+  }
+
+  /**
+   * Compute the symmetric product A x A^T, or A^T x A, on the workers. A is
+   * sent to the workers once, as the blocks of both factors. Only the tiles on
+   * and above the diagonal are computed, the tiles below are their mirror
+   * images, which halves the work and the traffic.
+   *
+   * @param A         the matrix
+   * @param transpose false for A x A^T, true for A^T x A
+   * @return The product.
+   */
+  public Matrix syrk(Matrix A, boolean transpose) {
+    Matrix X = transpose ? A.transpose() : A;
+    int m = X.getM();
+    Planner.Plan plan = planner.plan(m, X.getN(), m, workerAddresses.length, partitionSize);
+    if (plan.getStrategy() == Planner.Strategy.LOCAL) {
+      return multiplyLocal(X, X.transpose());
+    }
 
-        } catch (Exception e) {
-          e.printStackTrace();
+    Matrix padded = Matrix.padding(X);
+    int chunkSize = padded.getM() / (int) Math.sqrt(plan.getPartitionSize());
+    int len = padded.getM() / chunkSize;
+    Matrix[] blocks = padded.divide(chunkSize);
+
+    // The blocks of A^T are the transposed blocks of A, block (k, j) of A^T
+    // is block (j, k) of A transposed
+    Matrix[] transposed = new Matrix[blocks.length];
+    IntStream.range(0, blocks.length).parallel().forEach(t -> transposed[t] = blocks[t].transpose());
+
+    // Tiles above the diagonal, in rows and columns that are not all padding
+    int tiles = (m + chunkSize - 1) / chunkSize;
+    Object[][][] tasks = new Object[len * len][][];
+    List<Integer> order = new ArrayList<>();
+    for (int i = 0; i < tiles; i++) {
+      for (int j = i; j < tiles; j++) {
+        Matrix[] aBlocks = new Matrix[len];
+        Matrix[] bBlocks = new Matrix[len];
+        for (int k = 0; k < len; k++) {
+          aBlocks[k] = blocks[i * len + k];
+          bBlocks[k] = transposed[j * len + k];
         }
+        tasks[i * len + j] = new Object[][] { aBlocks, bBlocks };
+        order.add(i * len + j);
+      }
+    }
+    LOGGER.info("Symmetric product: " + order.size() + " of " + tiles * tiles + " tiles");
+
+    Object[] results = dispatchTasks(tasks, order.stream().mapToInt(Integer::intValue).toArray());
+
+    // Mirror the upper tiles into the lower ones
+    Matrix result = new Matrix(m, m);
+    for (int t : order) {
+      Matrix tile = SparseMatrix.toDense(results[t]);
+      int i = t / len;
+      int j = t % len;
+      placeTile(result, tile, i * chunkSize, j * chunkSize, false);
+      if (i != j) {
+        placeTile(result, tile, j * chunkSize, i * chunkSize, true);
+      }
+    }
+    return result;
+  }
 
-        // join all the threads
-        try {
-          for (Thread thread : threads) {
-            thread.join();
+  /**
+   * Multiply a triangular matrix A by B on the workers. The blocks of A that
+   * are zero, above the diagonal for a lower triangular A and below it for an
+   * upper one, are never sent or multiplied, which halves the work. The
+   * elements on the other side of the diagonal are taken to be 0, also in
+   * the blocks on the diagonal.
+   *
+   * @param A     the square triangular matrix
+   * @param B     the matrix B
+   * @param lower whether A is lower triangular, upper otherwise
+   * @return The product A x B.
+   */
+  public Matrix trmm(Matrix A, Matrix B, boolean lower) {
+    int n = A.getM();
+    int p = B.getN();
+    if (A.getN() != n || B.getM() != n)
+      throw new RuntimeException("Illegal matrix dimensions.");
+
+    Planner.Plan plan = planner.plan(n, n, p, workerAddresses.length, partitionSize);
+    if (plan.getStrategy() == Planner.Strategy.LOCAL) {
+      return multiplyLocal(triangle(A, n, lower), B);
+    }
+
+    // Both padded to the same square, so their blocks line up
+    int length = (int) Math.pow(2, Math.ceil(Math.log(Math.max(n, p)) / Math.log(2)));
+    Matrix paddedA = triangle(A, length, lower);
+    Matrix paddedB = padTo(B, length);
+    int chunkSize = length / (int) Math.sqrt(plan.getPartitionSize());
+    int len = length / chunkSize;
+    Matrix[] aBlocks = paddedA.divide(chunkSize);
+    Matrix[] bBlocks = paddedB.divide(chunkSize);
+
+    // Only the block pairs where the block of A is inside the triangle and not
+    // all padding
+    int rows = (n + chunkSize - 1) / chunkSize;
+    int cols = (p + chunkSize - 1) / chunkSize;
+    Object[][][] tasks = new Object[len * len][][];
+    List<Integer> order = new ArrayList<>();
+    for (int i = 0; i < rows; i++) {
+      int from = lower ? 0 : i;
+      int to = lower ? i : rows - 1;
+      for (int j = 0; j < cols; j++) {
+        Matrix[] a = new Matrix[to - from + 1];
+        Matrix[] b = new Matrix[to - from + 1];
+        for (int k = from; k <= to; k++) {
+          a[k - from] = aBlocks[i * len + k];
+          b[k - from] = bBlocks[k * len + j];
+        }
+        tasks[i * len + j] = new Object[][] { a, b };
+        order.add(i * len + j);
+      }
+    }
+
+    Object[] results = dispatchTasks(tasks, order.stream().mapToInt(Integer::intValue).toArray());
+
+    Matrix result = new Matrix(n, p);
+    for (int t : order) {
+      placeTile(result, SparseMatrix.toDense(results[t]), (t / len) * chunkSize, (t % len) * chunkSize, false);
+    }
+    return result;
+  }
+
+  // Copy a tile, or its transpose, into C at (row, col), leaving out what
+  // falls outside C.
+  private static void placeTile(Matrix C, Matrix tile, int row, int col, boolean transposed) {
+    int rows = Math.min(transposed ? tile.getN() : tile.getM(), C.getM() - row);
+    int cols = Math.min(transposed ? tile.getM() : tile.getN(), C.getN() - col);
+    for (int r = 0; r < rows; r++) {
+      double[] target = C.getRow(row + r);
+      if (transposed) {
+        for (int c = 0; c < cols; c++) {
+          target[col + c] = tile.get(c, r);
+        }
+      } else {
+        System.arraycopy(tile.getRow(r), 0, target, col, cols);
+      }
+    }
+  }
+
+  // The triangle of a, lower or upper, padded with zeros to length x length.
+  // The rest is left 0, so the blocks on the diagonal are triangular too.
+  private static Matrix triangle(Matrix a, int length, boolean lower) {
+    Matrix padded = new Matrix(length, length);
+    for (int i = 0; i < a.getM(); i++) {
+      int from = lower ? 0 : i;
+      int to = lower ? i + 1 : a.getN();
+      System.arraycopy(a.getRow(i), from, padded.getRow(i), from, to - from);
+    }
+    return padded;
+  }
+
+  // A copy of a padded with zeros to length x length.
+  private static Matrix padTo(Matrix a, int length) {
+    Matrix padded = new Matrix(length, length);
+    for (int i = 0; i < a.getM(); i++) {
+      System.arraycopy(a.getRow(i), 0, padded.getRow(i), 0, a.getN());
+    }
+    return padded;
+  }
+
+  /**
+   * Multiply A by B as a checkpointed job. Every finished tile is saved, and
+   * a job that is already running under the ID is joined instead of started
+   * again.
+   *
+   * @param A     the matrix A
+   * @param B     the matrix B
+   * @param jobId the ID of the job
+   * @return The product A x B.
+   */
+  public Matrix multiply(Matrix A, Matrix B, String jobId) {
+    return await(startCheckpointed(jobId, A, B));
+  }
+
+  /**
+   * Get the result of a checkpointed job: wait for it while it runs, read it
+   * from the store when it is done, or resume it if it was cut off.
+   *
+   * @param jobId the ID of the job
+   * @return The product.
+   */
+  public Matrix attach(String jobId) {
+    if (checkpoints == null) {
+      throw new IllegalStateException("This manager keeps no checkpoints");
+    }
+
+    CompletableFuture<Matrix> running = checkpointedJobs.get(jobId);
+    if (running == null) {
+      try {
+        Matrix result = checkpoints.result(jobId);
+        if (result != null) {
+          return result;
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException("Reading the result of job " + jobId + " failed: " + e.getMessage(), e);
+      }
+      running = startCheckpointed(jobId, null, null);
+    }
+    return await(running);
+  }
+
+  // Start a checkpointed job, or return it if it is running. Without
+  // operands the job is resumed from its checkpoint.
+  private CompletableFuture<Matrix> startCheckpointed(String jobId, Matrix A, Matrix B) {
+    CompletableFuture<Matrix> job = new CompletableFuture<>();
+    CompletableFuture<Matrix> running = checkpointedJobs.putIfAbsent(jobId, job);
+    if (running != null) {
+      return running;
+    }
+
+    // Once the job is done its result is in the store, attach reads it there
+    CompletableFuture.supplyAsync(() -> runCheckpointed(jobId, A, B), ThreadPools.IO)
+        .whenComplete((result, failure) -> {
+          checkpointedJobs.remove(jobId, job);
+          if (failure != null) {
+            job.completeExceptionally(failure.getCause() != null ? failure.getCause() : failure);
+          } else {
+            job.complete(result);
           }
-        } catch (InterruptedException e) {
-          e.printStackTrace();
+        });
+    return job;
+  }
+
+  // Run a checkpointed job, skipping the tiles its checkpoint already has.
+  private Matrix runCheckpointed(String jobId, Matrix A, Matrix B) {
+    try {
+      CheckpointStore.Job job = checkpoints.open(jobId);
+      if (job == null) {
+        if (A == null) {
+          throw new IllegalArgumentException("Unknown job " + jobId);
         }
+        int partitions = planner.plan(A.getM(), A.getN(), B.getN(), workerAddresses.length, partitionSize)
+            .getPartitionSize();
+        job = checkpoints.create(jobId, A, B, partitions);
+      } else if (A == null) {
+        A = job.readA();
+        B = job.readB();
+      }
+      LOGGER.info("Job " + jobId + ": " + job.getTiles().size() + " of " + job.getPartitionSize()
+          + " tiles checkpointed");
+
+      Matrix merged = multiplyTiled(Matrix.padding(A), Matrix.padding(B), job.getPartitionSize(), job);
+      Matrix result = Matrix.cut(merged, A.getM(), B.getN());
+      job.complete(result);
+      return result;
+    } catch (IOException e) {
+      throw new IllegalStateException("Checkpoint of job " + jobId + " failed: " + e.getMessage(), e);
+    }
+  }
+
+  // Wait for a job and rethrow its failure.
+  private static Matrix await(CompletableFuture<Matrix> job) {
+    ThreadPools.waitFor(Collections.singletonList(job));
+    return job.join();
+  }
+
+  /**
+   * Solve A X = B with a blocked LU factorization whose trailing updates run
+   * on the workers.
+   *
+   * @param A the square matrix of coefficients
+   * @param B the right hand sides, one per column
+   * @return The solution X.
+   */
+  public Matrix solve(Matrix A, Matrix B) {
+    int partitions = planner.plan(A.getN(), A.getN(), A.getN(), workerAddresses.length, partitionSize)
+        .getPartitionSize();
+    int blockSize = Math.max(16, Math.min(256, A.getN() / (int) Math.sqrt(partitions)));
+    LOGGER.info("Solving a system of order " + A.getN() + " with " + B.getN() + " right hand sides");
+
+    DistributedLU lu = DistributedLU.factor(A, blockSize, tasks -> dispatchTasks(tasks, inOrder(tasks.length)));
+    return lu.solve(B);
+  }
+
+  // The dispatch order 0, 1, ..., count - 1.
+  private static int[] inOrder(int count) {
+    int[] order = new int[count];
+    for (int i = 0; i < count; i++) {
+      order[i] = i;
+    }
+    return order;
+  }
+
+/**
+ * We divide the matrices into chunks, send the chunks to the servers, and merge the results from the
+ * servers
+ */
+  private class ManagerClientHandler implements Runnable {
+    private Socket clientSocket;
+    private ObjectOutputStream outputStream;
+    private ObjectInputStream inputStream;
+
+    // Creating a new ManagerClientHandler object and passing the clientSocket to it.
+    public ManagerClientHandler(Socket clientSocket) {
+      this.clientSocket = clientSocket;
+    }
+
+    // We read the job of the client, run it on the workers and send the
+    // result back. A failed job sends the exception back instead.
+    public void run() {
+      try {
+        outputStream = new ObjectOutputStream(clientSocket.getOutputStream());
+        inputStream = new ObjectInputStream(clientSocket.getInputStream());
 
-        // Merge the results from the workers
-        LOGGER.info("Merging results...");
-        Matrix tempMerged = new Matrix(matrixA.getM(), matrixA.getN());
-        tempMerged.joinAll(resultChunks);
+        // While the memory is used up, the request stays in the socket and the
+        // client waits
+        if (budget != null) {
+          budget.awaitRoom();
+        }
+        Object request = inputStream.readObject();
 
-        // If filled with zeros, remove extra zeros from the output
-        Matrix merged = Matrix.cut(tempMerged, tempMatrixA.getM(), tempMatrixB.getN());
-        merged.show();
+        Object response;
+        try {
+          response = show(request, execute(request));
+        } catch (RuntimeException e) {
+          LOGGER.severe("Job failed: " + e.getMessage());
+          response = e;
+        }
 
-        // Send the merged result to the client
-        outputStream.writeObject(merged);
-        outputStream.flush();
+        // Send the result to the client, in bands if it asked for that
+        response = streamIfAsked(request, response);
+        if (response instanceof ResultStream) {
+          try {
+            ((ResultStream) response).write(outputStream);
+          } finally {
+            ((ResultStream) response).release();
+          }
+        } else {
+          outputStream.writeObject(response);
+          outputStream.flush();
+        }
 
         inputStream.close();
         outputStream.close();
@@ -392,15 +1872,108 @@ public class Manager {
         e.printStackTrace();
       } catch (ClassNotFoundException e) {
         e.printStackTrace();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
     }
   }
 
   public static void main(String[] args) {
-    Manager manager = new Manager((int) Math.pow(4, 1));
-    manager.addWorker(new InetSocketAddress("localhost", 9001));
-    manager.addWorker(new InetSocketAddress("localhost", 9002));
+    Manager manager = new Manager();
+
+    // java Manager [--port port] [--workers host:port,...]
+    // [--sub-managers host:port,...] [--partition p] [--compress off|on|auto]
+    // [--replicate c] [--shm] [--offheap] [--checkpoint directory]
+    // [--memory MB] [--nio [ioThreads]] [--train]
+    // Without --workers the workers are localhost:9001 and localhost:9002
+    // --sub-managers makes this a root Manager over other Managers
+    // --shm hands the tiles to workers on this host through shared memory
+    // --offheap sends dense tiles for the workers to keep off the heap
+    // Without --partition the planner picks the partition size of every job
+    // --memory limits the memory all jobs hold at once, 0 for no limit
+    // --nio runs the non-blocking server, the workers have to be started with
+    // --nio as well
+    // --train runs a few jobs and exits, for a class-data sharing archive
+    int ioThreads = 0;
+    int port = 6666;
+    boolean sharedMemory = false;
+    boolean workers = false;
+    Path checkpoints = null;
+    Integer replicate = null;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--port")) {
+        port = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--workers") || args[i].equals("--sub-managers")) {
+        for (String address : args[i + 1].split(",")) {
+          if (args[i].equals("--workers")) {
+            manager.addWorker(Helper.stringToInetSocketAddress(address));
+          } else {
+            manager.addSubManager(Helper.stringToInetSocketAddress(address));
+          }
+        }
+        workers = true;
+        i++;
+      } else if (args[i].equals("--partition")) {
+        manager.setPartitionSize(Integer.parseInt(args[++i]));
+      } else if (args[i].equals("--compress")) {
+        manager.setCompression(AdaptiveCompression.Mode.valueOf(args[++i].toUpperCase()));
+      } else if (args[i].equals("--replicate")) {
+        replicate = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--checkpoint")) {
+        checkpoints = Paths.get(args[++i]);
+      } else if (args[i].equals("--memory")) {
+        long megabytes = Long.parseLong(args[++i]);
+        manager.setMemoryBudget(megabytes > 0 ? new MemoryBudget(megabytes << 20, MEMORY_WAIT_MILLIS) : null);
+      } else if (args[i].equals("--offheap")) {
+        manager.setOffHeapTiles(true);
+      } else if (args[i].equals("--shm")) {
+        sharedMemory = true;
+      } else if (args[i].equals("--nio")) {
+        ioThreads = i + 1 < args.length && !args[i + 1].startsWith("--") ? Integer.parseInt(args[++i]) : 2;
+      } else if (args[i].equals("--train")) {
+        Warmup.manager();
+        System.exit(0);
+      }
+    }
+
+    // After --sub-managers, whatever the order of the flags
+    if (replicate != null) {
+      try {
+        manager.setReplication(replicate);
+      } catch (IllegalArgumentException e) {
+        LOGGER.severe(e.getMessage());
+        return;
+      }
+    }
+
+    if (!workers) {
+      manager.addWorker(new InetSocketAddress("localhost", 9001));
+      manager.addWorker(new InetSocketAddress("localhost", 9002));
+    }
+
+    if (sharedMemory) {
+      // The sockets behind it measure the link like without --shm
+      manager.setTransport(new SharedMemoryTransport(new SocketTransport(ioThreads > 0, manager.compression)));
+    }
 
-    manager.start(6666);
+    // Resumed jobs start right away, so only once every flag is applied and
+    // the workers are known, and in the protocol the workers speak
+    if (checkpoints != null) {
+      try {
+        manager.setCheckpointStore(new CheckpointStore(checkpoints));
+      } catch (IOException e) {
+        LOGGER.severe("Opening the checkpoints failed");
+        e.printStackTrace();
+        return;
+      }
+      manager.framedWorkers = ioThreads > 0;
+      manager.resumeCheckpoints();
+    }
+
+    if (ioThreads > 0) {
+      manager.startNonBlocking(port, ioThreads);
+    } else {
+      manager.start(port);
+    }
   }
 }
\ No newline at end of file
@@ -1,6 +1,7 @@
 import java.io.Serializable;
 import java.util.Arrays;
 import java.util.logging.Logger;
+import java.util.stream.IntStream;
 
 /******************************************************************************
  * Compilation: javac Matrix.java
@@ -23,6 +24,9 @@ final public class Matrix implements Serializable {
   // Logger for this class
   private static final Logger LOGGER = Logger.getLogger(Matrix.class.getName());
 
+  // Number of elements from which copying is split over the cores
+  private static final long PARALLEL_THRESHOLD = 1 << 16;
+
   // create M-by-N matrix of 0's
   // Creating a new Matrix object with M rows and N columns.
   public Matrix(int M, int N) {
@@ -92,7 +96,17 @@ final public class Matrix implements Serializable {
    * @return A new array of doubles.
    */
   public double[] getColumn(int j) {
-    double[] column = new double[M];
+    return getColumn(j, new double[M]);
+  }
+
+  /**
+   * Copy the elements of the jth column of the matrix into the given array
+   *
+   * @param j      the column index
+   * @param column an array of at least M elements to fill
+   * @return The column array.
+   */
+  public double[] getColumn(int j, double[] column) {
     for (int i = 0; i < M; i++) {
       column[i] = data[i][j];
     }
@@ -179,10 +193,19 @@ final public class Matrix implements Serializable {
    * @return A new matrix.
    */
   public Matrix transpose() {
-    Matrix A = new Matrix(N, M);
-    for (int i = 0; i < M; i++)
-      for (int j = 0; j < N; j++)
-        A.data[j][i] = this.data[i][j];
+    return transposeInto(new Matrix(N, M));
+  }
+
+  /**
+   * Write the transpose of this matrix into the matrix A
+   *
+   * @param A an N-by-M matrix to overwrite
+   * @return The matrix A.
+   */
+  public Matrix transposeInto(Matrix A) {
+    if (A.M != N || A.N != M)
+      throw new RuntimeException("Illegal matrix dimensions.");
+    Kernels.transpose(this, A);
     return A;
   }
 
@@ -196,8 +219,34 @@ final public class Matrix implements Serializable {
       throw new RuntimeException("Illegal matrix dimensions.");
 
     for (int i = 0; i < M; i++)
-      for (int j = 0; j < N; j++)
-        data[i][j] += +B.data[i][j];
+      Kernels.add(data[i], B.data[i], data[i], N);
+  }
+
+  /**
+   * Subtract the elements of matrix B from the elements of this matrix
+   *
+   * @param B the matrix to be subtracted from this matrix
+   */
+  public void minusInPlace(Matrix B) {
+    minusInto(B, this);
+  }
+
+  /**
+   * Multiply every element of this matrix by alpha
+   *
+   * @param alpha the scale
+   */
+  public void scaleInPlace(double alpha) {
+    for (int i = 0; i < M; i++)
+      Kernels.scale(alpha, data[i], N);
+  }
+
+  /**
+   * Set every element of this matrix to 0
+   */
+  public void clear() {
+    for (int i = 0; i < M; i++)
+      Arrays.fill(data[i], 0.0);
   }
 
   /**
@@ -207,13 +256,22 @@ final public class Matrix implements Serializable {
    * @return A new matrix C.
    */
   public Matrix plus(Matrix B) {
+    return plusInto(B, new Matrix(M, N));
+  }
+
+  /**
+   * Add two matrices together and write the sum into C
+   *
+   * @param B the matrix to be added to A
+   * @param C the matrix to overwrite, may be this matrix or B
+   * @return The matrix C.
+   */
+  public Matrix plusInto(Matrix B, Matrix C) {
     Matrix A = this;
-    if (B.M != A.M || B.N != A.N)
+    if (B.M != A.M || B.N != A.N || C.M != A.M || C.N != A.N)
       throw new RuntimeException("Illegal matrix dimensions.");
-    Matrix C = new Matrix(M, N);
     for (int i = 0; i < M; i++)
-      for (int j = 0; j < N; j++)
-        C.data[i][j] = A.data[i][j] + B.data[i][j];
+      Kernels.add(A.data[i], B.data[i], C.data[i], N);
     return C;
   }
 
@@ -224,13 +282,22 @@ final public class Matrix implements Serializable {
    * @return A new matrix C.
    */
   public Matrix minus(Matrix B) {
+    return minusInto(B, new Matrix(M, N));
+  }
+
+  /**
+   * Subtracts the matrix B from the matrix A and writes the result into C
+   *
+   * @param B The matrix to subtract from this matrix.
+   * @param C the matrix to overwrite, may be this matrix or B
+   * @return The matrix C.
+   */
+  public Matrix minusInto(Matrix B, Matrix C) {
     Matrix A = this;
-    if (B.M != A.M || B.N != A.N)
+    if (B.M != A.M || B.N != A.N || C.M != A.M || C.N != A.N)
       throw new RuntimeException("Illegal matrix dimensions.");
-    Matrix C = new Matrix(M, N);
     for (int i = 0; i < M; i++)
-      for (int j = 0; j < N; j++)
-        C.data[i][j] = A.data[i][j] - B.data[i][j];
+      Kernels.subtract(A.data[i], B.data[i], C.data[i], N);
     return C;
   }
 
@@ -251,6 +318,19 @@ final public class Matrix implements Serializable {
     return true;
   }
 
+  /**
+   * The indices 0 to n - 1 as a stream, parallel when the work behind them is
+   * large enough to pay for the fork-join overhead.
+   *
+   * @param n    the number of indices
+   * @param work the number of elements touched in total
+   * @return A stream of the indices.
+   */
+  static IntStream range(int n, long work) {
+    IntStream indices = IntStream.range(0, n);
+    return work >= PARALLEL_THRESHOLD ? indices.parallel() : indices;
+  }
+
   /**
    * Given a number, return true if it is a power of two, else return false
    *
@@ -272,11 +352,7 @@ final public class Matrix implements Serializable {
   public static Matrix cut(Matrix a, int rows, int cols) {
     Matrix temp = new Matrix(rows, cols);
 
-    for (int i = 0; i < rows; i++) {
-      for (int j = 0; j < cols; j++) {
-        temp.data[i][j] = a.data[i][j];
-      }
-    }
+    range(rows, (long) rows * cols).forEach(i -> System.arraycopy(a.data[i], 0, temp.data[i], 0, cols));
 
     return temp;
   }
@@ -296,14 +372,14 @@ final public class Matrix implements Serializable {
     Matrix child = new Matrix(childMatrixLength, childMatrixLength);
 
     for (int i1 = 0, i2 = fromIndex; i1 < childMatrixLength; i1++, i2++)
-      for (int j1 = 0, j2 = toIndex; j1 < childMatrixLength; j1++, j2++)
-        child.data[i1][j1] = data[i2][j2];
+      System.arraycopy(data[i2], toIndex, child.data[i1], 0, childMatrixLength);
 
     return child;
   }
 
   /**
-   * Divide the matrix into smaller matrices of size childMatrixLength
+   * Divide the matrix into smaller matrices of size childMatrixLength. The
+   * children are sliced in parallel when the matrix is large.
    *
    * @param childMatrixLength The length of the child matrix.
    * @return An array of matrices.
@@ -324,11 +400,8 @@ final public class Matrix implements Serializable {
     Matrix[] groups = new Matrix[len * len];
     int multiplier = M / len;
 
-    for (int i = 0; i < len; i++) {
-      for (int j = 0; j < len; j++) {
-        groups[i * len + j] = split(childMatrixLength, i * multiplier, j * multiplier);
-      }
-    }
+    range(len * len, (long) M * N).forEach(
+        t -> groups[t] = split(childMatrixLength, (t / len) * multiplier, (t % len) * multiplier));
 
     return groups;
   }
@@ -342,14 +415,14 @@ final public class Matrix implements Serializable {
    */
   public void join(Matrix P, int fromIndex, int toIndex) {
     for (int i1 = 0, i2 = fromIndex; i1 < P.getM(); i1++, i2++) {
-      for (int j1 = 0, j2 = toIndex; j1 < P.getN(); j1++, j2++) {
-        data[i2][j2] = P.data[i1][j1];
-      }
+      System.arraycopy(P.data[i1], 0, data[i2], toIndex, P.getN());
     }
   }
 
   /**
-   * Join all the matrices in the array into one matrix
+   * Join all the matrices in the array into one matrix. The children cover
+   * disjoint parts of the rows, so they are copied in parallel when the matrix
+   * is large.
    *
    * @param matrices an array of matrices to join
    */
@@ -358,11 +431,8 @@ final public class Matrix implements Serializable {
     int len = M / childMatrixLength;
     int multiplier = M / len;
 
-    for (int i = 0; i < len; i++) {
-      for (int j = 0; j < len; j++) {
-        join(matrices[i * len + j], i * multiplier, j * multiplier);
-      }
-    }
+    range(len * len, (long) M * N).forEach(
+        t -> join(matrices[t], (t / len) * multiplier, (t % len) * multiplier));
   }
 
   // Given a matrix, pad it with zeros until it is a power of 2.
@@ -371,22 +441,12 @@ final public class Matrix implements Serializable {
   public static Matrix padding(Matrix a) {
     int length = (int) Math.pow(2, Math.ceil(Math.log(Math.max(a.getM(), a.getN())) / Math.log(2)));
 
+    // A new matrix is all 0's already, only the rows of a have to be copied
     Matrix paddedMatrix = new Matrix(length, length);
 
-    for (int i = 0; i < a.getM(); i++) {
-      for (int j = 0; j < a.getN(); j++) {
-        paddedMatrix.data[i][j] = a.data[i][j];
-      }
-      for (int j = a.getN(); j < length; j++) {
-        paddedMatrix.data[i][j] = 0;
-      }
-    }
+    range(a.getM(), (long) a.getM() * a.getN())
+        .forEach(i -> System.arraycopy(a.data[i], 0, paddedMatrix.data[i], 0, a.getN()));
 
-    for (int i = a.getM(); i < length; i++) {
-      for (int j = 0; j < length; j++) {
-        paddedMatrix.data[i][j] = 0;
-      }
-    }
     return paddedMatrix;
   }
 
@@ -425,13 +485,161 @@ final public class Matrix implements Serializable {
     if (A.N != B.M)
       throw new RuntimeException("Illegal matrix dimensions.");
     Matrix C = new Matrix(A.M, B.N);
-    for (int i = 0; i < C.M; i++)
-      for (int j = 0; j < C.N; j++)
-        for (int k = 0; k < A.N; k++)
-          C.data[i][j] += (A.data[i][k] * B.data[k][j]);
+    Kernels.gemm(A, B, C);
     return C;
   }
 
+  /**
+   * Multiply the matrix A by the matrix B and write the product into C
+   *
+   * @param B the matrix to be multiplied
+   * @param C the matrix to overwrite, must not be A or B
+   * @return The matrix C.
+   */
+  public Matrix timesInto(Matrix B, Matrix C) {
+    gemm(1.0, this, B, 0.0, C);
+    return C;
+  }
+
+  /**
+   * General matrix multiply-accumulate like the BLAS GEMM: C = alpha * A * B +
+   * beta * C, computed in place without any temporary matrix.
+   *
+   * @param alpha the scale of the product
+   * @param A     the left-hand matrix
+   * @param B     the right-hand matrix
+   * @param beta  the scale of the old C, 0 to overwrite it
+   * @param C     the matrix to accumulate into, must not be A or B
+   */
+  public static void gemm(double alpha, Matrix A, Matrix B, double beta, Matrix C) {
+    if (A.N != B.M || C.M != A.M || C.N != B.N)
+      throw new RuntimeException("Illegal matrix dimensions.");
+    if (C == A || C == B)
+      throw new IllegalArgumentException("C must not be one of the operands");
+
+    for (int i = 0; i < C.M; i++) {
+      if (beta == 0.0)
+        Arrays.fill(C.data[i], 0.0);
+      else if (beta != 1.0)
+        Kernels.scale(beta, C.data[i], C.N);
+      Kernels.rowTimes(alpha, A.data[i], B, C.data[i]);
+    }
+  }
+
+  /**
+   * Accumulate a product with transposed operands: C += alpha * op(A) *
+   * op(B), where op transposes its matrix when asked to. The transposes are
+   * never built, the loops read A and B in the order the flags call for.
+   *
+   * @param alpha      the scale of the product
+   * @param A          the left-hand matrix
+   * @param transposeA whether A is used transposed
+   * @param B          the right-hand matrix
+   * @param transposeB whether B is used transposed
+   * @param C          the matrix to accumulate into, must not be A or B
+   */
+  public static void gemm(double alpha, Matrix A, boolean transposeA, Matrix B, boolean transposeB, Matrix C) {
+    gemm(alpha, A, transposeA, B, transposeB, C, 0, C.M);
+  }
+
+  /**
+   * The same as gemm with transpose flags, for the rows from to to of C only.
+   * Bands of rows can be computed at the same time.
+   *
+   * @param alpha      the scale of the product
+   * @param A          the left-hand matrix
+   * @param transposeA whether A is used transposed
+   * @param B          the right-hand matrix
+   * @param transposeB whether B is used transposed
+   * @param C          the matrix to accumulate into, must not be A or B
+   * @param from       the first row of C
+   * @param to         the row after the last row of C
+   */
+  public static void gemm(double alpha, Matrix A, boolean transposeA, Matrix B, boolean transposeB, Matrix C,
+      int from, int to) {
+    int k = transposeA ? A.M : A.N;
+    int n = transposeB ? B.M : B.N;
+    if (k != (transposeB ? B.N : B.M) || C.M != (transposeA ? A.N : A.M) || C.N != n)
+      throw new RuntimeException("Illegal matrix dimensions.");
+    if (C == A || C == B)
+      throw new IllegalArgumentException("C must not be one of the operands");
+
+    if (!transposeB) {
+      if (!transposeA) {
+        for (int i = from; i < to; i++)
+          Kernels.rowTimes(alpha, A.data[i], B, C.data[i]);
+        return;
+      }
+      // Row p of A scales row p of B into the rows of C
+      for (int p = 0; p < k; p++) {
+        double[] aRow = A.data[p];
+        for (int i = from; i < to; i++) {
+          if (aRow[i] != 0.0)
+            Kernels.axpy(alpha * aRow[i], B.data[p], C.data[i], n);
+        }
+      }
+      return;
+    }
+
+    // Every element is the dot product of a row of op(A) and a row of B. A
+    // row of A^T is a column of A, gathered once per row of C.
+    double[] column = transposeA ? new double[k] : null;
+    for (int i = from; i < to; i++) {
+      double[] aRow = column;
+      if (transposeA) {
+        for (int p = 0; p < k; p++)
+          column[p] = A.data[p][i];
+      } else {
+        aRow = A.data[i];
+      }
+      double[] cRow = C.data[i];
+      for (int j = 0; j < n; j++) {
+        double[] bRow = B.data[j];
+        double sum = 0.0;
+        for (int p = 0; p < k; p++)
+          sum += aRow[p] * bRow[p];
+        cRow[j] += alpha * sum;
+      }
+    }
+  }
+
+  /**
+   * Add a scaled matrix, or its transpose, to Y: Y += alpha * op(X)
+   *
+   * @param alpha      the scale of X
+   * @param X          the matrix to add
+   * @param transposeX whether X is added transposed
+   * @param Y          the matrix to add to
+   */
+  public static void axpy(double alpha, Matrix X, boolean transposeX, Matrix Y) {
+    axpy(alpha, X, transposeX, Y, 0, Y.M);
+  }
+
+  /**
+   * The same as axpy with a transpose flag, for the rows from to to of Y only
+   *
+   * @param alpha      the scale of X
+   * @param X          the matrix to add
+   * @param transposeX whether X is added transposed
+   * @param Y          the matrix to add to
+   * @param from       the first row of Y
+   * @param to         the row after the last row of Y
+   */
+  public static void axpy(double alpha, Matrix X, boolean transposeX, Matrix Y, int from, int to) {
+    if ((transposeX ? X.N : X.M) != Y.M || (transposeX ? X.M : X.N) != Y.N)
+      throw new RuntimeException("Illegal matrix dimensions.");
+
+    for (int i = from; i < to; i++) {
+      double[] yRow = Y.data[i];
+      if (!transposeX) {
+        Kernels.axpy(alpha, X.data[i], yRow, Y.N);
+        continue;
+      }
+      for (int j = 0; j < Y.N; j++)
+        yRow[j] += alpha * X.data[j][i];
+    }
+  }
+
   /**
    * It computes the dot product of A and B.
    *
@@ -440,10 +648,23 @@ final public class Matrix implements Serializable {
    * @return The result of the matrix multiplication.
    */
   public static Matrix dot(Matrix[] A, Matrix[] B) { // 10 chunks example in A and B so create 10 threads
-    Matrix result = new Matrix(A[0].getM(), A[0].getN());
+    return dotInto(A, B, new Matrix(A[0].getM(), B[0].getN()));
+  }
+
+  /**
+   * It computes the dot product of A and B into result, accumulating every
+   * product in place.
+   *
+   * @param A      an array of matrices
+   * @param B      the matrices that are being multiplied
+   * @param result the matrix to overwrite
+   * @return The matrix result.
+   */
+  public static Matrix dotInto(Matrix[] A, Matrix[] B, Matrix result) {
+    result.clear();
 
     for (int i = 0; i < A.length; i++) {
-      result = result.plus(A[i].times(B[i]));
+      gemm(1.0, A[i], B[i], 1.0, result);
     }
 
     return result;
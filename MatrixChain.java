@@ -0,0 +1,188 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.logging.Logger;
+
+/**
+ * The product of a chain of matrices, A1 A2 ... An. The order of the products
+ * is chosen by dynamic programming over the dimensions, the classic matrix
+ * chain order: the cheapest of all parenthesizations in multiply-adds.
+ *
+ * All matrices are cut into tiles of one size, padded with zeros at the edges,
+ * and the intermediate products stay tiled: they are never merged, padded or
+ * divided again between the steps. Every output tile of a step is a task of
+ * its own, sent as soon as the tiles of its block row and block column are
+ * there. A tile of one product thus feeds the next product while the rest of
+ * the first one is still being computed.
+ *
+ * The intermediate tiles are held on the manager, and every task carries its
+ * blocks, so each intermediate tile crosses the network twice: back from the
+ * worker that computed it and out again to each worker that uses it. Keeping
+ * them in the TileStore of the workers, as MatrixPower does, would save that
+ * traffic but tie every tile to the worker that holds it, and the chain is
+ * not written that way.
+ */
+public class MatrixChain {
+  // Logger for this class
+  private static final Logger LOGGER = Logger.getLogger(MatrixChain.class.getName());
+
+  /**
+   * Sends a task {A blocks, B blocks} to a worker, like Manager.submitTask.
+   */
+  public interface TileSubmitter {
+    CompletableFuture<Object> submit(Object[][] task);
+  }
+
+  /**
+   * Find the cheapest order of a chain product. Matrix i is dims[i]-by-dims[i
+   * + 1].
+   *
+   * @param dims the n + 1 dimensions of the n matrices
+   * @return split[i][j], the k where the product of matrices i to j is split
+   *         into (i..k)(k+1..j).
+   */
+  public static int[][] order(int[] dims) {
+    if (dims.length < 2)
+      throw new IllegalArgumentException("A chain needs at least one matrix");
+    int n = dims.length - 1;
+    long[][] cost = new long[n][n];
+    int[][] split = new int[n][n];
+
+    for (int length = 2; length <= n; length++) {
+      for (int i = 0; i + length - 1 < n; i++) {
+        int j = i + length - 1;
+        cost[i][j] = Long.MAX_VALUE;
+        for (int k = i; k < j; k++) {
+          long c = cost[i][k] + cost[k + 1][j] + (long) dims[i] * dims[k + 1] * dims[j + 1];
+          if (c < cost[i][j]) {
+            cost[i][j] = c;
+            split[i][j] = k;
+          }
+        }
+      }
+    }
+    return split;
+  }
+
+  /**
+   * Multiply the chain
+   *
+   * @param matrices  the matrices, each with as many rows as the one before
+   *                  has columns
+   * @param tileSize  the edge of the tiles
+   * @param submitter sends the tile products to the workers
+   * @return The product.
+   */
+  public static Matrix multiply(Matrix[] matrices, int tileSize, TileSubmitter submitter) {
+    if (matrices.length < 1)
+      throw new IllegalArgumentException("A chain needs at least one matrix");
+    int[] dims = new int[matrices.length + 1];
+    dims[0] = matrices[0].getM();
+    for (int i = 0; i < matrices.length; i++) {
+      if (matrices[i].getM() != dims[i])
+        throw new RuntimeException("Illegal matrix dimensions.");
+      dims[i + 1] = matrices[i].getN();
+    }
+
+    int[][] split = order(dims);
+    LOGGER.info("Chain order " + parenthesize(split, 0, matrices.length - 1));
+
+    CompletableFuture<Matrix>[][] product = evaluate(matrices, split, 0, matrices.length - 1, tileSize, submitter);
+
+    List<CompletableFuture<Matrix>> tiles = new ArrayList<>();
+    for (CompletableFuture<Matrix>[] row : product) {
+      for (CompletableFuture<Matrix> tile : row) {
+        tiles.add(tile);
+      }
+    }
+    ThreadPools.waitFor(tiles);
+
+    return join(product, dims[0], dims[matrices.length], tileSize);
+  }
+
+  // The tiles of the product of matrices i to j, as futures. Nothing waits
+  // here, every tile is chained to the tiles it needs.
+  private static CompletableFuture<Matrix>[][] evaluate(Matrix[] matrices, int[][] split, int i, int j,
+      int tileSize, TileSubmitter submitter) {
+    if (i == j) {
+      return tiles(matrices[i], tileSize);
+    }
+
+    CompletableFuture<Matrix>[][] left = evaluate(matrices, split, i, split[i][j], tileSize, submitter);
+    CompletableFuture<Matrix>[][] right = evaluate(matrices, split, split[i][j] + 1, j, tileSize, submitter);
+
+    int rows = left.length;
+    int inner = right.length;
+    int cols = right[0].length;
+    CompletableFuture<Matrix>[][] product = newGrid(rows, cols);
+    for (int r = 0; r < rows; r++) {
+      for (int c = 0; c < cols; c++) {
+        CompletableFuture<?>[] inputs = new CompletableFuture<?>[2 * inner];
+        for (int k = 0; k < inner; k++) {
+          inputs[k] = left[r][k];
+          inputs[inner + k] = right[k][c];
+        }
+
+        int row = r;
+        int col = c;
+        product[r][c] = CompletableFuture.allOf(inputs).thenCompose(ready -> {
+          Matrix[] aBlocks = new Matrix[inner];
+          Matrix[] bBlocks = new Matrix[inner];
+          for (int k = 0; k < inner; k++) {
+            aBlocks[k] = left[row][k].join();
+            bBlocks[k] = right[k][col].join();
+          }
+          return submitter.submit(new Matrix[][] { aBlocks, bBlocks });
+        }).thenApply(SparseMatrix::toDense);
+      }
+    }
+    return product;
+  }
+
+  // Cut a matrix into tiles, the ones at the right and bottom edges padded
+  // with zeros.
+  private static CompletableFuture<Matrix>[][] tiles(Matrix matrix, int tileSize) {
+    int rows = (matrix.getM() + tileSize - 1) / tileSize;
+    int cols = (matrix.getN() + tileSize - 1) / tileSize;
+    CompletableFuture<Matrix>[][] grid = newGrid(rows, cols);
+    for (int r = 0; r < rows; r++) {
+      for (int c = 0; c < cols; c++) {
+        Matrix tile = new Matrix(tileSize, tileSize);
+        int width = Math.min(tileSize, matrix.getN() - c * tileSize);
+        for (int i = 0; i < tileSize && r * tileSize + i < matrix.getM(); i++) {
+          System.arraycopy(matrix.getRow(r * tileSize + i), c * tileSize, tile.getRow(i), 0, width);
+        }
+        grid[r][c] = CompletableFuture.completedFuture(tile);
+      }
+    }
+    return grid;
+  }
+
+  // Put the tiles together into an M-by-N matrix, leaving out the padding.
+  private static Matrix join(CompletableFuture<Matrix>[][] grid, int M, int N, int tileSize) {
+    Matrix matrix = new Matrix(M, N);
+    for (int r = 0; r < grid.length; r++) {
+      for (int c = 0; c < grid[r].length; c++) {
+        Matrix tile = grid[r][c].join();
+        int width = Math.min(tileSize, N - c * tileSize);
+        for (int i = 0; i < tileSize && r * tileSize + i < M; i++) {
+          System.arraycopy(tile.getRow(i), 0, matrix.getRow(r * tileSize + i), c * tileSize, width);
+        }
+      }
+    }
+    return matrix;
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static CompletableFuture<Matrix>[][] newGrid(int rows, int cols) {
+    return new CompletableFuture[rows][cols];
+  }
+
+  // The order as text, like ((A1 A2) A3).
+  private static String parenthesize(int[][] split, int i, int j) {
+    if (i == j) {
+      return "A" + (i + 1);
+    }
+    return "(" + parenthesize(split, i, split[i][j]) + " " + parenthesize(split, split[i][j] + 1, j) + ")";
+  }
+}
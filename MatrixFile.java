@@ -0,0 +1,174 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A matrix on disk. The file is a 16 byte header (the magic number "MTRX", a
+ * version, the number of rows and the number of columns, as little-endian
+ * ints) followed by the elements row by row as little-endian doubles. The
+ * fixed layout lets a file be mapped and addressed directly.
+ */
+public class MatrixFile {
+  // "MTRX"
+  public static final int MAGIC = 0x5852544d;
+
+  public static final int VERSION = 1;
+
+  // Bytes before the first element
+  public static final int HEADER = 16;
+
+  // Rows are written and read in buffers of about this many bytes
+  private static final int BUFFER = 1 << 20;
+
+  /**
+   * Write a matrix to a file, replacing the file
+   *
+   * @param path   the file
+   * @param matrix the matrix
+   */
+  public static void write(Path path, Matrix matrix) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(MAGIC).putInt(VERSION).putInt(matrix.getM()).putInt(matrix.getN()).flip();
+      writeFully(channel, header);
+
+      int N = matrix.getN();
+      int rowsPerBuffer = Math.max(1, BUFFER / Math.max(1, 8 * N));
+      ByteBuffer buffer = ByteBuffer.allocate(rowsPerBuffer * N * 8).order(ByteOrder.LITTLE_ENDIAN);
+      for (int i = 0; i < matrix.getM(); i += rowsPerBuffer) {
+        buffer.clear();
+        for (int r = i; r < Math.min(i + rowsPerBuffer, matrix.getM()); r++) {
+          buffer.asDoubleBuffer().put(matrix.getRow(r));
+          buffer.position(buffer.position() + N * 8);
+        }
+        buffer.flip();
+        writeFully(channel, buffer);
+      }
+      channel.force(true);
+    }
+  }
+
+  /**
+   * Read a matrix from a file
+   *
+   * @param path the file
+   * @return The matrix.
+   */
+  public static Matrix read(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(channel, header);
+      header.flip();
+      if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+        throw new IOException(path + " is not a matrix file");
+      }
+      Matrix matrix = new Matrix(header.getInt(), header.getInt());
+
+      int N = matrix.getN();
+      int rowsPerBuffer = Math.max(1, BUFFER / Math.max(1, 8 * N));
+      ByteBuffer buffer = ByteBuffer.allocate(rowsPerBuffer * N * 8).order(ByteOrder.LITTLE_ENDIAN);
+      for (int i = 0; i < matrix.getM(); i += rowsPerBuffer) {
+        int rows = Math.min(rowsPerBuffer, matrix.getM() - i);
+        buffer.clear().limit(rows * N * 8);
+        readFully(channel, buffer);
+        buffer.flip();
+        for (int r = i; r < i + rows; r++) {
+          buffer.asDoubleBuffer().get(matrix.getRow(r));
+          buffer.position(buffer.position() + N * 8);
+        }
+      }
+      return matrix;
+    }
+  }
+
+  /**
+   * Create a file for an M x N matrix whose rows arrive in pieces. The file
+   * is allocated at its full size up front and every piece is written through
+   * a mapping of just its rows, so the matrix is never in memory as a whole.
+   *
+   * @param path the file, replaced if it exists
+   * @param M    the number of rows
+   * @param N    the number of columns
+   * @return The sink to write the rows to.
+   */
+  public static Sink create(Path path, int M, int N) throws IOException {
+    return new Sink(path, M, N);
+  }
+
+  /**
+   * A matrix file being written a band of rows at a time, see create.
+   */
+  public static class Sink implements Closeable {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int M;
+    private final int N;
+
+    // Creating the file with its header, at its full size.
+    private Sink(Path path, int M, int N) throws IOException {
+      this.M = M;
+      this.N = N;
+      this.file = new RandomAccessFile(path.toFile(), "rw");
+      this.channel = file.getChannel();
+      channel.truncate(0);
+      file.setLength(HEADER + (long) M * N * 8);
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(MAGIC).putInt(VERSION).putInt(M).putInt(N).flip();
+      while (header.hasRemaining()) {
+        channel.write(header, header.position());
+      }
+    }
+
+    /**
+     * Write a band of rows
+     *
+     * @param row  the index of the first row of the band
+     * @param band the rows, each with N columns
+     */
+    public void write(int row, Matrix band) throws IOException {
+      if (band.getN() != N || row < 0 || row + band.getM() > M) {
+        throw new RuntimeException("Illegal matrix dimensions.");
+      }
+
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, HEADER + (long) row * N * 8,
+          (long) band.getM() * N * 8);
+      DoubleBuffer doubles = mapped.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+      for (int r = 0; r < band.getM(); r++) {
+        doubles.put(band.getRow(r));
+      }
+    }
+
+    /**
+     * Close the file, its rows are on disk. The mapped bands are written back
+     * with the rest of the file by this one force, not one by one.
+     */
+    @Override
+    public void close() throws IOException {
+      channel.force(true);
+      file.close();
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new IOException("Unexpected end of matrix file");
+      }
+    }
+  }
+}
@@ -0,0 +1,66 @@
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of scratch matrices shared by all threads. A task takes the matrices
+ * it needs with acquire and hands them back with release when it is done, so
+ * the same arrays are reused from task to task instead of becoming garbage.
+ */
+public class MatrixPool {
+  // Most matrices kept per shape, the rest is left to the garbage collector
+  private static final int MAX_PER_SHAPE = 16;
+
+  // Free matrices by shape, the key is M << 32 | N
+  private static final Map<Long, Queue<Matrix>> FREE = new ConcurrentHashMap<>();
+
+  // Number of free matrices by shape, kept next to the queues because
+  // ConcurrentLinkedQueue.size() walks the whole queue
+  private static final Map<Long, AtomicInteger> COUNTS = new ConcurrentHashMap<>();
+
+  // Combine M and N into the key of a shape.
+  private static long shape(int M, int N) {
+    return ((long) M << 32) | (N & 0xffffffffL);
+  }
+
+  /**
+   * Take an M-by-N matrix of 0's from the pool, or create one if there is none
+   *
+   * @param M the number of rows
+   * @param N the number of columns
+   * @return A matrix of 0's that the caller owns until release.
+   */
+  public static Matrix acquire(int M, int N) {
+    long key = shape(M, N);
+    Queue<Matrix> free = FREE.get(key);
+    Matrix matrix = free == null ? null : free.poll();
+    if (matrix == null) {
+      return new Matrix(M, N);
+    }
+
+    COUNTS.get(key).decrementAndGet();
+    matrix.clear();
+    return matrix;
+  }
+
+  /**
+   * Give a matrix back to the pool. The caller must not use it afterwards.
+   *
+   * @param matrix the matrix taken with acquire
+   */
+  public static void release(Matrix matrix) {
+    if (matrix == null) {
+      return;
+    }
+
+    long key = shape(matrix.getM(), matrix.getN());
+    AtomicInteger count = COUNTS.computeIfAbsent(key, k -> new AtomicInteger());
+    if (count.incrementAndGet() > MAX_PER_SHAPE) {
+      count.decrementAndGet();
+      return;
+    }
+    FREE.computeIfAbsent(key, k -> new ConcurrentLinkedQueue<>()).offer(matrix);
+  }
+}
@@ -0,0 +1,241 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+/**
+ * A^k by repeated squaring with the tiles resident on the workers. A is cut
+ * into tiles once and every tile is put on its owner, in a 2D block-cyclic
+ * layout over the workers. Every product of the squaring is then one
+ * TileStore.Multiply per output tile, sent to the owner of that tile. The
+ * owner fetches the tiles of its block row and block column it does not have
+ * from their owners, keeps the product and answers with a number. Only the
+ * final tiles come back to the manager. The requests go out through a
+ * TileStore.Dispatcher, so they wait their turn with the other tasks of the
+ * manager.
+ *
+ * For stochastic matrices the powers converge. With a tolerance, a squaring
+ * that changes no element by more than the tolerance ends the computation
+ * early: all higher powers are the same up to the tolerance.
+ */
+public class MatrixPower {
+  // Logger for this class
+  private static final Logger LOGGER = Logger.getLogger(MatrixPower.class.getName());
+
+  private final InetSocketAddress[] workers;
+  private final TileStore.Dispatcher dispatcher;
+  private final int tileSize; // edge of the tiles
+  private final int tiles; // tiles per side
+  private final int rows; // rows of the owner grid of the workers
+  private final int columns; // columns of the owner grid
+  private final String prefix; // shared by all keys of this job
+  private int generation;
+
+  // Creating a job on the workers for s x s tiles.
+  private MatrixPower(InetSocketAddress[] workers, TileStore.Dispatcher dispatcher, int tileSize, int tiles) {
+    this.workers = workers;
+    this.dispatcher = dispatcher;
+    this.tileSize = tileSize;
+    this.tiles = tiles;
+    int r = (int) Math.sqrt(workers.length);
+    while (workers.length % r != 0) {
+      r--;
+    }
+    this.rows = r;
+    this.columns = workers.length / r;
+    this.prefix = "power-" + Long.toHexString(ThreadLocalRandom.current().nextLong()) + "/";
+  }
+
+  /**
+   * Compute A^k
+   *
+   * @param A          the square matrix
+   * @param k          the exponent, 0 or more
+   * @param tolerance  stop early once a squaring changes no element by more
+   *                   than this, 0 to never stop early
+   * @param tileSize   the edge of the tiles
+   * @param workers    the workers to keep the tiles on
+   * @param dispatcher sends the requests to the workers
+   * @return A^k.
+   */
+  public static Matrix power(Matrix A, int k, double tolerance, int tileSize, InetSocketAddress[] workers,
+      TileStore.Dispatcher dispatcher) {
+    if (A.getM() != A.getN())
+      throw new RuntimeException("Illegal matrix dimensions.");
+    if (k < 0)
+      throw new IllegalArgumentException("The exponent must not be negative");
+
+    int n = A.getN();
+    if (k == 0) {
+      return Matrix.identity(n);
+    }
+
+    MatrixPower job = new MatrixPower(workers, dispatcher, tileSize, (n + tileSize - 1) / tileSize);
+    try {
+      String base = job.upload(A);
+      String result = null; // the identity
+
+      // Square the base and multiply it into the result for every bit of k
+      int squarings = 0;
+      while (true) {
+        if ((k & 1) != 0) {
+          result = job.accumulate(result, base);
+        }
+        k >>>= 1;
+        if (k == 0) {
+          break;
+        }
+
+        Product squared = job.multiply(base, base, tolerance > 0);
+        squarings++;
+        if (!base.equals(result)) {
+          job.drop(base);
+        }
+        base = squared.name;
+
+        if (tolerance > 0 && squared.difference <= tolerance) {
+          // Every further power of the base is the base
+          LOGGER.info("Converged after " + squarings + " squarings");
+          result = job.accumulate(result, base);
+          break;
+        }
+      }
+
+      return job.download(result, n);
+    } finally {
+      job.dropAll();
+    }
+  }
+
+  // The owner of tile (i, j).
+  private InetSocketAddress owner(int i, int j) {
+    return workers[(i % rows) * columns + (j % columns)];
+  }
+
+  private String key(String name, int i, int j) {
+    return prefix + name + "/" + i + "/" + j;
+  }
+
+  // Cut A into tiles, padded with zeros, and put them on their owners.
+  private String upload(Matrix A) {
+    String name = "g" + generation++;
+    int n = A.getN();
+    List<CompletableFuture<Object>> puts = new ArrayList<>();
+    for (int i = 0; i < tiles; i++) {
+      for (int j = 0; j < tiles; j++) {
+        Matrix tile = new Matrix(tileSize, tileSize);
+        int width = Math.min(tileSize, n - j * tileSize);
+        for (int r = 0; r < tileSize && i * tileSize + r < n; r++) {
+          System.arraycopy(A.getRow(i * tileSize + r), j * tileSize, tile.getRow(r), 0, width);
+        }
+        puts.add(dispatcher.submit(owner(i, j), new TileStore.Put(key(name, i, j), tile), tileBytes()));
+      }
+    }
+    ThreadPools.waitFor(puts);
+    return name;
+  }
+
+  // Multiply two resident matrices into a new one, and if compare is set
+  // find the largest difference to the left matrix.
+  private Product multiply(String left, String right, boolean compare) {
+    String name = "g" + generation++;
+    List<CompletableFuture<Object>> products = new ArrayList<>();
+    for (int i = 0; i < tiles; i++) {
+      for (int j = 0; j < tiles; j++) {
+        String[] aKeys = new String[tiles];
+        String[] bKeys = new String[tiles];
+        InetSocketAddress[] aOwners = new InetSocketAddress[tiles];
+        InetSocketAddress[] bOwners = new InetSocketAddress[tiles];
+        for (int k = 0; k < tiles; k++) {
+          aKeys[k] = key(left, i, k);
+          aOwners[k] = owner(i, k);
+          bKeys[k] = key(right, k, j);
+          bOwners[k] = owner(k, j);
+        }
+        products.add(dispatcher.submit(owner(i, j), new TileStore.Multiply(aKeys, aOwners, bKeys, bOwners,
+            key(name, i, j), compare ? key(left, i, j) : null), 0));
+      }
+    }
+    ThreadPools.waitFor(products);
+
+    double difference = 0;
+    for (CompletableFuture<Object> product : products) {
+      difference = Math.max(difference, (Double) product.join());
+    }
+    return new Product(name, difference);
+  }
+
+  // Multiply the base into the result, null for the identity. The old result
+  // is dropped once the new one is on the workers, unless it is the base.
+  private String accumulate(String result, String base) {
+    if (result == null) {
+      return base;
+    }
+    String product = multiply(result, base, false).name;
+    if (!result.equals(base)) {
+      drop(result);
+    }
+    return product;
+  }
+
+  // Fetch the tiles of a resident matrix and put them together.
+  private Matrix download(String name, int n) {
+    List<CompletableFuture<Object>> gets = new ArrayList<>();
+    for (int i = 0; i < tiles; i++) {
+      for (int j = 0; j < tiles; j++) {
+        gets.add(dispatcher.submit(owner(i, j), new TileStore.Get(key(name, i, j)), tileBytes()));
+      }
+    }
+    ThreadPools.waitFor(gets);
+
+    Matrix matrix = new Matrix(n, n);
+    for (int i = 0; i < tiles; i++) {
+      for (int j = 0; j < tiles; j++) {
+        Matrix tile = ((Matrix[]) gets.get(i * tiles + j).join())[0];
+        int width = Math.min(tileSize, n - j * tileSize);
+        for (int r = 0; r < tileSize && i * tileSize + r < n; r++) {
+          System.arraycopy(tile.getRow(r), 0, matrix.getRow(i * tileSize + r), j * tileSize, width);
+        }
+      }
+    }
+    return matrix;
+  }
+
+  // Forget a resident matrix on all workers, the copies included.
+  private void drop(String name) {
+    dropPrefix(prefix + name + "/");
+  }
+
+  private void dropAll() {
+    dropPrefix(prefix);
+  }
+
+  private void dropPrefix(String keys) {
+    List<CompletableFuture<Object>> drops = new ArrayList<>();
+    for (InetSocketAddress worker : workers) {
+      drops.add(dispatcher.submit(worker, new TileStore.Drop(keys), 0));
+    }
+    ThreadPools.waitFor(drops);
+  }
+
+  // The tile a Put sends or a Get brings back.
+  private long tileBytes() {
+    return 8L * tileSize * tileSize;
+  }
+
+  /**
+   * A resident matrix made by a product, with the largest difference to its
+   * left factor if it was asked for.
+   */
+  private static class Product {
+    private final String name;
+    private final double difference;
+
+    Product(String name, double difference) {
+      this.name = name;
+      this.difference = difference;
+    }
+  }
+}
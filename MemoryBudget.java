@@ -0,0 +1,199 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A budget of heap bytes shared by all jobs of the Manager. A job reserves
+ * the bytes it is estimated to hold before it starts and gives them back when
+ * it is done. While the budget is used up new jobs wait in line, and a job
+ * that waits too long or could never fit is rejected, so a burst of large
+ * jobs queues up instead of running the Manager out of memory.
+ *
+ * Tiles in flight to the workers are charged on top of the reservations.
+ * Charges never wait, a running job always finishes, but they hold back the
+ * jobs in line until the tiles are back.
+ */
+public class MemoryBudget {
+  // Logger for this class
+  private static final Logger LOGGER = Logger.getLogger(MemoryBudget.class.getName());
+
+  private final long limit; // bytes
+  private final long timeoutMillis; // longest wait in line
+  private long used; // bytes reserved and charged
+  private final Deque<Object> line = new ArrayDeque<>(); // jobs waiting, first in first out
+  private final List<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+  /**
+   * Create a budget
+   *
+   * @param limit         the number of bytes jobs may hold at once
+   * @param timeoutMillis how long a job waits for room before it is rejected
+   */
+  public MemoryBudget(long limit, long timeoutMillis) {
+    if (limit <= 0)
+      throw new IllegalArgumentException("The memory budget must be positive");
+    this.limit = limit;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * A budget of three quarters of the maximum heap, the rest is left to the
+   * JVM and to what the estimates miss
+   *
+   * @param timeoutMillis how long a job waits for room before it is rejected
+   * @return The budget.
+   */
+  public static MemoryBudget ofHeap(long timeoutMillis) {
+    return new MemoryBudget(Runtime.getRuntime().maxMemory() / 4 * 3, timeoutMillis);
+  }
+
+  /**
+   * Reserve bytes for a job, waiting in line until they are free. Jobs are
+   * admitted in the order they asked, a large job is not overtaken by small
+   * ones.
+   *
+   * @param bytes the estimated bytes of the job
+   * @return The reservation, to be closed when the job is done.
+   * @throws RejectedExecutionException if the job can never fit or the wait
+   *                                    times out
+   */
+  public synchronized Reservation reserve(long bytes) {
+    if (bytes > limit) {
+      throw new RejectedExecutionException(String.format(
+          "The job needs about %d MB, more than the memory budget of %d MB", bytes >> 20, limit >> 20));
+    }
+
+    Object turn = new Object();
+    line.addLast(turn);
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    try {
+      while (line.peekFirst() != turn || used + bytes > limit) {
+        long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (wait <= 0) {
+          LOGGER.info(String.format("Rejected a job of %d MB, %d of %d MB in use", bytes >> 20, used >> 20,
+              limit >> 20));
+          throw new RejectedExecutionException(String.format(
+              "The Manager is out of memory for jobs: %d of %d MB in use, the job needs %d MB", used >> 20,
+              limit >> 20, bytes >> 20));
+        }
+        wait(wait);
+      }
+      used += bytes;
+      return new Reservation(bytes);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RejectedExecutionException("Interrupted while waiting for memory", e);
+    } finally {
+      // Admitted or given up, the next job in line gets its turn
+      line.remove(turn);
+      notifyAll();
+    }
+  }
+
+  /**
+   * Reserve bytes if they are free right now, without waiting in line
+   *
+   * @param bytes the number of bytes
+   * @return Whether the bytes were reserved, to be given back with release.
+   */
+  public synchronized boolean tryReserve(long bytes) {
+    if (bytes < 0) {
+      throw new IllegalArgumentException("Cannot reserve " + bytes + " bytes");
+    }
+    if (!line.isEmpty() || used + bytes > limit) {
+      return false;
+    }
+    used += bytes;
+    return true;
+  }
+
+  /**
+   * Charge bytes that are already in use, such as a tile on its way to a
+   * worker. It never waits.
+   *
+   * @param bytes the number of bytes
+   */
+  public synchronized void charge(long bytes) {
+    used += bytes;
+  }
+
+  /**
+   * Give back reserved or charged bytes
+   *
+   * @param bytes the number of bytes
+   */
+  public void release(long bytes) {
+    synchronized (this) {
+      used -= bytes;
+      notifyAll();
+    }
+    for (Runnable listener : listeners) {
+      listener.run();
+    }
+  }
+
+  /**
+   * Wait until some of the budget is free. A server calls this before it reads
+   * the next request, so clients are held back while the budget is used up.
+   */
+  public synchronized void awaitRoom() throws InterruptedException {
+    while (used >= limit) {
+      wait();
+    }
+  }
+
+  /**
+   * Call the listener whenever bytes are given back, from the thread that
+   * gives them back
+   *
+   * @param listener the listener
+   */
+  public void onRelease(Runnable listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Returns the bytes in use
+   *
+   * @return The reserved and charged bytes.
+   */
+  public synchronized long getUsed() {
+    return used;
+  }
+
+  /**
+   * Returns the size of the budget
+   *
+   * @return The limit in bytes.
+   */
+  public long getLimit() {
+    return limit;
+  }
+
+  /**
+   * Bytes reserved for a job, given back when it is closed.
+   */
+  public class Reservation implements AutoCloseable {
+    private final long bytes;
+    private boolean closed;
+
+    private Reservation(long bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    public void close() {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+      }
+      release(bytes);
+    }
+  }
+}
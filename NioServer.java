@@ -0,0 +1,445 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+/**
+ * A non-blocking server core on java.nio selectors. A few I/O threads, each
+ * with its own Selector, serve all connections. They read length-prefixed
+ * frames (see Frames) into direct buffers and hand every complete request to
+ * an executor. The executor runs the handler and gives the response back to
+ * the I/O thread to be written. A slow client only costs a registered channel
+ * and its buffers, never a parked thread.
+ *
+ * A connection may carry any number of requests one after the other.
+ *
+ * With a MemoryBudget, the bytes of a request are reserved before its body is
+ * read. A connection whose request does not fit is parked: nothing is read
+ * from it, so the client's writes stall in TCP flow control until other work
+ * gives memory back.
+ */
+public class NioServer {
+  // Logger for this class
+  private static final Logger LOGGER = Logger.getLogger(NioServer.class.getName());
+
+  // Largest request read by default, 1 GB
+  private static final int DEFAULT_MAX_FRAME_BYTES = 1 << 30;
+
+  /**
+   * Turns a request into a response.
+   */
+  public interface Handler {
+    Object handle(Object request) throws Exception;
+
+    // Deserialize a request, on the thread that then handles it.
+    default Object decode(ByteBuffer frame) throws IOException, ClassNotFoundException {
+      return Frames.decode(frame);
+    }
+
+    // Called once the response is serialized, to recycle its buffers. It is
+    // called for every decoded frame, even if encoding the response failed.
+    // A Sequence is released once its last frame is encoded or its
+    // connection is closed, not necessarily on the thread that handled it.
+    default void release(Object response) {
+    }
+  }
+
+  private final Handler handler;
+  private final Executor executor;
+  private final IoLoop[] loops;
+  private ServerSocketChannel serverChannel;
+  private MemoryBudget budget; // null for no limit
+  private int maxFrameBytes = DEFAULT_MAX_FRAME_BYTES;
+
+  /**
+   * Create a server
+   *
+   * @param handler   turns requests into responses
+   * @param executor  runs the handler, the compute pool for CPU-bound handlers
+   * @param ioThreads the number of selector threads
+   */
+  public NioServer(Handler handler, Executor executor, int ioThreads) {
+    this.handler = handler;
+    this.executor = executor;
+    this.loops = new IoLoop[ioThreads];
+  }
+
+  /**
+   * Hold back requests that do not fit in the budget, see the class comment.
+   * Must be called before start.
+   *
+   * @param budget the budget
+   */
+  public void setBudget(MemoryBudget budget) {
+    this.budget = budget;
+    budget.onRelease(() -> {
+      for (IoLoop loop : loops) {
+        if (loop != null) {
+          loop.selector.wakeup();
+        }
+      }
+    });
+  }
+
+  /**
+   * Limit the size of a request. A connection announcing a bigger or a
+   * negative length is closed before anything is allocated for it. Must be
+   * called before start.
+   *
+   * @param bytes the largest request body, in bytes
+   */
+  public void setMaxFrameSize(int bytes) {
+    this.maxFrameBytes = bytes;
+  }
+
+  /**
+   * Listen on the port and accept connections until the server is stopped
+   *
+   * @param port the port number to listen on
+   */
+  public void start(int port) throws IOException {
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new IoLoop();
+      Thread thread = new Thread(loops[i], "nio-" + (i + 1));
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    // Accepting blocks this thread only, the I/O threads never block
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(port));
+    LOGGER.info("Non-blocking server started on port " + port + " with " + loops.length + " I/O threads");
+
+    int next = 0;
+    while (serverChannel.isOpen()) {
+      SocketChannel channel;
+      try {
+        channel = serverChannel.accept();
+      } catch (IOException e) {
+        if (serverChannel.isOpen()) {
+          throw e;
+        }
+        break;
+      }
+      channel.configureBlocking(false);
+      loops[next].register(channel);
+      next = (next + 1) % loops.length;
+    }
+  }
+
+  /**
+   * Stop accepting connections
+   */
+  public void stop() {
+    try {
+      serverChannel.close();
+    } catch (IOException e) {
+      LOGGER.info("Closing connection failed");
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * The state of one connection.
+   */
+  private static class Connection {
+    private final SocketChannel channel;
+    private final ByteBuffer header = ByteBuffer.allocate(4);
+    private ByteBuffer body; // direct, reused while requests fit
+    private boolean readingBody;
+    private int length; // of the request being read
+    private ByteBuffer out;
+    private Iterator<?> sequence; // the frames of a Sequence still to encode
+    private Object response; // the Sequence, until it is released
+
+    // Take the response of a Sequence to release it, once.
+    synchronized Object finishSequence() {
+      Object finished = response;
+      sequence = null;
+      response = null;
+      return finished;
+    }
+
+    Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+  }
+
+  /**
+   * A selector thread serving its share of the connections.
+   */
+  private class IoLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+    private final Queue<SelectionKey> writes = new ConcurrentLinkedQueue<>();
+    private final Queue<SelectionKey> parked = new ArrayDeque<>(); // waiting for memory
+
+    IoLoop() throws IOException {
+      selector = Selector.open();
+    }
+
+    // Hand a new connection to this loop.
+    void register(SocketChannel channel) {
+      registrations.add(channel);
+      selector.wakeup();
+    }
+
+    // Hand a finished response to this loop to be written.
+    void write(SelectionKey key, ByteBuffer out) {
+      ((Connection) key.attachment()).out = out;
+      writes.add(key);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          selector.select();
+
+          SocketChannel channel;
+          while ((channel = registrations.poll()) != null) {
+            channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+          }
+
+          SelectionKey pending;
+          while ((pending = writes.poll()) != null) {
+            if (pending.isValid()) {
+              pending.interestOps(SelectionKey.OP_WRITE);
+            }
+          }
+
+          // Resume parked connections in order while their requests fit
+          while ((pending = parked.peek()) != null) {
+            if (pending.isValid() && !budget.tryReserve(((Connection) pending.attachment()).length)) {
+              break;
+            }
+            parked.poll();
+            if (pending.isValid()) {
+              startBody(pending);
+              try {
+                read(pending);
+              } catch (IOException e) {
+                close(pending);
+              } catch (RuntimeException e) {
+                LOGGER.severe("Reading a request failed: " + e);
+                close(pending);
+              }
+            }
+          }
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            if (!key.isValid()) {
+              continue;
+            }
+            try {
+              if (key.isReadable()) {
+                read(key);
+              } else if (key.isWritable()) {
+                write(key);
+              }
+            } catch (IOException e) {
+              close(key);
+            } catch (RuntimeException e) {
+              // One broken connection must not stop the loop for all others
+              LOGGER.severe("Serving a connection failed: " + e);
+              close(key);
+            }
+          }
+        } catch (IOException e) {
+          LOGGER.severe("Selector failed: " + e.getMessage());
+          e.printStackTrace();
+        }
+      }
+    }
+
+    // Read as much of the current frame as is available. A complete frame
+    // stops reading on the connection until its response is written.
+    private void read(SelectionKey key) throws IOException {
+      Connection connection = (Connection) key.attachment();
+
+      while (true) {
+        ByteBuffer target = connection.readingBody ? connection.body : connection.header;
+        if (connection.channel.read(target) < 0) {
+          close(key);
+          return;
+        }
+        if (target.hasRemaining()) {
+          return;
+        }
+
+        if (!connection.readingBody) {
+          connection.header.flip();
+          connection.length = connection.header.getInt();
+          if (connection.length < 0 || connection.length > maxFrameBytes) {
+            LOGGER.severe("Dropped a request of " + connection.length + " bytes, the limit is " + maxFrameBytes);
+            close(key);
+            return;
+          }
+          if (budget != null && !budget.tryReserve(connection.length)) {
+            if (connection.length > budget.getLimit()) {
+              LOGGER.severe("Dropped a request of " + connection.length + " bytes, more than the memory budget");
+              close(key);
+              return;
+            }
+            key.interestOps(0);
+            parked.add(key);
+            return;
+          }
+          startBody(key);
+          continue;
+        }
+
+        ByteBuffer frame = connection.body;
+        frame.flip();
+        connection.header.clear();
+        connection.readingBody = false;
+
+        key.interestOps(0);
+        executor.execute(() -> respond(key, frame));
+        return;
+      }
+    }
+
+    // Get ready to read the body of a request, its bytes are reserved.
+    private void startBody(SelectionKey key) {
+      Connection connection = (Connection) key.attachment();
+      if (connection.body == null || connection.body.capacity() < connection.length) {
+        connection.body = ByteBuffer.allocateDirect(connection.length);
+      }
+      connection.body.clear().limit(connection.length);
+      connection.readingBody = true;
+      key.interestOps(SelectionKey.OP_READ);
+    }
+
+    // Run the handler on the executor and queue the response.
+    private void respond(SelectionKey key, ByteBuffer frame) {
+      Object response;
+      try {
+        Object request;
+        try {
+          request = handler.decode(frame);
+        } finally {
+          // The job reserves what it holds from here on
+          if (budget != null) {
+            budget.release(frame.limit());
+          }
+        }
+        response = handler.handle(request);
+      } catch (RuntimeException e) {
+        LOGGER.severe("Request failed: " + e.getMessage());
+        response = e;
+      } catch (Exception e) {
+        LOGGER.severe("Request failed: " + e.getMessage());
+        response = new IllegalStateException(e.getMessage(), e);
+      }
+
+      if (response instanceof Frames.Sequence) {
+        // One frame at a time, so only the frame being written is held
+        Connection connection = (Connection) key.attachment();
+        synchronized (connection) {
+          connection.sequence = ((Frames.Sequence) response).objects();
+          connection.response = response;
+        }
+        writeNext(key);
+        return;
+      }
+
+      ByteBuffer out;
+      try {
+        out = Frames.encode(response);
+      } catch (IOException e) {
+        LOGGER.severe("Encoding response failed: " + e.getMessage());
+        close(key);
+        return;
+      } finally {
+        handler.release(response);
+      }
+      write(key, out);
+    }
+
+    // Encode the next frame of a Sequence and queue it to be written, on the
+    // executor. The response is released once its last frame is encoded.
+    private void writeNext(SelectionKey key) {
+      Connection connection = (Connection) key.attachment();
+      Object next;
+      synchronized (connection) {
+        if (connection.sequence == null) {
+          return; // closed meanwhile
+        }
+        next = connection.sequence.hasNext() ? connection.sequence.next() : null;
+      }
+
+      ByteBuffer out;
+      try {
+        out = next == null ? ByteBuffer.allocate(0) : Frames.encode(next);
+      } catch (IOException | RuntimeException e) {
+        LOGGER.severe("Encoding response failed: " + e.getMessage());
+        close(key);
+        return;
+      }
+      boolean last;
+      synchronized (connection) {
+        last = connection.sequence != null && !connection.sequence.hasNext();
+      }
+      if (last) {
+        releaseSequence(connection);
+      }
+      write(key, out);
+    }
+
+    // Release the response of a Sequence, once: when its last frame is
+    // encoded or when the connection is closed.
+    private void releaseSequence(Connection connection) {
+      Object response = connection.finishSequence();
+      if (response != null) {
+        handler.release(response);
+      }
+    }
+
+    // Write as much of the response as the socket takes, then encode the next
+    // frame of a Sequence or go back to reading the next request.
+    private void write(SelectionKey key) throws IOException {
+      Connection connection = (Connection) key.attachment();
+      connection.channel.write(connection.out);
+      if (!connection.out.hasRemaining()) {
+        connection.out = null;
+        if (connection.sequence != null) {
+          key.interestOps(0);
+          executor.execute(() -> writeNext(key));
+        } else {
+          key.interestOps(SelectionKey.OP_READ);
+        }
+      }
+    }
+
+    private void close(SelectionKey key) {
+      // Give back the bytes of a request cut off halfway
+      Connection connection = (Connection) key.attachment();
+      if (budget != null && connection.readingBody) {
+        connection.readingBody = false;
+        budget.release(connection.length);
+      }
+      // A Sequence cut off halfway
+      releaseSequence(connection);
+      key.cancel();
+      try {
+        key.channel().close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
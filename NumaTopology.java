@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * The NUMA nodes of this host and the CPUs of every node, as Linux shows them
+ * in /sys/devices/system/node. On other systems, or where there is no such
+ * directory, the host is one node with all cores.
+ *
+ * Java cannot bind a thread to CPUs by itself. pin does it with taskset on
+ * the thread's own Linux thread ID, if taskset is installed; otherwise the
+ * threads of a node only stay together as far as the OS scheduler keeps them.
+ * A new thread keeps the CPUs of the thread that starts it, so a pool pins
+ * one thread and starts all of its threads from there.
+ * Memory follows the threads with -XX:+UseNUMA, which makes the JVM allocate
+ * new objects on the node of the allocating thread.
+ */
+public class NumaTopology {
+  // Logger for this class
+  private static final Logger LOGGER = Logger.getLogger(NumaTopology.class.getName());
+
+  private static final Path NODES = Paths.get("/sys/devices/system/node");
+
+  private final int[][] cpus; // the CPUs of every node
+
+  // Creating a topology of the given CPUs per node.
+  private NumaTopology(int[][] cpus) {
+    this.cpus = cpus;
+  }
+
+  /**
+   * Read the topology of this host
+   *
+   * @return The nodes with CPUs, or one node with all cores if they cannot be
+   *         read.
+   */
+  public static NumaTopology detect() {
+    List<int[]> nodes = new ArrayList<>();
+    if (Files.isDirectory(NODES)) {
+      try (DirectoryStream<Path> directories = Files.newDirectoryStream(NODES, "node[0-9]*")) {
+        List<Path> sorted = new ArrayList<>();
+        directories.forEach(sorted::add);
+        sorted.sort((a, b) -> Integer.compare(nodeNumber(a), nodeNumber(b)));
+        for (Path node : sorted) {
+          int[] list = parseCpuList(
+              new String(Files.readAllBytes(node.resolve("cpulist")), StandardCharsets.US_ASCII).trim());
+          // Nodes with memory only have no CPUs to run on
+          if (list.length > 0) {
+            nodes.add(list);
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        LOGGER.info("Reading the NUMA nodes failed, running as one node: " + e.getMessage());
+        nodes.clear();
+      }
+    }
+    if (nodes.isEmpty()) {
+      return split(1);
+    }
+    NumaTopology topology = new NumaTopology(nodes.toArray(new int[0][]));
+    LOGGER.info("Found " + topology);
+    return topology;
+  }
+
+  /**
+   * Split the cores into nodes of equal size, for hosts that do not show
+   * their nodes, such as some virtual machines
+   *
+   * @param nodes the number of nodes
+   * @return The topology.
+   */
+  public static NumaTopology split(int nodes) {
+    int cores = Runtime.getRuntime().availableProcessors();
+    nodes = Math.max(1, Math.min(nodes, cores));
+    int[][] cpus = new int[nodes][];
+    for (int node = 0; node < nodes; node++) {
+      int from = node * cores / nodes;
+      cpus[node] = new int[(node + 1) * cores / nodes - from];
+      for (int i = 0; i < cpus[node].length; i++) {
+        cpus[node][i] = from + i;
+      }
+    }
+    return new NumaTopology(cpus);
+  }
+
+  private static int nodeNumber(Path node) {
+    return Integer.parseInt(node.getFileName().toString().substring("node".length()));
+  }
+
+  /**
+   * Parse a Linux CPU list such as 0-7,16-23
+   *
+   * @param list the list
+   * @return The CPUs.
+   */
+  static int[] parseCpuList(String list) {
+    List<Integer> cpus = new ArrayList<>();
+    if (!list.isEmpty()) {
+      for (String range : list.split(",")) {
+        int dash = range.indexOf('-');
+        int first = Integer.parseInt(range.substring(0, dash < 0 ? range.length() : dash).trim());
+        int last = dash < 0 ? first : Integer.parseInt(range.substring(dash + 1).trim());
+        for (int cpu = first; cpu <= last; cpu++) {
+          cpus.add(cpu);
+        }
+      }
+    }
+    return cpus.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  /**
+   * Returns the number of nodes with CPUs
+   *
+   * @return The number of nodes, 1 or more.
+   */
+  public int getNodes() {
+    return cpus.length;
+  }
+
+  /**
+   * Returns the CPUs of a node
+   *
+   * @param node the node
+   * @return The CPU numbers.
+   */
+  public int[] getCpus(int node) {
+    return cpus[node].clone();
+  }
+
+  /**
+   * Bind the calling thread to the CPUs of a node. It only works on Linux
+   * with taskset installed, anywhere else it does nothing. It starts a
+   * taskset process and waits for it, some milliseconds, so call it once per
+   * pool and not per task.
+   *
+   * @param node the node
+   * @return Whether the thread is bound.
+   */
+  public boolean pin(int node) {
+    try {
+      // "pid/task/tid", the Linux thread ID of this thread
+      String self = Files.readSymbolicLink(Paths.get("/proc/thread-self")).toString();
+      String tid = self.substring(self.lastIndexOf('/') + 1);
+
+      StringBuilder list = new StringBuilder();
+      for (int cpu : cpus[node]) {
+        list.append(list.length() == 0 ? "" : ",").append(cpu);
+      }
+      Process taskset = new ProcessBuilder("taskset", "-p", "-c", list.toString(), tid)
+          .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+      return taskset.waitFor(5, TimeUnit.SECONDS) && taskset.exitValue() == 0;
+    } catch (IOException | UnsupportedOperationException e) {
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder text = new StringBuilder(cpus.length + " NUMA node" + (cpus.length == 1 ? "" : "s") + ":");
+    for (int node = 0; node < cpus.length; node++) {
+      text.append(" ").append(node).append("=").append(cpus[node].length).append(" CPUs");
+    }
+    return text.toString();
+  }
+}
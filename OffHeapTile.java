@@ -0,0 +1,273 @@
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/**
+ * A dense tile that a worker keeps off the heap. On the wire it is the two
+ * dimensions followed by the elements as raw doubles, row by row, instead of
+ * the object graph of a double[][]. Where a TileArena is open, on a worker
+ * handling a task, the elements are read in chunks straight into a direct
+ * buffer of the arena, and the worker multiplies the tiles there. Elsewhere,
+ * on the manager, a tile is read back into a Matrix and arrives as one.
+ *
+ * The manager sends the blocks of a task as OffHeapTiles when it is started
+ * with --offheap, see wrap.
+ */
+public class OffHeapTile implements Externalizable {
+  // Doubles copied through the staging buffer at a time
+  private static final int CHUNK = 8192;
+
+  // Staging buffer of every thread, between the stream and the tile
+  private static final ThreadLocal<byte[]> STAGING = ThreadLocal.withInitial(() -> new byte[CHUNK * 8]);
+
+  private int M; // number of rows
+  private int N; // number of columns
+  private Matrix matrix; // the elements on the heap, or
+  private ByteBuffer buffer; // the elements off the heap, in native order
+
+  /**
+   * Create an empty tile, for deserialization only.
+   */
+  public OffHeapTile() {
+  }
+
+  // Creating a tile that sends the elements of a matrix.
+  private OffHeapTile(Matrix matrix) {
+    this.M = matrix.getM();
+    this.N = matrix.getN();
+    this.matrix = matrix;
+  }
+
+  // Creating a tile over a buffer of an arena.
+  private OffHeapTile(int M, int N, ByteBuffer buffer) {
+    this.M = M;
+    this.N = N;
+    this.buffer = buffer;
+  }
+
+  /**
+   * Returns the blocks of a task with every dense block as an OffHeapTile
+   *
+   * @param task the A blocks and the B blocks
+   * @return The task to send.
+   */
+  public static Object[][] wrap(Object[][] task) {
+    Object[][] payload = new Object[task.length][];
+    for (int i = 0; i < task.length; i++) {
+      payload[i] = new Object[task[i].length];
+      for (int j = 0; j < task[i].length; j++) {
+        payload[i][j] = task[i][j] instanceof Matrix ? new OffHeapTile((Matrix) task[i][j]) : task[i][j];
+      }
+    }
+    return payload;
+  }
+
+  /**
+   * Returns whether a task can be multiplied off the heap: all blocks are
+   * tiles read into an arena.
+   *
+   * @param data the A blocks and the B blocks
+   * @return Whether multiply takes the task.
+   */
+  public static boolean isOffHeap(Object[][] data) {
+    boolean any = false;
+    for (Object[] blocks : data) {
+      for (Object block : blocks) {
+        if (!(block instanceof OffHeapTile) || ((OffHeapTile) block).buffer == null) {
+          return false;
+        }
+        any = true;
+      }
+    }
+    return any;
+  }
+
+  /**
+   * Returns the blocks of a task with every OffHeapTile as a Matrix, for the
+   * kernels on the heap. Arrays of dense blocks become Matrix[].
+   *
+   * @param data the A blocks and the B blocks
+   * @return The blocks, data itself if there is no OffHeapTile.
+   */
+  public static Object[][] unwrap(Object[][] data) {
+    boolean wrapped = false;
+    for (Object[] blocks : data) {
+      for (Object block : blocks) {
+        wrapped |= block instanceof OffHeapTile;
+      }
+    }
+    if (!wrapped) {
+      return data;
+    }
+
+    Object[][] blocks = new Object[data.length][];
+    for (int i = 0; i < data.length; i++) {
+      boolean dense = true;
+      for (Object block : data[i]) {
+        dense &= block instanceof Matrix || block instanceof OffHeapTile;
+      }
+      blocks[i] = dense ? new Matrix[data[i].length] : new Object[data[i].length];
+      for (int j = 0; j < data[i].length; j++) {
+        blocks[i][j] = data[i][j] instanceof OffHeapTile ? ((OffHeapTile) data[i][j]).toMatrix() : data[i][j];
+      }
+    }
+    return blocks;
+  }
+
+  /**
+   * Multiply the tiles of a task off the heap: the sum of a[k] x b[k] over k,
+   * in bands of rows on the compute pool, into a tile of the arena
+   *
+   * @param a     the A tiles, read into the arena
+   * @param b     the B tiles, read into the arena
+   * @param arena the arena of the task
+   * @return The product, to be sent before the arena is closed.
+   */
+  public static OffHeapTile multiply(Object[] a, Object[] b, TileArena arena) {
+    int rows = ((OffHeapTile) a[0]).M;
+    int columns = ((OffHeapTile) b[0]).N;
+    // Every row is written whole, the buffer needs no clearing
+    OffHeapTile result = new OffHeapTile(rows, columns, arena.allocate(rows * columns));
+    ThreadPools.inBands(rows, (from, to) -> multiplyRows(a, b, result, from, to));
+    return result;
+  }
+
+  // The rows from to to of the product. Like RowMultiply, every element of a
+  // row of A scales a row of B into the row of C, so all reads are along rows.
+  // A row of C is summed up on the heap with the Kernels, which read the rows
+  // of B straight from their buffers, and is then stored in one piece.
+  private static void multiplyRows(Object[] a, Object[] b, OffHeapTile result, int from, int to) {
+    int n = result.N;
+    for (int k = 0; k < a.length; k++) {
+      OffHeapTile left = (OffHeapTile) a[k];
+      OffHeapTile right = (OffHeapTile) b[k];
+      if (left.N != right.M || left.M != result.M || right.N != n)
+        throw new RuntimeException("Illegal matrix dimensions.");
+    }
+
+    DoubleBuffer C = result.doubles();
+    double[] cRow = new double[n];
+    double[] aRow = new double[((OffHeapTile) a[0]).N];
+    for (int i = from; i < to; i++) {
+      Arrays.fill(cRow, 0);
+      for (int k = 0; k < a.length; k++) {
+        OffHeapTile left = (OffHeapTile) a[k];
+        ByteBuffer B = ((OffHeapTile) b[k]).buffer;
+        int inner = left.N;
+        if (aRow.length < inner) {
+          aRow = new double[inner];
+        }
+        left.doubles().get(i * inner, aRow, 0, inner);
+        for (int p = 0; p < inner; p++) {
+          if (aRow[p] != 0) {
+            Kernels.axpy(aRow[p], B, p * n, cRow, n);
+          }
+        }
+      }
+      C.put(i * n, cRow);
+    }
+  }
+
+  // A view of the elements off the heap.
+  private DoubleBuffer doubles() {
+    return buffer.duplicate().order(ByteOrder.nativeOrder()).asDoubleBuffer();
+  }
+
+  public int getM() {
+    return M;
+  }
+
+  public int getN() {
+    return N;
+  }
+
+  /**
+   * Returns the elements as a Matrix on the heap
+   *
+   * @return The matrix, a copy for a tile off the heap.
+   */
+  public Matrix toMatrix() {
+    if (matrix != null) {
+      return matrix;
+    }
+    Matrix copy = new Matrix(M, N);
+    DoubleBuffer elements = doubles();
+    for (int i = 0; i < M; i++) {
+      elements.get(copy.getRow(i));
+    }
+    return copy;
+  }
+
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    out.writeInt(M);
+    out.writeInt(N);
+    byte[] staging = STAGING.get();
+    DoubleBuffer stage = ByteBuffer.wrap(staging).asDoubleBuffer();
+
+    if (matrix != null) {
+      for (int i = 0; i < M; i++) {
+        double[] row = matrix.getRow(i);
+        for (int from = 0; from < N; from += CHUNK) {
+          int count = Math.min(CHUNK, N - from);
+          stage.clear();
+          stage.put(row, from, count);
+          out.write(staging, 0, count * 8);
+        }
+      }
+      return;
+    }
+
+    DoubleBuffer elements = doubles();
+    int total = M * N;
+    for (int from = 0; from < total; from += CHUNK) {
+      int count = Math.min(CHUNK, total - from);
+      stage.clear();
+      stage.put(elements.slice(from, count));
+      out.write(staging, 0, count * 8);
+    }
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException {
+    M = in.readInt();
+    N = in.readInt();
+    byte[] staging = STAGING.get();
+    DoubleBuffer stage = ByteBuffer.wrap(staging).asDoubleBuffer();
+
+    TileArena arena = TileArena.current();
+    if (arena == null) {
+      matrix = new Matrix(M, N);
+      for (int i = 0; i < M; i++) {
+        double[] row = matrix.getRow(i);
+        for (int from = 0; from < N; from += CHUNK) {
+          int count = Math.min(CHUNK, N - from);
+          in.readFully(staging, 0, count * 8);
+          stage.clear();
+          stage.get(row, from, count);
+        }
+      }
+      return;
+    }
+
+    buffer = arena.allocate(M * N);
+    DoubleBuffer elements = doubles();
+    int total = M * N;
+    for (int from = 0; from < total; from += CHUNK) {
+      int count = Math.min(CHUNK, total - from);
+      in.readFully(staging, 0, count * 8);
+      stage.clear().limit(count);
+      elements.put(stage);
+    }
+  }
+
+  // Read without an arena, the tile is just a Matrix.
+  private Object readResolve() {
+    return matrix != null ? matrix : this;
+  }
+}
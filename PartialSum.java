@@ -0,0 +1,28 @@
+import java.io.Serializable;
+
+/**
+ * A partial output tile sent from one worker to another, see TileTask.
+ */
+public class PartialSum implements Serializable {
+  private final long reductionId;
+  private final Matrix sum;
+
+  /**
+   * Create a partial sum
+   *
+   * @param reductionId the reduction it belongs to
+   * @param sum         the sum of the sender's slice and its children's
+   */
+  public PartialSum(long reductionId, Matrix sum) {
+    this.reductionId = reductionId;
+    this.sum = sum;
+  }
+
+  public long getReductionId() {
+    return reductionId;
+  }
+
+  public Matrix getSum() {
+    return sum;
+  }
+}
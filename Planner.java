@@ -0,0 +1,255 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.DoubleSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Picks how the manager runs a multiplication. A cost model estimates the
+ * time of each strategy from the matrix dimensions, the number of workers and
+ * measured rates:
+ *
+ * LOCAL: 2mkn / local flop rate, nothing crosses the network.
+ * DISTRIBUTED with s x s tiles of size t = P / s (P is the padded size): the
+ * manager sends s A blocks and s B blocks per tile and gets one back, so
+ * s^2 (2s + 1) t^2 doubles cross its link, and the s^2 tiles run in waves of
+ * as many tiles as there are workers.
+ * STRASSEN: one level of Strassen, 7 half-size products on the workers, the
+ * sums and differences on the manager.
+ *
+ * The rates start from conservative defaults and follow the measured local
+ * multiplications, tasks and link transfers. Every plan is kept in a short
+ * history for inspection.
+ */
+public class Planner {
+  // Logger for this class
+  private static final Logger LOGGER = Logger.getLogger(Planner.class.getName());
+
+  /**
+   * The ways to run a multiplication.
+   */
+  public enum Strategy {
+    LOCAL, DISTRIBUTED, STRASSEN
+  }
+
+  // Smallest tile worth sending to a worker
+  private static final int MIN_TILE = 16;
+
+  // Number of plans kept
+  private static final int HISTORY = 100;
+
+  // Weight of a new sample in the running averages
+  private static final double ALPHA = 0.2;
+
+  // Starting values of the rates
+  private static final double DEFAULT_LOCAL_FLOPS = 1e9;
+  private static final double DEFAULT_WORKER_FLOPS = 4e9;
+  private static final double DEFAULT_LINK_BYTES = 1.25e8; // 1 Gbit/s
+  private static final double TASK_LATENCY_SECONDS = 2e-3; // connect, serialize, schedule
+
+  private final DoubleSupplier measuredLink;
+  private double localFlops = DEFAULT_LOCAL_FLOPS;
+  private double workerFlops = DEFAULT_WORKER_FLOPS;
+  private final Deque<Plan> history = new ArrayDeque<>();
+
+  /**
+   * Create a planner
+   *
+   * @param measuredLink the measured link bandwidth in bytes per second, 0
+   *                     while there is no measurement
+   */
+  public Planner(DoubleSupplier measuredLink) {
+    this.measuredLink = measuredLink;
+  }
+
+  /**
+   * Plan the product of an m-by-k and a k-by-n matrix
+   *
+   * @param m             the rows of A
+   * @param k             the columns of A and rows of B
+   * @param n             the columns of B
+   * @param workers       the number of workers
+   * @param partitionSize the number of tiles if it is fixed, 0 to pick it
+   * @return The plan.
+   */
+  public synchronized Plan plan(int m, int k, int n, int workers, int partitionSize) {
+    int padded = Integer.highestOneBit(Math.max(1, Math.max(m, Math.max(k, n)) - 1)) << 1;
+    double link = linkBytesPerSecond();
+
+    double local = 2.0 * m * k * n / localFlops;
+
+    // The best number of tiles per side, or the fixed one
+    int side = 2;
+    double distributed = Double.POSITIVE_INFINITY;
+    if (partitionSize > 0) {
+      side = (int) Math.sqrt(partitionSize);
+      distributed = distributedSeconds(padded, side, workers, link);
+    } else {
+      for (int s = 2; s == 2 || padded / s >= MIN_TILE; s *= 2) {
+        double seconds = distributedSeconds(padded, s, workers, link);
+        if (seconds < distributed) {
+          distributed = seconds;
+          side = s;
+        }
+      }
+    }
+
+    double strassen = padded >= 2 * MIN_TILE ? strassenSeconds(padded, workers, link) : Double.POSITIVE_INFINITY;
+
+    Strategy strategy;
+    if (workers == 0) {
+      strategy = Strategy.LOCAL;
+    } else if (partitionSize > 0) {
+      strategy = Strategy.DISTRIBUTED;
+    } else if (local <= distributed && local <= strassen) {
+      strategy = Strategy.LOCAL;
+    } else {
+      strategy = strassen < distributed ? Strategy.STRASSEN : Strategy.DISTRIBUTED;
+    }
+
+    Plan plan = new Plan(strategy, m, k, n, workers, side * side, Math.max(1, padded / side), local, distributed,
+        strassen);
+    history.addLast(plan);
+    if (history.size() > HISTORY) {
+      history.removeFirst();
+    }
+    LOGGER.info("Planned " + plan);
+    return plan;
+  }
+
+  // s^2 tiles in waves over the workers, all of their blocks through the
+  // manager's link.
+  private double distributedSeconds(int padded, int side, int workers, double link) {
+    double tile = Math.max(1, padded / side);
+    double tiles = (double) side * side;
+    double waves = Math.ceil(tiles / Math.max(1, workers));
+    double bytes = tiles * (2 * side + 1) * tile * tile * 8;
+    double taskFlops = 2 * tile * tile * padded;
+    return bytes / link + waves * (taskFlops / workerFlops + TASK_LATENCY_SECONDS);
+  }
+
+  // 7 half-size products in waves over the workers, 18 half-size sums and
+  // differences on the manager.
+  private double strassenSeconds(int padded, int workers, double link) {
+    double half = padded / 2.0;
+    double waves = Math.ceil(7.0 / Math.max(1, workers));
+    double bytes = 7 * 3 * half * half * 8;
+    double taskFlops = 2 * half * half * half;
+    return bytes / link + waves * (taskFlops / workerFlops + TASK_LATENCY_SECONDS) + 18 * half * half / localFlops;
+  }
+
+  private double linkBytesPerSecond() {
+    double link = measuredLink.getAsDouble();
+    return link > 0 ? link : DEFAULT_LINK_BYTES;
+  }
+
+  /**
+   * Record a multiplication run on the manager
+   *
+   * @param flops the floating point operations, 2mkn
+   * @param nanos the time it took
+   */
+  public synchronized void recordLocal(double flops, long nanos) {
+    if (nanos > 0) {
+      localFlops = (1 - ALPHA) * localFlops + ALPHA * flops * 1e9 / nanos;
+    }
+  }
+
+  /**
+   * Record a dense task run on a worker. The time left after the transfer is
+   * taken as compute time. Tasks with sparse or compressed blocks are not
+   * recorded, their flops are not those of the dense product.
+   *
+   * @param task  the A blocks and the B blocks
+   * @param nanos the time from sending the task to receiving its result
+   */
+  public synchronized void recordTask(Object[][] task, long nanos) {
+    if (!(task[0] instanceof Matrix[]) || !(task[1] instanceof Matrix[])) {
+      return;
+    }
+
+    double flops = 0;
+    double bytes = 0;
+    Matrix[] aBlocks = (Matrix[]) task[0];
+    Matrix[] bBlocks = (Matrix[]) task[1];
+    for (int i = 0; i < aBlocks.length; i++) {
+      flops += 2.0 * aBlocks[i].getM() * aBlocks[i].getN() * bBlocks[i].getN();
+      bytes += 8.0 * (aBlocks[i].getM() * aBlocks[i].getN() + bBlocks[i].getM() * bBlocks[i].getN());
+    }
+    bytes += 8.0 * aBlocks[0].getM() * bBlocks[0].getN();
+
+    double seconds = nanos / 1e9 - bytes / linkBytesPerSecond() - TASK_LATENCY_SECONDS;
+    if (seconds > 0) {
+      workerFlops = (1 - ALPHA) * workerFlops + ALPHA * flops / seconds;
+    }
+  }
+
+  /**
+   * Returns the latest plans, oldest first
+   *
+   * @return The plans.
+   */
+  public synchronized List<Plan> getHistory() {
+    return new ArrayList<>(history);
+  }
+
+  /**
+   * The choice for one multiplication and the estimates it was made from.
+   */
+  public static class Plan {
+    private final Strategy strategy;
+    private final int m;
+    private final int k;
+    private final int n;
+    private final int workers;
+    private final int partitionSize;
+    private final int tileSize;
+    private final double localSeconds;
+    private final double distributedSeconds;
+    private final double strassenSeconds;
+
+    Plan(Strategy strategy, int m, int k, int n, int workers, int partitionSize, int tileSize, double localSeconds,
+        double distributedSeconds, double strassenSeconds) {
+      this.strategy = strategy;
+      this.m = m;
+      this.k = k;
+      this.n = n;
+      this.workers = workers;
+      this.partitionSize = partitionSize;
+      this.tileSize = tileSize;
+      this.localSeconds = localSeconds;
+      this.distributedSeconds = distributedSeconds;
+      this.strassenSeconds = strassenSeconds;
+    }
+
+    public Strategy getStrategy() {
+      return strategy;
+    }
+
+    /**
+     * Returns the number of tiles of the distributed strategy, a power of 4
+     *
+     * @return The partition size.
+     */
+    public int getPartitionSize() {
+      return partitionSize;
+    }
+
+    /**
+     * Returns the side of the tiles of the distributed strategy
+     *
+     * @return The tile size.
+     */
+    public int getTileSize() {
+      return tileSize;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s for %dx%dx%d on %d workers, %d tiles of %d: local %.4f s, distributed %.4f s, "
+          + "strassen %.4f s", strategy, m, k, n, workers, partitionSize, tileSize, localSeconds, distributedSeconds,
+          strassenSeconds);
+    }
+  }
+}
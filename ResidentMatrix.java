@@ -0,0 +1,211 @@
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+/**
+ * A matrix kept on the workers for many products with vectors. A is cut into
+ * one block of rows per worker and every block is put on its worker once.
+ * Every product A x is then one TileStore.Gemv per worker: the vector goes
+ * out, the worker's part of A x comes back. An iteration costs O(n) bytes on
+ * the network instead of the O(n^2) of sending A again. The requests go
+ * through the dispatcher, so on the manager they wait their turn and charge
+ * the memory budget like any other task.
+ *
+ * The iterative drivers, conjugate gradient and power iteration, run here on
+ * the manager and use only products with the resident matrix and vector
+ * operations.
+ */
+public class ResidentMatrix implements AutoCloseable {
+  // Logger for this class
+  private static final Logger LOGGER = Logger.getLogger(ResidentMatrix.class.getName());
+
+  private final InetSocketAddress[] workers;
+  private final TileStore.Dispatcher dispatcher;
+  private final int M; // number of rows
+  private final int N; // number of columns
+  private final int[] firstRows; // first row of every block, and M at the end
+  private final String prefix; // shared by all keys of this matrix
+
+  /**
+   * Put the blocks of rows of A on the workers
+   *
+   * @param A          the matrix
+   * @param workers    the workers to keep the blocks on, one block each
+   * @param dispatcher sends the requests to the workers
+   */
+  public ResidentMatrix(Matrix A, InetSocketAddress[] workers, TileStore.Dispatcher dispatcher) {
+    if (workers.length == 0) {
+      throw new IllegalStateException("No workers to keep the matrix on");
+    }
+    this.dispatcher = dispatcher;
+    this.M = A.getM();
+    this.N = A.getN();
+    this.prefix = "resident-" + Long.toHexString(ThreadLocalRandom.current().nextLong()) + "/";
+
+    // No empty blocks when there are more workers than rows
+    int blocks = Math.min(workers.length, Math.max(1, M));
+    this.workers = new InetSocketAddress[blocks];
+    this.firstRows = new int[blocks + 1];
+    List<CompletableFuture<Object>> puts = new ArrayList<>();
+    for (int b = 0; b < blocks; b++) {
+      this.workers[b] = workers[b];
+      firstRows[b] = b * M / blocks;
+      firstRows[b + 1] = (b + 1) * M / blocks;
+      Matrix block = new Matrix(firstRows[b + 1] - firstRows[b], N);
+      for (int r = 0; r < block.getM(); r++) {
+        System.arraycopy(A.getRow(firstRows[b] + r), 0, block.getRow(r), 0, N);
+      }
+      puts.add(dispatcher.submit(this.workers[b], new TileStore.Put(key(b), block), 8L * block.getM() * N));
+    }
+    ThreadPools.waitFor(puts);
+    LOGGER.info("Put a " + M + "x" + N + " matrix on " + blocks + " workers in blocks of rows");
+  }
+
+  /**
+   * Returns A x
+   *
+   * @param x the vector, one element per column of A
+   * @return The product, one element per row of A.
+   */
+  public double[] times(double[] x) {
+    if (x.length != N)
+      throw new RuntimeException("Illegal matrix dimensions.");
+    List<CompletableFuture<Object>> parts = new ArrayList<>();
+    for (int b = 0; b < workers.length; b++) {
+      // x goes out and the rows of the block come back
+      long bytes = 8L * (N + firstRows[b + 1] - firstRows[b]);
+      parts.add(dispatcher.submit(workers[b], new TileStore.Gemv(key(b), x), bytes));
+    }
+    ThreadPools.waitFor(parts);
+
+    double[] y = new double[M];
+    for (int b = 0; b < workers.length; b++) {
+      double[] part = (double[]) parts.get(b).join();
+      System.arraycopy(part, 0, y, firstRows[b], part.length);
+    }
+    return y;
+  }
+
+  /**
+   * Solve A x = b by conjugate gradient. A must be symmetric and positive
+   * definite. Every iteration is one product with the resident matrix.
+   *
+   * @param b             the right hand side
+   * @param tolerance     stop once the residual is this small relative to b
+   * @param maxIterations stop after this many iterations, converged or not
+   * @return The solution x.
+   */
+  public double[] conjugateGradient(double[] b, double tolerance, int maxIterations) {
+    if (M != N || b.length != M)
+      throw new RuntimeException("Illegal matrix dimensions.");
+
+    double[] x = new double[N];
+    double[] r = b.clone();
+    double[] p = b.clone();
+    double rr = Kernels.dot(r, r, N);
+    double target = tolerance * tolerance * rr;
+    int iteration = 0;
+    while (iteration < maxIterations && rr > target && rr > 0) {
+      double[] Ap = times(p);
+      double alpha = rr / Kernels.dot(p, Ap, N);
+      Kernels.axpy(alpha, p, x, N);
+      Kernels.axpy(-alpha, Ap, r, N);
+      double previous = rr;
+      rr = Kernels.dot(r, r, N);
+
+      // p = r + beta p
+      Kernels.scale(rr / previous, p, N);
+      Kernels.add(r, p, p, N);
+      iteration++;
+    }
+    LOGGER.info("Conjugate gradient stopped after " + iteration + " iterations, relative residual "
+        + Math.sqrt(rr / Math.max(Kernels.dot(b, b, N), Double.MIN_VALUE)));
+    return x;
+  }
+
+  /**
+   * Find the eigenvalue of A of largest magnitude and its eigenvector by
+   * power iteration. Every iteration is one product with the resident matrix.
+   *
+   * @param tolerance     stop once an iteration moves the unit vector by no
+   *                      more than this
+   * @param maxIterations stop after this many iterations, converged or not
+   * @return The eigenvalue and the eigenvector of length 1.
+   */
+  public Eigenpair powerIteration(double tolerance, int maxIterations) {
+    if (M != N)
+      throw new RuntimeException("Illegal matrix dimensions.");
+
+    // Start from a fixed vector with a part along almost any eigenvector
+    double[] x = new double[N];
+    for (int i = 0; i < N; i++) {
+      x[i] = 1.0 + (double) i / N;
+    }
+    Kernels.scale(1 / Math.sqrt(Kernels.dot(x, x, N)), x, N);
+
+    double value = 0;
+    int iteration = 0;
+    while (iteration < maxIterations) {
+      double[] y = times(x);
+      value = Kernels.dot(x, y, N); // the Rayleigh quotient, x has length 1
+      double norm = Math.sqrt(Kernels.dot(y, y, N));
+      if (norm == 0) {
+        break;
+      }
+      Kernels.scale((value < 0 ? -1 : 1) / norm, y, N);
+      iteration++;
+
+      double change = 0;
+      for (int i = 0; i < N; i++) {
+        change = Math.max(change, Math.abs(y[i] - x[i]));
+      }
+      x = y;
+      if (change <= tolerance) {
+        break;
+      }
+    }
+    LOGGER.info("Power iteration stopped after " + iteration + " iterations, eigenvalue " + value);
+    return new Eigenpair(value, x);
+  }
+
+  /**
+   * Forget the blocks on the workers.
+   */
+  @Override
+  public void close() {
+    List<CompletableFuture<Object>> drops = new ArrayList<>();
+    for (InetSocketAddress worker : workers) {
+      drops.add(dispatcher.submit(worker, new TileStore.Drop(prefix), 0));
+    }
+    ThreadPools.waitFor(drops);
+  }
+
+  /**
+   * An eigenvalue with its eigenvector, the result of a power iteration job.
+   */
+  public static class Eigenpair implements Serializable {
+    private final double value;
+    private final double[] vector;
+
+    Eigenpair(double value, double[] vector) {
+      this.value = value;
+      this.vector = vector;
+    }
+
+    public double getValue() {
+      return value;
+    }
+
+    public double[] getVector() {
+      return vector;
+    }
+  }
+
+  private String key(int block) {
+    return prefix + block;
+  }
+}
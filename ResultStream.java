@@ -0,0 +1,163 @@
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+
+/**
+ * A result sent to the client in bands of rows instead of as one Matrix. The
+ * manager sends a Header with the dimensions, then Band objects top to
+ * bottom. The client writes every band to a MatrixFile as it arrives, so it
+ * never holds more than one band of the result.
+ *
+ * On an object stream the manager resets the stream after every band, or both
+ * ends would keep every band they have seen for back references.
+ *
+ * The result stays charged to the memory budget of the manager while it is
+ * sent, and is dropped with release once it is.
+ */
+public class ResultStream implements Frames.Sequence {
+  // A band is about this many bytes
+  private static final int BAND_BYTES = 1 << 20;
+
+  private Matrix result; // null once released
+  private final int rowsPerBand;
+  private final MemoryBudget budget; // null for no limit
+  private final long bytes; // charged to the budget
+
+  /**
+   * Send a result in bands
+   *
+   * @param result the result
+   * @param budget the budget to charge the result to while it is sent, may be
+   *               null
+   */
+  public ResultStream(Matrix result, MemoryBudget budget) {
+    this.result = result;
+    this.rowsPerBand = Math.max(1, BAND_BYTES / Math.max(1, 8 * result.getN()));
+    this.budget = budget;
+    this.bytes = 8L * result.getM() * result.getN();
+    if (budget != null) {
+      budget.charge(bytes);
+    }
+  }
+
+  /**
+   * Drop the result once it is sent or the client is gone, and give its
+   * memory back to the budget. It may be called more than once.
+   */
+  public synchronized void release() {
+    if (result != null) {
+      result = null;
+      if (budget != null) {
+        budget.release(bytes);
+      }
+    }
+  }
+
+  /**
+   * The dimensions of the result, sent first.
+   */
+  public static class Header implements Serializable {
+    private final int M;
+    private final int N;
+
+    public Header(int M, int N) {
+      this.M = M;
+      this.N = N;
+    }
+  }
+
+  /**
+   * A band of rows of the result.
+   */
+  public static class Band implements Serializable {
+    private final int row; // index of the first row
+    private final Matrix rows;
+
+    public Band(int row, Matrix rows) {
+      this.row = row;
+      this.rows = rows;
+    }
+  }
+
+  /**
+   * Returns the header and the bands, a band is only copied out of the result
+   * when it is reached
+   *
+   * @return The objects to send.
+   */
+  @Override
+  public synchronized Iterator<Object> objects() {
+    if (result == null) {
+      throw new IllegalStateException("The result is released");
+    }
+    Matrix result = this.result;
+    return new Iterator<Object>() {
+      private int row = -1; // -1 until the header is sent
+
+      @Override
+      public boolean hasNext() {
+        return row < result.getM();
+      }
+
+      @Override
+      public Object next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        if (row < 0) {
+          row = 0;
+          return new Header(result.getM(), result.getN());
+        }
+        int rows = Math.min(rowsPerBand, result.getM() - row);
+        Matrix band = new Matrix(rows, result.getN());
+        for (int r = 0; r < rows; r++) {
+          System.arraycopy(result.getRow(row + r), 0, band.getRow(r), 0, result.getN());
+        }
+        row += rows;
+        return new Band(row - rows, band);
+      }
+    };
+  }
+
+  /**
+   * Send the result to an object stream
+   *
+   * @param outputStream the stream to the client
+   */
+  public void write(ObjectOutputStream outputStream) throws IOException {
+    for (Iterator<Object> objects = objects(); objects.hasNext();) {
+      outputStream.writeObject(objects.next());
+      outputStream.reset();
+    }
+    outputStream.flush();
+  }
+
+  /**
+   * Receive a result in bands and write it to a MatrixFile
+   *
+   * @param next reads the next object from the manager
+   * @param path the file to write
+   * @return The dimensions of the result, rows and columns.
+   */
+  public static int[] receive(Callable<Object> next, Path path) throws Exception {
+    Object first = next.call();
+    if (first instanceof Exception) {
+      throw (Exception) first;
+    }
+    Header header = (Header) first;
+
+    try (MatrixFile.Sink sink = MatrixFile.create(path, header.M, header.N)) {
+      int received = 0;
+      while (received < header.M) {
+        Band band = (Band) next.call();
+        sink.write(band.row, band.rows);
+        received += band.rows.getM();
+      }
+    }
+    return new int[] { header.M, header.N };
+  }
+}
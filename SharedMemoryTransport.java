@@ -0,0 +1,250 @@
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * A Transport for workers on the same host as the manager. Every such worker
+ * gets a segment, a memory-mapped file in /dev/shm that both processes map.
+ * The manager writes the A and B blocks of a task into the segment and sends
+ * the worker only a small SharedTask with their shapes. The worker reads the
+ * blocks from its mapping, computes, writes the result behind them and
+ * answers with an acknowledgement, after which the manager reads the result
+ * from its mapping. No tile goes through Java serialization or the loopback
+ * socket.
+ *
+ * A worker runs one task of a manager at a time, so one slot per worker is
+ * enough: the blocks from the start of the segment, the result right after
+ * them. The segment grows when a task does not fit.
+ *
+ * Other workers, and requests other than dense tasks, go through the fallback
+ * transport.
+ */
+public class SharedMemoryTransport implements Transport {
+  // Logger for this class
+  private static final Logger LOGGER = Logger.getLogger(SharedMemoryTransport.class.getName());
+
+  // Where the segments live, tmpfs when there is one
+  private static final Path DIRECTORY = Files.isWritable(Paths.get("/dev/shm")) ? Paths.get("/dev/shm")
+      : Paths.get(System.getProperty("java.io.tmpdir"));
+
+  // The mappings of the segments on the worker side, by path
+  private static final Map<String, MappedByteBuffer> mappings = new ConcurrentHashMap<>();
+
+  private final Transport fallback;
+  private final Map<InetSocketAddress, Segment> segments = new ConcurrentHashMap<>();
+
+  /**
+   * Create a shared memory transport
+   *
+   * @param fallback the transport for the control messages, for workers on
+   *                 other hosts and for everything but dense tasks
+   */
+  public SharedMemoryTransport(Transport fallback) {
+    this.fallback = fallback;
+  }
+
+  @Override
+  public Object call(InetSocketAddress worker, Object request) throws IOException, ClassNotFoundException {
+    if (!(request instanceof Object[][]) || !isLocal(worker)) {
+      return fallback.call(worker, request);
+    }
+    Object[][] task = (Object[][]) request;
+    if (!(task[0] instanceof Matrix[]) || !(task[1] instanceof Matrix[])) {
+      return fallback.call(worker, request);
+    }
+
+    Matrix[] aBlocks = (Matrix[]) task[0];
+    Matrix[] bBlocks = (Matrix[]) task[1];
+    Segment segment = segments.computeIfAbsent(worker, address -> new Segment(address));
+    synchronized (segment) {
+      SharedTask shared = new SharedTask(segment.path.toString(), aBlocks, bBlocks);
+      DoubleBuffer doubles = segment.map(shared.size());
+      int offset = 0;
+      for (Matrix block : aBlocks) {
+        offset = write(doubles, offset, block);
+      }
+      for (Matrix block : bBlocks) {
+        offset = write(doubles, offset, block);
+      }
+
+      Object reply = fallback.call(worker, shared);
+      if (!Boolean.TRUE.equals(reply)) {
+        return reply;
+      }
+
+      Matrix result = new Matrix(shared.resultRows, shared.resultColumns);
+      read(doubles, offset, result);
+      return result;
+    }
+  }
+
+  @Override
+  public double bytesPerSecond() {
+    // A memory copy, roughly
+    return 4e9;
+  }
+
+  /**
+   * Compute a task whose blocks are in shared memory, on the worker. The
+   * result is written behind the blocks.
+   *
+   * @param task the task
+   * @return An acknowledgement, or the reply of Worker.compute if it is not a
+   *         dense result.
+   */
+  public static Object serve(SharedTask task) throws IOException {
+    DoubleBuffer doubles = workerMapping(task.path, task.size());
+
+    int offset = 0;
+    Matrix[] aBlocks = new Matrix[task.blocks];
+    Matrix[] bBlocks = new Matrix[task.blocks];
+    for (int i = 0; i < task.blocks; i++) {
+      aBlocks[i] = new Matrix(task.aRows[i], task.aColumns[i]);
+      offset = read(doubles, offset, aBlocks[i]);
+    }
+    for (int i = 0; i < task.blocks; i++) {
+      bBlocks[i] = new Matrix(task.bRows[i], task.bColumns[i]);
+      offset = read(doubles, offset, bBlocks[i]);
+    }
+
+    Object reply = Worker.compute(new Matrix[][] { aBlocks, bBlocks });
+    if (!(reply instanceof Matrix)) {
+      return reply;
+    }
+    write(doubles, offset, (Matrix) reply);
+    Worker.release(reply);
+    return Boolean.TRUE;
+  }
+
+  // The worker's mapping of a segment, remapped when the manager has grown it.
+  private static DoubleBuffer workerMapping(String path, long bytes) throws IOException {
+    MappedByteBuffer mapping = mappings.get(path);
+    if (mapping == null || mapping.capacity() < bytes) {
+      try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ,
+          StandardOpenOption.WRITE)) {
+        mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+      }
+      mappings.put(path, mapping);
+    }
+    return mapping.duplicate().order(ByteOrder.nativeOrder()).asDoubleBuffer();
+  }
+
+  // Copy a matrix into the buffer at offset, in doubles. Returns the offset
+  // behind it.
+  private static int write(DoubleBuffer doubles, int offset, Matrix matrix) {
+    doubles.position(offset);
+    for (int i = 0; i < matrix.getM(); i++) {
+      doubles.put(matrix.getRow(i));
+    }
+    return doubles.position();
+  }
+
+  // Copy a matrix out of the buffer at offset, in doubles. Returns the offset
+  // behind it.
+  private static int read(DoubleBuffer doubles, int offset, Matrix matrix) {
+    doubles.position(offset);
+    for (int i = 0; i < matrix.getM(); i++) {
+      doubles.get(matrix.getRow(i));
+    }
+    return doubles.position();
+  }
+
+  // Whether the worker runs on this host.
+  private static boolean isLocal(InetSocketAddress worker) {
+    InetAddress address = worker.getAddress();
+    if (address == null) {
+      return false;
+    }
+    try {
+      return address.isLoopbackAddress() || NetworkInterface.getByInetAddress(address) != null;
+    } catch (SocketException e) {
+      return false;
+    }
+  }
+
+  /**
+   * The segment of one worker on the manager side.
+   */
+  private static class Segment {
+    private final Path path;
+    private MappedByteBuffer mapping;
+
+    Segment(InetSocketAddress worker) {
+      path = DIRECTORY.resolve("matrix-" + ProcessHandle.current().pid() + "-" + worker.getPort() + ".seg");
+      path.toFile().deleteOnExit();
+    }
+
+    // Map the segment with room for bytes, growing it if needed.
+    DoubleBuffer map(long bytes) throws IOException {
+      if (mapping == null || mapping.capacity() < bytes) {
+        long size = Math.max(bytes, mapping == null ? 0 : 2L * mapping.capacity());
+        if (size > Integer.MAX_VALUE) {
+          throw new IOException("Task of " + bytes + " bytes does not fit into a segment");
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE)) {
+          mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        LOGGER.info("Mapped " + size + " bytes of shared memory at " + path);
+      }
+      return mapping.duplicate().order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    }
+  }
+
+  /**
+   * The control message of a task in shared memory: where the segment is and
+   * the shapes of the blocks. The blocks lie one after the other from the
+   * start of the segment, row by row, all A blocks first, then all B blocks
+   * and then the result.
+   */
+  public static class SharedTask implements Serializable {
+    private final String path;
+    private final int blocks;
+    private final int[] aRows;
+    private final int[] aColumns;
+    private final int[] bRows;
+    private final int[] bColumns;
+    private final int resultRows;
+    private final int resultColumns;
+
+    SharedTask(String path, Matrix[] aBlocks, Matrix[] bBlocks) {
+      this.path = path;
+      this.blocks = aBlocks.length;
+      this.aRows = new int[blocks];
+      this.aColumns = new int[blocks];
+      this.bRows = new int[blocks];
+      this.bColumns = new int[blocks];
+      for (int i = 0; i < blocks; i++) {
+        aRows[i] = aBlocks[i].getM();
+        aColumns[i] = aBlocks[i].getN();
+        bRows[i] = bBlocks[i].getM();
+        bColumns[i] = bBlocks[i].getN();
+      }
+      this.resultRows = aRows[0];
+      this.resultColumns = bColumns[0];
+    }
+
+    // The bytes of the blocks and the result.
+    long size() {
+      long doubles = (long) resultRows * resultColumns;
+      for (int i = 0; i < blocks; i++) {
+        doubles += (long) aRows[i] * aColumns[i] + (long) bRows[i] * bColumns[i];
+      }
+      return doubles * 8;
+    }
+  }
+}
@@ -0,0 +1,31 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * The Transport over TCP: one connection per request, speaking either the
+ * object stream protocol of Manager.job or the frames of Manager.framedJob.
+ */
+public class SocketTransport implements Transport {
+  private final boolean framed;
+  private final AdaptiveCompression link;
+
+  /**
+   * Create a socket transport
+   *
+   * @param framed whether the workers run the non-blocking server and speak in
+   *               frames
+   * @param link   records the transfers, may be null
+   */
+  public SocketTransport(boolean framed, AdaptiveCompression link) {
+    this.framed = framed;
+    this.link = link;
+  }
+
+  @Override
+  public Object call(InetSocketAddress worker, Object request) throws IOException, ClassNotFoundException {
+    try (Socket socket = new Socket(worker.getHostName(), worker.getPort())) {
+      return framed ? Manager.framedJob(socket, request, link) : Manager.job(socket, request, link);
+    }
+  }
+}
@@ -0,0 +1,541 @@
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A sparse M-by-N matrix in compressed sparse row (CSR) form. Only the non-zero
+ * elements are stored, so a 1%-dense matrix costs roughly 1% of a dense
+ * {@link Matrix} in memory, in the multiplication kernels and on the wire.
+ *
+ * The compressed sparse column (CSC) form of a matrix is exactly the CSR form
+ * of its transpose, so {@link #transpose()} doubles as the CSR to CSC
+ * conversion.
+ */
+final public class SparseMatrix implements Serializable {
+  private final int M; // number of rows
+  private final int N; // number of columns
+  private final int[] rowPointers; // M + 1 offsets into columnIndices and values
+  private final int[] columnIndices; // column of every non-zero, sorted within a row
+  private final double[] values; // value of every non-zero
+
+  // Below this fraction of non-zeros a matrix is cheaper to handle in CSR form
+  public static final double DENSITY_THRESHOLD = 0.1;
+
+  // Creating a new SparseMatrix from already compressed arrays.
+  private SparseMatrix(int M, int N, int[] rowPointers, int[] columnIndices, double[] values) {
+    this.M = M;
+    this.N = N;
+    this.rowPointers = rowPointers;
+    this.columnIndices = columnIndices;
+    this.values = values;
+  }
+
+  /**
+   * Create an empty M-by-N sparse matrix
+   *
+   * @param M the number of rows
+   * @param N the number of columns
+   * @return A new SparseMatrix object with no non-zeros.
+   */
+  public static SparseMatrix empty(int M, int N) {
+    return new SparseMatrix(M, N, new int[M + 1], new int[0], new double[0]);
+  }
+
+  /**
+   * Compress a dense matrix, keeping only the non-zero elements
+   *
+   * @param A the dense matrix
+   * @return A new SparseMatrix object.
+   */
+  public static SparseMatrix fromDense(Matrix A) {
+    int M = A.getM();
+    int N = A.getN();
+    int[] rowPointers = new int[M + 1];
+
+    for (int i = 0; i < M; i++) {
+      double[] row = A.getRow(i);
+      int count = 0;
+      for (int j = 0; j < N; j++)
+        if (row[j] != 0.0)
+          count++;
+      rowPointers[i + 1] = rowPointers[i] + count;
+    }
+
+    int[] columnIndices = new int[rowPointers[M]];
+    double[] values = new double[rowPointers[M]];
+    for (int i = 0; i < M; i++) {
+      double[] row = A.getRow(i);
+      int k = rowPointers[i];
+      for (int j = 0; j < N; j++) {
+        if (row[j] != 0.0) {
+          columnIndices[k] = j;
+          values[k++] = row[j];
+        }
+      }
+    }
+
+    return new SparseMatrix(M, N, rowPointers, columnIndices, values);
+  }
+
+  /**
+   * Create a random M-by-N matrix where roughly density * M * N elements are
+   * set to a value between 0 and 1
+   *
+   * @param M       the number of rows in the matrix
+   * @param N       the number of columns in the matrix
+   * @param density the expected fraction of non-zero elements
+   * @return A new SparseMatrix object.
+   */
+  public static SparseMatrix random(int M, int N, double density) {
+    Matrix A = new Matrix(M, N);
+    for (int i = 0; i < M; i++)
+      for (int j = 0; j < N; j++)
+        if (Math.random() < density)
+          A.set(i, j, Math.random());
+    return fromDense(A);
+  }
+
+  /**
+   * Returns the number of rows in the matrix
+   *
+   * @return The value of the instance variable M.
+   */
+  public int getM() {
+    return M;
+  }
+
+  /**
+   * Returns the number of columns in the matrix
+   *
+   * @return The value of the instance variable N.
+   */
+  public int getN() {
+    return N;
+  }
+
+  /**
+   * Returns the number of stored non-zero elements
+   *
+   * @return The number of non-zeros.
+   */
+  public int nnz() {
+    return values.length;
+  }
+
+  /**
+   * Returns the fraction of elements that are non-zero
+   *
+   * @return A value between 0 and 1.
+   */
+  public double density() {
+    return M == 0 || N == 0 ? 0 : (double) values.length / ((double) M * N);
+  }
+
+  /**
+   * Return the value of the element at the ith row and jth column
+   *
+   * @param i The row of the matrix.
+   * @param j the column index
+   * @return The value of the element, 0 if it is not stored.
+   */
+  public double get(int i, int j) {
+    int k = Arrays.binarySearch(columnIndices, rowPointers[i], rowPointers[i + 1], j);
+    return k >= 0 ? values[k] : 0.0;
+  }
+
+  /**
+   * Expand the matrix back into a dense Matrix
+   *
+   * @return A new Matrix object.
+   */
+  public Matrix toDense() {
+    Matrix A = new Matrix(M, N);
+    for (int i = 0; i < M; i++) {
+      double[] row = A.getRow(i);
+      for (int k = rowPointers[i]; k < rowPointers[i + 1]; k++)
+        row[columnIndices[k]] = values[k];
+    }
+    return A;
+  }
+
+  /**
+   * Transpose the matrix. The result holds the CSC arrays of this matrix.
+   *
+   * @return A new SparseMatrix object.
+   */
+  public SparseMatrix transpose() {
+    int[] pointers = new int[N + 1];
+    for (int k = 0; k < values.length; k++)
+      pointers[columnIndices[k] + 1]++;
+    for (int j = 0; j < N; j++)
+      pointers[j + 1] += pointers[j];
+
+    int[] next = Arrays.copyOf(pointers, N);
+    int[] rows = new int[values.length];
+    double[] transposed = new double[values.length];
+    for (int i = 0; i < M; i++) {
+      for (int k = rowPointers[i]; k < rowPointers[i + 1]; k++) {
+        int position = next[columnIndices[k]]++;
+        rows[position] = i;
+        transposed[position] = values[k];
+      }
+    }
+
+    return new SparseMatrix(N, M, pointers, rows, transposed);
+  }
+
+  /**
+   * Grow the matrix with zeros until it is a square power of 2, like
+   * {@link Matrix#padding(Matrix)}. Only the row pointers are copied.
+   *
+   * @param a The matrix to be padded.
+   * @return The padded matrix.
+   */
+  public static SparseMatrix padding(SparseMatrix a) {
+    int length = (int) Math.pow(2, Math.ceil(Math.log(Math.max(a.M, a.N)) / Math.log(2)));
+    int[] pointers = Arrays.copyOf(a.rowPointers, length + 1);
+    Arrays.fill(pointers, a.M + 1, length + 1, a.rowPointers[a.M]);
+    return new SparseMatrix(length, length, pointers, a.columnIndices, a.values);
+  }
+
+  /**
+   * Divide the square matrix into blocks of size childMatrixLength, in the same
+   * row-major block order as {@link Matrix#divide(int)}. Every non-zero is
+   * visited twice, so the cost is independent of the block area.
+   *
+   * @param childMatrixLength The length of the child matrix.
+   * @return An array of sparse blocks.
+   */
+  public SparseMatrix[] divide(int childMatrixLength) {
+    if (childMatrixLength > M) {
+      throw new IllegalArgumentException("childMatrixLength should be less than or equal to M");
+    }
+
+    if (!Matrix.isPowerOfTwo(childMatrixLength)) {
+      throw new IllegalArgumentException("childMatrixLength should be a power of 2");
+    }
+
+    int len = M / childMatrixLength;
+    SparseMatrix[] groups = new SparseMatrix[len * len];
+
+    for (int blockRow = 0; blockRow < len; blockRow++) {
+      int firstRow = blockRow * childMatrixLength;
+
+      // Count the non-zeros of every block in this block row, row by row
+      int[][] pointers = new int[len][childMatrixLength + 1];
+      for (int r = 0; r < childMatrixLength; r++) {
+        int i = firstRow + r;
+        for (int blockCol = 0; blockCol < len; blockCol++)
+          pointers[blockCol][r + 1] = pointers[blockCol][r];
+        for (int k = rowPointers[i]; k < rowPointers[i + 1]; k++)
+          pointers[columnIndices[k] / childMatrixLength][r + 1]++;
+      }
+
+      int[][] columns = new int[len][];
+      double[][] blockValues = new double[len][];
+      for (int blockCol = 0; blockCol < len; blockCol++) {
+        columns[blockCol] = new int[pointers[blockCol][childMatrixLength]];
+        blockValues[blockCol] = new double[pointers[blockCol][childMatrixLength]];
+      }
+
+      // Scatter the non-zeros into their blocks
+      int[] next = new int[len];
+      for (int r = 0; r < childMatrixLength; r++) {
+        int i = firstRow + r;
+        for (int k = rowPointers[i]; k < rowPointers[i + 1]; k++) {
+          int blockCol = columnIndices[k] / childMatrixLength;
+          int position = next[blockCol]++;
+          columns[blockCol][position] = columnIndices[k] - blockCol * childMatrixLength;
+          blockValues[blockCol][position] = values[k];
+        }
+      }
+
+      for (int blockCol = 0; blockCol < len; blockCol++) {
+        groups[blockRow * len + blockCol] = new SparseMatrix(childMatrixLength, childMatrixLength,
+            pointers[blockCol], columns[blockCol], blockValues[blockCol]);
+      }
+    }
+
+    return groups;
+  }
+
+  /**
+   * Copy out the block of rows fromRow to toRow and columns fromCol to toCol,
+   * the ends exclusive. The columns of every row are found by binary search,
+   * so the cost is in the non-zeros of the block, not in its area.
+   *
+   * @param fromRow the first row
+   * @param toRow   the row after the last
+   * @param fromCol the first column
+   * @param toCol   the column after the last
+   * @return A new SparseMatrix object.
+   */
+  public SparseMatrix block(int fromRow, int toRow, int fromCol, int toCol) {
+    int rows = toRow - fromRow;
+    int[] pointers = new int[rows + 1];
+    int[] first = new int[rows];
+    for (int r = 0; r < rows; r++) {
+      int i = fromRow + r;
+      first[r] = position(rowPointers[i], rowPointers[i + 1], fromCol);
+      int end = position(first[r], rowPointers[i + 1], toCol);
+      pointers[r + 1] = pointers[r] + end - first[r];
+    }
+
+    int[] columns = new int[pointers[rows]];
+    double[] blockValues = new double[pointers[rows]];
+    for (int r = 0; r < rows; r++) {
+      int count = pointers[r + 1] - pointers[r];
+      System.arraycopy(values, first[r], blockValues, pointers[r], count);
+      for (int k = 0; k < count; k++)
+        columns[pointers[r] + k] = columnIndices[first[r] + k] - fromCol;
+    }
+
+    return new SparseMatrix(rows, toCol - fromCol, pointers, columns, blockValues);
+  }
+
+  // The first position in from..to of a row whose column is at least column.
+  private int position(int from, int to, int column) {
+    int k = Arrays.binarySearch(columnIndices, from, to, column);
+    return k >= 0 ? k : -k - 1;
+  }
+
+  /**
+   * Cut weighted rows into parts of about equal weight, at the prefix sums.
+   * Each row also counts one on top of its weight, so rows without any
+   * non-zeros still spread evenly, and every part keeps at least one row.
+   *
+   * @param weights the weight of every row, such as its non-zeros
+   * @param parts   the number of parts, at most the number of rows
+   * @return The first row of every part followed by the number of rows.
+   */
+  public static int[] balancedCuts(int[] weights, int parts) {
+    int n = weights.length;
+    parts = Math.max(1, Math.min(parts, n));
+    long[] prefix = new long[n + 1];
+    for (int i = 0; i < n; i++)
+      prefix[i + 1] = prefix[i] + weights[i] + 1;
+
+    int[] cuts = new int[parts + 1];
+    cuts[parts] = n;
+    int i = 0;
+    for (int p = 1; p < parts; p++) {
+      long target = prefix[n] * p / parts;
+      while (i < n && prefix[i] < target)
+        i++;
+      cuts[p] = Math.min(Math.max(i, cuts[p - 1] + 1), n - (parts - p));
+    }
+    return cuts;
+  }
+
+  /**
+   * Sparse-dense product (SpMM): add this matrix times the dense matrix B to C.
+   * Each non-zero a(i, k) scales row k of B into row i of C, so every access is
+   * along contiguous rows.
+   *
+   * @param B the dense right-hand side
+   * @param C the accumulator, M-by-B.getN()
+   */
+  public void timesInto(Matrix B, Matrix C) {
+    if (N != B.getM() || C.getM() != M || C.getN() != B.getN())
+      throw new RuntimeException("Illegal matrix dimensions.");
+
+    int columns = B.getN();
+    for (int i = 0; i < M; i++) {
+      double[] c = C.getRow(i);
+      for (int k = rowPointers[i]; k < rowPointers[i + 1]; k++) {
+        double a = values[k];
+        Kernels.axpy(a, B.getRow(columnIndices[k]), c, columns);
+      }
+    }
+  }
+
+  /**
+   * Sparse-sparse product (SpGEMM, Gustavson's row-by-row algorithm): add this
+   * matrix times the sparse matrix B to C.
+   *
+   * @param B the sparse right-hand side
+   * @param C the accumulator, M-by-B.getN()
+   */
+  public void timesInto(SparseMatrix B, Matrix C) {
+    if (N != B.M || C.getM() != M || C.getN() != B.N)
+      throw new RuntimeException("Illegal matrix dimensions.");
+
+    for (int i = 0; i < M; i++) {
+      double[] c = C.getRow(i);
+      for (int k = rowPointers[i]; k < rowPointers[i + 1]; k++) {
+        double a = values[k];
+        int row = columnIndices[k];
+        for (int l = B.rowPointers[row]; l < B.rowPointers[row + 1]; l++)
+          c[B.columnIndices[l]] += a * B.values[l];
+      }
+    }
+  }
+
+  /**
+   * Dense-sparse product: add the dense matrix A times the sparse matrix B to C.
+   * Zero elements of A are skipped.
+   *
+   * @param A the dense left-hand side
+   * @param B the sparse right-hand side
+   * @param C the accumulator, A.getM()-by-B.getN()
+   */
+  public static void timesInto(Matrix A, SparseMatrix B, Matrix C) {
+    if (A.getN() != B.M || C.getM() != A.getM() || C.getN() != B.N)
+      throw new RuntimeException("Illegal matrix dimensions.");
+
+    for (int i = 0; i < A.getM(); i++) {
+      double[] a = A.getRow(i);
+      double[] c = C.getRow(i);
+      for (int k = 0; k < B.M; k++) {
+        if (a[k] == 0.0)
+          continue;
+        for (int l = B.rowPointers[k]; l < B.rowPointers[k + 1]; l++)
+          c[B.columnIndices[l]] += a[k] * B.values[l];
+      }
+    }
+  }
+
+  /**
+   * Add A times B to C, where A and B are each either a Matrix or a
+   * SparseMatrix.
+   *
+   * @param A the left-hand block
+   * @param B the right-hand block
+   * @param C the dense accumulator
+   */
+  public static void multiplyAccumulate(Object A, Object B, Matrix C) {
+    if (A instanceof SparseMatrix && B instanceof SparseMatrix) {
+      ((SparseMatrix) A).timesInto((SparseMatrix) B, C);
+    } else if (A instanceof SparseMatrix) {
+      ((SparseMatrix) A).timesInto((Matrix) B, C);
+    } else if (B instanceof SparseMatrix) {
+      timesInto((Matrix) A, (SparseMatrix) B, C);
+    } else {
+      Matrix.gemm(1.0, (Matrix) A, (Matrix) B, 1.0, C);
+    }
+  }
+
+  /**
+   * Count the non-zeros of a block that is either a Matrix or a SparseMatrix
+   *
+   * @param block the block
+   * @return The number of non-zero elements.
+   */
+  public static int nnz(Object block) {
+    if (block instanceof SparseMatrix) {
+      return ((SparseMatrix) block).nnz();
+    }
+
+    Matrix A = (Matrix) block;
+    int count = 0;
+    for (int i = 0; i < A.getM(); i++) {
+      double[] row = A.getRow(i);
+      for (int j = 0; j < A.getN(); j++)
+        if (row[j] != 0.0)
+          count++;
+    }
+    return count;
+  }
+
+  /**
+   * Count the non-zeros of every row of a Matrix or a SparseMatrix
+   *
+   * @param block the matrix
+   * @return The number of non-zeros of each row.
+   */
+  public static int[] rowNonZeros(Object block) {
+    int[] counts = new int[rowsOf(block)];
+    if (block instanceof SparseMatrix) {
+      SparseMatrix S = (SparseMatrix) block;
+      for (int i = 0; i < S.M; i++)
+        counts[i] = S.rowPointers[i + 1] - S.rowPointers[i];
+      return counts;
+    }
+
+    Matrix A = (Matrix) block;
+    for (int i = 0; i < A.getM(); i++) {
+      double[] row = A.getRow(i);
+      for (int j = 0; j < A.getN(); j++)
+        if (row[j] != 0.0)
+          counts[i]++;
+    }
+    return counts;
+  }
+
+  /**
+   * Count the non-zeros of every column of a Matrix or a SparseMatrix
+   *
+   * @param block the matrix
+   * @return The number of non-zeros of each column.
+   */
+  public static int[] columnNonZeros(Object block) {
+    int[] counts = new int[columnsOf(block)];
+    if (block instanceof SparseMatrix) {
+      for (int column : ((SparseMatrix) block).columnIndices)
+        counts[column]++;
+      return counts;
+    }
+
+    Matrix A = (Matrix) block;
+    for (int i = 0; i < A.getM(); i++) {
+      double[] row = A.getRow(i);
+      for (int j = 0; j < A.getN(); j++)
+        if (row[j] != 0.0)
+          counts[j]++;
+    }
+    return counts;
+  }
+
+  /**
+   * Copy out a block of a Matrix or a SparseMatrix, keeping its kind
+   *
+   * @param block   the matrix
+   * @param fromRow the first row
+   * @param toRow   the row after the last
+   * @param fromCol the first column
+   * @param toCol   the column after the last
+   * @return The block, a Matrix or a SparseMatrix like the matrix.
+   */
+  public static Object block(Object block, int fromRow, int toRow, int fromCol, int toCol) {
+    if (block instanceof SparseMatrix) {
+      return ((SparseMatrix) block).block(fromRow, toRow, fromCol, toCol);
+    }
+
+    Matrix A = (Matrix) block;
+    Matrix copy = new Matrix(toRow - fromRow, toCol - fromCol);
+    for (int i = fromRow; i < toRow; i++)
+      System.arraycopy(A.getRow(i), fromCol, copy.getRow(i - fromRow), 0, toCol - fromCol);
+    return copy;
+  }
+
+  /**
+   * Returns the number of rows of a block that is either a Matrix or a
+   * SparseMatrix
+   *
+   * @param block the block
+   * @return The number of rows.
+   */
+  public static int rowsOf(Object block) {
+    return block instanceof SparseMatrix ? ((SparseMatrix) block).getM() : ((Matrix) block).getM();
+  }
+
+  /**
+   * Returns the number of columns of a block that is either a Matrix or a
+   * SparseMatrix
+   *
+   * @param block the block
+   * @return The number of columns.
+   */
+  public static int columnsOf(Object block) {
+    return block instanceof SparseMatrix ? ((SparseMatrix) block).getN() : ((Matrix) block).getN();
+  }
+
+  /**
+   * Expand a block that is either a Matrix or a SparseMatrix into a Matrix
+   *
+   * @param block the block
+   * @return The dense block.
+   */
+  public static Matrix toDense(Object block) {
+    return block instanceof SparseMatrix ? ((SparseMatrix) block).toDense() : (Matrix) block;
+  }
+}
@@ -0,0 +1,357 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * The executors every role runs its work on.
+ *
+ * IO runs work that mostly waits on sockets: client sessions, connections to
+ * workers and one task per dispatched chunk. On a JDK with virtual threads
+ * (21 and later) every such task gets its own virtual thread, so thousands of
+ * sessions and in-flight chunks cost no OS threads. On older JDKs it falls back
+ * to a cached pool of platform threads.
+ *
+ * The compute pools run the multiplication kernels on one platform thread per
+ * core, so the CPU-bound work never has more threads than the machine can run.
+ * On a host with one NUMA node that is a single pool. On a host with several,
+ * every node has a pool of its own with one thread per CPU of the node, bound
+ * to those CPUs where possible, and every task runs on one node, see
+ * enterNode and inBands. A node that runs out of work takes waiting bands
+ * from the others, see NodeQueue, so one busy node does not hold up a task
+ * while the cores of another are idle.
+ */
+public class ThreadPools {
+  // Logger for this class
+  private static final Logger LOGGER = Logger.getLogger(ThreadPools.class.getName());
+
+  // Executor for I/O-bound tasks
+  public static final ExecutorService IO = newIoExecutor();
+
+  // Marks the threads of the compute pools
+  private static final ThreadLocal<Boolean> COMPUTE_THREAD = ThreadLocal.withInitial(() -> false);
+
+  // The NUMA nodes the per-node pools are made for, see useTopology
+  private static NumaTopology topology;
+
+  // One pool per NUMA node, made on first use
+  private static volatile ExecutorService[] nodePools;
+
+  // Tasks running or waiting on every node
+  private static AtomicInteger[] nodeLoads;
+
+  // How often a waiting thread of a node pool looks at the other nodes
+  private static final long STEAL_MILLIS = 10;
+
+  // Use virtual threads when this JDK has them. They are looked up by
+  // reflection so the code still compiles and runs on JDK 17.
+  private static ExecutorService newIoExecutor() {
+    try {
+      ExecutorService executor = (ExecutorService) Executors.class
+          .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      LOGGER.info("Running I/O on virtual threads");
+      return executor;
+    } catch (ReflectiveOperationException e) {
+      LOGGER.info("Virtual threads are not available, running I/O on platform threads");
+      return Executors.newCachedThreadPool(daemonThreads("io"));
+    }
+  }
+
+  /**
+   * A thread factory for daemon threads named prefix-1, prefix-2, ...
+   *
+   * @param prefix the name of the threads
+   * @return The thread factory.
+   */
+  public static ThreadFactory daemonThreads(String prefix) {
+    AtomicInteger counter = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  // Daemon threads for a compute pool that know they belong to it.
+  private static ThreadFactory computeThreads() {
+    ThreadFactory threads = daemonThreads("compute");
+    return runnable -> threads.newThread(() -> {
+      COMPUTE_THREAD.set(true);
+      runnable.run();
+    });
+  }
+
+  /**
+   * Returns true on the threads of the compute pools. Work already on a compute
+   * pool must not wait for more work on the same pool, or a busy pool
+   * deadlocks.
+   *
+   * @return Whether the current thread is a compute thread.
+   */
+  public static boolean isComputeThread() {
+    return COMPUTE_THREAD.get();
+  }
+
+  /**
+   * Run CPU-bound work on the pool of the least busy node and wait for it. On
+   * a compute thread it runs right away instead.
+   *
+   * @param task the work
+   */
+  public static void runOnCompute(Runnable task) {
+    if (isComputeThread()) {
+      task.run();
+      return;
+    }
+    int node = enterNode();
+    try {
+      waitFor(Collections.singletonList(computeOn(node).submit(task)));
+    } finally {
+      leaveNode(node);
+    }
+  }
+
+  /**
+   * Work on a range of rows, see inBands
+   */
+  public interface Band {
+    void run(int from, int to);
+  }
+
+  /**
+   * Split rows into one band per core of the least busy node and run the
+   * bands on its pool, then wait for them. On a compute thread all rows run
+   * right away instead, the other cores are busy with other tasks.
+   *
+   * @param rows the number of rows
+   * @param band computes the rows from to to, the bands do not overlap
+   */
+  public static void inBands(int rows, Band band) {
+    if (isComputeThread()) {
+      band.run(0, rows);
+      return;
+    }
+    int node = enterNode();
+    try {
+      ExecutorService pool = computeOn(node);
+      int cores = Runtime.getRuntime().availableProcessors() / nodes();
+      int bands = Math.max(1, Math.min(rows, cores));
+      List<Future<?>> futures = new ArrayList<>();
+      for (int i = 0; i < bands; i++) {
+        int from = i * rows / bands;
+        int to = (i + 1) * rows / bands;
+        futures.add(pool.submit(() -> band.run(from, to)));
+      }
+      waitFor(futures);
+    } finally {
+      leaveNode(node);
+    }
+  }
+
+  /**
+   * Wait for all futures to complete. The first failure is rethrown once all
+   * of them are done, so no task is left running on a shared result.
+   *
+   * @param futures the futures to wait for
+   */
+  public static void waitFor(List<? extends Future<?>> futures) {
+    RuntimeException failure = null;
+
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failure = new IllegalStateException("Interrupted while waiting for tasks", e);
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+              : new IllegalStateException(e.getCause());
+        }
+      }
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Set the NUMA topology of the per-node pools. It has to be called before
+   * the first compute task runs, by default the topology is detected.
+   *
+   * @param nodes the topology
+   */
+  public static synchronized void useTopology(NumaTopology nodes) {
+    if (nodePools != null) {
+      throw new IllegalStateException("The node pools are already running");
+    }
+    topology = nodes;
+  }
+
+  /**
+   * Returns the number of NUMA nodes with a pool of their own
+   *
+   * @return The number of nodes, 1 if there are no per-node pools.
+   */
+  public static int nodes() {
+    return nodePools().length;
+  }
+
+  /**
+   * Take the node for a new task: the node with the fewest tasks, so tasks
+   * stay on their node and a node only gets more than its share while the
+   * others are busier. Give it back with leaveNode once the task is done.
+   *
+   * @return The node.
+   */
+  public static int enterNode() {
+    nodePools();
+    int best = 0;
+    for (int node = 1; node < nodeLoads.length; node++) {
+      if (nodeLoads[node].get() < nodeLoads[best].get()) {
+        best = node;
+      }
+    }
+    nodeLoads[best].incrementAndGet();
+    return best;
+  }
+
+  /**
+   * Give back a node taken with enterNode
+   *
+   * @param node the node
+   */
+  public static void leaveNode(int node) {
+    nodeLoads[node].decrementAndGet();
+  }
+
+  /**
+   * Returns the pool of a NUMA node, the one compute pool on a host with one
+   * node. Its threads are compute threads.
+   *
+   * @param node the node
+   * @return The pool.
+   */
+  public static ExecutorService computeOn(int node) {
+    return nodePools()[node];
+  }
+
+  // The pools, started on the first call. Only that call locks.
+  private static ExecutorService[] nodePools() {
+    ExecutorService[] pools = nodePools;
+    return pools != null ? pools : startNodePools();
+  }
+
+  private static synchronized ExecutorService[] startNodePools() {
+    if (nodePools == null) {
+      if (topology == null) {
+        topology = NumaTopology.detect();
+      }
+      int nodes = topology.getNodes();
+      AtomicInteger[] loads = new AtomicInteger[nodes];
+      ExecutorService[] pools = new ExecutorService[nodes];
+      NodeQueue[] queues = new NodeQueue[nodes];
+      for (int node = 0; node < nodes; node++) {
+        queues[node] = new NodeQueue(queues);
+      }
+      for (int node = 0; node < nodes; node++) {
+        loads[node] = new AtomicInteger();
+        pools[node] = nodes == 1
+            ? Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), computeThreads())
+            : newNodePool(node, queues[node]);
+      }
+      // The loads are set first, the pools publish them
+      nodeLoads = loads;
+      nodePools = pools;
+    }
+    return nodePools;
+  }
+
+  // A pool of one thread per CPU of the node, bound to the node. A thread
+  // starts with the CPUs of the thread that starts it, so one taskset binds a
+  // starter thread and the starter starts all threads of the pool, instead of
+  // a taskset process per thread.
+  private static ExecutorService newNodePool(int node, NodeQueue queue) {
+    NumaTopology nodes = topology;
+    int threads = nodes.getCpus(node).length;
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, queue,
+        computeThreads());
+    Thread starter = new Thread(() -> {
+      if (nodes.pin(node)) {
+        LOGGER.info("Bound the compute threads of node " + node + " to its CPUs");
+      }
+      pool.prestartAllCoreThreads();
+    }, "start-node-" + node);
+    starter.start();
+    try {
+      starter.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return pool;
+  }
+
+  /**
+   * The queue of a node pool. A band for a node whose threads are all busy
+   * goes to a node with a waiting thread instead, and a waiting thread looks
+   * for bands queued on the other nodes when it starts to wait and every
+   * STEAL_MILLIS after, in case a band came in just as it started.
+   */
+  private static class NodeQueue extends LinkedBlockingQueue<Runnable> {
+    private final NodeQueue[] queues; // the queues of all nodes, this one too
+    private final AtomicInteger waiting = new AtomicInteger(); // threads in take
+
+    NodeQueue(NodeQueue[] queues) {
+      this.queues = queues;
+    }
+
+    @Override
+    public boolean offer(Runnable band) {
+      // Only a band that would wait here moves
+      if (size() >= waiting.get()) {
+        for (NodeQueue other : queues) {
+          if (other != this && other.waiting.get() > other.size()) {
+            return other.offerHere(band);
+          }
+        }
+      }
+      return super.offer(band);
+    }
+
+    // Queue a band on this node, where a thread is waiting.
+    private boolean offerHere(Runnable band) {
+      return super.offer(band);
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+      waiting.incrementAndGet();
+      try {
+        while (true) {
+          Runnable band = poll();
+          for (int i = 0; band == null && i < queues.length; i++) {
+            band = queues[i] == this ? null : queues[i].poll();
+          }
+          if (band == null) {
+            band = poll(STEAL_MILLIS, TimeUnit.MILLISECONDS);
+          }
+          if (band != null) {
+            return band;
+          }
+        }
+      } finally {
+        waiting.decrementAndGet();
+      }
+    }
+  }
+}
@@ -0,0 +1,140 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The off-heap memory of one task on a worker. The tiles of the task are read
+ * from the socket into direct buffers of the arena, the kernels accumulate
+ * into a direct buffer of the arena, and closing the arena after the reply is
+ * sent gives all of them back at once. The buffers are kept in a pool shared
+ * by all arenas, like MatrixPool, so a worker that runs the same tile size
+ * again and again stops allocating altogether and the tiles never reach the
+ * garbage collector.
+ *
+ * The arena of a task is open on the thread that reads, handles and answers
+ * the request, see open and current.
+ */
+public class TileArena implements AutoCloseable {
+  // Most buffers kept per size, the rest is left to the garbage collector
+  private static final int MAX_PER_SIZE = 16;
+
+  // Free buffers by capacity
+  private static final Map<Integer, Queue<ByteBuffer>> FREE = new ConcurrentHashMap<>();
+
+  // Number of free buffers by capacity, ConcurrentLinkedQueue.size() walks
+  // the whole queue
+  private static final Map<Integer, AtomicInteger> COUNTS = new ConcurrentHashMap<>();
+
+  // The arena open on this thread
+  private static final ThreadLocal<TileArena> CURRENT = new ThreadLocal<>();
+
+  // Zeros to clear buffers with
+  private static final byte[] ZEROS = new byte[1 << 16];
+
+  private final List<ByteBuffer> buffers = new ArrayList<>();
+  private final TileArena previous;
+
+  private TileArena(TileArena previous) {
+    this.previous = previous;
+  }
+
+  /**
+   * Open an arena on this thread. Tiles read on this thread until it is
+   * closed are kept off the heap in it.
+   *
+   * @return The arena, to be closed on this thread once the reply is sent.
+   */
+  public static TileArena open() {
+    TileArena arena = new TileArena(CURRENT.get());
+    CURRENT.set(arena);
+    return arena;
+  }
+
+  /**
+   * Returns the arena open on this thread
+   *
+   * @return The arena, null if there is none.
+   */
+  public static TileArena current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Close the arena open on this thread, if there is one.
+   */
+  public static void closeCurrent() {
+    TileArena arena = CURRENT.get();
+    if (arena != null) {
+      arena.close();
+    }
+  }
+
+  /**
+   * Take a direct buffer of doubles in native order from the arena. Its
+   * content is undefined.
+   *
+   * @param doubles the number of doubles
+   * @return The buffer, owned by the arena.
+   */
+  public synchronized ByteBuffer allocate(int doubles) {
+    if (doubles > Integer.MAX_VALUE / 8) {
+      throw new IllegalArgumentException("A tile of " + doubles + " doubles does not fit into one buffer");
+    }
+    int capacity = doubles * 8;
+    Queue<ByteBuffer> free = FREE.get(capacity);
+    ByteBuffer buffer = free == null ? null : free.poll();
+    if (buffer == null) {
+      buffer = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    } else {
+      COUNTS.get(capacity).decrementAndGet();
+      buffer.clear();
+    }
+    buffers.add(buffer);
+    return buffer;
+  }
+
+  /**
+   * Take a direct buffer of doubles from the arena, all 0's
+   *
+   * @param doubles the number of doubles
+   * @return The buffer, owned by the arena.
+   */
+  public ByteBuffer allocateZeroed(int doubles) {
+    ByteBuffer buffer = allocate(doubles);
+    while (buffer.hasRemaining()) {
+      buffer.put(ZEROS, 0, Math.min(ZEROS.length, buffer.remaining()));
+    }
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Give all buffers of the arena back to the pool. The tiles in them must not
+   * be used afterwards.
+   */
+  @Override
+  public synchronized void close() {
+    for (ByteBuffer buffer : buffers) {
+      AtomicInteger count = COUNTS.computeIfAbsent(buffer.capacity(), k -> new AtomicInteger());
+      if (count.incrementAndGet() > MAX_PER_SIZE) {
+        count.decrementAndGet();
+        continue;
+      }
+      FREE.computeIfAbsent(buffer.capacity(), k -> new ConcurrentLinkedQueue<>()).offer(buffer);
+    }
+    buffers.clear();
+    if (CURRENT.get() == this) {
+      if (previous == null) {
+        CURRENT.remove();
+      } else {
+        CURRENT.set(previous);
+      }
+    }
+  }
+}
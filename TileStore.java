@@ -0,0 +1,223 @@
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tiles kept on a worker between tasks, by key. A job that works on the same
+ * matrices again and again, like MatrixPower, leaves its tiles on the
+ * workers: every tile has an owner worker, tasks name the tiles they need,
+ * and a worker fetches a tile it does not have from its owner once and keeps
+ * the copy. Only the tiles a task needs cross the network, and only once per
+ * worker.
+ *
+ * The requests are Put, Get, Drop, Multiply and Gemv. The keys of a job share
+ * a prefix, so Drop removes all of them at the end. Every Worker has a store
+ * of its own, so workers in one JVM do not see each other's tiles.
+ */
+public class TileStore {
+  // The tiles of this worker, owned or copied from their owners
+  private final Map<String, CompletableFuture<Matrix>> tiles = new ConcurrentHashMap<>();
+
+  /**
+   * Sends requests to the tile stores of given workers. The manager runs them
+   * like its other tasks: in turn, on the worker once it is free, with their
+   * bytes charged to its memory budget.
+   */
+  public interface Dispatcher {
+    /**
+     * Send a request to a worker
+     *
+     * @param worker  the worker whose store the request is for
+     * @param request the request
+     * @param bytes   the bytes the request and its answer hold on the sender
+     * @return A future of the answer.
+     */
+    CompletableFuture<Object> submit(InetSocketAddress worker, Request request, long bytes);
+  }
+
+  /**
+   * A request to the tile store of a worker.
+   */
+  public interface Request extends Serializable {
+  }
+
+  /**
+   * Keep a tile. Answered with an acknowledgement.
+   */
+  public static class Put implements Request {
+    private final String key;
+    private final Matrix tile;
+
+    public Put(String key, Matrix tile) {
+      this.key = key;
+      this.tile = tile;
+    }
+  }
+
+  /**
+   * Send a tile this worker owns. Answered with the tile in a Matrix[] of
+   * one, the servers give Matrix replies back to the pool once they are sent.
+   */
+  public static class Get implements Request {
+    private final String key;
+
+    public Get(String key) {
+      this.key = key;
+    }
+  }
+
+  /**
+   * Forget all tiles whose keys start with the prefix, owned or copied.
+   * Answered with an acknowledgement.
+   */
+  public static class Drop implements Request {
+    private final String prefix;
+
+    public Drop(String prefix) {
+      this.prefix = prefix;
+    }
+  }
+
+  /**
+   * Compute the tile sum of a[k] x b[k] over k and keep it under outKey. The
+   * tiles are fetched from their owners if this worker does not have them.
+   * If compareKey is set, the answer is the largest difference between the
+   * new tile and the tile under compareKey, which this worker must own;
+   * otherwise it is 0.
+   */
+  public static class Multiply implements Request {
+    private final String[] aKeys;
+    private final InetSocketAddress[] aOwners;
+    private final String[] bKeys;
+    private final InetSocketAddress[] bOwners;
+    private final String outKey;
+    private final String compareKey;
+
+    public Multiply(String[] aKeys, InetSocketAddress[] aOwners, String[] bKeys, InetSocketAddress[] bOwners,
+        String outKey, String compareKey) {
+      this.aKeys = aKeys;
+      this.aOwners = aOwners;
+      this.bKeys = bKeys;
+      this.bOwners = bOwners;
+      this.outKey = outKey;
+      this.compareKey = compareKey;
+    }
+  }
+
+  /**
+   * Multiply the tile under key, which this worker must own, by the vector x.
+   * Answered with the product, a double[] with one element per row of the
+   * tile. Only the vector and the product cross the network, see
+   * ResidentMatrix.
+   */
+  public static class Gemv implements Request {
+    private final String key;
+    private final double[] x;
+
+    public Gemv(String key, double[] x) {
+      this.key = key;
+      this.x = x;
+    }
+  }
+
+  /**
+   * Handle a request on this worker
+   *
+   * @param request the request
+   * @param peers   the transport to the owners of tiles
+   * @return The answer.
+   */
+  public Object handle(Request request, Transport peers) {
+    if (request instanceof Put) {
+      Put put = (Put) request;
+      tiles.put(put.key, CompletableFuture.completedFuture(put.tile));
+      return Boolean.TRUE;
+    }
+
+    if (request instanceof Get) {
+      CompletableFuture<Matrix> tile = tiles.get(((Get) request).key);
+      if (tile == null) {
+        throw new IllegalStateException("No tile " + ((Get) request).key);
+      }
+      return new Matrix[] { tile.join() };
+    }
+
+    if (request instanceof Drop) {
+      String prefix = ((Drop) request).prefix;
+      tiles.keySet().removeIf(key -> key.startsWith(prefix));
+      return Boolean.TRUE;
+    }
+
+    if (request instanceof Gemv) {
+      Gemv gemv = (Gemv) request;
+      return gemv(tile(gemv.key, null, peers), gemv.x);
+    }
+
+    Multiply multiply = (Multiply) request;
+    int n = multiply.aKeys.length;
+    Matrix[] aBlocks = new Matrix[n];
+    Matrix[] bBlocks = new Matrix[n];
+    for (int k = 0; k < n; k++) {
+      aBlocks[k] = tile(multiply.aKeys[k], multiply.aOwners[k], peers);
+      bBlocks[k] = tile(multiply.bKeys[k], multiply.bOwners[k], peers);
+    }
+
+    Matrix product = (Matrix) Worker.compute(new Matrix[][] { aBlocks, bBlocks });
+    tiles.put(multiply.outKey, CompletableFuture.completedFuture(product));
+
+    if (multiply.compareKey == null) {
+      return 0.0;
+    }
+    Matrix previous = tile(multiply.compareKey, null, peers);
+    double difference = 0;
+    for (int i = 0; i < product.getM(); i++) {
+      double[] row = product.getRow(i);
+      double[] previousRow = previous.getRow(i);
+      for (int j = 0; j < row.length; j++) {
+        difference = Math.max(difference, Math.abs(row[j] - previousRow[j]));
+      }
+    }
+    return difference;
+  }
+
+  // A x, in bands of rows on the compute pool.
+  private static double[] gemv(Matrix A, double[] x) {
+    if (x.length != A.getN())
+      throw new RuntimeException("Illegal matrix dimensions.");
+    double[] y = new double[A.getM()];
+    ThreadPools.inBands(y.length, (from, to) -> gemvRows(A, x, y, from, to));
+    return y;
+  }
+
+  private static void gemvRows(Matrix A, double[] x, double[] y, int from, int to) {
+    for (int i = from; i < to; i++) {
+      y[i] = Kernels.dot(A.getRow(i), x, x.length);
+    }
+  }
+
+  // The tile under key, fetched from its owner the first time. Tasks that
+  // need the same tile at once wait for one fetch.
+  private Matrix tile(String key, InetSocketAddress owner, Transport peers) {
+    CompletableFuture<Matrix> tile = tiles.get(key);
+    if (tile == null) {
+      if (owner == null) {
+        throw new IllegalStateException("No tile " + key);
+      }
+      CompletableFuture<Matrix> fetch = new CompletableFuture<>();
+      tile = tiles.putIfAbsent(key, fetch);
+      if (tile == null) {
+        tile = fetch;
+        try {
+          fetch.complete(((Matrix[]) peers.call(owner, new Get(key)))[0]);
+        } catch (IOException | ClassNotFoundException | RuntimeException e) {
+          tiles.remove(key, fetch);
+          fetch.completeExceptionally(e);
+        }
+      }
+    }
+    return tile.join();
+  }
+}
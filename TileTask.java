@@ -0,0 +1,57 @@
+import java.io.Serializable;
+import java.net.InetSocketAddress;
+
+/**
+ * One slice of the inner dimension of an output tile, for the 2.5D
+ * decomposition. Each of the c workers of a tile multiplies its share of the
+ * A and B blocks into a partial tile. The workers form a binary tree: a worker
+ * waits for the partial sums of its children, adds its own and sends the sum
+ * to its parent as a PartialSum. The root answers the manager with the whole
+ * tile, the others answer with an acknowledgement. The partial tiles never
+ * pass through the manager.
+ */
+public class TileTask implements Serializable {
+  private final Object[] aBlocks;
+  private final Object[] bBlocks;
+  private final long reductionId;
+  private final int children;
+  private final InetSocketAddress parent;
+
+  /**
+   * Create a slice of an output tile
+   *
+   * @param aBlocks     the A blocks of the slice
+   * @param bBlocks     the B blocks of the slice
+   * @param reductionId the same for all slices of the tile
+   * @param children    the number of partial sums to wait for
+   * @param parent      the worker to send the sum to, null for the root
+   */
+  public TileTask(Object[] aBlocks, Object[] bBlocks, long reductionId, int children, InetSocketAddress parent) {
+    this.aBlocks = aBlocks;
+    this.bBlocks = bBlocks;
+    this.reductionId = reductionId;
+    this.children = children;
+    this.parent = parent;
+  }
+
+  /**
+   * Returns the A and B blocks as a task for Worker.compute
+   *
+   * @return The blocks.
+   */
+  public Object[][] getBlocks() {
+    return new Object[][] { aBlocks, bBlocks };
+  }
+
+  public long getReductionId() {
+    return reductionId;
+  }
+
+  public int getChildren() {
+    return children;
+  }
+
+  public InetSocketAddress getParent() {
+    return parent;
+  }
+}
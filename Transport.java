@@ -0,0 +1,51 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Carries a request to a worker and its answer back. The manager talks to its
+ * workers, and the workers to their peers, only through a Transport, so the
+ * same scheduling code runs over sockets (SocketTransport) or inside one JVM
+ * (LocalTransport).
+ *
+ * A request belongs to the receiver once it is sent, the sender must not
+ * change or recycle it.
+ */
+public interface Transport {
+  /**
+   * Send a request to a worker and wait for its answer
+   *
+   * @param worker  the address of the worker
+   * @param request a task, a TileTask or a PartialSum
+   * @return The answer of the worker.
+   */
+  Object call(InetSocketAddress worker, Object request) throws IOException, ClassNotFoundException;
+
+  /**
+   * Send a request to a worker on an I/O thread
+   *
+   * @param worker  the address of the worker
+   * @param request the request
+   * @return The answer of the worker, failed with an IllegalStateException if
+   *         the request could not be sent.
+   */
+  default CompletableFuture<Object> callAsync(InetSocketAddress worker, Object request) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return call(worker, request);
+      } catch (IOException | ClassNotFoundException e) {
+        throw new IllegalStateException("Request to worker " + Helper.inetSocketAddressToString(worker)
+            + " failed: " + e.getMessage(), e);
+      }
+    }, ThreadPools.IO);
+  }
+
+  /**
+   * Returns the bandwidth of the transport if it is known in advance
+   *
+   * @return The bandwidth in bytes per second, 0 if it has to be measured.
+   */
+  default double bytesPerSecond() {
+    return 0;
+  }
+}
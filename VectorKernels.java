@@ -0,0 +1,111 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/******************************************************************************
+ * Compilation: javac --add-modules jdk.incubator.vector VectorKernels.java
+ * Execution: java --add-modules jdk.incubator.vector Worker 9001
+ *
+ * SIMD backend for Kernels, loaded by name so that the rest of the code
+ * compiles and runs without the incubator module.
+ ******************************************************************************/
+
+/**
+ * The Kernels backend on the JDK Vector API. It uses the widest species the
+ * CPU prefers, for example 8 doubles with AVX-512, and does the tail of every
+ * row with scalar code.
+ */
+public class VectorKernels implements Kernels.Backend {
+  private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+  @Override
+  public void axpy(double a, double[] x, double[] y, int n) {
+    DoubleVector scale = DoubleVector.broadcast(SPECIES, a);
+    int upper = SPECIES.loopBound(n);
+    int i = 0;
+    for (; i < upper; i += SPECIES.length()) {
+      DoubleVector vx = DoubleVector.fromArray(SPECIES, x, i);
+      DoubleVector vy = DoubleVector.fromArray(SPECIES, y, i);
+      vx.lanewise(VectorOperators.FMA, scale, vy).intoArray(y, i);
+    }
+    for (; i < n; i++)
+      y[i] += a * x[i];
+  }
+
+  @Override
+  public void axpy(double a, ByteBuffer x, int offset, double[] y, int n) {
+    DoubleVector scale = DoubleVector.broadcast(SPECIES, a);
+    ByteOrder order = ByteOrder.nativeOrder();
+    int upper = SPECIES.loopBound(n);
+    int i = 0;
+    for (; i < upper; i += SPECIES.length()) {
+      DoubleVector vx = DoubleVector.fromByteBuffer(SPECIES, x, (offset + i) * 8, order);
+      DoubleVector vy = DoubleVector.fromArray(SPECIES, y, i);
+      vx.lanewise(VectorOperators.FMA, scale, vy).intoArray(y, i);
+    }
+    for (; i < n; i++)
+      y[i] += a * x.getDouble((offset + i) * 8);
+  }
+
+  @Override
+  public void add(double[] a, double[] b, double[] c, int n) {
+    int upper = SPECIES.loopBound(n);
+    int i = 0;
+    for (; i < upper; i += SPECIES.length()) {
+      DoubleVector va = DoubleVector.fromArray(SPECIES, a, i);
+      DoubleVector vb = DoubleVector.fromArray(SPECIES, b, i);
+      va.add(vb).intoArray(c, i);
+    }
+    for (; i < n; i++)
+      c[i] = a[i] + b[i];
+  }
+
+  @Override
+  public void subtract(double[] a, double[] b, double[] c, int n) {
+    int upper = SPECIES.loopBound(n);
+    int i = 0;
+    for (; i < upper; i += SPECIES.length()) {
+      DoubleVector va = DoubleVector.fromArray(SPECIES, a, i);
+      DoubleVector vb = DoubleVector.fromArray(SPECIES, b, i);
+      va.sub(vb).intoArray(c, i);
+    }
+    for (; i < n; i++)
+      c[i] = a[i] - b[i];
+  }
+
+  @Override
+  public void scale(double a, double[] x, int n) {
+    int upper = SPECIES.loopBound(n);
+    int i = 0;
+    for (; i < upper; i += SPECIES.length()) {
+      DoubleVector.fromArray(SPECIES, x, i).mul(a).intoArray(x, i);
+    }
+    for (; i < n; i++)
+      x[i] *= a;
+  }
+
+  // One partial sum per lane, added up across the lanes once at the end.
+  @Override
+  public double dot(double[] x, double[] y, int n) {
+    DoubleVector sums = DoubleVector.zero(SPECIES);
+    int upper = SPECIES.loopBound(n);
+    int i = 0;
+    for (; i < upper; i += SPECIES.length()) {
+      DoubleVector vx = DoubleVector.fromArray(SPECIES, x, i);
+      DoubleVector vy = DoubleVector.fromArray(SPECIES, y, i);
+      sums = vx.lanewise(VectorOperators.FMA, vy, sums);
+    }
+    double sum = sums.reduceLanes(VectorOperators.ADD);
+    for (; i < n; i++)
+      sum += x[i] * y[i];
+    return sum;
+  }
+
+  @Override
+  public String name() {
+    return "vector (" + SPECIES + ")";
+  }
+}
@@ -0,0 +1,178 @@
+import java.io.IOException;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Warming up a new process before it serves. A fresh JVM runs the kernels
+ * interpreted or with the quick C1 compiler until they have run often enough
+ * for C2, and loads the classes of Java serialization on the first readObject,
+ * so the first tasks of a new worker are several times slower than the rest.
+ *
+ * A worker started with --warmup runs tasks of the expected tile sizes
+ * through the same path as real ones, Frames and Worker.handle, before it opens
+ * its port: dense, off the heap, compressed and sparse. It repeats them until
+ * a round is no longer faster than the best one before it, that is until the
+ * kernels are compiled, or until the time is up. The Manager sees the worker
+ * only once it accepts connections, so it is never sent a task cold.
+ *
+ * The same runs are the training runs of a class-data sharing archive, see
+ * --train of Worker and Manager.
+ */
+public class Warmup {
+  // Logger for this class
+  private static final Logger LOGGER = Logger.getLogger(Warmup.class.getName());
+
+  // Rounds at least this much faster than the best one are still warming up
+  private static final double IMPROVEMENT = 0.05;
+
+  // Rounds in a row without improvement that count as compiled
+  private static final int STEADY_ROUNDS = 3;
+
+  // Density of the sparse tiles
+  private static final double SPARSE_DENSITY = 0.01;
+
+  /**
+   * Warm up the kernels of a worker
+   *
+   * @param worker       the worker, not yet serving
+   * @param tileSizes    the expected tile sizes
+   * @param budgetMillis stop after this long, warm or not
+   * @return Whether the rounds became steady within the time.
+   */
+  public static boolean worker(Worker worker, int[] tileSizes, long budgetMillis) {
+    long start = System.nanoTime();
+    long deadline = start + budgetMillis * 1_000_000;
+    long compiling = compilationMillis();
+
+    long first = 0;
+    long best = Long.MAX_VALUE;
+    int rounds = 0;
+    int steady = 0;
+    Level level = quiet();
+    try {
+      while (steady < STEADY_ROUNDS && System.nanoTime() < deadline) {
+        long round = System.nanoTime();
+        for (int n : tileSizes) {
+          runTasks(worker, n);
+        }
+        round = System.nanoTime() - round;
+
+        first = rounds == 0 ? round : first;
+        steady = round >= best * (1 - IMPROVEMENT) ? steady + 1 : 0;
+        best = Math.min(best, round);
+        rounds++;
+      }
+    } catch (IOException | ClassNotFoundException e) {
+      throw new IllegalStateException("Warm-up failed: " + e.getMessage(), e);
+    } finally {
+      loud(level);
+    }
+
+    LOGGER.info("Warm-up " + (steady < STEADY_ROUNDS ? "ran out of time" : "done") + " after " + rounds
+        + " rounds in " + (System.nanoTime() - start) / 1_000_000 + " ms, a round went from " + first / 1_000_000
+        + " ms to " + best / 1_000_000 + " ms, " + (compilationMillis() - compiling) + " ms of JIT compilation");
+    return steady >= STEADY_ROUNDS;
+  }
+
+  // One task of every kind with tiles of n x n, sent and answered through
+  // frames like over the network.
+  private static void runTasks(Worker worker, int n) throws IOException, ClassNotFoundException {
+    Object[][] task = new Object[][] { new Matrix[] { Matrix.random(n, n) }, new Matrix[] { Matrix.random(n, n) } };
+    serve(worker, task);
+
+    TileArena arena = TileArena.open();
+    try {
+      serve(worker, OffHeapTile.wrap(task));
+    } finally {
+      arena.close();
+    }
+
+    serve(worker, new Object[][] { { CompressedTile.compress((Matrix) task[0][0]) },
+        { CompressedTile.compress((Matrix) task[1][0]) } });
+
+    serve(worker, new Object[][] { { SparseMatrix.random(n, n, SPARSE_DENSITY) },
+        { SparseMatrix.random(n, n, SPARSE_DENSITY) } });
+  }
+
+  // Decode a request, handle it and encode the reply.
+  private static void serve(Worker worker, Object request) throws IOException, ClassNotFoundException {
+    Object reply = worker.handle(roundTrip(request), null);
+    Frames.encode(reply);
+    Worker.release(reply);
+  }
+
+  /**
+   * Load the classes of the Manager: a few jobs on an embedded cluster,
+   * planned and divided like on a real one, and a request and its result
+   * through frames
+   */
+  public static void manager() {
+    Level level = quiet();
+    try {
+      EmbeddedCluster cluster = new EmbeddedCluster(2);
+      Matrix A = Matrix.random(256, 256);
+      Matrix B = Matrix.random(256, 256);
+      roundTrip(JobRequest.multiply(A, B));
+      roundTrip(cluster.multiply(A, B));
+
+      // Distributed as well, the planner keeps jobs this small local
+      cluster.getManager().setPartitionSize(4);
+      cluster.multiply(A, B);
+      cluster.execute(JobRequest.evaluate(Expr.of(A).times(Expr.of(B).t()).plus(Expr.of(A))));
+    } catch (IOException | ClassNotFoundException e) {
+      throw new IllegalStateException("Warm-up failed: " + e.getMessage(), e);
+    } finally {
+      loud(level);
+    }
+    LOGGER.info("Warm-up of the Manager done");
+  }
+
+  /**
+   * Parse a list of tile sizes such as 256,1024
+   *
+   * @param list the list
+   * @return The sizes.
+   */
+  public static int[] parseSizes(String list) {
+    String[] parts = list.split(",");
+    int[] sizes = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      sizes[i] = Integer.parseInt(parts[i].trim());
+      if (sizes[i] < 1) {
+        throw new IllegalArgumentException("Illegal tile size " + sizes[i]);
+      }
+    }
+    return sizes;
+  }
+
+  // Serialize an object into a frame and read it back.
+  private static Object roundTrip(Object object) throws IOException, ClassNotFoundException {
+    ByteBuffer frame = Frames.encode(object);
+    frame.position(4);
+    return Frames.decode(frame);
+  }
+
+  // The tasks log every request, which nobody wants to see of the warm-up.
+  // Nothing else runs yet, so only warnings are logged meanwhile.
+  private static Level quiet() {
+    Logger root = Logger.getLogger("");
+    Level level = root.getLevel();
+    root.setLevel(Level.WARNING);
+    return level;
+  }
+
+  // Log everything again.
+  private static void loud(Level level) {
+    Logger.getLogger("").setLevel(level);
+  }
+
+  // The time the JIT compilers have spent so far, 0 if the JVM does not say.
+  private static long compilationMillis() {
+    CompilationMXBean compiler = ManagementFactory.getCompilationMXBean();
+    return compiler != null && compiler.isCompilationTimeMonitoringSupported() ? compiler.getTotalCompilationTime()
+        : 0;
+  }
+}
@@ -1,10 +1,13 @@
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -19,6 +22,23 @@ public class Worker {
   // Logger for this class
   private static final Logger LOGGER = Logger.getLogger(Worker.class.getName());
 
+  // The reductions of 2.5D tiles in progress on this worker, by reduction id.
+  // The slices of one tile share the id, so workers in one JVM must not share
+  // the map.
+  private final Map<Long, Reduction> reductions = new ConcurrentHashMap<>();
+
+  // The tiles kept on this worker between tasks, see TileStore
+  private final TileStore tileStore = new TileStore();
+
+  // How long a slice waits for the partial sums of its children
+  private static final long REDUCTION_TIMEOUT_MINUTES = 5;
+
+  // Tile sizes of --warmup without a list
+  private static final int[] DEFAULT_WARMUP_SIZES = { 256, 1024 };
+
+  // Longest warm-up before the worker serves anyway
+  private static final long WARMUP_MILLIS = 60_000;
+
   /**
    * Start a server socket and wait for a connection.
    *
@@ -39,13 +59,16 @@ public class Worker {
       // Print listening message
       LOGGER.info("Listening for connections...");
 
+      // Partial sums go to the peers over the same protocol
+      Transport peers = new SocketTransport(false, null);
+
       // Wait for a client to connect
       while (true) {
-        // Accept client connection and create a new thread for it, This thread will
-        // handle the client separately
+        // Accept client connection and run it on its own I/O thread, This thread
+        // will handle the client separately
         // It is a multi client because this accept multiple request from multiple
         // client
-        new WorkerClientHandler(serverSocket.accept()).start();
+        ThreadPools.IO.execute(new WorkerClientHandler(this, serverSocket.accept(), peers));
       }
 
     } catch (IOException e) {
@@ -69,115 +92,83 @@ public class Worker {
     }
   }
 
-  private static class WorkerClientHandler extends Thread {
+  private static class WorkerClientHandler implements Runnable {
+    private Worker worker;
     private Socket clientSocket;
     private ObjectOutputStream outputStream;
     private ObjectInputStream inputStream;
+    private Transport peers;
 
-    public WorkerClientHandler(Socket clientSocket) {
+    public WorkerClientHandler(Worker worker, Socket clientSocket, Transport peers) {
+      this.worker = worker;
       this.clientSocket = clientSocket;
+      this.peers = peers;
     }
 
     public static class RowMultiply implements Runnable {
-      private Matrix mat1;
-      private Matrix mat2;
+      private Matrix[] mat1;
+      private Matrix[] mat2;
       private Matrix result;
-      private int row;
+      private int fromRow;
+      private int toRow;
 
      // Initializing the variables.
-      public RowMultiply(Matrix result, Matrix mat1, Matrix mat2, int row) {
+      public RowMultiply(Matrix result, Matrix[] mat1, Matrix[] mat2, int fromRow, int toRow) {
         this.result = result;
         this.mat1 = mat1;
         this.mat2 = mat2;
-        this.row = row;
+        this.fromRow = fromRow;
+        this.toRow = toRow;
       }
 
-      // For each row in mat1, multiply that row by mat2 and store the result in
-      // result.
+      // For each row from fromRow to toRow, add that row of every mat1[k] times
+      // mat2[k] to the same row of result. Every element mat1[k][row][j] scales
+      // the row j of mat2[k] into the result row, so all accesses are along
+      // contiguous rows and no temporary matrix is needed.
       @Override
       public void run() {
-        for (int i = 0; i < mat2.getN(); i++) {
-          // result[row][i] = 0;
-          result.set(row, i, 0);
-          for (int j = 0; j < mat1.getN(); j++) {
-            // result[row][i] += mat1[row][j] * mat2[j][i];
-            result.set(row, i, result.get(row, i) + mat1.get(row, j) * mat2.get(j, i));
+        for (int row = fromRow; row < toRow; row++) {
+          double[] resultRow = result.getRow(row);
+          for (int k = 0; k < mat1.length; k++) {
+            Kernels.rowTimes(mat1[k].getRow(row), mat2[k], resultRow);
           }
         }
       }
     }
 
-    public static class DotProduct implements Runnable {
-      private Matrix mat1;
-      private Matrix mat2;
-      private Matrix finalResult;
-      private int threshold;
-      private int bigThreshold;
-
-      // The constructor takes in the final result matrix, the two matrices that will
-      // be multiplied, and a threshold value.
-      public DotProduct(Matrix finalResult, Matrix mat1, Matrix mat2) {
-        this.finalResult = finalResult;
-        this.mat1 = mat1;
-        this.mat2 = mat2;
-        this.threshold = 100;
-        this.bigThreshold = 2000;
-
-      }
-
-      // The `RowMultiply` class is a thread that multiplies a row of `mat1` by a row
-      // of `mat2` and adds it to `finalResult`.
-      // The `run` method of the `RowMultiply` class creates a new thread and starts
-      // it.
-      // The `run` method also adds the thread to a list of threads.
-      // The `run` method checks if the number of threads is greater than 50.
-      // If it is, it waits for the threads to finish.
-      @Override
-      public void run() {
-        List<Thread> threads = new ArrayList<>();
-        Matrix temp = new Matrix(mat1.getM(), mat1.getN());
-
-        int rows = mat1.getM();
-
-        for (int i = 0; i < rows; i++) {
-          RowMultiply task = new RowMultiply(temp, mat1, mat2, i);
-          Thread thread = new Thread(task);
-          thread.start();
-          threads.add(thread);
-          if (threads.size() % 50 == 0) {
-            Helper.waitForThreads(threads);
-          }
-        }
-        Helper.waitForThreads(threads);
-        finalResult.plusInPlace(temp);
-      }
-    }
-
     public static class ThreadCreation {
 
       /**
-       * Given two matrices, create a thread for each matrix and run the dot product
-       * on each thread
+       * Given the chunks of A and B, split the rows of the result into one band
+       * per core and compute the bands on the compute pool. The bands do not
+       * overlap, so the threads accumulate straight into finalResult.
        *
-       * @param mat1        The first matrix to be multiplied.
-       * @param mat2        The matrix that is being multiplied by mat1.
-       * @param finalResult the result matrix
+       * @param mat1        The first matrices to be multiplied.
+       * @param mat2        The matrices that are being multiplied by mat1.
+       * @param finalResult the result matrix, must be all 0's
        */
       public static void multiply(Matrix[] mat1, Matrix[] mat2, Matrix finalResult) {
-        List<Thread> threads = new ArrayList<>();
+        // Already on the compute pool, the other cores are busy with other tasks
+        if (ThreadPools.isComputeThread()) {
+          new RowMultiply(finalResult, mat1, mat2, 0, finalResult.getM()).run();
+          return;
+        }
 
-        int numChunks = mat1.length;
+        ThreadPools.inBands(finalResult.getM(), (from, to) -> new RowMultiply(finalResult, mat1, mat2, from, to).run());
+      }
+    }
 
-        for (int i = 0; i < numChunks; i++) {
-          DotProduct task = new DotProduct(finalResult, mat1[i], mat2[i]);
-          Thread thread = new Thread(task);
-          thread.start();
-          threads.add(thread);
-          if (threads.size() % 50 == 0) {
-            Helper.waitForThreads(threads);
-          }
-        }
-        Helper.waitForThreads(threads);
+    /**
+     * Multiply the block pairs of a sparse task with the SpMM and SpGEMM kernels
+     * and sum them up into result.
+     *
+     * @param matrixAChunks the A blocks, each either Matrix or SparseMatrix
+     * @param matrixBChunks the B blocks, each either Matrix or SparseMatrix
+     * @param result        the matrix of 0's to accumulate into
+     */
+    private static void multiplySparse(Object[] matrixAChunks, Object[] matrixBChunks, Matrix result) {
+      for (int i = 0; i < matrixAChunks.length; i++) {
+        SparseMatrix.multiplyAccumulate(matrixAChunks[i], matrixBChunks[i], result);
       }
     }
 
@@ -186,31 +177,30 @@ public class Worker {
         outputStream = new ObjectOutputStream(clientSocket.getOutputStream());
         inputStream = new ObjectInputStream(clientSocket.getInputStream());
 
-        // Read the input stream into a 2D array of matrices.
-        Matrix[][] data = (Matrix[][]) inputStream.readObject();
-        Matrix[] matrixAChunks = data[0];
-        Matrix[] matrixBChunks = data[1];
-        LOGGER.info("Received data from " + clientSocket.getInetAddress() + ":" + clientSocket.getPort());
-
-        LOGGER.info("Starting computation...");
-
-        Matrix result = new Matrix(matrixAChunks[0].getM(), matrixAChunks[0].getN());
-        int rowsInChunk = matrixAChunks[0].getM();
-
-        if (rowsInChunk < 2) {
-          LOGGER.info("Calling matrix multiplication without threads. Give a bigger challenge to use threads. :p");
-          // Doing matrix multiplication.
-          result = Matrix.dot(matrixAChunks, matrixBChunks);
-        } else {
-          LOGGER.info("Invoking threaded multiplication...");
-          // The code is creating threads to multiply matrices.
-          ThreadCreation.multiply(matrixAChunks, matrixBChunks, result);
+        // Read the request, a task, a slice of a task or a partial sum. Its
+        // OffHeapTiles go into the arena until the reply is sent.
+        TileArena arena = TileArena.open();
+        try {
+          Object data = inputStream.readObject();
+          LOGGER.info("Received data from " + clientSocket.getInetAddress() + ":" + clientSocket.getPort());
+
+          // A failed request is answered with the exception, which the
+          // manager rethrows, instead of leaving it waiting for a reply
+          Object reply;
+          try {
+            reply = worker.handle(data, peers);
+          } catch (RuntimeException e) {
+            LOGGER.severe("Request failed: " + e.getMessage());
+            reply = e;
+          }
+          show(reply);
+          outputStream.writeObject(reply);
+          outputStream.flush();
+          release(reply);
+        } finally {
+          arena.close();
         }
 
-        result.show("Computed result");
-        outputStream.writeObject(result);
-        outputStream.flush();
-
         inputStream.close();
         outputStream.close();
         clientSocket.close();
@@ -224,18 +214,349 @@ public class Worker {
     }
   }
 
+  /**
+   * Handle a request: a task of the manager, in a message or in shared
+   * memory, a slice of a task, a tile of an expression, a partial sum from
+   * another worker or a request to the tile store
+   *
+   * @param request a task, a SharedTask, a TileTask, an ExprTask, a PartialSum
+   *                or a TileStore.Request
+   * @param peers   the transport to the other workers
+   * @return The reply, to be given to release once it is sent.
+   */
+  public Object handle(Object request, Transport peers) {
+    if (request instanceof PartialSum) {
+      expireReductions();
+      PartialSum partial = (PartialSum) request;
+      reductions.computeIfAbsent(partial.getReductionId(), id -> new Reduction()).add(partial.getSum());
+      return Boolean.TRUE;
+    }
+    if (request instanceof TileTask) {
+      expireReductions();
+      return computeSlice((TileTask) request, peers);
+    }
+    if (request instanceof TileStore.Request) {
+      return tileStore.handle((TileStore.Request) request, peers);
+    }
+    if (request instanceof ExprTask) {
+      return ((ExprTask) request).compute();
+    }
+    if (request instanceof SharedMemoryTransport.SharedTask) {
+      try {
+        return SharedMemoryTransport.serve((SharedMemoryTransport.SharedTask) request);
+      } catch (IOException e) {
+        throw new IllegalStateException("Shared memory failed: " + e.getMessage(), e);
+      }
+    }
+    return compute((Object[][]) request);
+  }
+
+  /**
+   * Compute a slice of a tile, add the partial sums of the children and send
+   * the sum on to the parent. See TileTask.
+   *
+   * @param slice the slice
+   * @param peers the transport to the other workers
+   * @return The whole tile at the root, an acknowledgement elsewhere.
+   */
+  public Object computeSlice(TileTask slice, Transport peers) {
+    // The slice owns the reduction from here on and removes it when done, so
+    // it is never expired while the slice computes or waits
+    Reduction reduction = reductions.compute(slice.getReductionId(),
+        (id, existing) -> (existing == null ? new Reduction() : existing).claim());
+
+    Matrix sum;
+    try {
+      reduction.add(SparseMatrix.toDense(compute(slice.getBlocks())));
+      sum = reduction.await(slice.getChildren() + 1);
+    } finally {
+      reductions.remove(slice.getReductionId());
+    }
+
+    if (slice.getParent() == null) {
+      return sum;
+    }
+    // The sum belongs to the parent now, it is not recycled here
+    InetSocketAddress parent = slice.getParent();
+    try {
+      peers.call(parent, new PartialSum(slice.getReductionId(), sum));
+    } catch (IOException | ClassNotFoundException e) {
+      throw new IllegalStateException("Sending partial sum to " + Helper.inetSocketAddressToString(parent)
+          + " failed: " + e.getMessage(), e);
+    }
+    return Boolean.TRUE;
+  }
+
+  // Drop the reductions that no slice owns and that got nothing for the
+  // reduction timeout: partial sums that came after their slice gave up, or
+  // whose slice never came because the manager abandoned the gang. Nobody
+  // would ever take them out of the map otherwise.
+  private void expireReductions() {
+    long now = System.nanoTime();
+    for (Long id : reductions.keySet()) {
+      reductions.computeIfPresent(id, (key, reduction) -> reduction.expire(now) ? null : reduction);
+    }
+  }
+
+  /**
+   * The running sum of the partial tiles of one reduction. The first partial
+   * becomes the sum, the others are added to it.
+   */
+  private static class Reduction {
+    private Matrix sum;
+    private int count;
+    private long touched = System.nanoTime(); // when the last partial came in
+    private boolean claimed; // a slice of this worker waits for the sum
+
+    synchronized void add(Matrix partial) {
+      if (sum == null) {
+        sum = partial;
+      } else {
+        sum.plusInPlace(partial);
+        MatrixPool.release(partial);
+      }
+      count++;
+      touched = System.nanoTime();
+      notifyAll();
+    }
+
+    synchronized Reduction claim() {
+      claimed = true;
+      return this;
+    }
+
+    // Give the sum back if no slice owns the reduction and it got nothing
+    // for the timeout.
+    synchronized boolean expire(long now) {
+      if (claimed || now - touched < TimeUnit.MINUTES.toNanos(REDUCTION_TIMEOUT_MINUTES)) {
+        return false;
+      }
+      if (sum != null) {
+        MatrixPool.release(sum);
+        sum = null;
+      }
+      return true;
+    }
+
+    // Wait until the expected number of partials is in.
+    synchronized Matrix await(int expected) {
+      long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(REDUCTION_TIMEOUT_MINUTES);
+      try {
+        while (count < expected) {
+          long left = deadline - System.nanoTime();
+          if (left <= 0) {
+            throw new IllegalStateException("Partial sums did not arrive, " + count + " of " + expected);
+          }
+          TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for partial sums", e);
+      }
+      return sum;
+    }
+  }
+
+  /**
+   * Compute a task of the manager: the sum of the products of the block pairs.
+   * The blocks are Matrix objects, or SparseMatrix objects for sparse jobs.
+   * Tasks whose blocks come as CompressedTile objects get a compressed reply.
+   *
+   * @param data the A blocks and the B blocks
+   * @return The result, to be given to release once it is sent.
+   */
+  public static Object compute(Object[][] data) {
+    if (OffHeapTile.isOffHeap(data)) {
+      LOGGER.info("Starting computation off the heap...");
+      return OffHeapTile.multiply(data[0], data[1], TileArena.current());
+    }
+    data = OffHeapTile.unwrap(data);
+
+    if (!isCompressed(data)) {
+      return multiply(data);
+    }
+
+    Object reply = multiply(decompress(data));
+    if (reply instanceof Matrix) {
+      CompressedTile tile = CompressedTile.compress((Matrix) reply);
+      release(reply);
+      return tile;
+    }
+    return reply;
+  }
+
+  // Whether any block of the task is compressed.
+  private static boolean isCompressed(Object[][] data) {
+    for (Object[] blocks : data) {
+      for (Object block : blocks) {
+        if (block instanceof CompressedTile) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  // Decompress the blocks. Arrays of dense blocks become Matrix[] again, the
+  // type the dense path expects.
+  private static Object[][] decompress(Object[][] data) {
+    Object[][] blocks = new Object[data.length][];
+    for (int i = 0; i < data.length; i++) {
+      boolean dense = true;
+      for (Object block : data[i]) {
+        dense &= block instanceof Matrix || block instanceof CompressedTile;
+      }
+      blocks[i] = dense ? new Matrix[data[i].length] : new Object[data[i].length];
+      for (int j = 0; j < data[i].length; j++) {
+        blocks[i][j] = CompressedTile.decompress(data[i][j]);
+      }
+    }
+    return blocks;
+  }
+
+  // Multiply the decompressed blocks of a task.
+  private static Object multiply(Object[][] data) {
+    LOGGER.info("Starting computation...");
+
+    // The result comes from the pool and goes back once it is sent
+    Matrix result = MatrixPool.acquire(SparseMatrix.rowsOf(data[0][0]), SparseMatrix.columnsOf(data[1][0]));
+
+    if (!(data[0] instanceof Matrix[]) || !(data[1] instanceof Matrix[])) {
+      LOGGER.info("Invoking sparse multiplication...");
+      ThreadPools.runOnCompute(() -> WorkerClientHandler.multiplySparse(data[0], data[1], result));
+
+      // Send the result back sparse when it is sparse enough
+      SparseMatrix compressed = SparseMatrix.fromDense(result);
+      if (compressed.density() < SparseMatrix.DENSITY_THRESHOLD) {
+        MatrixPool.release(result);
+        return compressed;
+      }
+      return result;
+    }
+
+    Matrix[] matrixAChunks = (Matrix[]) data[0];
+    Matrix[] matrixBChunks = (Matrix[]) data[1];
+    int rowsInChunk = matrixAChunks[0].getM();
+
+    if (rowsInChunk < 2) {
+      LOGGER.info("Calling matrix multiplication without threads. Give a bigger challenge to use threads. :p");
+      // Doing matrix multiplication.
+      Matrix.dotInto(matrixAChunks, matrixBChunks, result);
+    } else {
+      LOGGER.info("Invoking threaded multiplication...");
+      // The code is creating threads to multiply matrices.
+      WorkerClientHandler.ThreadCreation.multiply(matrixAChunks, matrixBChunks, result);
+    }
+
+    return result;
+  }
+
+  // Print a result the worker sends back. Only requests that came over the
+  // network are printed, not the products the kernels compute for the
+  // Manager's own jobs or an embedded cluster.
+  private static void show(Object reply) {
+    if (reply instanceof Matrix) {
+      ((Matrix) reply).show("Computed result");
+    }
+  }
+
+  /**
+   * Give the buffers of a sent reply back to the pool
+   *
+   * @param reply the reply returned by compute
+   */
+  public static void release(Object reply) {
+    if (reply instanceof Matrix) {
+      MatrixPool.release((Matrix) reply);
+    }
+  }
+
+  /**
+   * Serve with the non-blocking server core instead of a thread per
+   * connection. Requests are length-prefixed frames, see Frames. Every
+   * complete request runs on an I/O thread, since a slice of a 2.5D tile waits
+   * for its peers, and the kernels run on the compute pool.
+   *
+   * @param port      the port number to listen on
+   * @param ioThreads the number of selector threads
+   */
+  public void startNonBlocking(int port, int ioThreads) {
+    Transport peers = new SocketTransport(true, null);
+    NioServer server = new NioServer(new NioServer.Handler() {
+      @Override
+      public Object handle(Object request) {
+        Object reply = Worker.this.handle(request, peers);
+        show(reply);
+        return reply;
+      }
+
+      // The OffHeapTiles of the request go into an arena of this thread
+      @Override
+      public Object decode(ByteBuffer frame) throws IOException, ClassNotFoundException {
+        TileArena.open();
+        return Frames.decode(frame);
+      }
+
+      @Override
+      public void release(Object response) {
+        Worker.release(response);
+        TileArena.closeCurrent();
+      }
+    }, ThreadPools.IO, ioThreads);
+
+    try {
+      server.start(port);
+    } catch (IOException e) {
+      LOGGER.info("Connection failed");
+      e.printStackTrace();
+    }
+  }
+
   public static void main(String[] args) {
     // Accept the port number from the command line
     int port = Integer.parseInt(args[0]);
 
     // Print help message if no port number is given
     if (port == 0) {
-      LOGGER.info("Usage: java Worker <port>");
+      LOGGER.info("Usage: java Worker <port> [--nio [ioThreads]] [--numa-nodes n] [--warmup [tileSizes]] [--train]");
       System.exit(0);
     }
 
     // Start the server
     Worker worker = new Worker();
-    worker.start(port);
+    int ioThreads = 0;
+    int[] warmup = null;
+    boolean train = false;
+    for (int i = 1; i < args.length; i++) {
+      if (args[i].equals("--nio")) {
+        ioThreads = i + 1 < args.length && !args[i + 1].startsWith("--") ? Integer.parseInt(args[++i]) : 2;
+      } else if (args[i].equals("--numa-nodes")) {
+        // For hosts that hide their nodes, the cores are split evenly
+        ThreadPools.useTopology(NumaTopology.split(Integer.parseInt(args[++i])));
+      } else if (args[i].equals("--warmup") || args[i].equals("--train")) {
+        train |= args[i].equals("--train");
+        if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+          warmup = Warmup.parseSizes(args[++i]);
+        } else if (warmup == null) {
+          warmup = DEFAULT_WARMUP_SIZES;
+        }
+      }
+    }
+
+    // Warm up before the port is open, so the Manager reaches the worker only
+    // once its kernels are compiled. --train stops there, for a class-data
+    // sharing archive.
+    if (warmup != null) {
+      Warmup.worker(worker, warmup, WARMUP_MILLIS);
+      if (train) {
+        System.exit(0);
+      }
+    }
+
+    if (ioThreads > 0) {
+      worker.startNonBlocking(port, ioThreads);
+    } else {
+      worker.start(port);
+    }
   }
 }
\ No newline at end of file
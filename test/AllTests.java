@@ -0,0 +1,23 @@
+/**
+ * Runs all tests. A failed check ends the run with its AssertionError and a
+ * non-zero exit code.
+ */
+public class AllTests {
+  public static void main(String[] args) throws Exception {
+    SparseMatrixTest.main(args);
+    DistributedLUTest.main(args);
+    NioServerTest.main(args);
+    CompressedTileTest.main(args);
+    ManagerTest.main(args);
+    CheckpointStoreTest.main(args);
+    MatrixChainTest.main(args);
+    TileStoreTest.main(args);
+    MatrixPowerTest.main(args);
+    MemoryBudgetTest.main(args);
+    LatencyHistogramTest.main(args);
+    ExprTest.main(args);
+    ResidentMatrixTest.main(args);
+    TileArenaTest.main(args);
+    System.out.println("All tests passed");
+  }
+}
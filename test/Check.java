@@ -0,0 +1,92 @@
+/**
+ * The checks of the tests. They throw AssertionError whether or not the JVM
+ * runs with -ea, so a failed check always fails the test.
+ */
+public class Check {
+  // A check that is expected to throw.
+  public interface Action {
+    void run() throws Exception;
+  }
+
+  /**
+   * Fail unless the condition holds
+   *
+   * @param condition the condition
+   * @param what      what was checked
+   */
+  public static void isTrue(boolean condition, String what) {
+    if (!condition) {
+      throw new AssertionError(what);
+    }
+  }
+
+  /**
+   * Fail unless the two values are equal
+   *
+   * @param expected the expected value
+   * @param actual   the actual value
+   * @param what     what was checked
+   */
+  public static void equal(long expected, long actual, String what) {
+    if (expected != actual) {
+      throw new AssertionError(what + ": expected " + expected + ", got " + actual);
+    }
+  }
+
+  /**
+   * Fail unless the two values are equal up to the tolerance
+   *
+   * @param expected  the expected value
+   * @param actual    the actual value
+   * @param tolerance the largest difference allowed
+   * @param what      what was checked
+   */
+  public static void equal(double expected, double actual, double tolerance, String what) {
+    if (!(Math.abs(expected - actual) <= tolerance)) {
+      throw new AssertionError(what + ": expected " + expected + ", got " + actual);
+    }
+  }
+
+  /**
+   * Fail unless the two matrices have the same shape and are equal element by
+   * element up to the tolerance
+   *
+   * @param expected  the expected matrix
+   * @param actual    the actual matrix
+   * @param tolerance the largest difference allowed per element
+   * @param what      what was checked
+   */
+  public static void equal(Matrix expected, Matrix actual, double tolerance, String what) {
+    if (expected.getM() != actual.getM() || expected.getN() != actual.getN()) {
+      throw new AssertionError(what + ": expected " + expected.getM() + "x" + expected.getN() + ", got "
+          + actual.getM() + "x" + actual.getN());
+    }
+    for (int i = 0; i < expected.getM(); i++) {
+      for (int j = 0; j < expected.getN(); j++) {
+        if (!(Math.abs(expected.get(i, j) - actual.get(i, j)) <= tolerance)) {
+          throw new AssertionError(what + ": element (" + i + ", " + j + ") is " + actual.get(i, j) + ", expected "
+              + expected.get(i, j));
+        }
+      }
+    }
+  }
+
+  /**
+   * Fail unless the action throws the given exception
+   *
+   * @param type   the type of the exception
+   * @param action the action
+   * @param what   what was checked
+   */
+  public static void fails(Class<? extends Throwable> type, Action action, String what) {
+    try {
+      action.run();
+    } catch (Throwable e) {
+      if (type.isInstance(e)) {
+        return;
+      }
+      throw new AssertionError(what + ": expected " + type.getSimpleName() + ", got " + e, e);
+    }
+    throw new AssertionError(what + ": expected " + type.getSimpleName() + ", nothing was thrown");
+  }
+}
@@ -0,0 +1,128 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Tests of the checkpoint store: tiles survive a reopen, and a torn or
+ * damaged record costs only its own tile.
+ */
+public class CheckpointStoreTest {
+  // Bytes of the tile index, rows and columns in front of the elements
+  private static final int HEADER = 12;
+
+  public static void main(String[] args) throws IOException {
+    Path root = Files.createTempDirectory("checkpoints");
+    try {
+      reopen(root);
+      tornRecord(root);
+      damagedRecord(root);
+      tornIndexEntry(root);
+      complete(root);
+      invalidJobId(root);
+    } finally {
+      try (Stream<Path> files = Files.walk(root)) {
+        files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+      }
+    }
+    System.out.println("CheckpointStoreTest passed");
+  }
+
+  // A job with three 4x4 tiles appended.
+  private static Matrix[] start(CheckpointStore store, String jobId) throws IOException {
+    CheckpointStore.Job job = store.create(jobId, Matrix.random(8, 8), Matrix.random(8, 8), 4);
+    Matrix[] tiles = { Matrix.random(4, 4), Matrix.random(4, 4), Matrix.random(4, 4) };
+    for (int i = 0; i < tiles.length; i++) {
+      job.append(i, tiles[i]);
+    }
+    return tiles;
+  }
+
+  private static void reopen(Path root) throws IOException {
+    CheckpointStore store = new CheckpointStore(root);
+    Matrix[] tiles = start(store, "reopen");
+
+    CheckpointStore.Job job = new CheckpointStore(root).open("reopen");
+    Map<Integer, Matrix> recovered = job.getTiles();
+    Check.equal(3, recovered.size(), "recovered tiles");
+    for (int i = 0; i < tiles.length; i++) {
+      Check.equal(tiles[i], recovered.get(i), 0, "tile " + i);
+    }
+    Check.equal(4, job.getPartitionSize(), "partition size");
+    Check.isTrue(store.runningJobs().contains("reopen"), "running jobs");
+  }
+
+  // The last record is cut short, as by a crash while it was written.
+  private static void tornRecord(Path root) throws IOException {
+    CheckpointStore store = new CheckpointStore(root);
+    Matrix[] tiles = start(store, "torn");
+    Path log = root.resolve("torn").resolve("tiles.log");
+    try (RandomAccessFile file = new RandomAccessFile(log.toFile(), "rw")) {
+      file.setLength(file.length() - 5);
+    }
+
+    Map<Integer, Matrix> recovered = store.open("torn").getTiles();
+    Check.equal(2, recovered.size(), "tiles before the torn one");
+    Check.equal(tiles[0], recovered.get(0), 0, "tile 0");
+    Check.equal(tiles[1], recovered.get(1), 0, "tile 1");
+    Check.isTrue(!recovered.containsKey(2), "the torn tile is gone");
+  }
+
+  // One element of the middle record is flipped, its checksum no longer fits.
+  private static void damagedRecord(Path root) throws IOException {
+    CheckpointStore store = new CheckpointStore(root);
+    Matrix[] tiles = start(store, "damaged");
+    Path log = root.resolve("damaged").resolve("tiles.log");
+    long record = HEADER + 8 * 16 + 8;
+    try (RandomAccessFile file = new RandomAccessFile(log.toFile(), "rw")) {
+      file.seek(record + HEADER + 3);
+      int b = file.read();
+      file.seek(record + HEADER + 3);
+      file.write(b ^ 0xff);
+    }
+
+    Map<Integer, Matrix> recovered = store.open("damaged").getTiles();
+    Check.equal(2, recovered.size(), "tiles around the damaged one");
+    Check.isTrue(!recovered.containsKey(1), "the damaged tile is gone");
+    Check.equal(tiles[2], recovered.get(2), 0, "tile 2");
+  }
+
+  // The index entry of the last tile is only half written.
+  private static void tornIndexEntry(Path root) throws IOException {
+    CheckpointStore store = new CheckpointStore(root);
+    start(store, "index");
+    Path index = root.resolve("index").resolve("tiles.idx");
+    try (RandomAccessFile file = new RandomAccessFile(index.toFile(), "rw")) {
+      file.setLength(file.length() - 6);
+    }
+
+    CheckpointStore.Job job = store.open("index");
+    Check.equal(2, job.getTiles().size(), "tiles with a whole index entry");
+
+    // Appending after the recovery keeps working
+    job.append(2, Matrix.random(4, 4));
+    Check.equal(3, store.open("index").getTiles().size(), "tiles after a new append");
+  }
+
+  private static void complete(Path root) throws IOException {
+    CheckpointStore store = new CheckpointStore(root);
+    start(store, "done");
+    Matrix result = Matrix.random(8, 8);
+    store.open("done").complete(result);
+
+    Check.isTrue(store.open("done") == null, "a done job does not open");
+    Check.isTrue(!store.runningJobs().contains("done"), "a done job is not running");
+    Check.equal(result, store.result("done"), 0, "result");
+    Check.isTrue(!Files.exists(root.resolve("done").resolve("tiles.log")), "the log is deleted");
+  }
+
+  private static void invalidJobId(Path root) throws IOException {
+    CheckpointStore store = new CheckpointStore(root);
+    Check.fails(IllegalArgumentException.class, () -> store.open("../outside"), "a job ID with a path");
+    Check.fails(IllegalArgumentException.class, () -> store.open(".hidden"), "a job ID with a leading dot");
+    Check.isTrue(store.open("unknown") == null, "an unknown job does not open");
+  }
+}
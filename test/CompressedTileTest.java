@@ -0,0 +1,131 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests of the tile codec: every tile comes back bit by bit, whatever its
+ * values, runs and repeats.
+ */
+public class CompressedTileTest {
+  public static void main(String[] args) throws Exception {
+    randomValues();
+    specialValues();
+    zeroRuns();
+    longRepeats();
+    shapes();
+    overTheWire();
+    System.out.println("CompressedTileTest passed");
+  }
+
+  // Fail unless the tile survives compress and decompress with every bit.
+  private static CompressedTile roundTrip(Matrix A, String what) {
+    CompressedTile tile = CompressedTile.compress(A);
+    bitEqual(A, tile.decompress(), what);
+    return tile;
+  }
+
+  private static void bitEqual(Matrix expected, Matrix actual, String what) {
+    Check.equal(expected.getM(), actual.getM(), what + ": rows");
+    Check.equal(expected.getN(), actual.getN(), what + ": columns");
+    for (int i = 0; i < expected.getM(); i++) {
+      for (int j = 0; j < expected.getN(); j++) {
+        long e = Double.doubleToRawLongBits(expected.get(i, j));
+        long a = Double.doubleToRawLongBits(actual.get(i, j));
+        Check.isTrue(e == a, what + ": element (" + i + ", " + j + ") is " + Long.toHexString(a)
+            + ", expected " + Long.toHexString(e));
+      }
+    }
+  }
+
+  // Random bits, including the low bytes that never repeat.
+  private static void randomValues() {
+    Random random = new Random(1);
+    Matrix A = new Matrix(64, 64);
+    for (int i = 0; i < 64; i++) {
+      for (int j = 0; j < 64; j++) {
+        A.set(i, j, Double.longBitsToDouble(random.nextLong()));
+      }
+    }
+    roundTrip(A, "random bits");
+    roundTrip(Matrix.random(50, 70), "random values");
+  }
+
+  // -0.0 is not a zero run, and NaN payloads survive.
+  private static void specialValues() {
+    double[] values = { -0.0, Double.NaN, Double.longBitsToDouble(0x7ff8_dead_beef_0001L), Double.MIN_VALUE,
+        -Double.MIN_NORMAL / 3, Double.MAX_VALUE, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0.0, 1.0 };
+    Matrix A = new Matrix(1, values.length);
+    for (int j = 0; j < values.length; j++) {
+      A.set(0, j, values[j]);
+    }
+    roundTrip(A, "special values");
+  }
+
+  // Runs longer than one varint byte and longer than a row, a tile that is
+  // all zeros and one that starts with a non-zero.
+  private static void zeroRuns() {
+    Matrix A = new Matrix(300, 300);
+    A.set(0, 0, 1.5);
+    A.set(0, 1, 2.5);
+    A.set(0, 200, 3.5);
+    A.set(150, 17, -4.5);
+    A.set(299, 299, 5.5);
+    CompressedTile tile = roundTrip(A, "scattered non-zeros");
+    Check.isTrue(tile.compressedSize() < 200, "a nearly empty tile takes " + tile.compressedSize() + " bytes");
+
+    tile = roundTrip(new Matrix(256, 256), "all zeros");
+    Check.isTrue(tile.compressedSize() < 16, "an empty tile takes " + tile.compressedSize() + " bytes");
+
+    // A padded tile: the product lands in the corner, the rest is zero
+    Matrix padded = new Matrix(128, 128);
+    Matrix corner = Matrix.random(100, 90);
+    for (int i = 0; i < 100; i++) {
+      System.arraycopy(corner.getRow(i), 0, padded.getRow(i), 0, 90);
+    }
+    roundTrip(padded, "padded tile");
+  }
+
+  // Repeats both inside and beyond the 64 KB window of the LZ codec, and
+  // match lengths long enough to need extra length bytes.
+  private static void longRepeats() {
+    Matrix A = new Matrix(512, 512);
+    Random random = new Random(2);
+    double[] pattern = new double[37];
+    for (int k = 0; k < pattern.length; k++) {
+      pattern[k] = random.nextInt(1000) / 8.0 + 1;
+    }
+    for (int i = 0; i < 512; i++) {
+      for (int j = 0; j < 512; j++) {
+        A.set(i, j, pattern[(i * 512 + j) % pattern.length]);
+      }
+    }
+    CompressedTile tile = roundTrip(A, "repeating pattern");
+    Check.isTrue(tile.compressedSize() < tile.rawSize() / 20, "a repeating tile takes " + tile.compressedSize()
+        + " of " + tile.rawSize() + " bytes");
+
+    Matrix constant = new Matrix(400, 400);
+    for (int i = 0; i < 400; i++) {
+      Arrays.fill(constant.getRow(i), Math.PI);
+    }
+    roundTrip(constant, "constant tile");
+  }
+
+  private static void shapes() {
+    roundTrip(new Matrix(1, 1), "1x1 zero");
+    roundTrip(Matrix.random(1, 1), "1x1");
+    roundTrip(Matrix.random(1, 1000), "one row");
+    roundTrip(Matrix.random(1000, 1), "one column");
+    roundTrip(Matrix.random(3, 5), "shorter than the shortest match");
+  }
+
+  // Serialized inside a frame, as the workers receive it.
+  private static void overTheWire() throws Exception {
+    Matrix A = Matrix.random(40, 40);
+    A.set(3, 3, -0.0);
+    ByteBuffer frame = Frames.encode(CompressedTile.compress(A));
+    frame.position(4);
+    Object block = CompressedTile.decompress(Frames.decode(frame));
+    bitEqual(A, (Matrix) block, "decoded from a frame");
+    Check.isTrue(CompressedTile.decompress(A) == A, "a Matrix passes through");
+  }
+}
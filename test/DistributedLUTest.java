@@ -0,0 +1,79 @@
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests of the blocked LU: the residual of the solution, with the trailing
+ * updates done here in place of the workers.
+ */
+public class DistributedLUTest {
+  public static void main(String[] args) {
+    residual();
+    pivoting();
+    blockLargerThanMatrix();
+    singular();
+    illegalDimensions();
+    System.out.println("DistributedLUTest passed");
+  }
+
+  // The largest element of A X - B, relative to the largest of B.
+  private static double residual(Matrix A, Matrix X, Matrix B) {
+    Matrix R = A.times(X).minus(B);
+    double error = 0;
+    double scale = 0;
+    for (int i = 0; i < B.getM(); i++) {
+      for (int j = 0; j < B.getN(); j++) {
+        error = Math.max(error, Math.abs(R.get(i, j)));
+        scale = Math.max(scale, Math.abs(B.get(i, j)));
+      }
+    }
+    return error / scale;
+  }
+
+  // An order that is not a multiple of the block size, so the last panel and
+  // the edge tiles are narrower.
+  private static void residual() {
+    Matrix A = Matrix.random(70, 70);
+    Matrix B = Matrix.random(70, 3);
+    AtomicInteger batches = new AtomicInteger();
+    DistributedLU lu = DistributedLU.factor(A, 16, tasks -> {
+      batches.incrementAndGet();
+      return DistributedLU.LOCAL.run(tasks);
+    });
+
+    Matrix X = lu.solve(B);
+    Check.isTrue(residual(A, X, B) < 1e-10, "residual " + residual(A, X, B));
+    Check.equal(4, batches.get(), "one trailing update per panel but the last");
+  }
+
+  // A zero on the diagonal that only a row swap gets past.
+  private static void pivoting() {
+    Matrix A = new Matrix(new double[][] { { 0, 2, 1 }, { 1, 1, 1 }, { 3, 0, 2 } });
+    Matrix B = new Matrix(new double[][] { { 5 }, { 6 }, { 9 } });
+    Matrix X = DistributedLU.factor(A, 1, DistributedLU.LOCAL).solve(B);
+    Check.isTrue(residual(A, X, B) < 1e-12, "residual with pivoting " + residual(A, X, B));
+  }
+
+  private static void blockLargerThanMatrix() {
+    Matrix A = Matrix.random(9, 9);
+    Matrix B = Matrix.random(9, 2);
+    Matrix X = DistributedLU.factor(A, 64, tasks -> {
+      throw new AssertionError("a single panel has no trailing update");
+    }).solve(B);
+    Check.isTrue(residual(A, X, B) < 1e-10, "residual of one panel " + residual(A, X, B));
+  }
+
+  // A zero column stays exactly zero through the elimination.
+  private static void singular() {
+    Matrix A = Matrix.random(12, 12);
+    for (int i = 0; i < 12; i++) {
+      A.set(i, 6, 0);
+    }
+    Check.fails(RuntimeException.class, () -> DistributedLU.factor(A, 4, DistributedLU.LOCAL), "a singular matrix");
+  }
+
+  private static void illegalDimensions() {
+    Check.fails(RuntimeException.class, () -> DistributedLU.factor(Matrix.random(4, 5), 2, DistributedLU.LOCAL),
+        "a matrix that is not square");
+    DistributedLU lu = DistributedLU.factor(Matrix.random(4, 4), 2, DistributedLU.LOCAL);
+    Check.fails(RuntimeException.class, () -> lu.solve(Matrix.random(5, 1)), "right hand sides of another order");
+  }
+}
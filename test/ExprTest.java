@@ -0,0 +1,108 @@
+import java.util.List;
+
+/**
+ * Tests of expressions: transposes move into the flags of the terms instead
+ * of being computed, and the fused value matches the plain Matrix operations.
+ */
+public class ExprTest {
+  private static final double TOLERANCE = 1e-9;
+
+  public static void main(String[] args) {
+    transposeOfLeaf();
+    doubleTranspose();
+    transposeOfProduct();
+    transposeOfSum();
+    transposedFactors();
+    scaledTranspose();
+    nestedProduct();
+    illegalDimensions();
+    System.out.println("ExprTest passed");
+  }
+
+  private static void transposeOfLeaf() {
+    Matrix A = Matrix.random(7, 4);
+    Expr expr = Expr.of(A).t();
+    Check.equal(4, expr.getM(), "rows");
+    Check.equal(7, expr.getN(), "columns");
+
+    List<Expr.Term> terms = expr.fuse(Expr::evaluate).getTerms();
+    Check.equal(1, terms.size(), "terms");
+    Check.isTrue(terms.get(0).getLeft() == A, "the matrix itself, not a copy");
+    Check.isTrue(terms.get(0).isLeftTransposed(), "transposed flag");
+    Check.equal(A.transpose(), expr.evaluate(), 0, "A^T");
+  }
+
+  private static void doubleTranspose() {
+    Matrix A = Matrix.random(5, 3);
+    Expr.Term term = Expr.of(A).t().t().fuse(Expr::evaluate).getTerms().get(0);
+    Check.isTrue(!term.isLeftTransposed(), "two transposes cancel");
+    Check.equal(A, Expr.of(A).t().t().evaluate(), 0, "(A^T)^T");
+  }
+
+  // (A B)^T is one term B^T A^T.
+  private static void transposeOfProduct() {
+    Matrix A = Matrix.random(6, 4);
+    Matrix B = Matrix.random(4, 9);
+    Expr expr = Expr.of(A).times(Expr.of(B)).t();
+
+    List<Expr.Term> terms = expr.fuse(Expr::evaluate).getTerms();
+    Check.equal(1, terms.size(), "terms");
+    Expr.Term term = terms.get(0);
+    Check.isTrue(term.getLeft() == B && term.isLeftTransposed(), "left is B^T");
+    Check.isTrue(term.getRight() == A && term.isRightTransposed(), "right is A^T");
+    Check.equal(4, term.innerDimension(), "inner dimension");
+    Check.equal(A.times(B).transpose(), expr.evaluate(), TOLERANCE, "(A B)^T");
+  }
+
+  private static void transposeOfSum() {
+    Matrix A = Matrix.random(5, 8);
+    Matrix B = Matrix.random(5, 8);
+    Expr expr = Expr.of(A).minus(Expr.of(B)).t();
+
+    List<Expr.Term> terms = expr.fuse(Expr::evaluate).getTerms();
+    Check.equal(2, terms.size(), "terms");
+    Check.isTrue(terms.get(0).isLeftTransposed() && terms.get(1).isLeftTransposed(), "both transposed");
+    Check.equal(-1, terms.get(1).getCoefficient(), 0, "the subtracted term");
+    Check.equal(A.transpose().minus(B.transpose()), expr.evaluate(), TOLERANCE, "(A - B)^T");
+  }
+
+  // A^T B^T and A B^T, the gram matrices, without a transposed copy.
+  private static void transposedFactors() {
+    Matrix A = Matrix.random(6, 5);
+    Matrix B = Matrix.random(4, 6);
+    Check.equal(A.transpose().times(B.transpose()), Expr.of(A).t().times(Expr.of(B).t()).evaluate(), TOLERANCE,
+        "A^T B^T");
+
+    Matrix C = Matrix.random(6, 5);
+    Expr gram = Expr.of(A).times(Expr.of(C).t());
+    Expr.Term term = gram.fuse(Expr::evaluate).getTerms().get(0);
+    Check.isTrue(!term.isLeftTransposed() && term.isRightTransposed(), "A C^T flags");
+    Check.equal(A.times(C.transpose()), gram.evaluate(), TOLERANCE, "A C^T");
+  }
+
+  private static void scaledTranspose() {
+    Matrix A = Matrix.random(3, 7);
+    Matrix B = Matrix.random(3, 4);
+    Expr expr = Expr.of(A).scale(2).t().times(Expr.of(B).scale(-0.5));
+    Expr.Term term = expr.fuse(Expr::evaluate).getTerms().get(0);
+    Check.equal(-1, term.getCoefficient(), 0, "coefficients multiply");
+    Check.equal(new Matrix(7, 4).minus(A.transpose().times(B)), expr.evaluate(), TOLERANCE, "(2A)^T (-B/2)");
+  }
+
+  // A factor that is itself a product is evaluated as a stage first, and
+  // the transpose of the outer product still lands in the flags.
+  private static void nestedProduct() {
+    Matrix A = Matrix.random(4, 5);
+    Matrix B = Matrix.random(5, 6);
+    Matrix C = Matrix.random(6, 3);
+    Expr expr = Expr.of(A).times(Expr.of(B)).times(Expr.of(C)).t();
+    Check.equal(A.times(B).times(C).transpose(), expr.evaluate(), TOLERANCE, "((A B) C)^T");
+  }
+
+  private static void illegalDimensions() {
+    Check.fails(RuntimeException.class, () -> Expr.of(Matrix.random(3, 4)).times(Expr.of(Matrix.random(3, 4))),
+        "product with a wrong inner dimension");
+    Check.fails(RuntimeException.class, () -> Expr.of(Matrix.random(3, 4)).plus(Expr.of(Matrix.random(3, 4)).t()),
+        "sum of different shapes");
+  }
+}
@@ -0,0 +1,85 @@
+/**
+ * Tests of the latency histogram: exact small values, 3 significant digits
+ * above, merging and the edge cases.
+ */
+public class LatencyHistogramTest {
+  public static void main(String[] args) {
+    empty();
+    exactBelowLinear();
+    significantDigits();
+    percentilesOfUniform();
+    offTheScale();
+    merge();
+    System.out.println("LatencyHistogramTest passed");
+  }
+
+  private static void empty() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    Check.equal(0, histogram.getCount(), "count");
+    Check.equal(0, histogram.percentile(99), "p99 of nothing");
+    Check.equal(0, histogram.getMean(), 0, "mean of nothing");
+  }
+
+  private static void exactBelowLinear() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long micros = 1; micros <= 2000; micros++) {
+      histogram.record(micros);
+    }
+    Check.equal(1000, histogram.percentile(50), "p50");
+    Check.equal(1980, histogram.percentile(99), "p99");
+    Check.equal(2000, histogram.percentile(100), "p100");
+    Check.equal(1000.5, histogram.getMean(), 1e-9, "mean");
+  }
+
+  // Every value comes back as the top of its bucket, never below it and less
+  // than 0.1% above it.
+  private static void significantDigits() {
+    long[] values = { 2047, 2048, 2049, 4095, 4096, 123_456, 9_999_999, 1L << 35 };
+    for (long value : values) {
+      LatencyHistogram histogram = new LatencyHistogram();
+      histogram.record(value);
+      histogram.record(1L << 40);
+      long reported = histogram.percentile(50);
+      Check.isTrue(reported >= value && reported <= value + value / 1000,
+          "p50 of " + value + " reported as " + reported);
+    }
+  }
+
+  private static void percentilesOfUniform() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long micros = 1; micros <= 1_000_000; micros++) {
+      histogram.recordNanos(micros * 1000);
+    }
+    Check.equal(1_000_000, histogram.getCount(), "count");
+    Check.equal(1_000_000, histogram.getMax(), "max");
+    for (double percentile : new double[] { 50, 95, 99, 99.9 }) {
+      long expected = (long) (percentile * 10_000);
+      long reported = histogram.percentile(percentile);
+      Check.isTrue(reported >= expected && reported <= expected + expected / 1000,
+          "p" + percentile + " reported as " + reported + ", expected " + expected);
+    }
+  }
+
+  // Values past the last bucket still report the exact maximum.
+  private static void offTheScale() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(Long.MAX_VALUE / 2);
+    Check.equal(Long.MAX_VALUE / 2, histogram.percentile(100), "p100 off the scale");
+    histogram.recordNanos(-5);
+    Check.equal(0, histogram.percentile(1), "negative time counts as 0");
+  }
+
+  private static void merge() {
+    LatencyHistogram a = new LatencyHistogram();
+    LatencyHistogram b = new LatencyHistogram();
+    for (long micros = 1; micros <= 100; micros++) {
+      a.record(micros);
+      b.record(micros + 100);
+    }
+    a.add(b);
+    Check.equal(200, a.getCount(), "merged count");
+    Check.equal(200, a.getMax(), "merged max");
+    Check.equal(100.5, a.getMean(), 1e-9, "merged mean");
+    Check.equal(100, a.percentile(50), "merged p50");
+  }
+}
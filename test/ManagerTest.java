@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Tests of the products of the manager, run on an EmbeddedCluster so every
+ * tile goes through the scheduling of a real cluster.
+ */
+public class ManagerTest {
+  private static final double TOLERANCE = 1e-9;
+
+  public static void main(String[] args) throws IOException {
+    replicated();
+    replicationPastTheBlocks();
+    replicationByDefault();
+    strassen();
+    checkpointedSparse();
+    syrk();
+    trmm();
+    System.out.println("ManagerTest passed");
+  }
+
+  private static Matrix product(Matrix A, Matrix B) {
+    Matrix C = new Matrix(A.getM(), B.getN());
+    Matrix.gemm(1, A, B, 0, C);
+    return C;
+  }
+
+  // The 2.5D decomposition with reduction trees of 2, 3 and 4 slices, a
+  // tree that is not full included, on rectangular matrices that need padding.
+  private static void replicated() {
+    for (int c : new int[] { 2, 3, 4 }) {
+      EmbeddedCluster cluster = new EmbeddedCluster(8);
+      cluster.getManager().setPartitionSize(16);
+      cluster.getManager().setReplication(c);
+      for (int round = 0; round < 3; round++) {
+        Matrix A = Matrix.random(100, 70);
+        Matrix B = Matrix.random(70, 120);
+        Check.equal(product(A, B), cluster.multiply(A, B), TOLERANCE, "replication " + c + ", round " + round);
+      }
+    }
+  }
+
+  // More replicas than block pairs: every slice still gets at least one pair.
+  private static void replicationPastTheBlocks() {
+    EmbeddedCluster cluster = new EmbeddedCluster(8);
+    cluster.getManager().setPartitionSize(4);
+    cluster.getManager().setReplication(8);
+    Matrix A = Matrix.random(64, 64);
+    Matrix B = Matrix.random(64, 64);
+    Check.equal(product(A, B), cluster.multiply(A, B), TOLERANCE, "replication over the block pairs");
+  }
+
+  // With 0 the replication is workers / tiles, here 2.
+  private static void replicationByDefault() {
+    EmbeddedCluster cluster = new EmbeddedCluster(8);
+    cluster.getManager().setPartitionSize(4);
+    cluster.getManager().setReplication(0);
+    Matrix A = Matrix.random(90, 90);
+    Matrix B = Matrix.random(90, 90);
+    Check.equal(product(A, B), cluster.multiply(A, B), TOLERANCE, "replication by default");
+  }
+
+  // At this size the default rates make one level of Strassen the cheapest
+  // plan, on an order that needs padding.
+  private static void strassen() {
+    EmbeddedCluster cluster = new EmbeddedCluster(8);
+    Matrix A = Matrix.random(500, 500);
+    Matrix B = Matrix.random(500, 500);
+    Matrix C = cluster.multiply(A, B);
+    List<Planner.Plan> plans = cluster.getManager().getPlanner().getHistory();
+    Check.isTrue(plans.get(plans.size() - 1).getStrategy() == Planner.Strategy.STRASSEN,
+        "planned " + plans.get(plans.size() - 1));
+    Check.equal(product(A, B), C, TOLERANCE, "Strassen");
+  }
+  // A checkpointed job keeps its operands dense, a sparse one is expanded.
+  private static void checkpointedSparse() throws IOException {
+    Path root = Files.createTempDirectory("checkpoints");
+    try {
+      EmbeddedCluster cluster = new EmbeddedCluster(4);
+      cluster.getManager().setCheckpointStore(new CheckpointStore(root));
+      Matrix A = Matrix.random(60, 60);
+      for (int i = 0; i < 60; i++) {
+        for (int j = 0; j < 60; j++) {
+          if ((i + j) % 7 != 0) {
+            A.set(i, j, 0);
+          }
+        }
+      }
+      Matrix B = Matrix.random(60, 60);
+      Object C = cluster.execute(JobRequest.multiply(SparseMatrix.fromDense(A), B, "sparse"));
+      Check.equal(product(A, B), (Matrix) C, TOLERANCE, "checkpointed sparse product");
+      Check.equal(product(A, B), (Matrix) cluster.execute(JobRequest.attach("sparse")), TOLERANCE, "attached");
+    } finally {
+      try (Stream<Path> files = Files.walk(root)) {
+        files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+      }
+    }
+  }
+  // The textbook triple loop, independent of the kernels.
+  private static Matrix naive(Matrix A, Matrix B) {
+    Matrix C = new Matrix(A.getM(), B.getN());
+    for (int i = 0; i < A.getM(); i++) {
+      for (int j = 0; j < B.getN(); j++) {
+        double sum = 0;
+        for (int k = 0; k < A.getN(); k++) {
+          sum += A.get(i, k) * B.get(k, j);
+        }
+        C.set(i, j, sum);
+      }
+    }
+    return C;
+  }
+
+  // The triangle of A, the other side of the diagonal set to 0.
+  private static Matrix triangle(Matrix A, boolean lower) {
+    Matrix T = new Matrix(A.getM(), A.getN());
+    for (int i = 0; i < A.getM(); i++) {
+      for (int j = lower ? 0 : i; j < (lower ? i + 1 : A.getN()); j++) {
+        T.set(i, j, A.get(i, j));
+      }
+    }
+    return T;
+  }
+
+  // Both orders of the symmetric product of a rectangular matrix, with the
+  // partition planned and fixed to more tiles than workers.
+  private static void syrk() {
+    EmbeddedCluster cluster = new EmbeddedCluster(3);
+    for (int partitions : new int[] { 0, 16, 64 }) {
+      cluster.getManager().setPartitionSize(partitions);
+      Matrix A = Matrix.random(150, 90);
+      Matrix product = cluster.getManager().syrk(A, false);
+      Check.equal(naive(A, A.transpose()), product, TOLERANCE, "A A^T with " + partitions + " tiles");
+      Check.equal(product.transpose(), product, TOLERANCE, "A A^T is symmetric");
+      Check.equal(naive(A.transpose(), A), cluster.getManager().syrk(A, true), TOLERANCE,
+          "A^T A with " + partitions + " tiles");
+    }
+  }
+
+  // Lower and upper triangles, B wider and narrower than A, and a full A
+  // whose other side of the diagonal is ignored.
+  private static void trmm() {
+    EmbeddedCluster cluster = new EmbeddedCluster(3);
+    for (int partitions : new int[] { 0, 16, 64 }) {
+      cluster.getManager().setPartitionSize(partitions);
+      Matrix A = Matrix.random(130, 130);
+      Matrix lower = triangle(A, true);
+      Matrix upper = triangle(A, false);
+      for (Matrix B : new Matrix[] { Matrix.random(130, 200), Matrix.random(130, 40) }) {
+        String what = " times " + B.getN() + " columns with " + partitions + " tiles";
+        Check.equal(naive(lower, B), cluster.getManager().trmm(lower, B, true), TOLERANCE, "lower" + what);
+        Check.equal(naive(upper, B), cluster.getManager().trmm(upper, B, false), TOLERANCE, "upper" + what);
+        Check.equal(naive(lower, B), cluster.getManager().trmm(A, B, true), TOLERANCE, "full A as lower" + what);
+      }
+    }
+  }
+}
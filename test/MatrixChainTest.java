@@ -0,0 +1,65 @@
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests of the chain order and of the chain product with the tiles multiplied
+ * in place of the workers.
+ */
+public class MatrixChainTest {
+  public static void main(String[] args) {
+    textbookOrder();
+    singleAndPair();
+    cheapestOrderIsUsed();
+    product();
+    emptyChain();
+    System.out.println("MatrixChainTest passed");
+  }
+
+  // The example of Cormen et al.: ((A1 (A2 A3)) ((A4 A5) A6)).
+  private static void textbookOrder() {
+    int[][] split = MatrixChain.order(new int[] { 30, 35, 15, 5, 10, 20, 25 });
+    Check.equal(2, split[0][5], "outer split");
+    Check.equal(0, split[0][2], "split of A1..A3");
+    Check.equal(1, split[1][2], "split of A2..A3");
+    Check.equal(4, split[3][5], "split of A4..A6");
+    Check.equal(3, split[3][4], "split of A4..A5");
+  }
+
+  private static void singleAndPair() {
+    Check.equal(1, MatrixChain.order(new int[] { 3, 4 }).length, "one matrix");
+    Check.equal(0, MatrixChain.order(new int[] { 3, 4, 5 })[0][1], "two matrices");
+  }
+
+  // Two orders that differ by a factor of 100: 200 multiplications against
+  // 20000 either way round.
+  private static void cheapestOrderIsUsed() {
+    int[][] split = MatrixChain.order(new int[] { 100, 1, 100, 1 });
+    Check.equal(0, split[0][2], "A1 (A2 A3) for a thin middle");
+    split = MatrixChain.order(new int[] { 1, 100, 1, 100 });
+    Check.equal(1, split[0][2], "(A1 A2) A3 for thin ends");
+  }
+
+  // The chain on tiles, each tile product done here.
+  private static void product() {
+    Matrix[] matrices = { Matrix.random(10, 30), Matrix.random(30, 5), Matrix.random(5, 40), Matrix.random(40, 12) };
+    AtomicInteger tasks = new AtomicInteger();
+    Matrix product = MatrixChain.multiply(matrices, 8, task -> {
+      tasks.incrementAndGet();
+      Matrix C = new Matrix(((Matrix) task[0][0]).getM(), ((Matrix) task[1][0]).getN());
+      for (int k = 0; k < task[0].length; k++) {
+        SparseMatrix.multiplyAccumulate(task[0][k], task[1][k], C);
+      }
+      return CompletableFuture.completedFuture(C);
+    });
+
+    Matrix expected = matrices[0].times(matrices[1]).times(matrices[2]).times(matrices[3]);
+    Check.equal(expected, product, 1e-9, "chain product");
+    Check.isTrue(tasks.get() > 0, "the tiles went to the submitter");
+  }
+
+  private static void emptyChain() {
+    Check.fails(IllegalArgumentException.class, () -> MatrixChain.multiply(new Matrix[0], 8,
+        task -> CompletableFuture.completedFuture(null)), "a chain without matrices");
+    Check.fails(IllegalArgumentException.class, () -> MatrixChain.order(new int[] { 3 }), "no dimensions");
+  }
+}
@@ -0,0 +1,122 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Tests of the powers with the tiles resident on the workers, against
+ * repeated products.
+ */
+public class MatrixPowerTest {
+  private static final double TOLERANCE = 1e-9;
+
+  public static void main(String[] args) {
+    exponents();
+    converges();
+    onTheCluster();
+    illegal();
+    System.out.println("MatrixPowerTest passed");
+  }
+
+  private static Matrix repeated(Matrix A, int k) {
+    Matrix product = Matrix.identity(A.getN());
+    for (int i = 0; i < k; i++) {
+      product = product.times(A);
+    }
+    return product;
+  }
+
+  // Entries small enough that high powers neither blow up nor vanish.
+  private static Matrix scaled(int n) {
+    Matrix A = Matrix.random(n, n);
+    for (int i = 0; i < n; i++) {
+      for (int j = 0; j < n; j++) {
+        A.set(i, j, A.get(i, j) * 2 / n);
+      }
+    }
+    return A;
+  }
+
+  // The exponents cover 0, 1, powers of 2 and mixed bits, on an order that is
+  // not a multiple of the tile size and a grid of workers that is not square.
+  private static void exponents() {
+    LocalTransport transport = new LocalTransport();
+    InetSocketAddress[] workers = { transport.addWorker(), transport.addWorker(), transport.addWorker() };
+    List<Object> requests = new ArrayList<>();
+    TileStore.Dispatcher dispatcher = (worker, request, bytes) -> {
+      synchronized (requests) {
+        requests.add(request);
+      }
+      return transport.callAsync(worker, request);
+    };
+
+    Matrix A = scaled(37);
+    for (int k : new int[] { 0, 1, 2, 5, 8, 13 }) {
+      requests.clear();
+      Matrix power = MatrixPower.power(A, k, 0, 8, workers, dispatcher);
+      Check.equal(repeated(A, k), power, TOLERANCE, "A^" + k);
+
+      // Every job ends by dropping its tiles on all workers
+      if (k > 0) {
+        for (int i = requests.size() - workers.length; i < requests.size(); i++) {
+          Check.isTrue(requests.get(i) instanceof TileStore.Drop, "A^" + k + " ends with a drop on every worker");
+        }
+      }
+    }
+  }
+
+  // A stochastic matrix converges, so a tolerance ends the squarings long
+  // before 2^20.
+  private static void converges() {
+    LocalTransport transport = new LocalTransport();
+    InetSocketAddress[] workers = { transport.addWorker(), transport.addWorker() };
+    int[] multiplies = { 0 };
+    TileStore.Dispatcher dispatcher = (worker, request, bytes) -> {
+      if (request instanceof TileStore.Multiply) {
+        synchronized (multiplies) {
+          multiplies[0]++;
+        }
+      }
+      return transport.callAsync(worker, request);
+    };
+
+    int n = 20;
+    Matrix P = Matrix.random(n, n);
+    for (int i = 0; i < n; i++) {
+      double sum = 0;
+      for (int j = 0; j < n; j++) {
+        sum += P.get(i, j);
+      }
+      for (int j = 0; j < n; j++) {
+        P.set(i, j, P.get(i, j) / sum);
+      }
+    }
+
+    Matrix limit = MatrixPower.power(P, 1 << 20, 1e-12, 8, workers, dispatcher);
+    Check.isTrue(multiplies[0] < 20 * 9, "stopped early after " + multiplies[0] / 9 + " products");
+    Matrix next = limit.times(P);
+    Check.equal(limit, next, 1e-10, "the limit is stationary");
+  }
+
+  // Through the manager, at the same time as a product that takes workers
+  // from the same queue.
+  private static void onTheCluster() {
+    EmbeddedCluster cluster = new EmbeddedCluster(4);
+    Matrix A = scaled(50);
+    Matrix B = Matrix.random(64, 64);
+    CompletableFuture<Matrix> product = CompletableFuture.supplyAsync(() -> cluster.multiply(B, B));
+    Matrix power = cluster.getManager().power(A, 9, 0);
+    Check.equal(repeated(A, 9), power, TOLERANCE, "A^9 on the cluster");
+    Check.equal(B.times(B), product.join(), TOLERANCE, "product alongside");
+  }
+
+  private static void illegal() {
+    LocalTransport transport = new LocalTransport();
+    InetSocketAddress[] workers = { transport.addWorker() };
+    TileStore.Dispatcher dispatcher = (worker, request, bytes) -> transport.callAsync(worker, request);
+    Check.fails(IllegalArgumentException.class, () -> MatrixPower.power(Matrix.random(4, 4), -1, 0, 2, workers,
+        dispatcher), "a negative exponent");
+    Check.fails(RuntimeException.class, () -> MatrixPower.power(Matrix.random(4, 5), 2, 0, 2, workers, dispatcher),
+        "a matrix that is not square");
+  }
+}
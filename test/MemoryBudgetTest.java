@@ -0,0 +1,125 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests of the memory budget: reservations, the timeout, the order of the
+ * line and charges that never wait.
+ */
+public class MemoryBudgetTest {
+  public static void main(String[] args) throws Exception {
+    reserveAndClose();
+    neverFits();
+    timeout();
+    firstInFirstOut();
+    charges();
+    illegal();
+    System.out.println("MemoryBudgetTest passed");
+  }
+
+  private static void reserveAndClose() {
+    MemoryBudget budget = new MemoryBudget(100, 1000);
+    AtomicInteger released = new AtomicInteger();
+    budget.onRelease(released::incrementAndGet);
+
+    MemoryBudget.Reservation first = budget.reserve(60);
+    MemoryBudget.Reservation second = budget.reserve(40);
+    Check.equal(100, budget.getUsed(), "both reserved");
+    Check.isTrue(!budget.tryReserve(1), "nothing is left");
+
+    first.close();
+    first.close();
+    Check.equal(40, budget.getUsed(), "a reservation is given back once");
+    Check.equal(1, released.get(), "listener called once");
+    second.close();
+    Check.equal(0, budget.getUsed(), "all given back");
+  }
+
+  private static void neverFits() {
+    MemoryBudget budget = new MemoryBudget(100, 60_000);
+    long start = System.nanoTime();
+    Check.fails(RejectedExecutionException.class, () -> budget.reserve(101), "a job bigger than the budget");
+    Check.isTrue(System.nanoTime() - start < 1_000_000_000L, "rejected without waiting");
+    Check.equal(0, budget.getUsed(), "nothing reserved");
+  }
+
+  private static void timeout() {
+    MemoryBudget budget = new MemoryBudget(100, 200);
+    MemoryBudget.Reservation held = budget.reserve(80);
+    long start = System.nanoTime();
+    Check.fails(RejectedExecutionException.class, () -> budget.reserve(50), "a job that waits too long");
+    long waited = (System.nanoTime() - start) / 1_000_000;
+    Check.isTrue(waited >= 150, "waited " + waited + " ms for room");
+    Check.equal(80, budget.getUsed(), "the rejected job holds nothing");
+
+    // The line is empty again, a job that fits goes in at once
+    budget.reserve(20).close();
+    held.close();
+  }
+
+  // A smaller job that would fit does not overtake a large one that waits.
+  // The two do not fit together, so the second is admitted only once the
+  // first is given back.
+  private static void firstInFirstOut() throws Exception {
+    MemoryBudget budget = new MemoryBudget(100, 10_000);
+    MemoryBudget.Reservation held = budget.reserve(90);
+    List<String> admitted = Collections.synchronizedList(new ArrayList<>());
+
+    CompletableFuture<MemoryBudget.Reservation> large = CompletableFuture.supplyAsync(() -> {
+      MemoryBudget.Reservation reservation = budget.reserve(60);
+      admitted.add("large");
+      return reservation;
+    });
+    Thread.sleep(200);
+    CompletableFuture<MemoryBudget.Reservation> small = CompletableFuture.supplyAsync(() -> {
+      MemoryBudget.Reservation reservation = budget.reserve(50);
+      admitted.add("small");
+      return reservation;
+    });
+    Thread.sleep(200);
+    Check.isTrue(admitted.isEmpty(), "both wait while the large one does not fit: " + admitted);
+    Check.isTrue(!budget.tryReserve(5), "tryReserve does not jump the line");
+
+    held.close();
+    MemoryBudget.Reservation first = large.get(5, TimeUnit.SECONDS);
+    Check.isTrue(admitted.equals(List.of("large")), "in the order they asked: " + admitted);
+    first.close();
+    small.get(5, TimeUnit.SECONDS).close();
+    Check.equal(2, admitted.size(), "both admitted");
+    Check.equal(0, budget.getUsed(), "all given back");
+  }
+
+  // Charges go over the limit without waiting, and hold back reservations
+  // and awaitRoom until they are released.
+  private static void charges() throws Exception {
+    MemoryBudget budget = new MemoryBudget(100, 10_000);
+    budget.charge(150);
+    Check.equal(150, budget.getUsed(), "charged over the limit");
+
+    CompletableFuture<MemoryBudget.Reservation> waiting = CompletableFuture.supplyAsync(() -> budget.reserve(10));
+    CompletableFuture<Void> room = CompletableFuture.runAsync(() -> {
+      try {
+        budget.awaitRoom();
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    Thread.sleep(100);
+    Check.isTrue(!waiting.isDone() && !room.isDone(), "held back by the charge");
+
+    budget.release(150);
+    waiting.get().close();
+    room.get();
+    Check.equal(0, budget.getUsed(), "all given back");
+  }
+
+  private static void illegal() {
+    Check.fails(IllegalArgumentException.class, () -> new MemoryBudget(0, 1000), "an empty budget");
+    Check.fails(IllegalArgumentException.class, () -> new MemoryBudget(100, 1000).tryReserve(-1),
+        "a negative reservation");
+  }
+}
@@ -0,0 +1,173 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests of the frames and of the non-blocking server: requests that arrive in
+ * pieces, lengths that are negative or too big, and connections cut off in
+ * the middle of a frame.
+ */
+public class NioServerTest {
+  private static final int MAX_FRAME_BYTES = 4096;
+
+  public static void main(String[] args) throws Exception {
+    frames();
+    truncatedFrame();
+
+    MemoryBudget budget = new MemoryBudget(64 * 1024, 1000);
+    NioServer server = new NioServer(request -> {
+      if ("sequence".equals(request)) {
+        return (Frames.Sequence) () -> Arrays.asList("one", "two", "three").iterator();
+      }
+      return "echo " + request;
+    }, Executors.newFixedThreadPool(2, runnable -> {
+      Thread thread = new Thread(runnable);
+      thread.setDaemon(true);
+      return thread;
+    }), 1);
+    server.setBudget(budget);
+    server.setMaxFrameSize(MAX_FRAME_BYTES);
+    int port = freePort();
+    Thread accepting = new Thread(() -> {
+      try {
+        server.start(port);
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    accepting.setDaemon(true);
+    accepting.start();
+    awaitListening(port);
+
+    try {
+      wholeFrame(port);
+      frameInPieces(port);
+      sequence(port);
+      badLength(port, -1);
+      badLength(port, MAX_FRAME_BYTES + 1);
+      cutOffInBody(port, budget);
+      wholeFrame(port);
+    } finally {
+      server.stop();
+    }
+    System.out.println("NioServerTest passed");
+  }
+
+  private static void frames() throws Exception {
+    ByteBuffer frame = Frames.encode("hello");
+    Check.equal(frame.capacity() - 4, frame.getInt(0), "length prefix");
+    frame.position(4);
+    Check.isTrue("hello".equals(Frames.decode(frame)), "decode of encode");
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Frames.write(bytes, "first");
+    Frames.write(bytes, "second");
+    InputStream in = new ByteArrayInputStream(bytes.toByteArray());
+    Check.isTrue("first".equals(Frames.read(in)), "first frame of a stream");
+    Check.isTrue("second".equals(Frames.read(in)), "second frame of a stream");
+  }
+
+  // A stream that ends inside a frame is an error, not a shorter object.
+  private static void truncatedFrame() throws Exception {
+    ByteBuffer frame = Frames.encode("hello");
+    byte[] cut = Arrays.copyOf(frame.array(), frame.capacity() - 2);
+    Check.fails(EOFException.class, () -> Frames.read(new ByteArrayInputStream(cut)), "a truncated frame");
+    Check.fails(EOFException.class, () -> Frames.read(new ByteArrayInputStream(new byte[] { 0, 0 })),
+        "a truncated length");
+  }
+
+  private static void wholeFrame(int port) throws Exception {
+    try (Socket socket = new Socket("localhost", port)) {
+      Frames.write(socket.getOutputStream(), "whole");
+      Check.isTrue("echo whole".equals(Frames.read(socket.getInputStream())), "response to a whole frame");
+    }
+  }
+
+  // The length and the body trickle in a few bytes at a time, the selector
+  // thread collects them across reads.
+  private static void frameInPieces(int port) throws Exception {
+    byte[] frame = Frames.encode("pieces").array();
+    try (Socket socket = new Socket("localhost", port)) {
+      socket.setTcpNoDelay(true);
+      for (int from = 0; from < frame.length; from += 3) {
+        socket.getOutputStream().write(frame, from, Math.min(3, frame.length - from));
+        socket.getOutputStream().flush();
+        Thread.sleep(2);
+      }
+      Check.isTrue("echo pieces".equals(Frames.read(socket.getInputStream())), "response to a frame in pieces");
+
+      // The connection goes back to reading the next request
+      Frames.write(socket.getOutputStream(), "again");
+      Check.isTrue("echo again".equals(Frames.read(socket.getInputStream())), "second request");
+    }
+  }
+
+  // One frame per object, and the connection reads again after the last.
+  private static void sequence(int port) throws Exception {
+    try (Socket socket = new Socket("localhost", port)) {
+      Frames.write(socket.getOutputStream(), "sequence");
+      for (String expected : new String[] { "one", "two", "three" }) {
+        Check.isTrue(expected.equals(Frames.read(socket.getInputStream())), "frame " + expected);
+      }
+      Frames.write(socket.getOutputStream(), "after");
+      Check.isTrue("echo after".equals(Frames.read(socket.getInputStream())), "request after a sequence");
+    }
+  }
+
+  // The server closes the connection without reading on or allocating.
+  private static void badLength(int port, int length) throws Exception {
+    try (Socket socket = new Socket("localhost", port)) {
+      socket.setSoTimeout(5000);
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      out.writeInt(length);
+      out.flush();
+      Check.equal(-1, socket.getInputStream().read(), "closed after a length of " + length);
+    }
+  }
+
+  // Half a body, then the client goes away: the bytes reserved for the body
+  // are given back.
+  private static void cutOffInBody(int port, MemoryBudget budget) throws Exception {
+    try (Socket socket = new Socket("localhost", port)) {
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      out.writeInt(1000);
+      out.write(new byte[500]);
+      out.flush();
+      for (int i = 0; i < 500 && budget.getUsed() == 0; i++) {
+        Thread.sleep(2);
+      }
+      Check.equal(1000, budget.getUsed(), "reserved for the body");
+    }
+    for (int i = 0; i < 500 && budget.getUsed() != 0; i++) {
+      Thread.sleep(2);
+    }
+    Check.equal(0, budget.getUsed(), "released after the connection is cut off");
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static void awaitListening(int port) throws InterruptedException {
+    for (int i = 0; i < 500; i++) {
+      try (Socket socket = new Socket()) {
+        socket.connect(new InetSocketAddress("localhost", port), 100);
+        return;
+      } catch (IOException e) {
+        Thread.sleep(10);
+      }
+    }
+    throw new AssertionError("the server did not start");
+  }
+}
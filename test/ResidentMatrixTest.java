@@ -0,0 +1,143 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests of the matrix resident on the workers: products with vectors,
+ * conjugate gradient against the residual and power iteration against a
+ * known eigenvalue.
+ */
+public class ResidentMatrixTest {
+  private static final double TOLERANCE = 1e-9;
+
+  public static void main(String[] args) {
+    times();
+    conjugateGradient();
+    powerIteration();
+    onTheCluster();
+    illegal();
+    System.out.println("ResidentMatrixTest passed");
+  }
+
+  // A^T A + n I is symmetric and positive definite.
+  private static Matrix positiveDefinite(int n) {
+    Matrix A = Matrix.random(n, n);
+    return A.transpose().times(A).plus(diagonal(n, n));
+  }
+
+  private static Matrix diagonal(int n, double value) {
+    Matrix D = new Matrix(n, n);
+    for (int i = 0; i < n; i++) {
+      D.set(i, i, value);
+    }
+    return D;
+  }
+
+  private static double[] vector(Matrix column) {
+    double[] x = new double[column.getM()];
+    for (int i = 0; i < x.length; i++) {
+      x[i] = column.get(i, 0);
+    }
+    return x;
+  }
+
+  private static Matrix column(double[] x) {
+    Matrix column = new Matrix(x.length, 1);
+    for (int i = 0; i < x.length; i++) {
+      column.set(i, 0, x[i]);
+    }
+    return column;
+  }
+
+  // More workers than rows, so some workers get no block, and every worker
+  // with a block gets its drop on close.
+  private static void times() {
+    LocalTransport transport = new LocalTransport();
+    InetSocketAddress[] workers = { transport.addWorker(), transport.addWorker(), transport.addWorker(),
+        transport.addWorker() };
+    List<Object> requests = new ArrayList<>();
+    TileStore.Dispatcher dispatcher = (worker, request, bytes) -> {
+      synchronized (requests) {
+        requests.add(request);
+      }
+      return transport.callAsync(worker, request);
+    };
+
+    Matrix A = Matrix.random(3, 5);
+    Matrix x = Matrix.random(5, 1);
+    try (ResidentMatrix resident = new ResidentMatrix(A, workers, dispatcher)) {
+      Check.equal(A.times(x), column(resident.times(vector(x))), TOLERANCE, "A x");
+      Check.equal(A.times(x), column(resident.times(vector(x))), TOLERANCE, "A x again");
+    }
+    long drops = requests.stream().filter(request -> request instanceof TileStore.Drop).count();
+    Check.equal(3, drops, "a drop on every worker with a block");
+    Check.equal(3 + 2 * 3 + 3, requests.size(), "puts, products and drops");
+  }
+
+  private static void conjugateGradient() {
+    LocalTransport transport = new LocalTransport();
+    InetSocketAddress[] workers = { transport.addWorker(), transport.addWorker(), transport.addWorker() };
+    TileStore.Dispatcher dispatcher = (worker, request, bytes) -> transport.callAsync(worker, request);
+
+    Matrix A = positiveDefinite(41);
+    Matrix b = Matrix.random(41, 1);
+    try (ResidentMatrix resident = new ResidentMatrix(A, workers, dispatcher)) {
+      Matrix x = column(resident.conjugateGradient(vector(b), 1e-12, 200));
+      Check.equal(b, A.times(x), 1e-9, "A x = b");
+
+      // A zero right hand side needs no iteration at all
+      double[] zero = resident.conjugateGradient(new double[41], 1e-12, 200);
+      Check.equal(new Matrix(41, 1), column(zero), 0, "A x = 0");
+    }
+  }
+
+  // A diagonal matrix with one eigenvalue twice as large as the others, once
+  // positive and once negative.
+  private static void powerIteration() {
+    LocalTransport transport = new LocalTransport();
+    InetSocketAddress[] workers = { transport.addWorker(), transport.addWorker() };
+    TileStore.Dispatcher dispatcher = (worker, request, bytes) -> transport.callAsync(worker, request);
+
+    for (double dominant : new double[] { 20, -20 }) {
+      int n = 12;
+      Matrix A = diagonal(n, 0);
+      for (int i = 0; i < n; i++) {
+        A.set(i, i, 1 + i % 10);
+      }
+      A.set(7, 7, dominant);
+      try (ResidentMatrix resident = new ResidentMatrix(A, workers, dispatcher)) {
+        ResidentMatrix.Eigenpair pair = resident.powerIteration(1e-12, 1000);
+        Check.equal(dominant, pair.getValue(), 1e-9, "eigenvalue " + dominant);
+        Check.equal(1, Math.abs(pair.getVector()[7]), 1e-9, "eigenvector of " + dominant);
+      }
+    }
+  }
+
+  // Through the manager, every column of B on the same resident A.
+  private static void onTheCluster() {
+    EmbeddedCluster cluster = new EmbeddedCluster(3);
+    Matrix A = positiveDefinite(30);
+    Matrix B = Matrix.random(30, 3);
+    Matrix X = cluster.getManager().conjugateGradient(A, B, 1e-12, 200);
+    Check.equal(B, A.times(X), 1e-9, "A X = B on the cluster");
+
+    Matrix D = diagonal(30, 3);
+    D.set(4, 4, 9);
+    Check.equal(9, cluster.getManager().powerIteration(D, 1e-12, 1000).getValue(), 1e-9, "eigenvalue on the cluster");
+  }
+
+  private static void illegal() {
+    LocalTransport transport = new LocalTransport();
+    InetSocketAddress[] workers = { transport.addWorker() };
+    TileStore.Dispatcher dispatcher = (worker, request, bytes) -> transport.callAsync(worker, request);
+    Check.fails(IllegalStateException.class, () -> new ResidentMatrix(Matrix.random(3, 3), new InetSocketAddress[0],
+        dispatcher), "no workers");
+    try (ResidentMatrix resident = new ResidentMatrix(Matrix.random(3, 4), workers, dispatcher)) {
+      Check.fails(RuntimeException.class, () -> resident.times(new double[3]), "a vector of the wrong length");
+      Check.fails(RuntimeException.class, () -> resident.conjugateGradient(new double[3], 1e-9, 10),
+          "conjugate gradient on a matrix that is not square");
+      Check.fails(RuntimeException.class, () -> resident.powerIteration(1e-9, 10),
+          "power iteration on a matrix that is not square");
+    }
+  }
+}
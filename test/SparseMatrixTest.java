@@ -0,0 +1,160 @@
+import java.util.Random;
+
+/**
+ * Tests of the CSR matrix and its products against the dense ones.
+ */
+public class SparseMatrixTest {
+  private static final double TOLERANCE = 1e-12;
+
+  public static void main(String[] args) {
+    roundTrip();
+    transpose();
+    sparseTimesDense();
+    sparseTimesSparse();
+    denseTimesSparse();
+    accumulates();
+    emptyRows();
+    blocks();
+    balancedCuts();
+    illegalDimensions();
+    System.out.println("SparseMatrixTest passed");
+  }
+
+  // A dense matrix with about the given share of non-zeros.
+  private static Matrix sparse(int M, int N, double density, long seed) {
+    Random random = new Random(seed);
+    Matrix A = new Matrix(M, N);
+    for (int i = 0; i < M; i++) {
+      for (int j = 0; j < N; j++) {
+        if (random.nextDouble() < density) {
+          A.set(i, j, random.nextDouble() * 2 - 1);
+        }
+      }
+    }
+    return A;
+  }
+
+  private static void roundTrip() {
+    Matrix A = sparse(37, 23, 0.1, 1);
+    SparseMatrix S = SparseMatrix.fromDense(A);
+    Check.equal(A, S.toDense(), 0, "toDense of fromDense");
+
+    int nonZeros = 0;
+    for (int i = 0; i < A.getM(); i++) {
+      for (int j = 0; j < A.getN(); j++) {
+        nonZeros += A.get(i, j) != 0 ? 1 : 0;
+        Check.equal(A.get(i, j), S.get(i, j), 0, "get(" + i + ", " + j + ")");
+      }
+    }
+    Check.equal(nonZeros, S.nnz(), "nnz");
+    Check.equal((double) nonZeros / (37 * 23), S.density(), TOLERANCE, "density");
+  }
+
+  private static void transpose() {
+    Matrix A = sparse(19, 31, 0.2, 2);
+    Check.equal(A.transpose(), SparseMatrix.fromDense(A).transpose().toDense(), 0, "transpose");
+  }
+
+  private static void sparseTimesDense() {
+    Matrix A = sparse(40, 30, 0.1, 3);
+    Matrix B = Matrix.random(30, 25);
+    Matrix C = new Matrix(40, 25);
+    SparseMatrix.fromDense(A).timesInto(B, C);
+    Check.equal(A.times(B), C, TOLERANCE, "SpMM");
+  }
+
+  private static void sparseTimesSparse() {
+    Matrix A = sparse(40, 30, 0.1, 4);
+    Matrix B = sparse(30, 50, 0.1, 5);
+    Matrix C = new Matrix(40, 50);
+    SparseMatrix.fromDense(A).timesInto(SparseMatrix.fromDense(B), C);
+    Check.equal(A.times(B), C, TOLERANCE, "SpGEMM");
+  }
+
+  private static void denseTimesSparse() {
+    Matrix A = sparse(20, 30, 0.5, 6);
+    Matrix B = sparse(30, 10, 0.1, 7);
+    Matrix C = new Matrix(20, 10);
+    SparseMatrix.timesInto(A, SparseMatrix.fromDense(B), C);
+    Check.equal(A.times(B), C, TOLERANCE, "dense times sparse");
+  }
+
+  // The products add to C, so the block pairs of a task sum up in place.
+  private static void accumulates() {
+    Matrix A1 = sparse(16, 16, 0.2, 8);
+    Matrix B1 = sparse(16, 16, 0.2, 9);
+    Matrix A2 = Matrix.random(16, 16);
+    Matrix B2 = sparse(16, 16, 0.2, 10);
+    Matrix C = new Matrix(16, 16);
+    SparseMatrix.multiplyAccumulate(SparseMatrix.fromDense(A1), SparseMatrix.fromDense(B1), C);
+    SparseMatrix.multiplyAccumulate(A2, SparseMatrix.fromDense(B2), C);
+    SparseMatrix.multiplyAccumulate(A2, B1, C);
+    Check.equal(A1.times(B1).plus(A2.times(B2)).plus(A2.times(B1)), C, TOLERANCE, "multiplyAccumulate");
+  }
+
+  private static void emptyRows() {
+    SparseMatrix empty = SparseMatrix.empty(5, 7);
+    Check.equal(0, empty.nnz(), "nnz of empty");
+    Matrix C = new Matrix(5, 3);
+    empty.timesInto(Matrix.random(7, 3), C);
+    Check.equal(new Matrix(5, 3), C, 0, "empty times dense");
+  }
+
+  private static void blocks() {
+    Matrix A = sparse(23, 31, 0.2, 12);
+    SparseMatrix S = SparseMatrix.fromDense(A);
+    Matrix expected = new Matrix(9, 14);
+    for (int i = 0; i < 9; i++) {
+      for (int j = 0; j < 14; j++) {
+        expected.set(i, j, A.get(5 + i, 10 + j));
+      }
+    }
+    Check.equal(expected, S.block(5, 14, 10, 24).toDense(), 0, "sparse block");
+    Check.equal(expected, (Matrix) SparseMatrix.block(A, 5, 14, 10, 24), 0, "dense block");
+    Check.equal(0, S.block(3, 3, 0, 31).getM(), "block without rows");
+
+    int[] rows = SparseMatrix.rowNonZeros(S);
+    int[] columns = SparseMatrix.columnNonZeros(A);
+    Check.equal(S.block(7, 8, 0, 31).nnz(), rows[7], "row non-zeros");
+    Check.equal(SparseMatrix.nnz(SparseMatrix.block(S, 0, 23, 4, 5)), columns[4], "column non-zeros");
+  }
+
+  // A dense stripe of 8 rows in 1000 gets parts of its own instead of landing
+  // in one part with 250 other rows.
+  private static void balancedCuts() {
+    int[] weights = new int[1000];
+    for (int i = 500; i < 508; i++) {
+      weights[i] = 1000;
+    }
+    int[] cuts = SparseMatrix.balancedCuts(weights, 4);
+    Check.equal(5, cuts.length, "cuts of 4 parts");
+    Check.equal(0, cuts[0], "first cut");
+    Check.equal(1000, cuts[4], "last cut");
+    long heaviest = 0;
+    for (int p = 0; p < 4; p++) {
+      long weight = 0;
+      for (int i = cuts[p]; i < cuts[p + 1]; i++) {
+        weight += weights[i] + 1;
+      }
+      heaviest = Math.max(heaviest, weight);
+    }
+    Check.isTrue(heaviest < 2 * 9000 / 4 + 1000, "heaviest part " + heaviest);
+
+    int[] even = SparseMatrix.balancedCuts(new int[12], 4);
+    Check.equal(3, even[1], "even cut 1");
+    Check.equal(6, even[2], "even cut 2");
+    Check.equal(9, even[3], "even cut 3");
+
+    int[] few = SparseMatrix.balancedCuts(new int[] { 0, 100, 0 }, 8);
+    Check.equal(4, few.length, "at most one part per row");
+    for (int p = 0; p < 3; p++) {
+      Check.equal(p, few[p], "every part keeps a row");
+    }
+  }
+
+  private static void illegalDimensions() {
+    SparseMatrix A = SparseMatrix.fromDense(sparse(4, 5, 0.5, 11));
+    Check.fails(RuntimeException.class, () -> A.timesInto(Matrix.random(4, 4), new Matrix(4, 4)),
+        "SpMM with a wrong inner dimension");
+  }
+}
@@ -0,0 +1,163 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests of the arenas and of the tiles kept in them: closing an arena gives
+ * its buffers back to the pool, up to the limit per size, and off-heap tiles
+ * read in an arena are released with it. The pool is shared by the whole
+ * JVM, so every test uses sizes of its own.
+ */
+public class TileArenaTest {
+  private static final double TOLERANCE = 1e-9;
+
+  public static void main(String[] args) throws IOException, ClassNotFoundException {
+    reuse();
+    limitPerSize();
+    zeroed();
+    nested();
+    tilesInArena();
+    tilesWithoutArena();
+    tooLarge();
+    System.out.println("TileArenaTest passed");
+  }
+
+  private static void reuse() {
+    TileArena first = TileArena.open();
+    ByteBuffer buffer = first.allocate(1001);
+    Check.equal(1001 * 8, buffer.capacity(), "capacity");
+    first.close();
+
+    try (TileArena second = TileArena.open()) {
+      Check.isTrue(second.allocate(1001) == buffer, "the buffer comes back from the pool");
+      Check.isTrue(second.allocate(1001) != buffer, "but only once");
+    }
+  }
+
+  // Of 20 buffers given back at once, the pool keeps 16.
+  private static void limitPerSize() {
+    Set<ByteBuffer> released = Collections.newSetFromMap(new IdentityHashMap<>());
+    try (TileArena arena = TileArena.open()) {
+      for (int i = 0; i < 20; i++) {
+        released.add(arena.allocate(1003));
+      }
+    }
+
+    int reused = 0;
+    try (TileArena arena = TileArena.open()) {
+      for (int i = 0; i < 20; i++) {
+        reused += released.contains(arena.allocate(1003)) ? 1 : 0;
+      }
+    }
+    Check.equal(16, reused, "buffers kept per size");
+  }
+
+  private static void zeroed() {
+    ByteBuffer buffer;
+    try (TileArena arena = TileArena.open()) {
+      buffer = arena.allocate(1005);
+      while (buffer.hasRemaining()) {
+        buffer.put((byte) 7);
+      }
+    }
+
+    try (TileArena arena = TileArena.open()) {
+      ByteBuffer again = arena.allocateZeroed(1005);
+      Check.isTrue(again == buffer, "the dirty buffer comes back");
+      Check.equal(1005 * 8, again.remaining(), "the whole buffer");
+      while (again.hasRemaining()) {
+        Check.equal(0, again.get(), "cleared byte");
+      }
+    }
+  }
+
+  private static void nested() {
+    Check.isTrue(TileArena.current() == null, "no arena left open on this thread");
+    TileArena outer = TileArena.open();
+    TileArena inner = TileArena.open();
+    Check.isTrue(TileArena.current() == inner, "the inner arena is current");
+    inner.close();
+    Check.isTrue(TileArena.current() == outer, "closing it brings back the outer one");
+    TileArena.closeCurrent();
+    Check.isTrue(TileArena.current() == null, "none after the outer one");
+    TileArena.closeCurrent();
+  }
+
+  // Doubles of a buffer, from its start.
+  private static double[] elements(ByteBuffer buffer, int count) {
+    double[] elements = new double[count];
+    DoubleBuffer doubles = buffer.duplicate().order(buffer.order()).clear().asDoubleBuffer();
+    doubles.get(elements);
+    return elements;
+  }
+
+  private static double[] elements(Matrix A) {
+    double[] elements = new double[A.getM() * A.getN()];
+    for (int i = 0; i < A.getM(); i++) {
+      System.arraycopy(A.getRow(i), 0, elements, i * A.getN(), A.getN());
+    }
+    return elements;
+  }
+
+  // A task read like on a worker: the tiles land in the arena, are multiplied
+  // there, and their buffers go back to the pool with the arena.
+  private static void tilesInArena() throws IOException, ClassNotFoundException {
+    Matrix A = Matrix.random(13, 17);
+    Matrix B = Matrix.random(17, 11);
+    Object[][] task = { new Matrix[] { A }, new Matrix[] { B } };
+
+    List<double[]> released = new ArrayList<>();
+    try (TileArena arena = TileArena.open()) {
+      Object[][] data = roundTrip(OffHeapTile.wrap(task));
+      Check.isTrue(data[0][0] instanceof OffHeapTile, "a tile, not a Matrix");
+      Check.isTrue(OffHeapTile.isOffHeap(data), "the task is off the heap");
+      Check.equal(A, ((OffHeapTile) data[0][0]).toMatrix(), 0, "A read into the arena");
+      Check.equal(B, ((OffHeapTile) data[1][0]).toMatrix(), 0, "B read into the arena");
+
+      OffHeapTile product = OffHeapTile.multiply(data[0], data[1], arena);
+      Matrix C = product.toMatrix();
+      Check.equal(A.times(B), C, TOLERANCE, "product off the heap");
+      released.add(elements(C));
+    }
+    released.add(elements(A));
+
+    // The buffers of the next arena still hold the elements of the old tiles
+    try (TileArena arena = TileArena.open()) {
+      Check.isTrue(Arrays.equals(released.get(0), elements(arena.allocate(13 * 11), 13 * 11)),
+          "the product went back to the pool");
+      Check.isTrue(Arrays.equals(released.get(1), elements(arena.allocate(13 * 17), 13 * 17)),
+          "the tile of A went back to the pool");
+    }
+  }
+
+  // Without an arena, as on the manager, a tile arrives as a Matrix.
+  private static void tilesWithoutArena() throws IOException, ClassNotFoundException {
+    Matrix A = Matrix.random(6, 9);
+    Object[][] data = roundTrip(OffHeapTile.wrap(new Object[][] { { A }, { A.transpose() } }));
+    Check.isTrue(data[0][0] instanceof Matrix, "a Matrix on the heap");
+    Check.isTrue(!OffHeapTile.isOffHeap(data), "the task is on the heap");
+    Check.equal(A, (Matrix) data[0][0], 0, "A on the heap");
+
+    Object[][] unwrapped = OffHeapTile.unwrap(OffHeapTile.wrap(new Object[][] { { A }, { A } }));
+    Check.isTrue(unwrapped[0] instanceof Matrix[] && unwrapped[0][0] == A, "unwrapped to the matrix itself");
+  }
+
+  private static void tooLarge() {
+    try (TileArena arena = TileArena.open()) {
+      Check.fails(IllegalArgumentException.class, () -> arena.allocate(Integer.MAX_VALUE / 8 + 1),
+          "a tile larger than a buffer");
+    }
+  }
+
+  private static Object[][] roundTrip(Object[][] task) throws IOException, ClassNotFoundException {
+    ByteBuffer frame = Frames.encode(task);
+    frame.position(4);
+    return (Object[][]) Frames.decode(frame);
+  }
+}
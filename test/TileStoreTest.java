@@ -0,0 +1,91 @@
+import java.net.InetSocketAddress;
+
+/**
+ * Tests of the tile stores of the workers: every worker has its own, tiles
+ * are fetched from their owners, and Drop forgets copies as well.
+ */
+public class TileStoreTest {
+  private static final double TOLERANCE = 1e-12;
+
+  public static void main(String[] args) {
+    separateStores();
+    multiplyFetchesFromOwners();
+    compare();
+    drop();
+    System.out.println("TileStoreTest passed");
+  }
+
+  private static Matrix get(LocalTransport transport, InetSocketAddress worker, String key) {
+    return ((Matrix[]) transport.call(worker, new TileStore.Get(key)))[0];
+  }
+
+  // Two workers in one JVM do not see each other's tiles.
+  private static void separateStores() {
+    LocalTransport transport = new LocalTransport();
+    InetSocketAddress first = transport.addWorker();
+    InetSocketAddress second = transport.addWorker();
+    Matrix tile = Matrix.random(4, 4);
+    transport.call(first, new TileStore.Put("job/a", tile));
+    Check.isTrue(get(transport, first, "job/a") == tile, "the owner has the tile");
+    Check.fails(IllegalStateException.class, () -> get(transport, second, "job/a"), "another worker has not");
+  }
+
+  // The product of a row of tiles on one worker and a column on another,
+  // computed on a third that owns none of them.
+  private static void multiplyFetchesFromOwners() {
+    LocalTransport transport = new LocalTransport();
+    InetSocketAddress a = transport.addWorker();
+    InetSocketAddress b = transport.addWorker();
+    InetSocketAddress c = transport.addWorker();
+    Matrix[] row = { Matrix.random(8, 8), Matrix.random(8, 8) };
+    Matrix[] column = { Matrix.random(8, 8), Matrix.random(8, 8) };
+    for (int k = 0; k < 2; k++) {
+      transport.call(a, new TileStore.Put("job/a/" + k, row[k]));
+      transport.call(b, new TileStore.Put("job/b/" + k, column[k]));
+    }
+
+    Object answer = transport.call(c, new TileStore.Multiply(new String[] { "job/a/0", "job/a/1" },
+        new InetSocketAddress[] { a, a }, new String[] { "job/b/0", "job/b/1" }, new InetSocketAddress[] { b, b },
+        "job/c", null));
+    Check.equal(0, (Double) answer, 0, "no comparison");
+    Matrix expected = row[0].times(column[0]).plus(row[1].times(column[1]));
+    Check.equal(expected, get(transport, c, "job/c"), TOLERANCE, "product kept on the worker");
+
+    // The copies stay on the worker that fetched them
+    Check.equal(row[1], get(transport, c, "job/a/1"), 0, "copy of a tile of A");
+    Check.equal(column[0], get(transport, c, "job/b/0"), 0, "copy of a tile of B");
+  }
+
+  private static void compare() {
+    LocalTransport transport = new LocalTransport();
+    InetSocketAddress worker = transport.addWorker();
+    Matrix identity = Matrix.identity(4);
+    Matrix A = Matrix.random(4, 4);
+    transport.call(worker, new TileStore.Put("job/i", identity));
+    transport.call(worker, new TileStore.Put("job/a", A));
+    Object answer = transport.call(worker, new TileStore.Multiply(new String[] { "job/a" },
+        new InetSocketAddress[] { worker }, new String[] { "job/a" }, new InetSocketAddress[] { worker },
+        "job/aa", "job/a"));
+
+    Matrix square = A.times(A);
+    double expected = 0;
+    for (int i = 0; i < 4; i++) {
+      for (int j = 0; j < 4; j++) {
+        expected = Math.max(expected, Math.abs(square.get(i, j) - A.get(i, j)));
+      }
+    }
+    Check.equal(expected, (Double) answer, TOLERANCE, "largest difference to the compared tile");
+  }
+
+  private static void drop() {
+    LocalTransport transport = new LocalTransport();
+    InetSocketAddress worker = transport.addWorker();
+    transport.call(worker, new TileStore.Put("one/a", Matrix.random(2, 2)));
+    transport.call(worker, new TileStore.Put("one/b", Matrix.random(2, 2)));
+    transport.call(worker, new TileStore.Put("two/a", Matrix.random(2, 2)));
+    transport.call(worker, new TileStore.Drop("one/"));
+    Check.fails(IllegalStateException.class, () -> get(transport, worker, "one/a"), "dropped tile");
+    Check.fails(IllegalStateException.class, () -> get(transport, worker, "one/b"), "dropped tile");
+    Check.equal(2, get(transport, worker, "two/a").getM(), "a tile of another prefix stays");
+  }
+}